@@ -0,0 +1,1168 @@
+#include <jni.h>
+#include <android/log.h>
+#include <fmod_studio.hpp>
+#include <fmod.hpp>
+#include <fmod_errors.h>
+#include <thread>
+#include <atomic>
+#include <mutex>
+#include <vector>
+#include <chrono>
+#include <cmath>
+#include <cstdint>
+#include <cstdlib>
+#include <cstring>
+#include <ctime>
+#include <algorithm>
+#include <linux/futex.h>
+#include <sys/resource.h>
+#include <sys/syscall.h>
+#include <unistd.h>
+
+#define LOG_TAG "FMOD_JNI_AudioEngine"
+#define LOGI(...) __android_log_print(ANDROID_LOG_INFO, LOG_TAG, __VA_ARGS__)
+#define LOGE(...) __android_log_print(ANDROID_LOG_ERROR, LOG_TAG, __VA_ARGS__)
+#define LOGW(...) __android_log_print(ANDROID_LOG_WARN, LOG_TAG, __VA_ARGS__)
+
+// A parameter resolved once by name; global parameters live on the system, local ones
+// on the event instance.
+struct ResolvedParameter {
+    FMOD_STUDIO_PARAMETER_ID id;
+    bool global;
+};
+
+// Global variables
+static FMOD::Studio::System* studioSystem = nullptr;
+static FMOD::Studio::EventDescription* eventDescription = nullptr;
+static FMOD::Studio::EventInstance* eventInstance = nullptr;
+static std::vector<ResolvedParameter> parameters;
+// Banks loaded through BankManager; the handle is the index, unloaded slots are null
+static std::vector<FMOD::Studio::Bank*> banks;
+// Control block shared with ControlBlock.java: int sequence, int capacity, int64 originNs,
+// int64 publishNs, float values[]
+static jobject controlBlockRef = nullptr;
+static int32_t* controlSequence = nullptr;
+static const int64_t* controlStamps = nullptr;
+static const float* controlValues = nullptr;
+static int controlCapacity = 0;
+static std::vector<float> controlSnapshot;
+static std::vector<float> appliedValues;
+// Stamps of the last tick applied, and its sequence; update thread only
+static int64_t appliedOriginNs = 0;
+static int64_t appliedPublishNs = 0;
+static int32_t appliedSequence = 0;
+static const int CONTROL_READ_ATTEMPTS = 4;
+
+// Beat clock shared with BeatClock.java, written by the ride event's timeline callback as
+// a seqlock: int sequence, int bar, int beat, int beatsPerBar, float tempo, int position,
+// int64 beatNs, int markerCount, int markerPosition, int64 markerNs, char markerName[32].
+struct BeatBlock {
+    int32_t sequence;
+    int32_t bar;
+    int32_t beat;
+    int32_t beatsPerBar;
+    float tempo;
+    int32_t positionMs;
+    int64_t beatNs;
+    int32_t markerCount;
+    int32_t markerPositionMs;
+    int64_t markerNs;
+    char markerName[32];
+};
+static_assert(sizeof(BeatBlock) == 80, "layout must match BeatClock.java");
+static jobject beatBlockRef = nullptr;
+static std::atomic<BeatBlock *> beatBlock(nullptr);
+
+// Core output settings applied before initialize (AudioConfig.java); 0 keeps FMOD's default
+struct OutputConfig {
+    int sampleRate;
+    int bufferLength;
+    int numBuffers;
+    bool lowLatency; // AAudio output instead of FMOD's automatic choice
+};
+static OutputConfig outputConfig = {0, 0, 0, false};
+
+static std::thread* updateThread = nullptr;
+static std::atomic<bool> isRunning(false);
+static std::mutex fmodMutex;
+
+// Update scheduler: Studio updates on an absolute-deadline grid, or early when Java
+// publishes new control data or triggers a one-shot (nativeWake). Waking is a futex on
+// wakeSequence, so the waking side never takes a lock.
+static const int64_t NANOS_PER_SECOND = 1000000000LL;
+static const int DEFAULT_UPDATE_RATE_HZ = 100;
+static const int UPDATE_THREAD_NICE = -16; // Process.THREAD_PRIORITY_AUDIO
+static std::atomic<int64_t> updatePeriodNs(NANOS_PER_SECOND / DEFAULT_UPDATE_RATE_HZ);
+static std::atomic<int32_t> wakeSequence(0);
+static std::atomic<int64_t> wakeRequestedNs(0);
+static_assert(sizeof(std::atomic<int32_t>) == sizeof(int32_t), "futex word must be a plain int");
+
+// One-shot event pools (EventInstancePool.java): every instance is created when the event
+// is registered and handed out through a mask of idle instances, which the STOPPED
+// callback refills, so a trigger never creates, loads, or waits for anything.
+static const int POOL_MAX_INSTANCES = 64;
+static const int POOL_MAX_PARAMETERS = 2;
+struct OneShotPool;
+struct PooledInstance {
+    OneShotPool *pool;
+    int index;
+    FMOD::Studio::EventInstance *instance;
+    int64_t startedNs;
+    int32_t tag; // of the trigger that last started it
+};
+struct OneShotPool {
+    FMOD::Studio::EventDescription *description;
+    FMOD_STUDIO_PARAMETER_ID parameters[POOL_MAX_PARAMETERS];
+    int parameterCount;
+    std::vector<PooledInstance> instances; // never resized: elements are callback user data
+    std::atomic<uint64_t> idleMask;       // bit i set = instances[i] is stopped
+};
+static std::vector<OneShotPool *> pools;
+
+// Trigger ring shared with EventInstancePool.java, single producer (Java) and single
+// consumer (the update thread): int head, int tail, int capacity (a power of two),
+// int reserved, then capacity TriggerSlots.
+struct TriggerSlot {
+    int32_t pool;      // TRIGGER_CANCEL: cancel the trigger with this slot's tag
+    int32_t tag;       // ring position of the trigger, returned by EventInstancePool.schedule
+    int64_t triggerNs; // System.nanoTime(), i.e. CLOCK_MONOTONIC
+    int64_t startNs;   // when to start the instance; 0 = at once
+    float values[POOL_MAX_PARAMETERS]; // NaN = leave the parameter as it is
+};
+static_assert(sizeof(TriggerSlot) == 32, "layout must match EventInstancePool.java");
+static const int32_t TRIGGER_CANCEL = -1;
+static jobject triggerRingRef = nullptr;
+static int32_t *triggerHead = nullptr;
+static int32_t *triggerTail = nullptr;
+static int32_t triggerMask = 0;
+static const TriggerSlot *triggerSlots = nullptr;
+// Triggers with a future start time, held by the update thread until they are due. When
+// this is full, later ones start at once.
+static const int MAX_SCHEDULED_TRIGGERS = 16;
+static TriggerSlot scheduledTriggers[MAX_SCHEDULED_TRIGGERS];
+static int scheduledCount = 0;
+
+// Histograms use power-of-two microsecond bins, laid out as in SchedulerStats.java:
+// bin 0 is < 1 us, bin i covers [2^(i-1), 2^i) us, the last bin is open-ended.
+static const int HISTOGRAM_BINS = 20;
+struct SchedulerStats {
+    int64_t updates;
+    int64_t earlyUpdates;
+    int64_t overruns;
+    int64_t maxJitterNs;
+    int64_t maxDurationNs;
+    int64_t maxResponseNs;
+    int64_t jitter[HISTOGRAM_BINS];   // wake time - deadline
+    int64_t duration[HISTOGRAM_BINS]; // apply + Studio::System::update
+    int64_t response[HISTOGRAM_BINS]; // nativeWake - end of the update applying it
+};
+static SchedulerStats schedulerStats;
+// Laid out as in PoolStats.java
+struct PoolStats {
+    int64_t triggers;
+    int64_t misses; // no idle instance: the longest-playing one was restarted
+    int64_t maxLatencyNs;
+    int64_t latency[HISTOGRAM_BINS]; // trigger() - instance->start(), unscheduled triggers
+    int64_t scheduled;
+    int64_t cancels; // scheduled triggers dropped, or their instance stopped
+    int64_t maxStartErrorNs;
+    int64_t startError[HISTOGRAM_BINS]; // |instance->start() - requested start|
+};
+static PoolStats poolStats;
+// Latency probes of the native hops, laid out as in LatencyTracker.java: per histogram
+// count, sum, max, then the bins.
+struct LatencyHistogram {
+    int64_t count;
+    int64_t sumNs;
+    int64_t maxNs;
+    int64_t bins[HISTOGRAM_BINS];
+};
+struct LatencyStats {
+    LatencyHistogram update; // ControlBlock.publish() - end of the update applying it
+    LatencyHistogram output; // mixer buffering until the DSP output
+    LatencyHistogram total;  // sample origin - DSP output
+};
+static LatencyStats latencyStats;
+static int64_t outputLatencyNs = 0;
+static std::mutex statsMutex;
+
+// Helper function to check FMOD errors
+static bool checkFMODError(FMOD_RESULT result, const char* function) {
+    if (result != FMOD_OK) {
+        LOGE("%s failed: %s (%d)", function, FMOD_ErrorString(result), result);
+        return false;
+    }
+    return true;
+}
+
+// Copies one consistent tick out of the control block (seqlock reader) and returns its
+// sequence, or -1 if the writer stayed busy, in which case the next update picks the tick up.
+static int32_t readControlBlock(int64_t *originNs, int64_t *publishNs) {
+    const int count = (int) parameters.size();
+    for (int attempt = 0; attempt < CONTROL_READ_ATTEMPTS; ++attempt) {
+        int32_t before = __atomic_load_n(controlSequence, __ATOMIC_ACQUIRE);
+        if (before & 1) {
+            continue;
+        }
+        *originNs = controlStamps[0];
+        *publishNs = controlStamps[1];
+        memcpy(controlSnapshot.data(), controlValues, count * sizeof(float));
+        __atomic_thread_fence(__ATOMIC_ACQUIRE);
+        if (__atomic_load_n(controlSequence, __ATOMIC_RELAXED) == before) {
+            return before;
+        }
+    }
+    return -1;
+}
+
+// Applies the parameters that changed since the last update; fmodMutex must be held.
+// Returns true if a tick not seen before was read.
+static bool applyControlBlock() {
+    if (!controlSequence || !eventInstance || parameters.empty()) {
+        return false;
+    }
+    int64_t originNs = 0;
+    int64_t publishNs = 0;
+    int32_t sequence = readControlBlock(&originNs, &publishNs);
+    if (sequence < 0) {
+        return false;
+    }
+    bool newTick = sequence != appliedSequence;
+    appliedSequence = sequence;
+    appliedOriginNs = originNs;
+    appliedPublishNs = publishNs;
+    for (size_t i = 0; i < parameters.size(); ++i) {
+        float value = controlSnapshot[i];
+        if (std::isnan(value) || value == appliedValues[i]) {
+            continue;
+        }
+        const ResolvedParameter &parameter = parameters[i];
+        FMOD_RESULT result = parameter.global
+                ? studioSystem->setParameterByID(parameter.id, value)
+                : eventInstance->setParameterByID(parameter.id, value);
+        if (checkFMODError(result, "setParameterByID")) {
+            appliedValues[i] = value;
+        }
+    }
+    return newTick;
+}
+
+// CLOCK_MONOTONIC, the clock of System.nanoTime() and of futex deadlines
+static int64_t nowNs() {
+    struct timespec now;
+    clock_gettime(CLOCK_MONOTONIC, &now);
+    return now.tv_sec * NANOS_PER_SECOND + now.tv_nsec;
+}
+
+static void recordHistogram(int64_t *histogram, int64_t *max, int64_t valueNs) {
+    if (valueNs < 0) {
+        valueNs = 0;
+    }
+    int64_t us = valueNs / 1000;
+    int bin = 0;
+    while (us > 0 && bin < HISTOGRAM_BINS - 1) {
+        us >>= 1;
+        bin++;
+    }
+    histogram[bin]++;
+    if (valueNs > *max) {
+        *max = valueNs;
+    }
+}
+
+static void recordLatency(LatencyHistogram *histogram, int64_t valueNs) {
+    histogram->count++;
+    histogram->sumNs += std::max<int64_t>(0, valueNs);
+    recordHistogram(histogram->bins, &histogram->maxNs, valueNs);
+}
+
+// Takes an idle instance of the pool, or restarts the one that has played longest when
+// none is idle (a miss), and starts it with the trigger's parameter values.
+static void startPooledInstance(OneShotPool *pool, const TriggerSlot &slot) {
+    PooledInstance *chosen = nullptr;
+    uint64_t idle = pool->idleMask.load(std::memory_order_acquire);
+    while (idle != 0) {
+        int index = __builtin_ctzll(idle);
+        if (pool->idleMask.compare_exchange_weak(idle, idle & ~(1ULL << index),
+                                                 std::memory_order_acq_rel)) {
+            chosen = &pool->instances[index];
+            break;
+        }
+    }
+    bool miss = chosen == nullptr;
+    if (miss) {
+        chosen = &pool->instances[0];
+        for (PooledInstance &pooled : pool->instances) {
+            if (pooled.startedNs < chosen->startedNs) {
+                chosen = &pooled;
+            }
+        }
+    }
+    for (int i = 0; i < pool->parameterCount; ++i) {
+        if (!std::isnan(slot.values[i])) {
+            chosen->instance->setParameterByID(pool->parameters[i], slot.values[i]);
+        }
+    }
+    checkFMODError(chosen->instance->start(), "pooled instance->start");
+    chosen->startedNs = nowNs();
+    chosen->tag = slot.tag;
+
+    std::lock_guard<std::mutex> lock(statsMutex);
+    poolStats.triggers++;
+    if (miss) {
+        poolStats.misses++;
+    }
+    if (slot.startNs != 0) {
+        recordHistogram(poolStats.startError, &poolStats.maxStartErrorNs,
+                        std::abs(chosen->startedNs - slot.startNs));
+    } else {
+        recordHistogram(poolStats.latency, &poolStats.maxLatencyNs,
+                        chosen->startedNs - slot.triggerNs);
+    }
+}
+
+// Drops the scheduled trigger with the tag or, once it has started, stops its instance
+// with a fade-out. A tag whose instance was already restarted by a later trigger is gone.
+static void cancelTrigger(int32_t tag) {
+    bool cancelled = false;
+    for (int i = 0; i < scheduledCount; ++i) {
+        if (scheduledTriggers[i].tag == tag) {
+            scheduledTriggers[i] = scheduledTriggers[--scheduledCount];
+            cancelled = true;
+            break;
+        }
+    }
+    for (size_t p = 0; !cancelled && p < pools.size(); ++p) {
+        uint64_t idle = pools[p]->idleMask.load(std::memory_order_acquire);
+        for (PooledInstance &pooled : pools[p]->instances) {
+            if (pooled.tag == tag && pooled.startedNs != 0 && !(idle & (1ULL << pooled.index))) {
+                checkFMODError(pooled.instance->stop(FMOD_STUDIO_STOP_ALLOWFADEOUT),
+                               "pooled instance->stop");
+                cancelled = true;
+                break;
+            }
+        }
+    }
+    if (cancelled) {
+        std::lock_guard<std::mutex> lock(statsMutex);
+        poolStats.cancels++;
+    }
+}
+
+// Starts every one-shot queued in the trigger ring that is due, holds the others until
+// their start time and applies cancellations; fmodMutex must be held.
+static void drainTriggers(int64_t now) {
+    if (!triggerHead) {
+        return;
+    }
+    int32_t head = __atomic_load_n(triggerHead, __ATOMIC_ACQUIRE);
+    int32_t tail = __atomic_load_n(triggerTail, __ATOMIC_RELAXED);
+    for (; tail != head; ++tail) {
+        const TriggerSlot &slot = triggerSlots[tail & triggerMask];
+        if (slot.pool == TRIGGER_CANCEL) {
+            cancelTrigger(slot.tag);
+        } else if (slot.pool >= 0 && slot.pool < (int) pools.size()) {
+            if (slot.startNs > now && scheduledCount < MAX_SCHEDULED_TRIGGERS) {
+                scheduledTriggers[scheduledCount++] = slot;
+                std::lock_guard<std::mutex> lock(statsMutex);
+                poolStats.scheduled++;
+            } else {
+                startPooledInstance(pools[slot.pool], slot);
+            }
+        }
+    }
+    __atomic_store_n(triggerTail, tail, __ATOMIC_RELEASE);
+
+    for (int i = 0; i < scheduledCount;) {
+        if (scheduledTriggers[i].startNs <= now) {
+            TriggerSlot due = scheduledTriggers[i];
+            scheduledTriggers[i] = scheduledTriggers[--scheduledCount];
+            startPooledInstance(pools[due.pool], due);
+        } else {
+            ++i;
+        }
+    }
+}
+
+// Earliest start time of a scheduled trigger, or INT64_MAX; fmodMutex must be held.
+static int64_t nextScheduledNs() {
+    int64_t next = INT64_MAX;
+    for (int i = 0; i < scheduledCount; ++i) {
+        next = std::min(next, scheduledTriggers[i].startNs);
+    }
+    return next;
+}
+
+// STOPPED callback of pooled instances: marks the instance idle again. Runs on FMOD's
+// thread, hence the atomic mask.
+static FMOD_RESULT F_CALL pooledInstanceCallback(FMOD_STUDIO_EVENT_CALLBACK_TYPE type,
+                                                 FMOD_STUDIO_EVENTINSTANCE *event,
+                                                 void *parameters) {
+    FMOD::Studio::EventInstance *instance = (FMOD::Studio::EventInstance *) event;
+    void *userData = nullptr;
+    if (type == FMOD_STUDIO_EVENT_CALLBACK_STOPPED
+            && instance->getUserData(&userData) == FMOD_OK && userData) {
+        PooledInstance *pooled = (PooledInstance *) userData;
+        pooled->pool->idleMask.fetch_or(1ULL << pooled->index, std::memory_order_release);
+    }
+    return FMOD_OK;
+}
+
+// TIMELINE_BEAT / TIMELINE_MARKER callback of the ride event. Runs on FMOD's thread, the
+// only writer of the beat block.
+static FMOD_RESULT F_CALL timelineCallback(FMOD_STUDIO_EVENT_CALLBACK_TYPE type,
+                                           FMOD_STUDIO_EVENTINSTANCE *event,
+                                           void *parameters) {
+    BeatBlock *block = beatBlock.load(std::memory_order_acquire);
+    if (!block || !parameters) {
+        return FMOD_OK;
+    }
+    int64_t now = nowNs();
+    int32_t sequence = block->sequence;
+    __atomic_store_n(&block->sequence, sequence + 1, __ATOMIC_RELAXED);
+    __atomic_thread_fence(__ATOMIC_RELEASE);
+    if (type == FMOD_STUDIO_EVENT_CALLBACK_TIMELINE_BEAT) {
+        const FMOD_STUDIO_TIMELINE_BEAT_PROPERTIES *beat =
+                (const FMOD_STUDIO_TIMELINE_BEAT_PROPERTIES *) parameters;
+        block->bar = beat->bar;
+        block->beat = beat->beat;
+        block->beatsPerBar = beat->timesignatureupper;
+        block->tempo = beat->tempo;
+        block->positionMs = beat->position;
+        block->beatNs = now;
+    } else if (type == FMOD_STUDIO_EVENT_CALLBACK_TIMELINE_MARKER) {
+        const FMOD_STUDIO_TIMELINE_MARKER_PROPERTIES *marker =
+                (const FMOD_STUDIO_TIMELINE_MARKER_PROPERTIES *) parameters;
+        block->markerCount++;
+        block->markerPositionMs = marker->position;
+        block->markerNs = now;
+        strncpy(block->markerName, marker->name ? marker->name : "", sizeof(block->markerName) - 1);
+        block->markerName[sizeof(block->markerName) - 1] = '\0';
+    }
+    __atomic_store_n(&block->sequence, sequence + 2, __ATOMIC_RELEASE);
+    return FMOD_OK;
+}
+
+// Wakes the update thread for an immediate update. Lock-free: a futex word bump and a
+// FUTEX_WAKE, so trigger() and commit() never block on the update thread.
+static void wakeUpdateThread() {
+    int64_t unset = 0;
+    wakeRequestedNs.compare_exchange_strong(unset, nowNs(), std::memory_order_relaxed);
+    wakeSequence.fetch_add(1, std::memory_order_release);
+    syscall(SYS_futex, reinterpret_cast<int32_t *>(&wakeSequence), FUTEX_WAKE_PRIVATE, 1,
+            nullptr, nullptr, 0);
+}
+
+// Sleeps until the absolute deadline or until wakeSequence moves on from `seen`, and
+// returns true in the latter case. FUTEX_WAIT_BITSET takes an absolute CLOCK_MONOTONIC
+// timeout, so a late return from the syscall does not shift the next deadline.
+static bool waitForWake(int64_t deadline, int32_t seen) {
+    while (isRunning.load(std::memory_order_relaxed)) {
+        if (wakeSequence.load(std::memory_order_acquire) != seen) {
+            return true;
+        }
+        if (nowNs() >= deadline) {
+            return false;
+        }
+        struct timespec until;
+        until.tv_sec = deadline / NANOS_PER_SECOND;
+        until.tv_nsec = deadline % NANOS_PER_SECOND;
+        syscall(SYS_futex, reinterpret_cast<int32_t *>(&wakeSequence), FUTEX_WAIT_BITSET_PRIVATE,
+                seen, &until, nullptr, FUTEX_BITSET_MATCH_ANY);
+    }
+    return true;
+}
+
+// Background thread function to update FMOD. Deadlines are absolute, so time spent in
+// update() does not accumulate as drift; a missed deadline is counted as an overrun and
+// skipped rather than caught up. A wake from Java runs an update at once and re-phases the
+// grid to it, so control data never waits for the next deadline; so does the start time
+// of a scheduled one-shot, so it is not rounded to the update period.
+static void fmodUpdateThread() {
+    LOGI("FMOD update thread started.");
+    if (setpriority(PRIO_PROCESS, gettid(), UPDATE_THREAD_NICE) != 0) {
+        LOGW("FMOD update thread: could not raise priority");
+    }
+    int32_t seenWake = wakeSequence.load(std::memory_order_acquire);
+    int64_t deadline = nowNs() + updatePeriodNs.load(std::memory_order_relaxed);
+    int64_t scheduled = INT64_MAX;
+    while (isRunning.load(std::memory_order_relaxed)) {
+        int64_t target = deadline;
+        bool early = waitForWake(std::min(deadline, scheduled), seenWake) || scheduled < deadline;
+        if (!isRunning.load(std::memory_order_relaxed)) {
+            break;
+        }
+        // A wake arriving from here on gets another update right after this one
+        seenWake = wakeSequence.load(std::memory_order_acquire);
+        int64_t requestedNs = wakeRequestedNs.exchange(0, std::memory_order_relaxed);
+
+        int64_t start = nowNs();
+        bool newTick;
+        {
+            std::lock_guard<std::mutex> lock(fmodMutex);
+            if (!studioSystem) {
+                LOGW("FMOD update thread: studioSystem is null, exiting thread.");
+                break;
+            }
+            drainTriggers(nowNs());
+            newTick = applyControlBlock();
+            studioSystem->update();
+            scheduled = nextScheduledNs();
+        }
+        int64_t end = nowNs();
+
+        int64_t period = updatePeriodNs.load(std::memory_order_relaxed);
+        bool overrun = false;
+        if (early) {
+            deadline = start + period;
+        } else {
+            deadline += period;
+            if (deadline <= end) {
+                overrun = true;
+                deadline += ((end - deadline) / period + 1) * period;
+            }
+        }
+
+        std::lock_guard<std::mutex> lock(statsMutex);
+        schedulerStats.updates++;
+        if (early) {
+            schedulerStats.earlyUpdates++;
+        } else {
+            recordHistogram(schedulerStats.jitter, &schedulerStats.maxJitterNs, start - target);
+        }
+        if (overrun) {
+            schedulerStats.overruns++;
+        }
+        recordHistogram(schedulerStats.duration, &schedulerStats.maxDurationNs, end - start);
+        if (newTick && appliedPublishNs != 0) {
+            recordLatency(&latencyStats.update, end - appliedPublishNs);
+            recordLatency(&latencyStats.output, outputLatencyNs);
+            if (appliedOriginNs != 0) {
+                recordLatency(&latencyStats.total, end + outputLatencyNs - appliedOriginNs);
+            }
+        }
+        if (requestedNs != 0) {
+            recordHistogram(schedulerStats.response, &schedulerStats.maxResponseNs,
+                            end - requestedNs);
+        }
+    }
+    LOGI("FMOD update thread finished.");
+}
+
+// Releases everything; fmodMutex must be held and the update thread stopped.
+static void releaseStudioSystem(JNIEnv *env) {
+    parameters.clear();
+    banks.clear();
+    controlSequence = nullptr;
+    controlStamps = nullptr;
+    controlValues = nullptr;
+    controlCapacity = 0;
+    appliedSequence = 0;
+    outputLatencyNs = 0;
+    if (controlBlockRef) {
+        env->DeleteGlobalRef(controlBlockRef);
+        controlBlockRef = nullptr;
+    }
+    if (eventInstance) {
+        eventInstance->stop(FMOD_STUDIO_STOP_IMMEDIATE);
+        eventInstance->release();
+        eventInstance = nullptr;
+    }
+    eventDescription = nullptr;
+    triggerHead = nullptr;
+    triggerTail = nullptr;
+    triggerSlots = nullptr;
+    triggerMask = 0;
+    scheduledCount = 0;
+    if (triggerRingRef) {
+        env->DeleteGlobalRef(triggerRingRef);
+        triggerRingRef = nullptr;
+    }
+    if (studioSystem) {
+        studioSystem->unloadAll();
+        studioSystem->release();
+        studioSystem = nullptr;
+    }
+    // After the release: stopping the instances still calls back into the pools and the
+    // beat block
+    beatBlock.store(nullptr, std::memory_order_release);
+    if (beatBlockRef) {
+        env->DeleteGlobalRef(beatBlockRef);
+        beatBlockRef = nullptr;
+    }
+    for (OneShotPool *pool : pools) {
+        delete pool;
+    }
+    pools.clear();
+}
+
+static void stopUpdateThread() {
+    isRunning.store(false, std::memory_order_relaxed);
+    wakeUpdateThread();
+    if (updateThread != nullptr) {
+        if (updateThread->joinable()) {
+            updateThread->join();
+        }
+        delete updateThread;
+        updateThread = nullptr;
+    }
+    wakeRequestedNs.store(0, std::memory_order_relaxed);
+}
+
+// Output settings must reach the core system between create and initialize.
+static void configureCoreOutput() {
+    FMOD::System *coreSystem = nullptr;
+    if (!checkFMODError(studioSystem->getCoreSystem(&coreSystem), "studioSystem->getCoreSystem")) {
+        return;
+    }
+    if (outputConfig.lowLatency) {
+        checkFMODError(coreSystem->setOutput(FMOD_OUTPUTTYPE_AAUDIO), "coreSystem->setOutput");
+    }
+    if (outputConfig.sampleRate > 0) {
+        checkFMODError(coreSystem->setSoftwareFormat(outputConfig.sampleRate, FMOD_SPEAKERMODE_DEFAULT, 0),
+                       "coreSystem->setSoftwareFormat");
+    }
+    if (outputConfig.bufferLength > 0 && outputConfig.numBuffers > 0) {
+        checkFMODError(coreSystem->setDSPBufferSize(outputConfig.bufferLength, outputConfig.numBuffers),
+                       "coreSystem->setDSPBufferSize");
+    }
+}
+
+// Time a sample spends in the mixer's buffers with the settings FMOD adopted.
+static void measureOutputLatency() {
+    FMOD::System *coreSystem = nullptr;
+    int sampleRate = 0;
+    unsigned int bufferLength = 0;
+    int numBuffers = 0;
+    if (studioSystem->getCoreSystem(&coreSystem) == FMOD_OK
+            && coreSystem->getSoftwareFormat(&sampleRate, nullptr, nullptr) == FMOD_OK
+            && coreSystem->getDSPBufferSize(&bufferLength, &numBuffers) == FMOD_OK
+            && sampleRate > 0) {
+        outputLatencyNs = (int64_t) bufferLength * numBuffers * NANOS_PER_SECOND / sampleRate;
+    }
+}
+
+static bool startLocked(const char* masterBankPath, const char* stringsBankPath, const char* eventPath) {
+    FMOD_RESULT result = FMOD::Studio::System::create(&studioSystem);
+    if (!checkFMODError(result, "FMOD::Studio::System::create")) {
+        studioSystem = nullptr;
+        return false;
+    }
+    configureCoreOutput();
+    result = studioSystem->initialize(128, FMOD_STUDIO_INIT_NORMAL, FMOD_INIT_NORMAL, nullptr);
+    if (!checkFMODError(result, "studioSystem->initialize")) {
+        return false;
+    }
+    measureOutputLatency();
+
+    FMOD::Studio::Bank* masterBank = nullptr;
+    result = studioSystem->loadBankFile(masterBankPath, FMOD_STUDIO_LOAD_BANK_NORMAL, &masterBank);
+    if (!checkFMODError(result, "studioSystem->loadBankFile (Master)")) {
+        return false;
+    }
+    if (stringsBankPath) {
+        FMOD::Studio::Bank* stringsBank = nullptr;
+        result = studioSystem->loadBankFile(stringsBankPath, FMOD_STUDIO_LOAD_BANK_NORMAL, &stringsBank);
+        if (result != FMOD_OK) {
+            LOGI("No strings bank loaded (optional or error: %s)", FMOD_ErrorString(result));
+        }
+    }
+
+    result = studioSystem->getEvent(eventPath, &eventDescription);
+    if (!checkFMODError(result, "studioSystem->getEvent")) {
+        return false;
+    }
+    result = eventDescription->createInstance(&eventInstance);
+    if (!checkFMODError(result, "eventDescription->createInstance")) {
+        return false;
+    }
+    result = eventInstance->setCallback(timelineCallback,
+            FMOD_STUDIO_EVENT_CALLBACK_TIMELINE_BEAT | FMOD_STUDIO_EVENT_CALLBACK_TIMELINE_MARKER);
+    checkFMODError(result, "eventInstance->setCallback");
+    result = eventInstance->start();
+    return checkFMODError(result, "eventInstance->start");
+}
+
+extern "C" {
+
+JNIEXPORT jboolean JNICALL
+Java_com_ubicomplab_bluetoothlocation_AudioEngine_nativeStart(
+        JNIEnv *env,
+        jclass clazz,
+        jstring masterBankPathJava,
+        jstring stringsBankPathJava,
+        jstring eventPathJava,
+        jobject controlBlock) {
+    stopUpdateThread();
+    std::lock_guard<std::mutex> lock(fmodMutex);
+    releaseStudioSystem(env);
+
+    uint8_t *block = (uint8_t *) env->GetDirectBufferAddress(controlBlock);
+    if (!block) {
+        LOGE("nativeStart: control block is not a direct buffer");
+        return JNI_FALSE;
+    }
+    controlBlockRef = env->NewGlobalRef(controlBlock);
+    controlSequence = (int32_t *) block;
+    controlCapacity = ((int32_t *) block)[1];
+    controlStamps = (const int64_t *) (block + 2 * sizeof(int32_t));
+    controlValues = (const float *) (block + 2 * sizeof(int32_t) + 2 * sizeof(int64_t));
+    controlSnapshot.assign(controlCapacity, NAN);
+    appliedValues.assign(controlCapacity, NAN);
+
+    const char *masterBankPath = env->GetStringUTFChars(masterBankPathJava, nullptr);
+    const char *stringsBankPath = stringsBankPathJava
+            ? env->GetStringUTFChars(stringsBankPathJava, nullptr) : nullptr;
+    const char *eventPath = env->GetStringUTFChars(eventPathJava, nullptr);
+
+    bool started = startLocked(masterBankPath, stringsBankPath, eventPath);
+    if (started) {
+        LOGI("nativeStart: playing %s from %s", eventPath, masterBankPath);
+        isRunning.store(true, std::memory_order_relaxed);
+        updateThread = new std::thread(fmodUpdateThread);
+    } else {
+        releaseStudioSystem(env);
+    }
+
+    env->ReleaseStringUTFChars(masterBankPathJava, masterBankPath);
+    if (stringsBankPath) {
+        env->ReleaseStringUTFChars(stringsBankPathJava, stringsBankPath);
+    }
+    env->ReleaseStringUTFChars(eventPathJava, eventPath);
+    return started ? JNI_TRUE : JNI_FALSE;
+}
+
+JNIEXPORT void JNICALL
+Java_com_ubicomplab_bluetoothlocation_AudioEngine_nativeStop(
+        JNIEnv *env,
+        jclass clazz) {
+    stopUpdateThread();
+    std::lock_guard<std::mutex> lock(fmodMutex);
+    releaseStudioSystem(env);
+    LOGI("nativeStop: Studio system released.");
+}
+
+JNIEXPORT void JNICALL
+Java_com_ubicomplab_bluetoothlocation_AudioEngine_nativeConfigureOutput(
+        JNIEnv *env,
+        jclass clazz,
+        jint sampleRate,
+        jint bufferLength,
+        jint numBuffers,
+        jboolean lowLatency) {
+    std::lock_guard<std::mutex> lock(fmodMutex);
+    outputConfig.sampleRate = sampleRate;
+    outputConfig.bufferLength = bufferLength;
+    outputConfig.numBuffers = numBuffers;
+    outputConfig.lowLatency = lowLatency == JNI_TRUE;
+}
+
+// Fills out with the sample rate, DSP buffer length, and buffer count FMOD is running with.
+JNIEXPORT jboolean JNICALL
+Java_com_ubicomplab_bluetoothlocation_AudioEngine_nativeGetOutputConfig(
+        JNIEnv *env,
+        jclass clazz,
+        jintArray out) {
+    std::lock_guard<std::mutex> lock(fmodMutex);
+    FMOD::System *coreSystem = nullptr;
+    if (!studioSystem || studioSystem->getCoreSystem(&coreSystem) != FMOD_OK) {
+        return JNI_FALSE;
+    }
+    int sampleRate = 0;
+    unsigned int bufferLength = 0;
+    int numBuffers = 0;
+    FMOD_OUTPUTTYPE output = FMOD_OUTPUTTYPE_AUTODETECT;
+    if (!checkFMODError(coreSystem->getSoftwareFormat(&sampleRate, nullptr, nullptr), "coreSystem->getSoftwareFormat")
+            || !checkFMODError(coreSystem->getDSPBufferSize(&bufferLength, &numBuffers), "coreSystem->getDSPBufferSize")) {
+        return JNI_FALSE;
+    }
+    coreSystem->getOutput(&output);
+    LOGI("nativeGetOutputConfig: output %d, %d Hz, %d x %u frames", output, sampleRate,
+         numBuffers, bufferLength);
+    jint values[3] = {sampleRate, (jint) bufferLength, numBuffers};
+    env->SetIntArrayRegion(out, 0, 3, values);
+    return JNI_TRUE;
+}
+
+JNIEXPORT jint JNICALL
+Java_com_ubicomplab_bluetoothlocation_AudioEngine_nativeResolveParameter(
+        JNIEnv *env,
+        jclass clazz,
+        jstring parameterNameJava) {
+    std::lock_guard<std::mutex> lock(fmodMutex);
+    if (!studioSystem || !eventDescription) {
+        LOGE("nativeResolveParameter: audio engine is not started");
+        return -1;
+    }
+    if ((int) parameters.size() >= controlCapacity) {
+        LOGE("nativeResolveParameter: control block is full (%d parameters)", controlCapacity);
+        return -1;
+    }
+    const char *parameterName = env->GetStringUTFChars(parameterNameJava, nullptr);
+
+    FMOD_STUDIO_PARAMETER_DESCRIPTION description;
+    ResolvedParameter resolved;
+    jint handle = -1;
+    if (eventDescription->getParameterDescriptionByName(parameterName, &description) == FMOD_OK) {
+        resolved.global = false;
+    } else if (studioSystem->getParameterDescriptionByName(parameterName, &description) == FMOD_OK) {
+        resolved.global = true;
+    } else {
+        LOGW("nativeResolveParameter: no parameter named '%s'", parameterName);
+        env->ReleaseStringUTFChars(parameterNameJava, parameterName);
+        return handle;
+    }
+    resolved.id = description.id;
+    parameters.push_back(resolved);
+    handle = (jint) parameters.size() - 1;
+    LOGI("nativeResolveParameter: '%s' -> %d (%s)", parameterName, handle,
+         resolved.global ? "global" : "event");
+
+    env->ReleaseStringUTFChars(parameterNameJava, parameterName);
+    return handle;
+}
+
+JNIEXPORT void JNICALL
+Java_com_ubicomplab_bluetoothlocation_AudioEngine_nativeWake(
+        JNIEnv *env,
+        jclass clazz) {
+    wakeUpdateThread();
+}
+
+JNIEXPORT void JNICALL
+Java_com_ubicomplab_bluetoothlocation_AudioEngine_nativeSetUpdateRate(
+        JNIEnv *env,
+        jclass clazz,
+        jint rateHz) {
+    if (rateHz <= 0) {
+        LOGE("nativeSetUpdateRate: invalid rate %d", rateHz);
+        return;
+    }
+    updatePeriodNs.store(NANOS_PER_SECOND / rateHz, std::memory_order_relaxed);
+}
+
+JNIEXPORT void JNICALL
+Java_com_ubicomplab_bluetoothlocation_AudioEngine_nativeGetSchedulerStats(
+        JNIEnv *env,
+        jclass clazz,
+        jlongArray out) {
+    SchedulerStats copy;
+    {
+        std::lock_guard<std::mutex> lock(statsMutex);
+        copy = schedulerStats;
+    }
+    static_assert(sizeof(SchedulerStats) % sizeof(jlong) == 0, "stats must be an array of longs");
+    jsize length = std::min<jsize>(env->GetArrayLength(out), sizeof(SchedulerStats) / sizeof(jlong));
+    env->SetLongArrayRegion(out, 0, length, reinterpret_cast<const jlong *>(&copy));
+}
+
+JNIEXPORT void JNICALL
+Java_com_ubicomplab_bluetoothlocation_AudioEngine_nativeResetSchedulerStats(
+        JNIEnv *env,
+        jclass clazz) {
+    std::lock_guard<std::mutex> lock(statsMutex);
+    memset(&schedulerStats, 0, sizeof(schedulerStats));
+}
+
+// Stores a bank in a free slot and returns its handle.
+static jint addBank(FMOD::Studio::Bank *bank) {
+    for (size_t i = 0; i < banks.size(); ++i) {
+        if (!banks[i]) {
+            banks[i] = bank;
+            return (jint) i;
+        }
+    }
+    banks.push_back(bank);
+    return (jint) banks.size() - 1;
+}
+
+static FMOD::Studio::Bank *getBank(jint handle) {
+    if (handle < 0 || handle >= (jint) banks.size()) {
+        return nullptr;
+    }
+    return banks[handle];
+}
+
+JNIEXPORT jint JNICALL
+Java_com_ubicomplab_bluetoothlocation_AudioEngine_nativeLoadBankFile(
+        JNIEnv *env,
+        jclass clazz,
+        jstring pathJava) {
+    std::lock_guard<std::mutex> lock(fmodMutex);
+    if (!studioSystem) {
+        LOGE("nativeLoadBankFile: audio engine is not started");
+        return -1;
+    }
+    const char *path = env->GetStringUTFChars(pathJava, nullptr);
+    FMOD::Studio::Bank *bank = nullptr;
+    FMOD_RESULT result = studioSystem->loadBankFile(path, FMOD_STUDIO_LOAD_BANK_NONBLOCKING, &bank);
+    jint handle = -1;
+    if (checkFMODError(result, "studioSystem->loadBankFile (nonblocking)")) {
+        handle = addBank(bank);
+    }
+    env->ReleaseStringUTFChars(pathJava, path);
+    return handle;
+}
+
+JNIEXPORT jint JNICALL
+Java_com_ubicomplab_bluetoothlocation_AudioEngine_nativeLoadBankMemory(
+        JNIEnv *env,
+        jclass clazz,
+        jobject data,
+        jint length) {
+    std::lock_guard<std::mutex> lock(fmodMutex);
+    if (!studioSystem) {
+        LOGE("nativeLoadBankMemory: audio engine is not started");
+        return -1;
+    }
+    const char *buffer = (const char *) env->GetDirectBufferAddress(data);
+    if (!buffer) {
+        LOGE("nativeLoadBankMemory: bank data is not a direct buffer");
+        return -1;
+    }
+    // FMOD_STUDIO_LOAD_MEMORY copies the data, so Java may drop the buffer on return
+    FMOD::Studio::Bank *bank = nullptr;
+    FMOD_RESULT result = studioSystem->loadBankMemory(buffer, length, FMOD_STUDIO_LOAD_MEMORY,
+                                                      FMOD_STUDIO_LOAD_BANK_NONBLOCKING, &bank);
+    if (!checkFMODError(result, "studioSystem->loadBankMemory (nonblocking)")) {
+        return -1;
+    }
+    return addBank(bank);
+}
+
+JNIEXPORT void JNICALL
+Java_com_ubicomplab_bluetoothlocation_AudioEngine_nativeLoadSampleData(
+        JNIEnv *env,
+        jclass clazz,
+        jint handle) {
+    std::lock_guard<std::mutex> lock(fmodMutex);
+    FMOD::Studio::Bank *bank = getBank(handle);
+    if (bank) {
+        checkFMODError(bank->loadSampleData(), "bank->loadSampleData");
+    }
+}
+
+// Returns the bank's FMOD_STUDIO_LOADING_STATE in the low byte and its sample data
+// loading state in the next one, or -1 for an unknown handle.
+JNIEXPORT jint JNICALL
+Java_com_ubicomplab_bluetoothlocation_AudioEngine_nativeGetBankState(
+        JNIEnv *env,
+        jclass clazz,
+        jint handle) {
+    std::lock_guard<std::mutex> lock(fmodMutex);
+    FMOD::Studio::Bank *bank = getBank(handle);
+    if (!bank) {
+        return -1;
+    }
+    FMOD_STUDIO_LOADING_STATE state = FMOD_STUDIO_LOADING_STATE_ERROR;
+    FMOD_STUDIO_LOADING_STATE sampleState = FMOD_STUDIO_LOADING_STATE_UNLOADED;
+    bank->getLoadingState(&state);
+    if (state == FMOD_STUDIO_LOADING_STATE_LOADED) {
+        bank->getSampleLoadingState(&sampleState);
+    }
+    return (jint) state | ((jint) sampleState << 8);
+}
+
+JNIEXPORT void JNICALL
+Java_com_ubicomplab_bluetoothlocation_AudioEngine_nativeUnloadBank(
+        JNIEnv *env,
+        jclass clazz,
+        jint handle) {
+    std::lock_guard<std::mutex> lock(fmodMutex);
+    FMOD::Studio::Bank *bank = getBank(handle);
+    if (bank) {
+        checkFMODError(bank->unload(), "bank->unload");
+        banks[handle] = nullptr;
+    }
+}
+
+
+JNIEXPORT jboolean JNICALL
+Java_com_ubicomplab_bluetoothlocation_AudioEngine_nativeAttachTriggerRing(
+        JNIEnv *env,
+        jclass clazz,
+        jobject ring) {
+    std::lock_guard<std::mutex> lock(fmodMutex);
+    if (!studioSystem) {
+        LOGE("nativeAttachTriggerRing: audio engine is not started");
+        return JNI_FALSE;
+    }
+    uint8_t *block = (uint8_t *) env->GetDirectBufferAddress(ring);
+    if (!block) {
+        LOGE("nativeAttachTriggerRing: trigger ring is not a direct buffer");
+        return JNI_FALSE;
+    }
+    int32_t capacity = ((int32_t *) block)[2];
+    if (capacity <= 0 || (capacity & (capacity - 1)) != 0) {
+        LOGE("nativeAttachTriggerRing: capacity %d is not a power of two", capacity);
+        return JNI_FALSE;
+    }
+    if (triggerRingRef) {
+        env->DeleteGlobalRef(triggerRingRef);
+    }
+    triggerRingRef = env->NewGlobalRef(ring);
+    triggerHead = (int32_t *) block;
+    triggerTail = (int32_t *) block + 1;
+    triggerMask = capacity - 1;
+    triggerSlots = (const TriggerSlot *) (block + 4 * sizeof(int32_t));
+    // Whatever an earlier producer queued or scheduled is dropped
+    __atomic_store_n(triggerTail, __atomic_load_n(triggerHead, __ATOMIC_ACQUIRE), __ATOMIC_RELEASE);
+    scheduledCount = 0;
+    return JNI_TRUE;
+}
+
+// Releases a partly built pool after a failed registration.
+static void releasePool(OneShotPool *pool) {
+    for (PooledInstance &pooled : pool->instances) {
+        if (pooled.instance) {
+            pooled.instance->release();
+        }
+    }
+    delete pool;
+}
+
+JNIEXPORT jint JNICALL
+Java_com_ubicomplab_bluetoothlocation_AudioEngine_nativeRegisterOneShot(
+        JNIEnv *env,
+        jclass clazz,
+        jstring eventPathJava,
+        jint instanceCount,
+        jobjectArray parameterNamesJava) {
+    std::lock_guard<std::mutex> lock(fmodMutex);
+    if (!studioSystem) {
+        LOGE("nativeRegisterOneShot: audio engine is not started");
+        return -1;
+    }
+    jsize parameterCount = parameterNamesJava ? env->GetArrayLength(parameterNamesJava) : 0;
+    if (instanceCount < 1 || instanceCount > POOL_MAX_INSTANCES
+            || parameterCount > POOL_MAX_PARAMETERS) {
+        LOGE("nativeRegisterOneShot: %d instances, %d parameters out of range",
+             instanceCount, parameterCount);
+        return -1;
+    }
+    const char *eventPath = env->GetStringUTFChars(eventPathJava, nullptr);
+    OneShotPool *pool = new OneShotPool();
+    pool->parameterCount = parameterCount;
+    bool ok = checkFMODError(studioSystem->getEvent(eventPath, &pool->description),
+                             "studioSystem->getEvent (one-shot)");
+    // Sample data stays loaded while the pool exists, so starting never waits for it
+    ok = ok && checkFMODError(pool->description->loadSampleData(),
+                              "eventDescription->loadSampleData (one-shot)");
+    for (jsize i = 0; ok && i < parameterCount; ++i) {
+        jstring nameJava = (jstring) env->GetObjectArrayElement(parameterNamesJava, i);
+        const char *name = env->GetStringUTFChars(nameJava, nullptr);
+        FMOD_STUDIO_PARAMETER_DESCRIPTION description;
+        ok = pool->description->getParameterDescriptionByName(name, &description) == FMOD_OK;
+        if (ok) {
+            pool->parameters[i] = description.id;
+        } else {
+            LOGW("nativeRegisterOneShot: %s has no parameter named '%s'", eventPath, name);
+        }
+        env->ReleaseStringUTFChars(nameJava, name);
+        env->DeleteLocalRef(nameJava);
+    }
+    pool->instances.resize(ok ? instanceCount : 0);
+    for (jint i = 0; ok && i < instanceCount; ++i) {
+        PooledInstance &pooled = pool->instances[i];
+        pooled.pool = pool;
+        pooled.index = i;
+        pooled.instance = nullptr;
+        pooled.startedNs = 0;
+        pooled.tag = 0;
+        ok = checkFMODError(pool->description->createInstance(&pooled.instance),
+                            "eventDescription->createInstance (one-shot)")
+             && checkFMODError(pooled.instance->setUserData(&pooled), "instance->setUserData")
+             && checkFMODError(pooled.instance->setCallback(pooledInstanceCallback,
+                                                            FMOD_STUDIO_EVENT_CALLBACK_STOPPED),
+                               "instance->setCallback");
+    }
+
+    jint handle = -1;
+    if (ok) {
+        pool->idleMask.store(instanceCount == 64 ? ~0ULL : (1ULL << instanceCount) - 1,
+                             std::memory_order_release);
+        pools.push_back(pool);
+        handle = (jint) pools.size() - 1;
+        LOGI("nativeRegisterOneShot: %s -> %d (%d instances)", eventPath, handle, instanceCount);
+    } else {
+        releasePool(pool);
+    }
+    env->ReleaseStringUTFChars(eventPathJava, eventPath);
+    return handle;
+}
+
+JNIEXPORT void JNICALL
+Java_com_ubicomplab_bluetoothlocation_AudioEngine_nativeGetPoolStats(
+        JNIEnv *env,
+        jclass clazz,
+        jlongArray out) {
+    PoolStats copy;
+    {
+        std::lock_guard<std::mutex> lock(statsMutex);
+        copy = poolStats;
+    }
+    static_assert(sizeof(PoolStats) % sizeof(jlong) == 0, "stats must be an array of longs");
+    jsize length = std::min<jsize>(env->GetArrayLength(out), sizeof(PoolStats) / sizeof(jlong));
+    env->SetLongArrayRegion(out, 0, length, reinterpret_cast<const jlong *>(&copy));
+}
+
+JNIEXPORT void JNICALL
+Java_com_ubicomplab_bluetoothlocation_AudioEngine_nativeResetPoolStats(
+        JNIEnv *env,
+        jclass clazz) {
+    std::lock_guard<std::mutex> lock(statsMutex);
+    memset(&poolStats, 0, sizeof(poolStats));
+}
+
+
+JNIEXPORT jboolean JNICALL
+Java_com_ubicomplab_bluetoothlocation_AudioEngine_nativeAttachBeatClock(
+        JNIEnv *env,
+        jclass clazz,
+        jobject block) {
+    std::lock_guard<std::mutex> lock(fmodMutex);
+    if (!studioSystem) {
+        LOGE("nativeAttachBeatClock: audio engine is not started");
+        return JNI_FALSE;
+    }
+    BeatBlock *address = (BeatBlock *) env->GetDirectBufferAddress(block);
+    if (!address || env->GetDirectBufferCapacity(block) < (jlong) sizeof(BeatBlock)) {
+        LOGE("nativeAttachBeatClock: beat block is not a direct buffer of %zu bytes",
+             sizeof(BeatBlock));
+        return JNI_FALSE;
+    }
+    // The previous block stays referenced: the callback may still be writing to it
+    if (beatBlock.load(std::memory_order_relaxed)) {
+        LOGE("nativeAttachBeatClock: a beat clock is already attached");
+        return JNI_FALSE;
+    }
+    beatBlockRef = env->NewGlobalRef(block);
+    beatBlock.store(address, std::memory_order_release);
+    return JNI_TRUE;
+}
+
+
+JNIEXPORT void JNICALL
+Java_com_ubicomplab_bluetoothlocation_AudioEngine_nativeGetLatencyStats(
+        JNIEnv *env,
+        jclass clazz,
+        jlongArray out) {
+    LatencyStats copy;
+    {
+        std::lock_guard<std::mutex> lock(statsMutex);
+        copy = latencyStats;
+    }
+    static_assert(sizeof(LatencyStats) % sizeof(jlong) == 0, "stats must be an array of longs");
+    jsize length = std::min<jsize>(env->GetArrayLength(out), sizeof(LatencyStats) / sizeof(jlong));
+    env->SetLongArrayRegion(out, 0, length, reinterpret_cast<const jlong *>(&copy));
+}
+
+JNIEXPORT void JNICALL
+Java_com_ubicomplab_bluetoothlocation_AudioEngine_nativeResetLatencyStats(
+        JNIEnv *env,
+        jclass clazz) {
+    std::lock_guard<std::mutex> lock(statsMutex);
+    memset(&latencyStats, 0, sizeof(latencyStats));
+}
+
+}
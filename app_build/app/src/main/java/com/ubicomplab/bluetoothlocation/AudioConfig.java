@@ -0,0 +1,135 @@
+package com.ubicomplab.bluetoothlocation;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.media.AudioManager;
+import android.os.Build;
+import android.util.Log;
+
+import java.util.Locale;
+
+/**
+ * FMOD output settings matched to the device: the mixer runs at the device's native output
+ * sample rate (no resampling in the Android mixer) with DSP buffers that are a whole number
+ * of the device's burst size. Pass one to AudioEngine.configureOutput() before start().
+ *
+ * Two presets:
+ *  - PRESET_LOW_LATENCY: AAudio output, about 256 frames per buffer, 2 buffers (~10 ms),
+ *  - PRESET_POWER_SAVING: the default output, about 1024 frames per buffer, 4 buffers.
+ * FMOD's default on Android is 1024 x 4 frames, often at a rate the device resamples from.
+ *
+ * After start, AudioEngine.getOutputConfig() returns what FMOD actually adopted; save that
+ * with saveProfile() and the next load() on the same device model (Build.MODEL) uses it
+ * directly. The latency measured here is the mixer's buffering, which is the part these
+ * settings control; the device's fixed path after the mixer comes on top.
+ */
+public class AudioConfig {
+    private static final String TAG = "AudioConfig";
+    private static final String PREFERENCES = "audio_config";
+
+    public static final int PRESET_LOW_LATENCY = 0;
+    public static final int PRESET_POWER_SAVING = 1;
+
+    // Used when the device does not report its native output format
+    static final int FALLBACK_SAMPLE_RATE = 48000;
+    static final int FALLBACK_FRAMES_PER_BURST = 256;
+    static final int LOW_LATENCY_MIN_FRAMES = 256;
+    static final int LOW_LATENCY_BUFFERS = 2;
+    static final int POWER_SAVING_MIN_FRAMES = 1024;
+    static final int POWER_SAVING_BUFFERS = 4;
+
+    public final int preset;
+    public final int sampleRate;
+    public final int bufferLength; // frames per DSP buffer
+    public final int numBuffers;
+
+    AudioConfig(int preset, int sampleRate, int bufferLength, int numBuffers) {
+        this.preset = preset;
+        this.sampleRate = sampleRate;
+        this.bufferLength = bufferLength;
+        this.numBuffers = numBuffers;
+    }
+
+    /** Settings derived from the device's native output sample rate and burst size. */
+    public static AudioConfig forDevice(Context context, int preset) {
+        AudioManager audioManager = (AudioManager) context.getSystemService(Context.AUDIO_SERVICE);
+        int sampleRate = parseProperty(audioManager,
+                AudioManager.PROPERTY_OUTPUT_SAMPLE_RATE, FALLBACK_SAMPLE_RATE);
+        int burst = parseProperty(audioManager,
+                AudioManager.PROPERTY_OUTPUT_FRAMES_PER_BUFFER, FALLBACK_FRAMES_PER_BURST);
+        if (preset == PRESET_LOW_LATENCY) {
+            return new AudioConfig(preset, sampleRate,
+                    roundUpToBursts(LOW_LATENCY_MIN_FRAMES, burst), LOW_LATENCY_BUFFERS);
+        }
+        return new AudioConfig(PRESET_POWER_SAVING, sampleRate,
+                roundUpToBursts(POWER_SAVING_MIN_FRAMES, burst), POWER_SAVING_BUFFERS);
+    }
+
+    /** The profile saved for this device model and preset, or else forDevice(). */
+    public static AudioConfig load(Context context, int preset) {
+        SharedPreferences preferences = getPreferences(context);
+        String key = profileKey(preset);
+        int bufferLength = preferences.getInt(key + "/buffer_length", 0);
+        if (bufferLength <= 0) {
+            return forDevice(context, preset);
+        }
+        return new AudioConfig(preset,
+                preferences.getInt(key + "/sample_rate", FALLBACK_SAMPLE_RATE),
+                bufferLength,
+                preferences.getInt(key + "/num_buffers", POWER_SAVING_BUFFERS));
+    }
+
+    /** Latency saved for this device model and preset, or -1 if none was measured yet. */
+    public static long getSavedLatencyMicros(Context context, int preset) {
+        return getPreferences(context).getLong(profileKey(preset) + "/latency_us", -1);
+    }
+
+    /** Stores these settings, normally AudioEngine.getOutputConfig(), for this device model. */
+    public void saveProfile(Context context) {
+        String key = profileKey(preset);
+        getPreferences(context).edit()
+                .putInt(key + "/sample_rate", sampleRate)
+                .putInt(key + "/buffer_length", bufferLength)
+                .putInt(key + "/num_buffers", numBuffers)
+                .putLong(key + "/latency_us", getBufferLatencyMicros())
+                .apply();
+        Log.i(TAG, "Saved " + this + " for " + Build.MODEL);
+    }
+
+    /** Time a sample spends in the mixer's buffers: bufferLength * numBuffers / sampleRate. */
+    public long getBufferLatencyMicros() {
+        return (long) bufferLength * numBuffers * 1_000_000L / sampleRate;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "%s: %d Hz, %d x %d frames (%.1f ms)",
+                preset == PRESET_LOW_LATENCY ? "low latency" : "power saving",
+                sampleRate, numBuffers, bufferLength, getBufferLatencyMicros() / 1000.0);
+    }
+
+    private static int parseProperty(AudioManager audioManager, String property, int fallback) {
+        String value = audioManager != null ? audioManager.getProperty(property) : null;
+        if (value == null) {
+            return fallback;
+        }
+        try {
+            int parsed = Integer.parseInt(value);
+            return parsed > 0 ? parsed : fallback;
+        } catch (NumberFormatException e) {
+            return fallback;
+        }
+    }
+
+    private static int roundUpToBursts(int minFrames, int burst) {
+        return (minFrames + burst - 1) / burst * burst;
+    }
+
+    private static SharedPreferences getPreferences(Context context) {
+        return context.getSharedPreferences(PREFERENCES, Context.MODE_PRIVATE);
+    }
+
+    private static String profileKey(int preset) {
+        return Build.MODEL + (preset == PRESET_LOW_LATENCY ? "/low_latency" : "/power_saving");
+    }
+}
@@ -0,0 +1,216 @@
+package com.ubicomplab.bluetoothlocation;
+
+import java.nio.ByteBuffer;
+
+/**
+ * FMOD Studio playback for the ride music, implemented in libmusicbike
+ * (src/main/cpp/musicbike_audio.cpp). One Studio system and one event instance per
+ * process; org.fmod.FMOD.init() must have been called first, as AudioStartup does.
+ *
+ * As a ParameterSink, parameter names are resolved once to FMOD parameter IDs on the
+ * native side. Values then go through a ControlBlock shared with the native update loop,
+ * which applies one consistent snapshot per update by ID: no JNI call or string lookup per
+ * parameter on the control path.
+ *
+ * The native loop runs Studio::System::update() on absolute deadlines at the update rate,
+ * and commit() wakes it early when a tick changed anything, so a parameter change reaches
+ * FMOD within one update instead of waiting for the next deadline. One-shot sounds go
+ * through an EventInstancePool, which wakes the loop the same way. The ride event's beats
+ * and markers are published to a BeatClock.
+ */
+public class AudioEngine implements ParameterSink {
+    public static final int MAX_PARAMETERS = 32;
+
+    // FMOD_STUDIO_LOADING_STATE
+    static final int LOADING_STATE_UNLOADING = 0;
+    static final int LOADING_STATE_UNLOADED = 1;
+    static final int LOADING_STATE_LOADING = 2;
+    static final int LOADING_STATE_LOADED = 3;
+    static final int LOADING_STATE_ERROR = 4;
+
+    static {
+        System.loadLibrary("fmod");
+        System.loadLibrary("fmodstudio");
+        System.loadLibrary("musicbike");
+    }
+
+    private final ControlBlock controlBlock = new ControlBlock(MAX_PARAMETERS);
+    private int outputPreset = AudioConfig.PRESET_POWER_SAVING;
+
+    /**
+     * Output format and DSP buffering for the next start(); without it FMOD keeps its
+     * defaults. A device that cannot open the low-latency output fails start(), after
+     * which the power-saving preset can be tried.
+     */
+    public void configureOutput(AudioConfig config) {
+        outputPreset = config.preset;
+        nativeConfigureOutput(config.sampleRate, config.bufferLength, config.numBuffers,
+                config.preset == AudioConfig.PRESET_LOW_LATENCY);
+    }
+
+    /** The output settings FMOD adopted, or null if the engine is not started. */
+    public AudioConfig getOutputConfig() {
+        int[] raw = new int[3];
+        if (!nativeGetOutputConfig(raw)) {
+            return null;
+        }
+        return new AudioConfig(outputPreset, raw[0], raw[1], raw[2]);
+    }
+
+    /**
+     * Creates the Studio system, loads the banks, and starts the event. The strings bank is
+     * optional and may be null. Returns false if any required step failed.
+     */
+    public boolean start(String masterBankPath, String stringsBankPath, String eventPath) {
+        return nativeStart(masterBankPath, stringsBankPath, eventPath,
+                controlBlock.getBuffer());
+    }
+
+    public void stop() {
+        nativeStop();
+    }
+
+    /** Rate of Studio updates when no control data arrives (100 Hz by default). */
+    public void setUpdateRateHz(int rateHz) {
+        nativeSetUpdateRate(rateHz);
+    }
+
+    public SchedulerStats getSchedulerStats() {
+        long[] raw = new long[SchedulerStats.LENGTH];
+        nativeGetSchedulerStats(raw);
+        return new SchedulerStats(raw);
+    }
+
+    public void resetSchedulerStats() {
+        nativeResetSchedulerStats();
+    }
+
+    public PoolStats getPoolStats() {
+        long[] raw = new long[PoolStats.LENGTH];
+        nativeGetPoolStats(raw);
+        return new PoolStats(raw);
+    }
+
+    public void resetPoolStats() {
+        nativeResetPoolStats();
+    }
+
+    /** Runs an update now; lock-free, safe from any thread. */
+    void wake() {
+        nativeWake();
+    }
+
+    boolean attachTriggerRing(ByteBuffer ring) {
+        return nativeAttachTriggerRing(ring);
+    }
+
+    int registerOneShot(String eventPath, int instances, String[] parameterNames) {
+        return nativeRegisterOneShot(eventPath, instances, parameterNames);
+    }
+
+    /** Native latency histograms, laid out as in LatencyTracker. */
+    void getLatencyStats(long[] out) {
+        nativeGetLatencyStats(out);
+    }
+
+    void resetLatencyStats() {
+        nativeResetLatencyStats();
+    }
+
+    /** Only one BeatClock per start(). */
+    boolean attachBeatClock(ByteBuffer block) {
+        return nativeAttachBeatClock(block);
+    }
+
+    // Non-blocking bank loading for BankManager; handles are -1 on failure.
+
+    int loadBankFile(String path) {
+        return nativeLoadBankFile(path);
+    }
+
+    /** The data is copied by FMOD before this returns. */
+    int loadBankMemory(ByteBuffer data, int length) {
+        return nativeLoadBankMemory(data, length);
+    }
+
+    void loadSampleData(int bank) {
+        nativeLoadSampleData(bank);
+    }
+
+    /** LOADING_STATE_* of the bank in bits 0-7 and of its sample data in bits 8-15. */
+    int getBankState(int bank) {
+        return nativeGetBankState(bank);
+    }
+
+    void unloadBank(int bank) {
+        nativeUnloadBank(bank);
+    }
+
+    /** Returns -1 for unknown parameters and once MAX_PARAMETERS are resolved. */
+    @Override
+    public int resolve(String parameterName) {
+        return nativeResolveParameter(parameterName);
+    }
+
+    @Override
+    public void setParameter(int handle, float value) {
+        controlBlock.set(handle, value);
+    }
+
+    @Override
+    public void setOrigin(long originNanos) {
+        controlBlock.setOrigin(originNanos);
+    }
+
+    @Override
+    public void commit() {
+        if (controlBlock.publish()) {
+            nativeWake();
+        }
+    }
+
+    private static native boolean nativeStart(String masterBankPath, String stringsBankPath,
+                                              String eventPath, ByteBuffer controlBlock);
+
+    private static native void nativeStop();
+
+    private static native void nativeConfigureOutput(int sampleRate, int bufferLength,
+                                                     int numBuffers, boolean lowLatency);
+
+    private static native boolean nativeGetOutputConfig(int[] out);
+
+    private static native int nativeResolveParameter(String parameterName);
+
+    private static native void nativeWake();
+
+    private static native void nativeSetUpdateRate(int rateHz);
+
+    private static native void nativeGetSchedulerStats(long[] out);
+
+    private static native void nativeResetSchedulerStats();
+
+    private static native int nativeLoadBankFile(String path);
+
+    private static native int nativeLoadBankMemory(ByteBuffer data, int length);
+
+    private static native void nativeLoadSampleData(int bank);
+
+    private static native int nativeGetBankState(int bank);
+
+    private static native void nativeUnloadBank(int bank);
+
+    private static native boolean nativeAttachTriggerRing(ByteBuffer ring);
+
+    private static native int nativeRegisterOneShot(String eventPath, int instances,
+                                                    String[] parameterNames);
+
+    private static native void nativeGetPoolStats(long[] out);
+
+    private static native void nativeResetPoolStats();
+
+    private static native boolean nativeAttachBeatClock(ByteBuffer block);
+
+    private static native void nativeGetLatencyStats(long[] out);
+
+    private static native void nativeResetLatencyStats();
+}
@@ -0,0 +1,252 @@
+package com.ubicomplab.bluetoothlocation;
+
+import android.content.Context;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Brings the audio engine up off the main thread, so the first frame and the BLE scan
+ * never wait for FMOD.
+ *
+ * start() returns at once. A dedicated thread then loads the native libraries (the first
+ * touch of AudioEngine), calls FMOD.init(), matches the output to the device (AudioConfig,
+ * falling back to the power-saving preset if the low-latency output does not open), starts
+ * the engine, and preloads the scenes added with addScene() through a BankManager. The
+ * future from getReady() completes with the engine once every scene is resident (scenes
+ * whose banks fail are logged and not waited for), or exceptionally if the engine did not
+ * start. Consumers attach with getReady().thenAccept(...) rather than blocking on it.
+ *
+ * There is one startup per process, from get(): it outlives the activity, so a rotation
+ * keeps the running engine instead of tearing it down under the new activity. Bring-up and
+ * shutdown of every startup run in order on one process-wide thread, so the teardown of a
+ * startup that was shut down always finishes before the next one's FMOD.init().
+ *
+ * Cold-start timings are measured from the process start (Process.getStartUptimeMillis()):
+ * to the first frame, reported by the activity with markFirstFrame(), and to audio ready.
+ */
+public class AudioStartup {
+    private static final String TAG = "AudioStartup";
+    public static final String ASSET_PREFIX = "file:///android_asset/";
+    public static final String MASTER_BANK = ASSET_PREFIX + "Master.bank";
+    public static final String STRINGS_BANK = ASSET_PREFIX + "Master.strings.bank";
+    public static final String EVENT_PATH = "event:/Bike";
+
+    // Runs start and stop of every startup, in order, for the life of the process
+    private static final ExecutorService executor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, TAG);
+        thread.setPriority(Thread.NORM_PRIORITY - 1);
+        return thread;
+    });
+    private static AudioStartup instance;
+
+    private final Context context;
+    private final String masterBankPath;
+    private final String stringsBankPath;
+    private final String eventPath;
+    private final Map<String, String[]> scenes = new LinkedHashMap<>();
+    private final CompletableFuture<AudioEngine> ready = new CompletableFuture<>();
+
+    // Written on the startup thread
+    private volatile AudioEngine engine;
+    private volatile BankManager bankManager;
+    private boolean fmodInitialized;
+    private boolean started;
+
+    private final long processStartMillis = Process.getStartUptimeMillis();
+    private volatile long firstFrameMillis = -1;
+    private volatile long engineStartedMillis = -1;
+    private volatile long audioReadyMillis = -1;
+
+    /**
+     * The process's startup for the bundled banks and event, created on first use and
+     * again after shutdown(); call start() on it.
+     */
+    public static synchronized AudioStartup get(Context context) {
+        if (instance == null) {
+            instance = new AudioStartup(context, MASTER_BANK, STRINGS_BANK, EVENT_PATH);
+        }
+        return instance;
+    }
+
+    /** Bank paths as FMOD takes them, e.g. "file:///android_asset/Master.bank". */
+    AudioStartup(Context context, String masterBankPath, String stringsBankPath,
+                        String eventPath) {
+        this.context = context.getApplicationContext();
+        this.masterBankPath = masterBankPath;
+        this.stringsBankPath = stringsBankPath;
+        this.eventPath = eventPath;
+    }
+
+    /** A scene to preload before the engine counts as ready; call before start(). */
+    public synchronized void addScene(String scene, String... bankPaths) {
+        scenes.put(scene, bankPaths.clone());
+    }
+
+    /** Starts bringing the engine up; later calls do nothing. */
+    public synchronized CompletableFuture<AudioEngine> start() {
+        if (!started) {
+            started = true;
+            Map<String, String[]> preload = new LinkedHashMap<>(scenes);
+            executor.execute(() -> bringUp(preload));
+        }
+        return ready;
+    }
+
+    public CompletableFuture<AudioEngine> getReady() {
+        return ready;
+    }
+
+    /** Manager of the preloaded scenes; null until the engine started, or without scenes. */
+    public BankManager getBankManager() {
+        return bankManager;
+    }
+
+    /** Call from the first frame callback; only the first call counts. */
+    public void markFirstFrame() {
+        if (firstFrameMillis < 0) {
+            firstFrameMillis = SystemClock.uptimeMillis() - processStartMillis;
+            Log.i(TAG, "First frame " + firstFrameMillis + " ms after process start");
+        }
+    }
+
+    /** Milliseconds from process start to the first frame, or -1 if not drawn yet. */
+    public long getFirstFrameMillis() {
+        return firstFrameMillis;
+    }
+
+    /** Milliseconds from process start to the engine playing, or -1. */
+    public long getEngineStartedMillis() {
+        return engineStartedMillis;
+    }
+
+    /** Milliseconds from process start to the preloaded scenes being resident, or -1. */
+    public long getAudioReadyMillis() {
+        return audioReadyMillis;
+    }
+
+    public String summary() {
+        return String.format(Locale.US, "cold start: first frame %s, engine %s, audio ready %s",
+                formatMillis(firstFrameMillis), formatMillis(engineStartedMillis),
+                formatMillis(audioReadyMillis));
+    }
+
+    /**
+     * Stops the engine and closes FMOD on the startup thread, after any bring-up still in
+     * progress; the next get() makes a new startup. Not for a configuration change, which
+     * keeps the engine.
+     */
+    public void shutdown() {
+        synchronized (AudioStartup.class) {
+            if (instance == this) {
+                instance = null;
+            }
+        }
+        ready.cancel(false);
+        executor.execute(() -> {
+            if (bankManager != null) {
+                bankManager.shutdown();
+            }
+            if (engine != null) {
+                engine.stop();
+            }
+            if (fmodInitialized) {
+                org.fmod.FMOD.close();
+            }
+        });
+    }
+
+    private void bringUp(Map<String, String[]> preload) {
+        if (ready.isDone()) {
+            return; // shut down before the thread got here
+        }
+        try {
+            // Loads libfmod, libfmodstudio and libmusicbike
+            engine = new AudioEngine();
+            org.fmod.FMOD.init(context);
+            fmodInitialized = true;
+
+            AudioConfig config = AudioConfig.load(context, AudioConfig.PRESET_LOW_LATENCY);
+            engine.configureOutput(config);
+            boolean ok = engine.start(masterBankPath, stringsBankPath, eventPath);
+            if (!ok) {
+                Log.w(TAG, "Low-latency output failed to start, using power saving");
+                engine.configureOutput(AudioConfig.load(context, AudioConfig.PRESET_POWER_SAVING));
+                ok = engine.start(masterBankPath, stringsBankPath, eventPath);
+            }
+            if (!ok) {
+                engine = null;
+                ready.completeExceptionally(new IllegalStateException(
+                        "Audio engine failed to start with " + masterBankPath));
+                return;
+            }
+            AudioConfig adopted = engine.getOutputConfig();
+            if (adopted != null) {
+                adopted.saveProfile(context);
+            }
+            engineStartedMillis = SystemClock.uptimeMillis() - processStartMillis;
+            Log.i(TAG, "Engine started " + engineStartedMillis + " ms after process start");
+        } catch (RuntimeException | UnsatisfiedLinkError e) {
+            Log.e(TAG, "Audio engine bring-up failed", e);
+            ready.completeExceptionally(e);
+            return;
+        }
+        preloadScenes(preload);
+    }
+
+    private void preloadScenes(Map<String, String[]> preload) {
+        if (preload.isEmpty()) {
+            completeReady();
+            return;
+        }
+        List<String> pending = new ArrayList<>(preload.keySet());
+        bankManager = new BankManager(engine, context.getAssets(), new BankManager.Listener() {
+            @Override
+            public void onSceneReady(String scene) {
+                sceneDone(pending, scene);
+            }
+
+            @Override
+            public void onBankFailed(String path) {
+                Log.w(TAG, "Bank failed to preload: " + path);
+                for (Map.Entry<String, String[]> entry : preload.entrySet()) {
+                    for (String bankPath : entry.getValue()) {
+                        if (bankPath.equals(path)) {
+                            sceneDone(pending, entry.getKey());
+                        }
+                    }
+                }
+            }
+        });
+        for (Map.Entry<String, String[]> entry : preload.entrySet()) {
+            bankManager.defineScene(entry.getKey(), entry.getValue());
+        }
+        bankManager.preload(pending.toArray(new String[0]));
+    }
+
+    // On the bank manager thread
+    private void sceneDone(List<String> pending, String scene) {
+        if (pending.remove(scene) && pending.isEmpty()) {
+            completeReady();
+        }
+    }
+
+    private void completeReady() {
+        audioReadyMillis = SystemClock.uptimeMillis() - processStartMillis;
+        Log.i(TAG, "Audio ready " + audioReadyMillis + " ms after process start");
+        ready.complete(engine);
+    }
+
+    private static String formatMillis(long millis) {
+        return millis < 0 ? "-" : millis + " ms";
+    }
+}
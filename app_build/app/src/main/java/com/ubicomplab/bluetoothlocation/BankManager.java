@@ -0,0 +1,344 @@
+package com.ubicomplab.bluetoothlocation;
+
+import android.content.res.AssetFileDescriptor;
+import android.content.res.AssetManager;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the FMOD banks of the ride's music scenes resident ahead of time, so switching
+ * scene (trail to jump line, say) never waits for disk I/O or decoding.
+ *
+ * A scene is a named list of bank files. preload() and activate() return immediately; a
+ * background thread issues non-blocking loads (small banks are read into memory here and
+ * handed to loadBankMemory, larger ones go through loadBankFile), warms their sample data
+ * once the metadata is in, and reports onSceneReady() when every bank of a scene is fully
+ * loaded. Banks are kept in least-recently-used order and evicted while the resident size
+ * (bank file sizes) is over the memory budget; banks of the active scene and banks still
+ * loading are never evicted.
+ *
+ * Paths under file:///android_asset/ are sized and read through the AssetManager (banks
+ * are stored uncompressed, see noCompress in build.gradle); a bank whose size comes out as
+ * 0 is reported failed rather than loaded.
+ *
+ * Listener callbacks run on the manager thread.
+ */
+public class BankManager {
+    private static final String TAG = "BankManager";
+
+    public static final long DEFAULT_MEMORY_BUDGET_BYTES = 64L << 20;
+    // Banks up to this size are read on the manager thread and loaded from memory
+    static final long MEMORY_LOAD_MAX_BYTES = 4L << 20;
+    private static final long POLL_MILLIS = 10;
+    private static final String ASSET_PREFIX = "file:///android_asset/";
+
+    public interface Listener {
+        void onSceneReady(String scene);
+
+        void onBankFailed(String path);
+    }
+
+    private static final int STATE_UNLOADED = 0;
+    private static final int STATE_LOADING = 1;
+    private static final int STATE_SAMPLES_LOADING = 2;
+    private static final int STATE_READY = 3;
+    private static final int STATE_FAILED = 4;
+
+    private static class Bank {
+        final String path;
+        final long sizeBytes;
+        int handle = -1;
+        int state = STATE_UNLOADED;
+
+        Bank(String path, long sizeBytes) {
+            this.path = path;
+            this.sizeBytes = sizeBytes;
+        }
+    }
+
+    private final AudioEngine engine;
+    private final AssetManager assets;
+    private final Listener listener;
+    private final ScheduledExecutorService executor =
+            Executors.newSingleThreadScheduledExecutor(r -> new Thread(r, TAG));
+    private final Set<String> readyScenes = ConcurrentHashMap.newKeySet();
+
+    // Only touched on the manager thread
+    private final Map<String, List<String>> scenes = new HashMap<>();
+    private final Map<String, Bank> banks = new HashMap<>();
+    // The same banks, least recently requested first
+    private final LinkedHashMap<String, Bank> recency = new LinkedHashMap<>(16, 0.75f, true);
+    private final Set<String> requestedScenes = new HashSet<>();
+    private String activeScene;
+    private long residentBytes;
+    private long budgetBytes = DEFAULT_MEMORY_BUDGET_BYTES;
+    private ScheduledFuture<?> poller;
+
+    public BankManager(AudioEngine engine, Listener listener) {
+        this(engine, null, listener);
+    }
+
+    /** @param assets resolves file:///android_asset/ paths; null for plain files only */
+    public BankManager(AudioEngine engine, AssetManager assets, Listener listener) {
+        this.engine = engine;
+        this.assets = assets;
+        this.listener = listener;
+    }
+
+    public void defineScene(String scene, String... bankPaths) {
+        List<String> paths = Arrays.asList(bankPaths.clone());
+        executor.execute(() -> scenes.put(scene, paths));
+    }
+
+    public void setMemoryBudget(long bytes) {
+        executor.execute(() -> {
+            budgetBytes = bytes;
+            evictOverBudget();
+        });
+    }
+
+    /** Loads the scenes in the given order, e.g. every scene of the current ride profile. */
+    public void preload(String... scenes) {
+        String[] copy = scenes.clone();
+        executor.execute(() -> {
+            for (String scene : copy) {
+                request(scene);
+            }
+        });
+    }
+
+    /** Marks the scene as playing: its banks are loaded first and pinned against eviction. */
+    public void activate(String scene) {
+        executor.execute(() -> {
+            activeScene = scene;
+            request(scene);
+        });
+    }
+
+    public boolean isReady(String scene) {
+        return readyScenes.contains(scene);
+    }
+
+    /** Unloads every bank and stops the manager thread. */
+    public void shutdown() {
+        executor.execute(() -> {
+            for (Bank bank : banks.values()) {
+                if (bank.handle >= 0) {
+                    engine.unloadBank(bank.handle);
+                }
+            }
+            banks.clear();
+            recency.clear();
+            readyScenes.clear();
+            residentBytes = 0;
+        });
+        executor.shutdown();
+    }
+
+    private void request(String scene) {
+        List<String> paths = scenes.get(scene);
+        if (paths == null) {
+            Log.w(TAG, "Unknown scene " + scene);
+            return;
+        }
+        requestedScenes.add(scene);
+        for (String path : paths) {
+            Bank bank = recency.get(path); // also marks it most recently used
+            if (bank == null) {
+                bank = new Bank(path, sizeOf(path));
+                banks.put(path, bank);
+                recency.put(path, bank);
+            }
+            if (bank.state == STATE_UNLOADED || bank.state == STATE_FAILED) {
+                startLoad(bank);
+            }
+        }
+        evictOverBudget();
+        updateReadyScenes();
+        if (poller == null) {
+            poller = executor.scheduleWithFixedDelay(this::poll, POLL_MILLIS, POLL_MILLIS,
+                    TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void startLoad(Bank bank) {
+        if (bank.sizeBytes <= 0) {
+            fail(bank); // missing or empty; FMOD would only fail on it later
+            return;
+        }
+        int handle = -1;
+        if (bank.sizeBytes <= MEMORY_LOAD_MAX_BYTES) {
+            try {
+                ByteBuffer data = readFile(bank.path, (int) bank.sizeBytes);
+                handle = engine.loadBankMemory(data, data.limit());
+            } catch (IOException e) {
+                Log.e(TAG, "Could not read bank " + bank.path, e);
+            }
+        } else {
+            handle = engine.loadBankFile(bank.path);
+        }
+        if (handle < 0) {
+            fail(bank);
+            return;
+        }
+        bank.handle = handle;
+        bank.state = STATE_LOADING;
+        residentBytes += bank.sizeBytes;
+    }
+
+    // File size, or 0 if the bank cannot be found
+    private long sizeOf(String path) {
+        String asset = assetName(path);
+        if (asset == null) {
+            return new File(path).length();
+        }
+        try (AssetFileDescriptor fd = assets.openFd(asset)) {
+            return Math.max(0, fd.getLength());
+        } catch (IOException e) {
+            // Compressed in the APK, so there is no descriptor: count the bytes instead
+        }
+        long size = 0;
+        byte[] chunk = new byte[8192];
+        try (InputStream in = assets.open(asset)) {
+            int n;
+            while ((n = in.read(chunk)) > 0) {
+                size += n;
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "No bank asset " + asset, e);
+            return 0;
+        }
+        return size;
+    }
+
+    // Name inside the APK's assets, or null for a plain file path
+    private String assetName(String path) {
+        return assets != null && path.startsWith(ASSET_PREFIX)
+                ? path.substring(ASSET_PREFIX.length()) : null;
+    }
+
+    private ByteBuffer readFile(String path, int size) throws IOException {
+        ByteBuffer data = ByteBuffer.allocateDirect(size);
+        String asset = assetName(path);
+        if (asset != null) {
+            byte[] chunk = new byte[8192];
+            try (InputStream in = assets.open(asset)) {
+                int n;
+                while (data.hasRemaining()
+                        && (n = in.read(chunk, 0, Math.min(chunk.length, data.remaining()))) > 0) {
+                    data.put(chunk, 0, n);
+                }
+            }
+            data.flip();
+            return data;
+        }
+        try (FileInputStream in = new FileInputStream(path)) {
+            FileChannel channel = in.getChannel();
+            while (data.hasRemaining() && channel.read(data) >= 0) {
+                // Keep reading until the buffer is full
+            }
+        }
+        data.flip();
+        return data;
+    }
+
+    private void poll() {
+        boolean pending = false;
+        for (Bank bank : banks.values()) {
+            if (bank.state != STATE_LOADING && bank.state != STATE_SAMPLES_LOADING) {
+                continue;
+            }
+            int state = engine.getBankState(bank.handle);
+            int loading = state & 0xFF;
+            int samples = (state >> 8) & 0xFF;
+            if (state < 0 || loading == AudioEngine.LOADING_STATE_ERROR
+                    || samples == AudioEngine.LOADING_STATE_ERROR) {
+                fail(bank);
+            } else if (bank.state == STATE_LOADING) {
+                if (loading == AudioEngine.LOADING_STATE_LOADED) {
+                    engine.loadSampleData(bank.handle);
+                    bank.state = STATE_SAMPLES_LOADING;
+                }
+                pending = true;
+            } else if (samples == AudioEngine.LOADING_STATE_LOADED) {
+                bank.state = STATE_READY;
+            } else {
+                pending = true;
+            }
+        }
+        updateReadyScenes();
+        if (!pending && poller != null) {
+            poller.cancel(false);
+            poller = null;
+        }
+    }
+
+    private void fail(Bank bank) {
+        Log.e(TAG, "Failed to load bank " + bank.path);
+        if (bank.handle >= 0) {
+            engine.unloadBank(bank.handle);
+            residentBytes -= bank.sizeBytes;
+            bank.handle = -1;
+        }
+        bank.state = STATE_FAILED;
+        if (listener != null) {
+            listener.onBankFailed(bank.path);
+        }
+    }
+
+    private void evictOverBudget() {
+        List<String> pinned = activeScene != null ? scenes.get(activeScene) : null;
+        Iterator<Bank> eldestFirst = recency.values().iterator();
+        while (residentBytes > budgetBytes && eldestFirst.hasNext()) {
+            Bank bank = eldestFirst.next();
+            if (bank.state != STATE_READY || (pinned != null && pinned.contains(bank.path))) {
+                continue;
+            }
+            engine.unloadBank(bank.handle);
+            residentBytes -= bank.sizeBytes;
+            eldestFirst.remove();
+            banks.remove(bank.path);
+        }
+        if (residentBytes > budgetBytes) {
+            Log.w(TAG, "Resident banks (" + residentBytes + " bytes) exceed the budget of "
+                    + budgetBytes + " bytes");
+        }
+    }
+
+    private void updateReadyScenes() {
+        for (String scene : requestedScenes) {
+            boolean ready = true;
+            for (String path : scenes.get(scene)) {
+                Bank bank = banks.get(path);
+                if (bank == null || bank.state != STATE_READY) {
+                    ready = false;
+                    break;
+                }
+            }
+            if (!ready) {
+                readyScenes.remove(scene);
+            } else if (readyScenes.add(scene) && listener != null) {
+                listener.onSceneReady(scene);
+            }
+        }
+    }
+}
@@ -0,0 +1,200 @@
+package com.ubicomplab.bluetoothlocation;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The music's beat grid, fed by the FMOD TIMELINE_BEAT and TIMELINE_MARKER callbacks of the
+ * ride event and read without locks from Java.
+ *
+ * Layout, in native byte order, mirrored in musicbike_audio.cpp:
+ *   int   sequence        seqlock, odd while the callback writes
+ *   int   bar, beat       beat is 1-based within the bar
+ *   int   beatsPerBar     time signature upper
+ *   float tempo           beats per minute
+ *   int   positionMillis  timeline position of the beat
+ *   long  beatNanos       System.nanoTime() clock when the beat was processed
+ *   int   markerCount     markers passed since the engine started
+ *   int   markerPositionMillis
+ *   long  markerNanos
+ *   byte  markerName[MARKER_NAME_BYTES], NUL-terminated UTF-8
+ *
+ * update() copies a consistent snapshot; the prediction methods extrapolate the grid from
+ * the last beat at the current tempo. Times are those at which Studio processes the beat,
+ * the same clock parameter updates are applied on, so a value written for nextBeatNanos()
+ * lands on that beat. One reader thread per instance.
+ */
+public class BeatClock {
+    static final int SEQUENCE_OFFSET = 0;
+    static final int BAR_OFFSET = 4;
+    static final int BEAT_OFFSET = 8;
+    static final int BEATS_PER_BAR_OFFSET = 12;
+    static final int TEMPO_OFFSET = 16;
+    static final int POSITION_OFFSET = 20;
+    static final int BEAT_NANOS_OFFSET = 24;
+    static final int MARKER_COUNT_OFFSET = 32;
+    static final int MARKER_POSITION_OFFSET = 36;
+    static final int MARKER_NANOS_OFFSET = 40;
+    static final int MARKER_NAME_OFFSET = 48;
+    static final int MARKER_NAME_BYTES = 32;
+    static final int SIZE = MARKER_NAME_OFFSET + MARKER_NAME_BYTES;
+
+    private static final int READ_ATTEMPTS = 4;
+    // Beats the grid may go without a callback before it is no longer trusted
+    private static final int LOCK_BEATS = 2;
+
+    private final ByteBuffer buffer;
+    private final byte[] markerName = new byte[MARKER_NAME_BYTES];
+    private volatile int fence;
+
+    // Last consistent snapshot
+    private int bar;
+    private int beat;
+    private int beatsPerBar;
+    private float tempo;
+    private int positionMillis;
+    private long beatNanos;
+    private int markerCount;
+    private int markerPositionMillis;
+    private long markerNanos;
+    private int markerNameLength;
+
+    /** Attach after AudioEngine.start(); restarting the engine detaches the clock. */
+    public BeatClock(AudioEngine engine) {
+        buffer = ByteBuffer.allocateDirect(SIZE).order(ByteOrder.nativeOrder());
+        fence();
+        engine.attachBeatClock(buffer);
+    }
+
+    /**
+     * Copies the latest beat and marker. Returns false if no beat has arrived yet or the
+     * callback kept the block busy, in which case the previous snapshot stays.
+     */
+    public boolean update() {
+        for (int attempt = 0; attempt < READ_ATTEMPTS; attempt++) {
+            fence();
+            int before = buffer.getInt(SEQUENCE_OFFSET);
+            if ((before & 1) != 0) {
+                continue;
+            }
+            fence();
+            int newBar = buffer.getInt(BAR_OFFSET);
+            int newBeat = buffer.getInt(BEAT_OFFSET);
+            int newBeatsPerBar = buffer.getInt(BEATS_PER_BAR_OFFSET);
+            float newTempo = buffer.getFloat(TEMPO_OFFSET);
+            int newPosition = buffer.getInt(POSITION_OFFSET);
+            long newBeatNanos = buffer.getLong(BEAT_NANOS_OFFSET);
+            int newMarkerCount = buffer.getInt(MARKER_COUNT_OFFSET);
+            int newMarkerPosition = buffer.getInt(MARKER_POSITION_OFFSET);
+            long newMarkerNanos = buffer.getLong(MARKER_NANOS_OFFSET);
+            boolean markerChanged = newMarkerCount != markerCount;
+            int nameLength = markerNameLength;
+            if (markerChanged) {
+                nameLength = 0;
+                while (nameLength < MARKER_NAME_BYTES) {
+                    byte b = buffer.get(MARKER_NAME_OFFSET + nameLength);
+                    if (b == 0) {
+                        break;
+                    }
+                    markerName[nameLength++] = b;
+                }
+            }
+            fence();
+            if (buffer.getInt(SEQUENCE_OFFSET) != before) {
+                continue;
+            }
+            bar = newBar;
+            beat = newBeat;
+            beatsPerBar = newBeatsPerBar;
+            tempo = newTempo;
+            positionMillis = newPosition;
+            beatNanos = newBeatNanos;
+            markerCount = newMarkerCount;
+            markerPositionMillis = newMarkerPosition;
+            markerNanos = newMarkerNanos;
+            markerNameLength = nameLength;
+            return before != 0 && tempo > 0;
+        }
+        return false;
+    }
+
+    /** Whether a beat arrived within the last LOCK_BEATS beat periods. */
+    public boolean isLocked(long now) {
+        return tempo > 0 && beatNanos != 0 && now - beatNanos <= LOCK_BEATS * getBeatNanos();
+    }
+
+    public long getBeatNanos() {
+        return tempo > 0 ? (long) (60e9 / tempo) : 0;
+    }
+
+    /** First predicted beat strictly after the given time. */
+    public long nextBeatNanos(long after) {
+        long period = getBeatNanos();
+        if (period <= 0) {
+            return Long.MAX_VALUE;
+        }
+        long beats = after < beatNanos ? 0 : (after - beatNanos) / period + 1;
+        return beatNanos + beats * period;
+    }
+
+    /** First predicted downbeat (beat 1) strictly after the given time. */
+    public long nextBarNanos(long after) {
+        long period = getBeatNanos();
+        if (period <= 0 || beatsPerBar <= 0) {
+            return Long.MAX_VALUE;
+        }
+        long barPeriod = period * beatsPerBar;
+        // The downbeat at or after the last beat, then whole bars on from there
+        long downbeat = beatNanos + (long) ((beatsPerBar - beat + 1) % beatsPerBar) * period;
+        long bars = after < downbeat ? 0 : (after - downbeat) / barPeriod + 1;
+        return downbeat + bars * barPeriod;
+    }
+
+    public int getBar() {
+        return bar;
+    }
+
+    public int getBeat() {
+        return beat;
+    }
+
+    public int getBeatsPerBar() {
+        return beatsPerBar;
+    }
+
+    public float getTempo() {
+        return tempo;
+    }
+
+    public int getPositionMillis() {
+        return positionMillis;
+    }
+
+    public long getLastBeatNanos() {
+        return beatNanos;
+    }
+
+    /** Markers passed so far; compare with an earlier count to notice a new one. */
+    public int getMarkerCount() {
+        return markerCount;
+    }
+
+    public int getMarkerPositionMillis() {
+        return markerPositionMillis;
+    }
+
+    public long getMarkerNanos() {
+        return markerNanos;
+    }
+
+    public String getMarkerName() {
+        return new String(markerName, 0, markerNameLength, StandardCharsets.UTF_8);
+    }
+
+    // Same volatile store + load fence as ControlBlock.
+    private int fence() {
+        fence = 0;
+        return fence;
+    }
+}
@@ -12,8 +12,10 @@ import android.bluetooth.BluetoothGattCharacteristic;
 import android.bluetooth.BluetoothGattDescriptor;
 import android.bluetooth.BluetoothGattService;
 import android.bluetooth.BluetoothProfile;
+import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.pm.PackageManager;
 import android.location.Location;
 import android.os.Binder;
@@ -46,8 +48,11 @@ import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
+import java.util.ArrayDeque;
 import java.util.Locale;
 import java.util.UUID;
 import java.util.concurrent.BlockingQueue;
@@ -62,6 +67,19 @@ public class BleService extends Service {
     UUID MY_CHARACTERISTIC_UUID = UUID.fromString("020012ac-4202-78b8-ed11-de46769cafc9");
     // The fixed standard UUID for notifications.
     UUID YOUR_DESCRIPTOR_UUID = UUID.fromString("00002902-0000-1000-8000-00805f9b34fb");
+    // MusicBike firmware: one little-endian float (or byte) characteristic per value,
+    // notified every cycle in the order speed, pitch, roll, yaw, gForce, directions
+    UUID MUSICBIKE_SERVICE_UUID = UUID.fromString("0fb899fa-2b3a-4e11-911d-4fa05d130dc1");
+    UUID SPEED_CHARACTERISTIC_UUID = UUID.fromString("a635fed5-9a19-4e31-8091-84d020481329");
+    UUID PITCH_CHARACTERISTIC_UUID = UUID.fromString("726c4b96-bc56-47d2-95a1-a6c49cce3a1f");
+    UUID ROLL_CHARACTERISTIC_UUID = UUID.fromString("a1e929e3-5a2e-4418-806a-c50ab877d126");
+    UUID YAW_CHARACTERISTIC_UUID = UUID.fromString("cd6fc0f8-089a-490e-8e36-74af84977c7b");
+    UUID GFORCE_CHARACTERISTIC_UUID = UUID.fromString("a6210f30-654f-32ea-9e37-432a639fb38e");
+    UUID HALL_DIRECTION_CHARACTERISTIC_UUID = UUID.fromString("f231de63-475c-463d-9b3f-f338d7458bb9");
+    // One byte, sent between gForce and the directions when the firmware sees a jump or drop
+    UUID EVENT_CHARACTERISTIC_UUID = UUID.fromString("26205d71-58d1-45e6-9ad1-1931cd7343c3");
+    // Android allows one outstanding descriptor write; the rest wait here
+    private final ArrayDeque<BluetoothGattDescriptor> descriptorQueue = new ArrayDeque<>();
     private BluetoothGatt mBluetoothGatt;
     private PowerManager.WakeLock wakeLock;
     private BluetoothDevice device;
@@ -89,6 +107,25 @@ public class BleService extends Service {
     private int previousPacketIndex = -1; // Initialize to an invalid index
     private long previouspacketTimestamp = -1; // Initialize to an invalid index
 
+    // Latest MusicBike values of the current notify cycle, on the GATT callback thread
+    private float latestSpeed;
+    private float latestPitch;
+    private float latestRoll;
+    private float latestYaw;
+    private byte latestDirection = TrickDataParser.DIRECTION_NONE;
+    private RidePipeline ridePipeline;
+    // The rider's answer to a com.example.ACTION_CLIP_SAVED, from MainActivity
+    private final BroadcastReceiver confirmClipReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            String clip = intent.getStringExtra("clip");
+            String label = intent.getStringExtra("label");
+            if (ridePipeline != null && clip != null && label != null) {
+                ridePipeline.confirmClip(new File(clip), label);
+            }
+        }
+    };
+
     private volatile boolean keepRunning = true;
     DateTimeFormatter formatter;
     private String formattedDateTime;
@@ -141,13 +178,15 @@ public class BleService extends Service {
     }
 
     // TODO ucomment for URI mediastore instead of filepath.
-    private void writeLineToFile(String line, File outputFile) {
+    private boolean writeLineToFile(String line, File outputFile) {
         try (BufferedWriter bw = new BufferedWriter(new FileWriter(outputFile, true))) {
             bw.write(line);
             bw.newLine();
+            return true;
         } catch (IOException e) {
             // Handle IOException
             e.printStackTrace();
+            return false;
         }
     }
 
@@ -167,12 +206,23 @@ public class BleService extends Service {
         keepRunning = true;
 
         thread = new Thread(() -> {
+            // Sparse seek index and chart pyramid next to the log, see SessionIndex and
+            // SessionPyramid
+            SessionIndex.Writer index = openSessionIndex(outputFile);
+            SessionPyramid.Writer pyramid = new SessionPyramid.Writer(outputFile);
             while (keepRunning) {
                 while (!queue.isEmpty()) {
                     MainActivity.SensorReadingPacket packet = queue.poll();
                     if (packet != null) {
                         String row = packet.getAsCSVRow();
-                        writeLineToFile(row, outputFile);
+                        if (writeLineToFile(row, outputFile) && index != null) {
+                            index = appendToSessionIndex(index, packet.peripheralTimestamp,
+                                    row.length() + System.lineSeparator().length());
+                        }
+                        if (pyramid != null) {
+                            pyramid = addToSessionPyramid(pyramid, packet.peripheralTimestamp,
+                                    packet.payload);
+                        }
                     } else {
                         Log.i("in thread", "Queue.poll() was null....");
                     }
@@ -185,11 +235,70 @@ public class BleService extends Service {
                     Thread.currentThread().interrupt();
                 }
             }
+            if (index != null) {
+                try {
+                    index.close();
+                } catch (IOException e) {
+                    Log.e("SessionIndex", "Could not close index of " + outputFile, e);
+                }
+            }
+            if (pyramid != null) {
+                try {
+                    pyramid.close();
+                } catch (IOException e) {
+                    Log.e("SessionPyramid", "Could not close pyramid of " + outputFile, e);
+                }
+            }
         }, threadName);
         thread.start();
         return thread;
     }
 
+    private static SessionIndex.Writer openSessionIndex(File outputFile) {
+        try {
+            return new SessionIndex.Writer(outputFile);
+        } catch (IOException e) {
+            Log.e("SessionIndex", "Recording " + outputFile + " without an index", e);
+            return null;
+        }
+    }
+
+    // The index, or null once writing it failed; the log itself carries on regardless
+    private static SessionIndex.Writer appendToSessionIndex(SessionIndex.Writer index,
+                                                            long peripheralTimestamp,
+                                                            int lineBytes) {
+        try {
+            index.append(peripheralTimestamp, lineBytes);
+            return index;
+        } catch (IOException e) {
+            Log.e("SessionIndex", "Index write failed, rebuild it from the log", e);
+            try {
+                index.close();
+            } catch (IOException ignored) {
+                // Already failing
+            }
+            return null;
+        }
+    }
+
+    // The pyramid, or null once writing it failed
+    private static SessionPyramid.Writer addToSessionPyramid(SessionPyramid.Writer pyramid,
+                                                             long peripheralTimestamp,
+                                                             int[] payload) {
+        try {
+            pyramid.add(peripheralTimestamp, payload);
+            return pyramid;
+        } catch (IOException | IllegalArgumentException e) {
+            Log.e("SessionPyramid", "Pyramid write failed, charts fall back to the log", e);
+            try {
+                pyramid.close();
+            } catch (IOException ignored) {
+                // Already failing
+            }
+            return null;
+        }
+    }
+
     private synchronized Thread stopFileWritingThread(Thread thread) {
         if (!isFileWritingThreadRunning(thread)) {
             return null; // The thread is not running
@@ -270,6 +379,10 @@ public class BleService extends Service {
                 }
                 startBLEFileWriterThreads();
                 startLocationFileWriterThread();
+                LatencyTracker session = LatencyTracker.startSession();
+                if (ridePipeline != null) {
+                    ridePipeline.setLatencySession(session);
+                }
                 String deviceName = device.getName() != null ? device.getName() : "Unknown Device";
                 Intent disconnectIntent = new Intent("com.example.ACTION_CONNECTED");
                 disconnectIntent.putExtra("deviceName", deviceName);
@@ -315,32 +428,48 @@ public class BleService extends Service {
         public void onServicesDiscovered(BluetoothGatt gatt, int status) {
             if (status == BluetoothGatt.GATT_SUCCESS) {
                 Log.i("BLE", "GATT SUCCESS, looking for correct service and characteristic.");
+                if (ActivityCompat.checkSelfPermission(BleService.this,
+                        Manifest.permission.BLUETOOTH_CONNECT) != PackageManager.PERMISSION_GRANTED) {
+                    Log.e("BLE", "BLUETOOTH_CONNECT permission not granted");
+                    stopSelf();
+                    return;
+                }
+                descriptorQueue.clear();
                 for (BluetoothGattService gattService : gatt.getServices()) {
                     if (gattService.getUuid().equals(MY_SERVICE_UUID)) {
-                        BluetoothGattCharacteristic characteristic =
-                                gattService.getCharacteristic(MY_CHARACTERISTIC_UUID);
-                        if (ActivityCompat.checkSelfPermission(BleService.this,
-                                Manifest.permission.BLUETOOTH_CONNECT) != PackageManager.PERMISSION_GRANTED) {
-                            Log.e("BLE", "BLUETOOTH_CONNECT permission not granted");
-                            stopSelf();
-                            return;
+                        enableNotifications(gatt, gattService.getCharacteristic(MY_CHARACTERISTIC_UUID));
+                    } else if (gattService.getUuid().equals(MUSICBIKE_SERVICE_UUID)) {
+                        for (UUID uuid : new UUID[] {SPEED_CHARACTERISTIC_UUID, PITCH_CHARACTERISTIC_UUID,
+                                ROLL_CHARACTERISTIC_UUID, YAW_CHARACTERISTIC_UUID,
+                                GFORCE_CHARACTERISTIC_UUID, HALL_DIRECTION_CHARACTERISTIC_UUID,
+                                EVENT_CHARACTERISTIC_UUID}) {
+                            enableNotifications(gatt, gattService.getCharacteristic(uuid));
                         }
-                        gatt.setCharacteristicNotification(characteristic, true);
-                        BluetoothGattDescriptor desc = characteristic.getDescriptor(YOUR_DESCRIPTOR_UUID);
-                        desc.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
-                        gatt.writeDescriptor(desc);
-                        Log.i("BLE", "Wrote descriptor to enable notifications.");
                     }
                 }
+                writeNextDescriptor(gatt);
             } else {
                 Log.w("BLE", "onServicesDiscovered received: " + status);
             }
         }
 
+        @Override
+        public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor,
+                                      int status) {
+            if (status != BluetoothGatt.GATT_SUCCESS) {
+                Log.w("BLE", "Enabling notifications of " + descriptor.getCharacteristic().getUuid()
+                        + " failed: " + status);
+            }
+            writeNextDescriptor(gatt);
+        }
+
         @Override
         public void onCharacteristicChanged(BluetoothGatt gatt,
                                             BluetoothGattCharacteristic characteristic) {
-            if (MY_CHARACTERISTIC_UUID.equals(characteristic.getUuid())) {
+            if (MUSICBIKE_SERVICE_UUID.equals(characteristic.getService().getUuid())) {
+                onMotionValue(characteristic.getUuid(), characteristic.getValue(), System.nanoTime());
+            } else if (MY_CHARACTERISTIC_UUID.equals(characteristic.getUuid())) {
+                long arrivalNanos = System.nanoTime(); // Monotonic, for the latency probes
                 byte[] data = characteristic.getValue();
                 String hexData = bytesToHex(data); // Convert to readable format
                 long androidTime = System.currentTimeMillis();
@@ -388,6 +517,9 @@ public class BleService extends Service {
                 //Log.i("Received data length: " + data.length, "Sensor: " + sensorIndex + " packet " + packetIndex + " read index: " + readIndex + " at time " + androidTime + " peripheral timestamp was: " + peripheralTimestamp + " first value was rear: " + firstPayloadInt1 + " Side: " + firstPayloadInt2);
                 Log.i("BLE", "packet missed: " + packetMissed + " packet delay:  " + currentPacketDelay + " Sensor: " + sensorIndex + " packet " + packetIndex + " read index: " + readIndex + " rear queue len:" + rearPacketQueueBLE.size() + " side queue len:" + sidePacketQueueBLE.size());
                 MainActivity.SensorReadingPacket packet = new MainActivity.SensorReadingPacket(sensorIndex, packetIndex, readIndex, peripheralTimestamp, androidTime, payload);
+                LatencyTracker latencyTracker = LatencyTracker.getSession();
+                packet.originNanos = latencyTracker.onPacket(peripheralTimestamp, arrivalNanos);
+                latencyTracker.record(LatencyTracker.STAGE_DECODE, System.nanoTime() - arrivalNanos);
                 if (sensorIndex == 1) {
                     rearPacketQueueBLE.offer(packet);
                 } else if (sensorIndex == 2) {
@@ -405,6 +537,72 @@ public class BleService extends Service {
         }
     };
 
+    // Queued until the previous write completes, see onDescriptorWrite()
+    private void enableNotifications(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic) {
+        if (characteristic == null) {
+            return;
+        }
+        if (ActivityCompat.checkSelfPermission(this,
+                Manifest.permission.BLUETOOTH_CONNECT) != PackageManager.PERMISSION_GRANTED) {
+            return;
+        }
+        gatt.setCharacteristicNotification(characteristic, true);
+        BluetoothGattDescriptor desc = characteristic.getDescriptor(YOUR_DESCRIPTOR_UUID);
+        if (desc != null) {
+            desc.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
+            descriptorQueue.add(desc);
+        }
+    }
+
+    private void writeNextDescriptor(BluetoothGatt gatt) {
+        BluetoothGattDescriptor desc = descriptorQueue.poll();
+        if (desc == null) {
+            return;
+        }
+        if (ActivityCompat.checkSelfPermission(this,
+                Manifest.permission.BLUETOOTH_CONNECT) != PackageManager.PERMISSION_GRANTED) {
+            return;
+        }
+        gatt.writeDescriptor(desc);
+        Log.i("BLE", "Wrote descriptor to enable notifications of " + desc.getCharacteristic().getUuid());
+    }
+
+    // One MusicBike value; the gForce that ends each notify cycle completes a sample. The
+    // firmware sends no sample time, so the arrival is taken as its origin.
+    private void onMotionValue(UUID uuid, byte[] data, long arrivalNanos) {
+        if (data == null || data.length == 0) {
+            return;
+        }
+        if (HALL_DIRECTION_CHARACTERISTIC_UUID.equals(uuid)) {
+            // As the MusicBike recorder writes it: 1 is Fwd, anything else Rev
+            latestDirection = data[0] == 1 ? TrickDataParser.DIRECTION_FORWARD
+                    : TrickDataParser.DIRECTION_REVERSE;
+            return;
+        }
+        if (EVENT_CHARACTERISTIC_UUID.equals(uuid)) {
+            if (ridePipeline != null) {
+                ridePipeline.onFirmwareEvent(data[0] & 0xFF);
+            }
+            return;
+        }
+        if (data.length < 4) {
+            return;
+        }
+        float value = ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN).getFloat();
+        if (SPEED_CHARACTERISTIC_UUID.equals(uuid)) {
+            latestSpeed = value;
+        } else if (PITCH_CHARACTERISTIC_UUID.equals(uuid)) {
+            latestPitch = value;
+        } else if (ROLL_CHARACTERISTIC_UUID.equals(uuid)) {
+            latestRoll = value;
+        } else if (YAW_CHARACTERISTIC_UUID.equals(uuid)) {
+            latestYaw = value;
+        } else if (GFORCE_CHARACTERISTIC_UUID.equals(uuid) && ridePipeline != null) {
+            ridePipeline.onSample(arrivalNanos, arrivalNanos, latestSpeed, latestPitch,
+                    latestRoll, latestYaw, value, latestDirection);
+        }
+    }
+
     // Hex conversion helper method to display last packet
     private static String bytesToHex(byte[] bytes) {
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.UPSIDE_DOWN_CAKE) {
@@ -435,6 +633,20 @@ public class BleService extends Service {
         restartCounter = 0;
         createNotificationChannel();
         initializeLocationTracking();
+        // The music follows the ride as soon as the engine is up
+        ridePipeline = new RidePipeline(this);
+        ridePipeline.start(AudioStartup.get(this).start());
+        // Captured clips are offered to the rider to label, see MainActivity
+        ridePipeline.setClipListener((clip, predicted, confidence, start, end) -> {
+            Intent intent = new Intent("com.example.ACTION_CLIP_SAVED");
+            intent.setPackage(getPackageName());
+            intent.putExtra("clip", clip.getPath());
+            intent.putExtra("predicted", predicted);
+            intent.putExtra("confidence", confidence);
+            sendBroadcast(intent);
+        });
+        registerReceiver(confirmClipReceiver, new IntentFilter("com.example.ACTION_CONFIRM_CLIP"),
+                RECEIVER_NOT_EXPORTED);
     }
 
     private void initializeLocationTracking() {
@@ -569,6 +781,10 @@ public class BleService extends Service {
         sideSensorFileWritingThread = stopFileWritingThread(sideSensorFileWritingThread);
         rearSensorFileWritingThread = stopFileWritingThread(rearSensorFileWritingThread);
         stopLocationUpdates();
+        unregisterReceiver(confirmClipReceiver);
+        if (ridePipeline != null) {
+            ridePipeline.close();
+        }
     }
 
     @Override
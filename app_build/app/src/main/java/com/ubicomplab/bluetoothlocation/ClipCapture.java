@@ -0,0 +1,328 @@
+package com.ubicomplab.bluetoothlocation;
+
+import android.os.Process;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cuts candidate trick clips out of a ride while it is recorded, to grow the training set
+ * without the manual record-one-trick-per-file routine.
+ *
+ * Every sample goes into a ring of the last capacity rows. A clip opens when the TrickGate
+ * opens or the JumpDetector reports a jump or drop, reaching preRollMillis back from the
+ * first sign of activity (the takeoff, for a jump), and closes postRollMillis after the
+ * last one, or when it fills the ring. Its rows are copied into one of a few pooled
+ * buffers and handed to a background-priority thread, which classifies the clip and
+ * writes it; if every buffer is still queued the clip is dropped and counted. push()
+ * never blocks or touches the disk, and allocates nothing but the writer queue's entry
+ * when a clip closes. It must be called from one thread; onFirmwareEvent() and the
+ * setters from any.
+ *
+ * Clips are written exactly as the recorder in SensorsFragment writes them
+ * ("seconds,pitch,roll,yaw,gForce,Fwd|Rev,speed", two decimals; a sample taken before
+ * the hall sensor reported a direction leaves that field empty, which TrickDataParser
+ * reads back as DIRECTION_NONE) and named
+ * <predicted class>_<n>.txt, into a capture directory kept apart from the training data:
+ * the name is only a guess until confirm() moves the clip into the dataset under the
+ * class the rider picked.
+ */
+public class ClipCapture implements JumpDetector.Listener {
+    private static final String TAG = "ClipCapture";
+    public static final String UNCLASSIFIED = "candidate";
+    // Clips that can wait for the writer at once
+    private static final int POOLED_CLIPS = 4;
+
+    public interface Listener {
+        /** Called on the writer thread; predicted is UNCLASSIFIED without a model. */
+        void onClipSaved(File clip, String predicted, float confidence, long startTimestamp,
+                         long endTimestamp);
+    }
+
+    private final File directory;
+    private final TrickGate gate;
+    private final JumpDetector detector;
+    private final Listener listener;
+    private final int capacity;
+    private final TrickDataParser.Columns ring = new TrickDataParser.Columns();
+
+    private volatile long preRollMillis = 1000;
+    private volatile long postRollMillis = 1000;
+
+    private long samples;
+    private long clipStart = -1;
+    private long lastActive;
+    // Start of activity reported by the detector during the current push(), or -1
+    private long eventFrom = -1;
+
+    private final ArrayBlockingQueue<PendingClip> free;
+    private final ExecutorService writer = Executors.newSingleThreadExecutor(r ->
+            new Thread(() -> {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                r.run();
+            }, TAG));
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong written = new AtomicLong();
+
+    // Used on the writer thread only
+    private final TrickModel model;
+    private final String[] labels;
+    private final float[] probabilities;
+
+    /**
+     * @param model    classifies each clip to name it, or null to name them all UNCLASSIFIED;
+     *                 owned by the writer thread from here on
+     * @param labels   class names in model output order (TrickDataset.labels)
+     * @param capacity ring rows, the longest clip kept
+     */
+    public ClipCapture(File directory, TrickGate gate, TrickModel model, String[] labels,
+                       int capacity, Listener listener) {
+        this.directory = directory;
+        this.gate = gate;
+        this.model = model;
+        this.labels = labels;
+        this.capacity = capacity;
+        this.listener = listener;
+        detector = new JumpDetector(this);
+        ring.ensureCapacity(capacity);
+        free = new ArrayBlockingQueue<>(POOLED_CLIPS);
+        for (int i = 0; i < POOLED_CLIPS; i++) {
+            free.add(new PendingClip());
+        }
+        probabilities = model != null ? new float[model.getWeights().classes] : null;
+        // Start the writer thread now rather than on the ingest thread's first clip
+        writer.execute(() -> { });
+    }
+
+    public void setPreRollMillis(long millis) {
+        preRollMillis = millis;
+    }
+
+    public void setPostRollMillis(long millis) {
+        postRollMillis = millis;
+    }
+
+    /** The detector the clips are cut on, for its thresholds. */
+    public JumpDetector getDetector() {
+        return detector;
+    }
+
+    /** Firmware jump/drop notifications open a clip like the gate's own triggers. */
+    public void onFirmwareEvent(int code) {
+        gate.onFirmwareEvent(code);
+    }
+
+    /** Adds one sample; timestamp in milliseconds, direction a TrickDataParser.DIRECTION_*. */
+    public void push(long timestamp, float pitch, float roll, float yaw, float gForce,
+                     byte direction, float speed) {
+        int slot = (int) (samples % capacity);
+        ring.timestamps[slot] = timestamp;
+        ring.pitch[slot] = pitch;
+        ring.roll[slot] = roll;
+        ring.yaw[slot] = yaw;
+        ring.gForce[slot] = gForce;
+        ring.direction[slot] = direction;
+        ring.speed[slot] = speed;
+        samples++;
+
+        boolean open = gate.push(timestamp, yaw, gForce);
+        eventFrom = -1;
+        detector.push(timestamp, gForce);
+        if (open || eventFrom >= 0) {
+            if (clipStart < 0) {
+                clipStart = firstSampleAfter((eventFrom >= 0 ? eventFrom : timestamp)
+                        - preRollMillis);
+            }
+            lastActive = timestamp;
+        }
+        if (clipStart >= 0 && (timestamp - lastActive > postRollMillis
+                || samples - clipStart >= capacity)) {
+            emit();
+        }
+    }
+
+    /** Hands over a clip that is still open, e.g. when the ride ends. */
+    public void flush() {
+        if (clipStart >= 0) {
+            emit();
+        }
+    }
+
+    /** Flushes, then stops the writer once the queued clips are written. */
+    public void close() {
+        flush();
+        writer.shutdown();
+    }
+
+    public long getClipCount() {
+        return written.get();
+    }
+
+    /** Clips lost because the writer was still busy with earlier ones. */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    // A pooled clip buffer, queued on the writer as its own task
+    private class PendingClip implements Runnable {
+        final TrickDataParser.Columns clip = new TrickDataParser.Columns();
+
+        PendingClip() {
+            clip.ensureCapacity(capacity);
+        }
+
+        @Override
+        public void run() {
+            try {
+                save(clip);
+            } catch (IOException e) {
+                Log.e(TAG, "Could not save clip", e);
+            } finally {
+                free.add(this);
+            }
+        }
+    }
+
+    @Override
+    public void onTakeoff(long timestamp) {
+        // Only a completed jump counts; a dip in gForce alone is left to the gate.
+    }
+
+    @Override
+    public void onJump(long takeoffTimestamp, long landingTimestamp, float landingG) {
+        eventFrom = takeoffTimestamp;
+    }
+
+    @Override
+    public void onDrop(long timestamp, float impactG) {
+        eventFrom = timestamp;
+    }
+
+    // Oldest sample still in the ring at or after time
+    private long firstSampleAfter(long time) {
+        long oldest = Math.max(0, samples - capacity);
+        long first = samples - 1;
+        while (first > oldest && ring.timestamps[(int) ((first - 1) % capacity)] >= time) {
+            first--;
+        }
+        return first;
+    }
+
+    private void emit() {
+        long start = clipStart;
+        clipStart = -1;
+        PendingClip pending = free.poll();
+        if (pending == null) {
+            dropped.incrementAndGet();
+            return;
+        }
+        TrickDataParser.Columns clip = pending.clip;
+        int rows = (int) (samples - start);
+        for (int i = 0; i < rows; i++) {
+            int slot = (int) ((start + i) % capacity);
+            clip.timestamps[i] = ring.timestamps[slot];
+            clip.pitch[i] = ring.pitch[slot];
+            clip.roll[i] = ring.roll[slot];
+            clip.yaw[i] = ring.yaw[slot];
+            clip.gForce[i] = ring.gForce[slot];
+            clip.direction[i] = ring.direction[slot];
+            clip.speed[i] = ring.speed[slot];
+        }
+        clip.count = rows;
+        writer.execute(pending);
+    }
+
+    private void save(TrickDataParser.Columns clip) throws IOException {
+        String predicted = UNCLASSIFIED;
+        float confidence = 0f;
+        if (model != null) {
+            float[] window = new float[clip.count * TrickDataset.FEATURES];
+            for (int i = 0; i < clip.count; i++) {
+                int row = i * TrickDataset.FEATURES;
+                window[row] = clip.pitch[i];
+                window[row + 1] = clip.roll[i];
+                window[row + 2] = clip.yaw[i];
+                window[row + 3] = clip.gForce[i];
+            }
+            int best = model.classify(window, clip.count, probabilities);
+            predicted = labels[best];
+            confidence = probabilities[best];
+        }
+
+        StringBuilder text = new StringBuilder(clip.count * 48);
+        for (int i = 0; i < clip.count; i++) {
+            if (i > 0) {
+                text.append('\n');
+            }
+            text.append(String.format(Locale.US, "%.2f,%.2f,%.2f,%.2f,%.2f,%s,%.2f",
+                    clip.timestamps[i] / 1000.0, clip.pitch[i], clip.roll[i], clip.yaw[i],
+                    clip.gForce[i], directionToken(clip.direction[i]), clip.speed[i]));
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create " + directory);
+        }
+        // Written under another name first, so a *.txt loader never sees half a clip
+        File file = uniqueFile(directory, predicted);
+        File temporary = new File(directory, file.getName() + ".part");
+        try (OutputStream out = new FileOutputStream(temporary)) {
+            out.write(text.toString().getBytes(StandardCharsets.US_ASCII));
+        }
+        if (!temporary.renameTo(file)) {
+            throw new IOException("Cannot rename " + temporary + " to " + file);
+        }
+        written.incrementAndGet();
+        if (listener != null) {
+            listener.onClipSaved(file, predicted, confidence, clip.timestamps[0],
+                    clip.timestamps[clip.count - 1]);
+        }
+    }
+
+    private static String directionToken(byte direction) {
+        switch (direction) {
+            case TrickDataParser.DIRECTION_FORWARD:
+                return "Fwd";
+            case TrickDataParser.DIRECTION_REVERSE:
+                return "Rev";
+            default:
+                return "";
+        }
+    }
+
+    /**
+     * Moves a captured clip into a training data directory as label_<n>.txt, the name
+     * load_real_data and TrickDataset take the class from.
+     */
+    public static File confirm(File clip, String label, File dataDirectory) throws IOException {
+        if (label.isEmpty() || label.indexOf('_') >= 0) {
+            throw new IllegalArgumentException("Not a class name: " + label);
+        }
+        if (!dataDirectory.isDirectory() && !dataDirectory.mkdirs()) {
+            throw new IOException("Cannot create " + dataDirectory);
+        }
+        File target = uniqueFile(dataDirectory, label);
+        if (!clip.renameTo(target)) {
+            throw new IOException("Cannot move " + clip + " to " + target);
+        }
+        return target;
+    }
+
+    // label_1.txt, label_2.txt, ... as the recorder numbers repeated takes
+    private static File uniqueFile(File directory, String label) {
+        File candidate;
+        int suffix = 1;
+        do {
+            candidate = new File(directory, label + "_" + suffix + ".txt");
+            suffix++;
+        } while (candidate.exists());
+        return candidate;
+    }
+}
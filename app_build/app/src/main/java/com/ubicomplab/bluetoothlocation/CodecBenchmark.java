@@ -0,0 +1,191 @@
+package com.ubicomplab.bluetoothlocation;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Compression ratio and throughput of TimeSeriesCodec on the recorded rides.
+ *
+ * Runs on a workstation JVM:
+ *   java ... CodecBenchmark tensorflow/BikeTrickData [iterations]
+ *
+ * Each ride is one stream of timestamp, pitch, roll, yaw, gForce and speed rows, encoded
+ * with fixed-point channels (two decimals, as the files hold them) and with XORed floats.
+ * Sizes are compared with the text files, the same rows as plain binary (a long and five
+ * floats) and gzip of the text. Every decode is checked against the input. Each encoding
+ * also reports the bits per row every channel takes, which is where the XOR path shows how
+ * much of a float's 32 bits it actually drops.
+ */
+public class CodecBenchmark {
+    private static final int CHANNELS = TrickDataset.FEATURES + 1;
+    private static final float FIXED_SCALE = 100f;
+    private static final String[] CHANNEL_NAMES = {"pitch", "roll", "yaw", "gForce", "speed"};
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("usage: CodecBenchmark <data dir> [iterations]");
+            System.exit(1);
+        }
+        File[] files = new File(args[0]).listFiles((dir, name) -> name.endsWith(".txt"));
+        if (files == null || files.length == 0) {
+            throw new IOException("No .txt files found in " + args[0]);
+        }
+        Arrays.sort(files);
+        int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+
+        TrickDataset.Recording[] rides = new TrickDataset.Recording[files.length];
+        long textBytes = 0;
+        long gzipBytes = 0;
+        long rows = 0;
+        for (int i = 0; i < files.length; i++) {
+            rides[i] = TrickDataset.readRecording(files[i]);
+            byte[] text = Files.readAllBytes(files[i].toPath());
+            textBytes += text.length;
+            gzipBytes += gzip(text);
+            rows += rides[i].count;
+        }
+        long rawBytes = rows * (8 + 4 * CHANNELS);
+        System.out.println(String.format(Locale.US,
+                "%d rides, %d rows: text %d bytes, binary %d bytes, gzip(text) %d bytes (%.1fx)",
+                files.length, rows, textBytes, rawBytes, gzipBytes, (double) textBytes / gzipBytes));
+
+        float[] fixed = new float[CHANNELS];
+        Arrays.fill(fixed, FIXED_SCALE);
+        report("fixed-point", rides, fixed, textBytes, rawBytes, iterations);
+        report("xor float", rides, new float[CHANNELS], textBytes, rawBytes, iterations);
+    }
+
+    private static void report(String name, TrickDataset.Recording[] rides, float[] scales,
+                               long textBytes, long rawBytes, int iterations) throws IOException {
+        byte[][] streams = new byte[rides.length][];
+        long encodedBytes = 0;
+        long[] channelBits = new long[CHANNELS];
+        for (int i = 0; i < rides.length; i++) {
+            streams[i] = encode(rides[i], scales, channelBits);
+            encodedBytes += streams[i].length;
+            verify(rides[i], streams[i], scales);
+        }
+
+        // Warm up before timing so the JIT has compiled the bit loops.
+        timeEncode(rides, scales, iterations);
+        timeDecode(streams, iterations);
+        double encodeSeconds = timeEncode(rides, scales, iterations);
+        double decodeSeconds = timeDecode(streams, iterations);
+        double megabytes = rawBytes * (double) iterations / (1 << 20);
+        System.out.println(String.format(Locale.US,
+                "%-12s %7d bytes, %5.1fx vs text, %5.1fx vs binary, %.2f bits/row;"
+                        + " encode %.0f MB/s, decode %.0f MB/s (binary-equivalent)",
+                name, encodedBytes, (double) textBytes / encodedBytes,
+                (double) rawBytes / encodedBytes, encodedBytes * 8.0 / (rawBytes / (8 + 4 * CHANNELS)),
+                megabytes / encodeSeconds, megabytes / decodeSeconds));
+        long rows = rawBytes / (8 + 4 * CHANNELS);
+        StringBuilder perChannel = new StringBuilder(String.format(Locale.US, "%-12s", ""));
+        for (int c = 0; c < CHANNELS; c++) {
+            perChannel.append(String.format(Locale.US, " %s %.2f", CHANNEL_NAMES[c],
+                    channelBits[c] / (double) rows));
+        }
+        System.out.println(perChannel.append(" bits/row"));
+    }
+
+    private static byte[] encode(TrickDataset.Recording ride, float[] scales) throws IOException {
+        return encode(ride, scales, null);
+    }
+
+    // Adds each channel's payload bits to channelBits, if given
+    private static byte[] encode(TrickDataset.Recording ride, float[] scales, long[] channelBits)
+            throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        float[] row = new float[CHANNELS];
+        try (TimeSeriesCodec.Encoder encoder = new TimeSeriesCodec.Encoder(out, scales)) {
+            for (int i = 0; i < ride.count; i++) {
+                System.arraycopy(ride.rows, i * TrickDataset.FEATURES, row, 0, TrickDataset.FEATURES);
+                row[TrickDataset.FEATURES] = ride.speeds[i];
+                encoder.append(ride.timestamps[i], row);
+            }
+            encoder.flush();
+            for (int c = 0; channelBits != null && c < CHANNELS; c++) {
+                channelBits[c] += encoder.getChannelBits(c);
+            }
+        }
+        return out.toByteArray();
+    }
+
+    private static void verify(TrickDataset.Recording ride, byte[] stream, float[] scales)
+            throws IOException {
+        TimeSeriesCodec.Block block = new TimeSeriesCodec.Block();
+        int at = 0;
+        try (TimeSeriesCodec.Decoder decoder =
+                     new TimeSeriesCodec.Decoder(new ByteArrayInputStream(stream))) {
+            while (decoder.next(block)) {
+                for (int r = 0; r < block.count; r++, at++) {
+                    boolean same = block.timestamps[r] == ride.timestamps[at];
+                    for (int c = 0; c < CHANNELS; c++) {
+                        float expected = c < TrickDataset.FEATURES
+                                ? ride.rows[at * TrickDataset.FEATURES + c] : ride.speeds[at];
+                        float actual = block.values[r * CHANNELS + c];
+                        // Fixed-point is exact to the file's two decimals, XOR bit-exact
+                        same &= scales[c] != 0f ? Math.abs(actual - expected) <= 0.5f / scales[c]
+                                : Float.floatToRawIntBits(actual) == Float.floatToRawIntBits(expected);
+                    }
+                    if (!same) {
+                        throw new IllegalStateException("Round trip differs at row " + at);
+                    }
+                }
+            }
+        }
+        if (at != ride.count) {
+            throw new IllegalStateException("Decoded " + at + " of " + ride.count + " rows");
+        }
+    }
+
+    private static double timeEncode(TrickDataset.Recording[] rides, float[] scales, int iterations)
+            throws IOException {
+        long start = System.nanoTime();
+        long sink = 0;
+        for (int k = 0; k < iterations; k++) {
+            for (TrickDataset.Recording ride : rides) {
+                sink += encode(ride, scales).length;
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        if (sink == 42) {
+            System.out.print("");
+        }
+        return elapsed / 1e9;
+    }
+
+    private static double timeDecode(byte[][] streams, int iterations) throws IOException {
+        TimeSeriesCodec.Block block = new TimeSeriesCodec.Block();
+        long start = System.nanoTime();
+        long sink = 0;
+        for (int k = 0; k < iterations; k++) {
+            for (byte[] stream : streams) {
+                try (TimeSeriesCodec.Decoder decoder =
+                             new TimeSeriesCodec.Decoder(new ByteArrayInputStream(stream))) {
+                    while (decoder.next(block)) {
+                        sink += block.count;
+                    }
+                }
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        if (sink == 42) {
+            System.out.print("");
+        }
+        return elapsed / 1e9;
+    }
+
+    private static long gzip(byte[] data) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (GZIPOutputStream zip = new GZIPOutputStream(out)) {
+            zip.write(data);
+        }
+        return out.size();
+    }
+}
@@ -0,0 +1,123 @@
+package com.ubicomplab.bluetoothlocation;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * Parameter values shared with the native FMOD update loop through one direct ByteBuffer,
+ * so the control thread never crosses JNI per parameter.
+ *
+ * Layout, in native byte order:
+ *   int   sequence   even when stable, odd while a tick is being written
+ *   int   capacity
+ *   long  origin     System.nanoTime() of the oldest sample behind the tick; 0 = unknown
+ *   long  published  System.nanoTime() at publish()
+ *   float values[capacity], indexed by the handles AudioEngine resolves; NaN = unset
+ *
+ * A single writer brackets each tick's set() calls with the sequence (a seqlock); the
+ * native loop copies the values and retries if the sequence was odd or changed meanwhile,
+ * so it always applies a consistent tick. The layout is mirrored in musicbike_audio.cpp.
+ */
+public class ControlBlock {
+    static final int SEQUENCE_OFFSET = 0;
+    static final int CAPACITY_OFFSET = 4;
+    static final int ORIGIN_OFFSET = 8;
+    static final int PUBLISHED_OFFSET = 16;
+    static final int VALUES_OFFSET = 24;
+
+    private final ByteBuffer buffer;
+    private final int capacity;
+    private int sequence;
+    private boolean writing;
+    private long origin;
+    private volatile int fence;
+
+    public ControlBlock(int capacity) {
+        this.capacity = capacity;
+        buffer = ByteBuffer.allocateDirect(VALUES_OFFSET + capacity * 4)
+                .order(ByteOrder.nativeOrder());
+        buffer.putInt(CAPACITY_OFFSET, capacity);
+        for (int i = 0; i < capacity; i++) {
+            buffer.putFloat(VALUES_OFFSET + i * 4, Float.NaN);
+        }
+        fence();
+    }
+
+    public ByteBuffer getBuffer() {
+        return buffer;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /** Writes one value; the reader sees it once publish() is called. Single writer only. */
+    public void set(int index, float value) {
+        if (index < 0 || index >= capacity) {
+            return;
+        }
+        if (!writing) {
+            writing = true;
+            buffer.putInt(SEQUENCE_OFFSET, ++sequence);
+            fence();
+        }
+        buffer.putFloat(VALUES_OFFSET + index * 4, value);
+    }
+
+    /** Stamps the current tick with the time its oldest sample was taken, for latency probes. */
+    public void setOrigin(long originNanos) {
+        origin = originNanos;
+    }
+
+    /**
+     * Ends the tick started by the first set() since the last publish. Returns false if
+     * nothing was set, so there is nothing new for the reader.
+     */
+    public boolean publish() {
+        if (!writing) {
+            origin = 0;
+            return false;
+        }
+        buffer.putLong(ORIGIN_OFFSET, origin);
+        buffer.putLong(PUBLISHED_OFFSET, System.nanoTime());
+        origin = 0;
+        fence();
+        buffer.putInt(SEQUENCE_OFFSET, ++sequence);
+        fence();
+        writing = false;
+        return true;
+    }
+
+    /**
+     * Reader side of the protocol, as the native loop runs it; returns the sequence of the
+     * copied snapshot, or -1 if the writer kept the block busy for all attempts.
+     */
+    int readSnapshot(float[] values, int attempts) {
+        for (int attempt = 0; attempt < attempts; attempt++) {
+            fence();
+            int before = buffer.getInt(SEQUENCE_OFFSET);
+            if ((before & 1) != 0) {
+                continue;
+            }
+            fence();
+            for (int i = 0; i < values.length; i++) {
+                values[i] = buffer.getFloat(VALUES_OFFSET + i * 4);
+            }
+            fence();
+            if (buffer.getInt(SEQUENCE_OFFSET) == before) {
+                return before;
+            }
+        }
+        Arrays.fill(values, Float.NaN);
+        return -1;
+    }
+
+    // A volatile store followed by a volatile load: ART emits this as stlr + ldar on arm64
+    // and a locked store on x86, which keeps the plain buffer accesses on either side in
+    // program order. Java 8 has no fences for ByteBuffer accesses.
+    private int fence() {
+        fence = 0;
+        return fence;
+    }
+}
@@ -0,0 +1,241 @@
+package com.ubicomplab.bluetoothlocation;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.TreeSet;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Turns a directory tree of BikeTrickData clips into training tensors that numpy memory-maps
+ * (np.load(path, mmap_mode='r')), parsing the files in parallel on a fork/join pool.
+ *
+ * Runs on a workstation JVM:
+ *   java ... DatasetBuilder <data dir> <output prefix> [timesteps] [stride]
+ *
+ * Every .txt file below the directory is parsed with TrickDataParser and labelled by its
+ * filename prefix, as load_real_data in training.py does (TrickDataset.trickName). With
+ * stride 0, the default, each file is one window padded with its last row or truncated to
+ * timesteps (150 by default), exactly as load_real_data; with a stride, windows of
+ * timesteps rows start every stride rows, and a clip shorter than a window is one padded
+ * window.
+ *
+ * Writes prefix_x.npy, float32 [windows, timesteps, FEATURES] (pitch, roll, yaw, gForce),
+ * prefix_y.npy, int32 class per window, and prefix_classes.txt, the class names in index
+ * order (sorted, as load_real_data maps them). Windows are in sorted file order.
+ */
+public class DatasetBuilder {
+    public static final int DEFAULT_TIMESTEPS = 150;
+    // Files per fork/join leaf; clips are small, so a leaf parses a few
+    private static final int FILES_PER_TASK = 4;
+
+    private static class Clip {
+        final File file;
+        float[] windows; // [window][timesteps * FEATURES]
+        int windowCount;
+
+        Clip(File file) {
+            this.file = file;
+        }
+    }
+
+    private static class ParseTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Clip[] clips;
+        private final int from;
+        private final int to;
+        private final int timesteps;
+        private final int stride;
+
+        ParseTask(Clip[] clips, int from, int to, int timesteps, int stride) {
+            this.clips = clips;
+            this.from = from;
+            this.to = to;
+            this.timesteps = timesteps;
+            this.stride = stride;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > FILES_PER_TASK) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new ParseTask(clips, from, middle, timesteps, stride),
+                        new ParseTask(clips, middle, to, timesteps, stride));
+                return;
+            }
+            TrickDataParser parser = new TrickDataParser();
+            TrickDataParser.Columns columns = new TrickDataParser.Columns();
+            for (int i = from; i < to; i++) {
+                try {
+                    columns.clear();
+                    parser.read(clips[i].file, TrickDataParser.DEFAULT_WINDOW_BYTES, null, columns);
+                } catch (IOException e) {
+                    throw new IllegalStateException("Cannot read " + clips[i].file, e);
+                }
+                window(clips[i], columns, timesteps, stride);
+            }
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("usage: DatasetBuilder <data dir> <output prefix> [timesteps] [stride]");
+            System.exit(1);
+        }
+        File directory = new File(args[0]);
+        String prefix = args[1];
+        int timesteps = args.length > 2 ? Integer.parseInt(args[2]) : DEFAULT_TIMESTEPS;
+        int stride = args.length > 3 ? Integer.parseInt(args[3]) : 0;
+        if (timesteps <= 0 || stride < 0) {
+            throw new IllegalArgumentException("Invalid windowing: " + timesteps
+                    + " timesteps, stride " + stride);
+        }
+
+        long start = System.nanoTime();
+        List<File> found = new ArrayList<>();
+        collect(directory, found);
+        if (found.isEmpty()) {
+            throw new IOException("No .txt files found under " + directory);
+        }
+        found.sort(null);
+        Clip[] clips = new Clip[found.size()];
+        TreeSet<String> names = new TreeSet<>();
+        for (int i = 0; i < clips.length; i++) {
+            clips[i] = new Clip(found.get(i));
+            names.add(TrickDataset.trickName(clips[i].file.getName()));
+        }
+        List<String> labels = new ArrayList<>(names);
+
+        ForkJoinPool.commonPool().invoke(new ParseTask(clips, 0, clips.length, timesteps, stride));
+        long parsed = System.nanoTime();
+
+        int windows = 0;
+        for (Clip clip : clips) {
+            windows += clip.windowCount;
+        }
+        int[] classes = new int[windows];
+        int at = 0;
+        for (Clip clip : clips) {
+            int label = labels.indexOf(TrickDataset.trickName(clip.file.getName()));
+            Arrays.fill(classes, at, at + clip.windowCount, label);
+            at += clip.windowCount;
+        }
+        writeFeatures(new File(prefix + "_x.npy"), clips, windows, timesteps);
+        writeClasses(new File(prefix + "_y.npy"), classes);
+        Files.write(new File(prefix + "_classes.txt").toPath(),
+                (String.join("\n", labels) + "\n").getBytes(StandardCharsets.UTF_8));
+        long written = System.nanoTime();
+
+        System.out.println(String.format(Locale.US,
+                "%d files -> %d windows of %d x %d, classes %s; parse %.0f ms on %d threads,"
+                        + " total %.0f ms",
+                clips.length, windows, timesteps, TrickDataset.FEATURES, String.join("/", labels),
+                (parsed - start) / 1e6, ForkJoinPool.commonPool().getParallelism(),
+                (written - start) / 1e6));
+    }
+
+    private static void collect(File directory, List<File> out) {
+        File[] entries = directory.listFiles();
+        if (entries == null) {
+            return;
+        }
+        for (File entry : entries) {
+            if (entry.isDirectory()) {
+                collect(entry, out);
+            } else if (entry.getName().endsWith(".txt")) {
+                out.add(entry);
+            }
+        }
+    }
+
+    // Cuts a parsed clip into windows as described above
+    static void window(Clip clip, TrickDataParser.Columns columns, int timesteps, int stride) {
+        int rows = columns.count;
+        int count = stride == 0 || rows <= timesteps ? 1 : (rows - timesteps) / stride + 1;
+        int size = timesteps * TrickDataset.FEATURES;
+        float[] windows = new float[count * size];
+        for (int w = 0; w < count; w++) {
+            int first = w * stride;
+            for (int t = 0; t < timesteps; t++) {
+                int at = w * size + t * TrickDataset.FEATURES;
+                if (rows == 0) {
+                    break; // zeros, as load_real_data pads an empty clip
+                }
+                int row = Math.min(first + t, rows - 1);
+                windows[at] = columns.pitch[row];
+                windows[at + 1] = columns.roll[row];
+                windows[at + 2] = columns.yaw[row];
+                windows[at + 3] = columns.gForce[row];
+            }
+        }
+        clip.windows = windows;
+        clip.windowCount = count;
+    }
+
+    private static void writeFeatures(File file, Clip[] clips, int windows, int timesteps)
+            throws IOException {
+        try (FileChannel channel = new FileOutputStream(file).getChannel()) {
+            writeNpyHeader(channel, "<f4", windows + ", " + timesteps + ", " + TrickDataset.FEATURES);
+            ByteBuffer buffer = ByteBuffer.allocate(1 << 20).order(ByteOrder.LITTLE_ENDIAN);
+            for (Clip clip : clips) {
+                int size = clip.windowCount * timesteps * TrickDataset.FEATURES;
+                for (int i = 0; i < size; i++) {
+                    if (!buffer.hasRemaining()) {
+                        drain(channel, buffer);
+                    }
+                    buffer.putFloat(clip.windows[i]);
+                }
+                clip.windows = null;
+            }
+            drain(channel, buffer);
+        }
+    }
+
+    private static void writeClasses(File file, int[] classes) throws IOException {
+        try (FileChannel channel = new FileOutputStream(file).getChannel()) {
+            writeNpyHeader(channel, "<i4", classes.length + ",");
+            ByteBuffer buffer = ByteBuffer.allocate(classes.length * 4).order(ByteOrder.LITTLE_ENDIAN);
+            buffer.asIntBuffer().put(classes);
+            buffer.position(buffer.capacity());
+            drain(channel, buffer);
+        }
+    }
+
+    // NPY format 1.0: magic, version, little-endian header length, then a dict literal
+    // padded with spaces so the data starts on a 64-byte boundary
+    private static void writeNpyHeader(FileChannel channel, String descr, String shape)
+            throws IOException {
+        StringBuilder header = new StringBuilder("{'descr': '" + descr
+                + "', 'fortran_order': False, 'shape': (" + shape + "), }");
+        int preamble = 10;
+        while ((preamble + header.length() + 1) % 64 != 0) {
+            header.append(' ');
+        }
+        header.append('\n');
+        ByteBuffer buffer = ByteBuffer.allocate(preamble + header.length()).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.put((byte) 0x93).put("NUMPY".getBytes(StandardCharsets.US_ASCII));
+        buffer.put((byte) 1).put((byte) 0);
+        buffer.putShort((short) header.length());
+        buffer.put(header.toString().getBytes(StandardCharsets.US_ASCII));
+        drain(channel, buffer);
+    }
+
+    private static void drain(FileChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+}
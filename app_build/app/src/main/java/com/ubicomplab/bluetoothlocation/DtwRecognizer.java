@@ -0,0 +1,567 @@
+package com.ubicomplab.bluetoothlocation;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.TreeSet;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Nearest-neighbour trick recognizer on dynamic time warping, a complement to the CNN+LSTM
+ * that works from a few dozen example clips.
+ *
+ * Templates and candidates are prepared the same way: yaw unwrapped so a turn through
+ * 0/360 stays continuous, every channel z-normalised over the clip (a flat channel becomes
+ * zeros), and the clip linearly resampled to length rows. Distance is DTW over all four
+ * channels together, squared Euclidean per row, within a Sakoe-Chiba band of band * length
+ * rows.
+ *
+ * Most templates never reach the full DTW. Each is checked with, in order of cost:
+ * LB_Kim (first and last rows, which every warping path matches), LB_Keogh of the
+ * candidate against the template's band envelope, LB_Keogh of the template against the
+ * candidate's envelope, and then DTW that abandons as soon as its cheapest partial path
+ * plus the LB_Keogh of the rows still ahead cannot beat the best so far (the UCR suite's
+ * cascade). The bounds give the exact nearest neighbour, not an approximation.
+ *
+ * The search runs on a fork/join pool, one task per class, split into chunks of templates.
+ * All of them prune against the best distance found in any class so far, so only the
+ * nearest template's distance is exact; pruning each class on its own best would give a
+ * distance per class but, on the recorded rides, about half the speedup. The candidate
+ * buffers, bounds and counters belong to the instance, so recognize() and addTemplate()
+ * are synchronized and run one at a time, whatever thread calls them.
+ *
+ * Runs on a workstation JVM as a benchmark:
+ *   java ... DtwRecognizer tensorflow/BikeTrickData [max library size] [passes]
+ */
+public class DtwRecognizer {
+    public static final int DEFAULT_LENGTH = 128;
+    public static final float DEFAULT_BAND = 0.1f;
+
+    private static final int CHANNELS = TrickDataset.FEATURES;
+    private static final int YAW = 2;
+    // Templates per fork/join leaf
+    private static final int TEMPLATES_PER_TASK = 32;
+
+    /** The outcome of one recognize(), with how the templates were dismissed. */
+    public static class Match {
+        public int trickClass = -1;
+        public float distance = Float.POSITIVE_INFINITY;
+        public long templates;
+        public long prunedByKim;
+        public long prunedByKeogh;
+        public long prunedByReverseKeogh;
+        public long abandoned;
+        public long fullDtw;
+    }
+
+    // The templates of one class, row-major [template][row][channel] with their envelopes
+    private static class TemplateClass {
+        float[] series = new float[0];
+        float[] upper = new float[0];
+        float[] lower = new float[0];
+        int count;
+    }
+
+    private final String[] labels;
+    private final int length;
+    private final int window;
+    private final ForkJoinPool pool;
+    private final TemplateClass[] classes;
+
+    // Candidate buffers, reused by every recognize()
+    private final float[] query;
+    private final float[] queryUpper;
+    private final float[] queryLower;
+    // Float bits of the best distance so far, overall and among each class's full DTWs
+    private final AtomicInteger best = new AtomicInteger();
+    private final AtomicInteger[] classBest;
+    private final AtomicLong[] counters = new AtomicLong[5];
+
+    public DtwRecognizer(String[] labels) {
+        this(labels, DEFAULT_LENGTH, DEFAULT_BAND, ForkJoinPool.commonPool());
+    }
+
+    public DtwRecognizer(String[] labels, int length, float band, ForkJoinPool pool) {
+        this.labels = labels;
+        this.length = length;
+        window = Math.max(0, Math.round(band * length));
+        this.pool = pool;
+        classes = new TemplateClass[labels.length];
+        classBest = new AtomicInteger[labels.length];
+        for (int i = 0; i < labels.length; i++) {
+            classes[i] = new TemplateClass();
+            classBest[i] = new AtomicInteger();
+        }
+        for (int i = 0; i < counters.length; i++) {
+            counters[i] = new AtomicLong();
+        }
+        query = new float[length * CHANNELS];
+        queryUpper = new float[length * CHANNELS];
+        queryLower = new float[length * CHANNELS];
+    }
+
+    /** A recognizer holding every clip in a BikeTrickData directory, labelled by file name. */
+    public static DtwRecognizer fromDirectory(File directory) throws IOException {
+        File[] files = clipFiles(directory);
+        List<String> labels = labels(files);
+        DtwRecognizer recognizer = new DtwRecognizer(labels.toArray(new String[0]));
+        for (File file : files) {
+            float[] rows = TrickDataset.readRows(file);
+            recognizer.addTemplate(rows, rows.length / CHANNELS,
+                    labels.indexOf(TrickDataset.trickName(file.getName())));
+        }
+        return recognizer;
+    }
+
+    private static File[] clipFiles(File directory) throws IOException {
+        File[] files = directory.listFiles((dir, name) -> name.endsWith(".txt"));
+        if (files == null || files.length == 0) {
+            throw new IOException("No .txt files found in " + directory);
+        }
+        Arrays.sort(files);
+        return files;
+    }
+
+    // Sorted class names, as TrickDataset and load_real_data number them
+    private static List<String> labels(File[] files) {
+        TreeSet<String> names = new TreeSet<>();
+        for (File file : files) {
+            names.add(TrickDataset.trickName(file.getName()));
+        }
+        return new ArrayList<>(names);
+    }
+
+    public String[] getLabels() {
+        return labels;
+    }
+
+    public synchronized int getTemplateCount() {
+        int count = 0;
+        for (TemplateClass templates : classes) {
+            count += templates.count;
+        }
+        return count;
+    }
+
+    /** Adds a clip of row-major pitch, roll, yaw, gForce rows as a template of trickClass. */
+    public synchronized void addTemplate(float[] rows, int rowCount, int trickClass) {
+        if (rowCount < 1) {
+            throw new IllegalArgumentException("Empty template");
+        }
+        TemplateClass templates = classes[trickClass];
+        int size = length * CHANNELS;
+        int needed = (templates.count + 1) * size;
+        if (templates.series.length < needed) {
+            int capacity = Math.max(needed, templates.series.length * 2);
+            templates.series = Arrays.copyOf(templates.series, capacity);
+            templates.upper = Arrays.copyOf(templates.upper, capacity);
+            templates.lower = Arrays.copyOf(templates.lower, capacity);
+        }
+        int offset = templates.count * size;
+        prepare(rows, rowCount, length, templates.series, offset);
+        envelope(templates.series, offset, length, window, templates.upper, templates.lower);
+        templates.count++;
+    }
+
+    /**
+     * Finds the template nearest to a candidate segment, rows as for addTemplate().
+     *
+     * @return the class of the nearest template, or -1 if there are no templates
+     */
+    public int recognize(float[] rows, int rowCount, Match match) {
+        return recognize(rows, rowCount, match, true);
+    }
+
+    /** As recognize(), with pruning off only to time and check the plain search against it. */
+    synchronized int recognize(float[] rows, int rowCount, Match match, boolean pruning) {
+        if (rowCount < 1) {
+            throw new IllegalArgumentException("Empty candidate");
+        }
+        prepare(rows, rowCount, length, query, 0);
+        envelope(query, 0, length, window, queryUpper, queryLower);
+        int infinity = Float.floatToIntBits(Float.POSITIVE_INFINITY);
+        best.set(infinity);
+        for (AtomicInteger bound : classBest) {
+            bound.set(infinity);
+        }
+        for (AtomicLong counter : counters) {
+            counter.set(0);
+        }
+
+        List<ClassSearch> tasks = new ArrayList<>();
+        for (int c = 0; c < classes.length; c++) {
+            if (classes[c].count > 0) {
+                tasks.add(new ClassSearch(c, 0, classes[c].count, pruning));
+            }
+        }
+        pool.invoke(new RecursiveAction() {
+            @Override
+            protected void compute() {
+                invokeAll(tasks);
+            }
+        });
+
+        match.trickClass = -1;
+        match.distance = Float.POSITIVE_INFINITY;
+        for (int c = 0; c < classes.length; c++) {
+            float distance = Float.intBitsToFloat(classBest[c].get());
+            if (distance < match.distance) {
+                match.distance = distance;
+                match.trickClass = c;
+            }
+        }
+        match.templates = getTemplateCount();
+        match.prunedByKim = counters[0].get();
+        match.prunedByKeogh = counters[1].get();
+        match.prunedByReverseKeogh = counters[2].get();
+        match.abandoned = counters[3].get();
+        match.fullDtw = counters[4].get();
+        return match.trickClass;
+    }
+
+    private class ClassSearch extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final int trickClass;
+        private final int from;
+        private final int to;
+        private final boolean pruning;
+
+        ClassSearch(int trickClass, int from, int to, boolean pruning) {
+            this.trickClass = trickClass;
+            this.from = from;
+            this.to = to;
+            this.pruning = pruning;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > TEMPLATES_PER_TASK) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new ClassSearch(trickClass, from, middle, pruning),
+                        new ClassSearch(trickClass, middle, to, pruning));
+                return;
+            }
+            TemplateClass templates = classes[trickClass];
+            int size = length * CHANNELS;
+            float[] contributions = new float[length];
+            float[] reverse = new float[length];
+            float[] remaining = new float[length + 1];
+            float[] previous = new float[length];
+            float[] current = new float[length];
+            long kim = 0;
+            long keogh = 0;
+            long reverseKeogh = 0;
+            long abandoned = 0;
+            long full = 0;
+            for (int t = from; t < to; t++) {
+                int offset = t * size;
+                float[] rowsOf = templates.series;
+                int rowsOffset = offset;
+                float[] columnsOf = query;
+                int columnsOffset = 0;
+                float bsf = Float.POSITIVE_INFINITY;
+                if (pruning) {
+                    bsf = Float.intBitsToFloat(best.get());
+                    if (lbKim(query, templates.series, offset, length) >= bsf) {
+                        kim++;
+                        continue;
+                    }
+                    float lb = lbKeogh(query, 0, templates.upper, templates.lower, offset,
+                            length, bsf, contributions);
+                    if (lb >= bsf) {
+                        keogh++;
+                        continue;
+                    }
+                    float lbReverse = lbKeogh(templates.series, offset, queryUpper, queryLower,
+                            0, length, bsf, reverse);
+                    if (lbReverse >= bsf) {
+                        reverseKeogh++;
+                        continue;
+                    }
+                    // The tighter bound also covers the columns DTW has not reached yet
+                    if (lbReverse > lb) {
+                        System.arraycopy(reverse, 0, contributions, 0, length);
+                        rowsOf = query;
+                        rowsOffset = 0;
+                        columnsOf = templates.series;
+                        columnsOffset = offset;
+                    }
+                } else {
+                    Arrays.fill(contributions, 0f);
+                }
+                remaining[length] = 0f;
+                for (int i = length - 1; i >= 0; i--) {
+                    remaining[i] = remaining[i + 1] + contributions[i];
+                }
+                float distance = dtw(columnsOf, columnsOffset, rowsOf, rowsOffset, length, window,
+                        bsf, remaining, previous, current);
+                if (distance >= bsf) {
+                    abandoned++;
+                    continue;
+                }
+                full++;
+                lower(best, distance);
+                lower(classBest[trickClass], distance);
+            }
+            counters[0].addAndGet(kim);
+            counters[1].addAndGet(keogh);
+            counters[2].addAndGet(reverseKeogh);
+            counters[3].addAndGet(abandoned);
+            counters[4].addAndGet(full);
+        }
+    }
+
+    // Non-negative floats order like their bit patterns, so a CAS on the bits keeps the min
+    private static void lower(AtomicInteger bound, float value) {
+        int bits = Float.floatToIntBits(value);
+        int seen;
+        while (bits < (seen = bound.get()) && !bound.compareAndSet(seen, bits)) {
+            // retry against the newer best
+        }
+    }
+
+    // Unwrap yaw, z-normalise each channel, resample to length rows into out at offset
+    static void prepare(float[] rows, int rowCount, int length, float[] out, int offset) {
+        double[] channel = new double[rowCount];
+        for (int c = 0; c < CHANNELS; c++) {
+            double sum = 0;
+            for (int r = 0; r < rowCount; r++) {
+                double value = rows[r * CHANNELS + c];
+                if (c == YAW && r > 0) {
+                    value = channel[r - 1]
+                            + TrickGate.wrapDegrees((float) (value - rows[(r - 1) * CHANNELS + c]));
+                }
+                channel[r] = value;
+                sum += value;
+            }
+            double mean = sum / rowCount;
+            double squares = 0;
+            for (int r = 0; r < rowCount; r++) {
+                squares += (channel[r] - mean) * (channel[r] - mean);
+            }
+            double deviation = Math.sqrt(squares / rowCount);
+            double scale = deviation > 1e-6 ? 1 / deviation : 0;
+            for (int t = 0; t < length; t++) {
+                double position = length == 1 ? 0 : (double) t * (rowCount - 1) / (length - 1);
+                int r = (int) position;
+                double fraction = position - r;
+                double value = r + 1 < rowCount
+                        ? channel[r] + (channel[r + 1] - channel[r]) * fraction : channel[r];
+                out[offset + t * CHANNELS + c] = (float) ((value - mean) * scale);
+            }
+        }
+    }
+
+    // Running max/min of each channel over +-window rows
+    static void envelope(float[] series, int offset, int length, int window,
+                         float[] upper, float[] lower) {
+        for (int t = 0; t < length; t++) {
+            int from = Math.max(0, t - window);
+            int to = Math.min(length - 1, t + window);
+            for (int c = 0; c < CHANNELS; c++) {
+                float max = Float.NEGATIVE_INFINITY;
+                float min = Float.POSITIVE_INFINITY;
+                for (int k = from; k <= to; k++) {
+                    float value = series[offset + k * CHANNELS + c];
+                    max = Math.max(max, value);
+                    min = Math.min(min, value);
+                }
+                upper[offset + t * CHANNELS + c] = max;
+                lower[offset + t * CHANNELS + c] = min;
+            }
+        }
+    }
+
+    static float lbKim(float[] a, float[] b, int bOffset, int length) {
+        int last = (length - 1) * CHANNELS;
+        return rowDistance(a, 0, b, bOffset) + rowDistance(a, last, b, bOffset + last);
+    }
+
+    // Distance from series to the envelope, per row into contributions; stops once past bsf
+    static float lbKeogh(float[] series, int offset, float[] upper, float[] lower,
+                         int envelopeOffset, int length, float bsf, float[] contributions) {
+        float sum = 0f;
+        for (int t = 0; t < length; t++) {
+            float row = 0f;
+            for (int c = 0; c < CHANNELS; c++) {
+                float value = series[offset + t * CHANNELS + c];
+                float high = upper[envelopeOffset + t * CHANNELS + c];
+                float low = lower[envelopeOffset + t * CHANNELS + c];
+                float d = value > high ? value - high : value < low ? low - value : 0f;
+                row += d * d;
+            }
+            contributions[t] = row;
+            sum += row;
+            if (sum >= bsf) {
+                return sum;
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * Banded DTW of a (columns) against b (rows). remaining[i] bounds the cost still due for
+     * the columns from i on; the search stops, returning at least bsf, once no path can
+     * finish below it.
+     */
+    static float dtw(float[] a, int aOffset, float[] b, int bOffset, int length, int window,
+                     float bsf, float[] remaining, float[] previous, float[] current) {
+        Arrays.fill(previous, Float.POSITIVE_INFINITY);
+        Arrays.fill(current, Float.POSITIVE_INFINITY);
+        for (int i = 0; i < length; i++) {
+            int from = Math.max(0, i - window);
+            int to = Math.min(length - 1, i + window);
+            // Only the cells just outside the band can hold values from an older row
+            if (from > 0) {
+                current[from - 1] = Float.POSITIVE_INFINITY;
+            }
+            float rowMin = Float.POSITIVE_INFINITY;
+            for (int j = from; j <= to; j++) {
+                float cost = rowDistance(a, aOffset + j * CHANNELS, b, bOffset + i * CHANNELS);
+                float before;
+                if (i == 0 && j == 0) {
+                    before = 0f;
+                } else {
+                    before = previous[j];
+                    if (j > 0) {
+                        before = Math.min(before, Math.min(previous[j - 1], current[j - 1]));
+                    }
+                }
+                current[j] = cost + before;
+                rowMin = Math.min(rowMin, current[j]);
+            }
+            if (to + 1 < length) {
+                current[to + 1] = Float.POSITIVE_INFINITY;
+            }
+            // Columns past to are still unmatched by any path through this row
+            if (rowMin + remaining[to + 1] >= bsf) {
+                return bsf;
+            }
+            float[] swap = previous;
+            previous = current;
+            current = swap;
+        }
+        return previous[length - 1];
+    }
+
+    private static float rowDistance(float[] a, int aOffset, float[] b, int bOffset) {
+        float sum = 0f;
+        for (int c = 0; c < CHANNELS; c++) {
+            float d = a[aOffset + c] - b[bOffset + c];
+            sum += d * d;
+        }
+        return sum;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("usage: DtwRecognizer <data dir> [max library size] [passes]");
+            System.exit(1);
+        }
+        File[] files = clipFiles(new File(args[0]));
+        int maxTemplates = args.length > 1 ? Integer.parseInt(args[1]) : 4096;
+        int passes = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+        List<String> names = labels(files);
+        String[] labels = names.toArray(new String[0]);
+        float[][] clips = new float[files.length][];
+        int[] classes = new int[files.length];
+        for (int i = 0; i < files.length; i++) {
+            clips[i] = TrickDataset.readRows(files[i]);
+            classes[i] = names.indexOf(TrickDataset.trickName(files[i].getName()));
+        }
+
+        // Leave-one-out over the recorded clips, checking the pruned search finds the same
+        Match match = new Match();
+        Match plainMatch = new Match();
+        int correct = 0;
+        for (int held = 0; held < clips.length; held++) {
+            DtwRecognizer recognizer = new DtwRecognizer(labels);
+            for (int i = 0; i < clips.length; i++) {
+                if (i != held) {
+                    recognizer.addTemplate(clips[i], clips[i].length / CHANNELS, classes[i]);
+                }
+            }
+            int rowCount = clips[held].length / CHANNELS;
+            correct += recognizer.recognize(clips[held], rowCount, match) == classes[held] ? 1 : 0;
+            recognizer.recognize(clips[held], rowCount, plainMatch, false);
+            if (match.distance != plainMatch.distance || match.trickClass != plainMatch.trickClass) {
+                throw new IllegalStateException("Pruned search differs on " + files[held].getName());
+            }
+        }
+        System.out.println(String.format(Locale.US,
+                "%d clips, classes %s: leave-one-out accuracy %.1f%%,"
+                        + " pruned and plain search agree",
+                clips.length, String.join("/", labels), 100.0 * correct / clips.length));
+
+        // Libraries grown with ImuAugmenter copies; candidates are differently seeded copies
+        float[][] queries = new float[clips.length][];
+        for (int i = 0; i < clips.length; i++) {
+            queries[i] = augmented(clips[i], 1, 7)[1];
+        }
+        System.out.println(String.format(Locale.US, "%9s %10s %12s %7s %7s %7s %7s %7s %10s %8s",
+                "templates", "queries/s", "matches/s", "kim", "keogh", "reverse", "abandon", "dtw",
+                "plain m/s", "speedup"));
+        for (int factor = 0; clips.length * (factor + 1) <= maxTemplates;
+             factor = factor == 0 ? 3 : 4 * factor + 3) {
+            DtwRecognizer recognizer = new DtwRecognizer(labels);
+            for (int i = 0; i < clips.length; i++) {
+                float[][] copies = augmented(clips[i], factor, 1);
+                for (float[] copy : copies) {
+                    recognizer.addTemplate(copy, copy.length / CHANNELS, classes[i]);
+                }
+            }
+            int templates = recognizer.getTemplateCount();
+
+            // Warm up before timing so the JIT has compiled the inner loops.
+            search(recognizer, queries, match, 1, true, null);
+            long[] pruned = new long[5];
+            double seconds = search(recognizer, queries, match, passes, true, pruned);
+            search(recognizer, queries, plainMatch, 1, false, null);
+            double plainSeconds = search(recognizer, queries, plainMatch, 1, false, null);
+
+            double comparisons = (double) templates * queries.length * passes;
+            double plainRate = (double) templates * queries.length / plainSeconds;
+            System.out.println(String.format(Locale.US,
+                    "%9d %10.0f %12.0f %6.1f%% %6.1f%% %6.1f%% %6.1f%% %6.1f%% %10.0f %7.1fx",
+                    templates, queries.length * passes / seconds, comparisons / seconds,
+                    100 * pruned[0] / comparisons, 100 * pruned[1] / comparisons,
+                    100 * pruned[2] / comparisons, 100 * pruned[3] / comparisons,
+                    100 * pruned[4] / comparisons, plainRate, comparisons / seconds / plainRate));
+        }
+    }
+
+    // A clip followed by copies ImuAugmenter copies of it
+    private static float[][] augmented(float[] clip, int copies, long seed) {
+        int rowCount = clip.length / CHANNELS;
+        float[][] out = ImuAugmenter.allocate(1, rowCount, copies);
+        new ImuAugmenter(seed, null).augment(new float[][]{clip}, new int[1], 1, rowCount, copies,
+                out, new int[out.length]);
+        return out;
+    }
+
+    // Seconds for passes over the queries, adding the dismissal counts to pruned
+    private static double search(DtwRecognizer recognizer, float[][] queries, Match match,
+                                 int passes, boolean pruning, long[] pruned) {
+        long start = System.nanoTime();
+        for (int k = 0; k < passes; k++) {
+            for (float[] query : queries) {
+                recognizer.recognize(query, query.length / CHANNELS, match, pruning);
+                if (pruned != null) {
+                    pruned[0] += match.prunedByKim;
+                    pruned[1] += match.prunedByKeogh;
+                    pruned[2] += match.prunedByReverseKeogh;
+                    pruned[3] += match.abandoned;
+                    pruned[4] += match.fullDtw;
+                }
+            }
+        }
+        return (System.nanoTime() - start) / 1e9;
+    }
+}
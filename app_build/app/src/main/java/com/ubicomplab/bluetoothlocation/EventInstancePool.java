@@ -0,0 +1,158 @@
+package com.ubicomplab.bluetoothlocation;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * One-shot trick sounds (jump, drop, 180 stingers) played from pre-created FMOD event
+ * instances. register() creates all instances of an event and loads its sample data up
+ * front; stopped instances go back to the pool from FMOD's STOPPED callback.
+ *
+ * trigger() is wait-free: it writes the request into a ring shared with the native update
+ * thread (no JNI call per field, no allocation, no lock) and wakes that thread, which
+ * starts an idle instance in its next update. If every instance is still playing, the one
+ * that has played longest is restarted and counted as a miss in PoolStats, along with the
+ * trigger-to-start latency.
+ *
+ * schedule() queues a one-shot to start at a given System.nanoTime(), e.g. a landing
+ * stinger ahead of a predicted impact; the update thread holds it and wakes for it, so it
+ * is not rounded to the update period. cancel() drops a scheduled one-shot, or fades it
+ * out if it has already started.
+ *
+ * Ring layout, in native byte order, mirrored in musicbike_audio.cpp:
+ *   int head       written here
+ *   int tail       written by the update thread
+ *   int capacity   a power of two
+ *   int reserved
+ *   capacity slots of { int event, int tag, long triggerNanos, long startNanos,
+ *                       float value0, value1 }
+ * A slot whose event is CANCEL cancels the trigger with its tag; a start time of 0 means
+ * at once.
+ *
+ * register() after AudioEngine.start(); restarting the engine drops the pools. trigger(),
+ * schedule() and cancel() must always be called from the same thread, e.g. the detector's.
+ */
+public class EventInstancePool {
+    public static final int MAX_INSTANCES = 64;
+    public static final int MAX_PARAMETERS = 2;
+    public static final int DEFAULT_RING_CAPACITY = 32;
+
+    static final int HEAD_OFFSET = 0;
+    static final int TAIL_OFFSET = 4;
+    static final int CAPACITY_OFFSET = 8;
+    static final int SLOTS_OFFSET = 16;
+    static final int SLOT_SIZE = 32;
+    private static final int SLOT_EVENT = 0;
+    private static final int SLOT_TAG = 4;
+    private static final int SLOT_TIME = 8;
+    private static final int SLOT_START = 16;
+    private static final int SLOT_VALUES = 24;
+    static final int CANCEL = -1;
+
+    private final AudioEngine engine;
+    private final ByteBuffer ring;
+    private final int mask;
+    private final boolean attached;
+    private int head;
+    private volatile long overflows;
+    private volatile int fence;
+
+    public EventInstancePool(AudioEngine engine) {
+        this(engine, DEFAULT_RING_CAPACITY);
+    }
+
+    /** The capacity is rounded up to a power of two. */
+    public EventInstancePool(AudioEngine engine, int ringCapacity) {
+        this.engine = engine;
+        int capacity = Integer.highestOneBit(Math.max(1, ringCapacity - 1)) << 1;
+        mask = capacity - 1;
+        ring = ByteBuffer.allocateDirect(SLOTS_OFFSET + capacity * SLOT_SIZE)
+                .order(ByteOrder.nativeOrder());
+        ring.putInt(CAPACITY_OFFSET, capacity);
+        fence();
+        attached = engine.attachTriggerRing(ring);
+    }
+
+    /**
+     * Creates the instances of a one-shot event. The parameter names (at most
+     * MAX_PARAMETERS, local to the event) receive trigger()'s values in order. Returns the
+     * event id for trigger(), or -1 if the event or a parameter does not exist.
+     */
+    public int register(String eventPath, int instances, String... parameterNames) {
+        if (!attached) {
+            return -1;
+        }
+        return engine.registerOneShot(eventPath, instances, parameterNames);
+    }
+
+    public boolean trigger(int eventId) {
+        return trigger(eventId, Float.NaN, Float.NaN);
+    }
+
+    public boolean trigger(int eventId, float value0) {
+        return trigger(eventId, value0, Float.NaN);
+    }
+
+    /**
+     * Queues a one-shot; NaN values leave that parameter as it is. Returns false, counting
+     * an overflow, if the ring is full or the pool is not attached.
+     */
+    public boolean trigger(int eventId, float value0, float value1) {
+        return enqueue(eventId, 0, value0, value1) >= 0;
+    }
+
+    /**
+     * Queues a one-shot to start at startNanos (System.nanoTime()); a time already passed
+     * starts it at once. Returns a tag for cancel(), or -1 as trigger() returns false.
+     */
+    public int schedule(int eventId, long startNanos, float value0, float value1) {
+        return enqueue(eventId, Math.max(1, startNanos), value0, value1);
+    }
+
+    /**
+     * Drops the one-shot scheduled with the tag, or stops it with a fade-out if it has
+     * started. Does nothing once its instance is idle again or was restarted by a later
+     * trigger. Returns false if the ring is full.
+     */
+    public boolean cancel(int tag) {
+        return enqueue(CANCEL, 0, Float.NaN, Float.NaN, tag) >= 0;
+    }
+
+    private int enqueue(int eventId, long startNanos, float value0, float value1) {
+        // The tag is the ring position, unique until the int wraps
+        return enqueue(eventId, startNanos, value0, value1, head & Integer.MAX_VALUE);
+    }
+
+    private int enqueue(int eventId, long startNanos, float value0, float value1, int tag) {
+        long now = System.nanoTime();
+        int tail = ring.getInt(TAIL_OFFSET);
+        if (!attached || head - tail > mask) {
+            overflows++;
+            return -1;
+        }
+        // Slot writes must not move above the tail read: the reader may still be in it
+        fence();
+        int slot = SLOTS_OFFSET + (head & mask) * SLOT_SIZE;
+        ring.putInt(slot + SLOT_EVENT, eventId);
+        ring.putInt(slot + SLOT_TAG, tag);
+        ring.putLong(slot + SLOT_TIME, now);
+        ring.putLong(slot + SLOT_START, startNanos);
+        ring.putFloat(slot + SLOT_VALUES, value0);
+        ring.putFloat(slot + SLOT_VALUES + 4, value1);
+        fence();
+        ring.putInt(HEAD_OFFSET, ++head);
+        engine.wake();
+        return tag;
+    }
+
+    /** Triggers, schedules and cancels dropped because the ring was full. */
+    public long getOverflowCount() {
+        return overflows;
+    }
+
+    // Same volatile store + load fence as ControlBlock.
+    private int fence() {
+        fence = 0;
+        return fence;
+    }
+}
@@ -0,0 +1,146 @@
+package com.ubicomplab.bluetoothlocation;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Replays recorded rides through the trick cascade and compares it with running the model
+ * on every sliding window.
+ *
+ *   java ... GateBenchmark tensorflow/BikeTrickData [weights.bin] [stride]
+ *
+ * Without weights only the gate is measured: how many trick clips it wakes on (gate
+ * recall) and which share of samples it keeps the model awake for. With weights, the
+ * naive baseline classifies a window every stride samples; a clip counts as recalled if
+ * any window or segment is classified as its own trick, and the recall loss is the share
+ * of clips the baseline recalls but the cascade misses.
+ */
+public class GateBenchmark {
+    private static final String NEGATIVE_LABEL = "NoJpOr180t10n";
+    private static final int GATE_WINDOW = 20;
+    private static final int PRE_ROLL = 40;
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("usage: GateBenchmark <data dir> [weights.bin] [stride]");
+            System.exit(1);
+        }
+        File[] files = new File(args[0]).listFiles((dir, name) -> name.endsWith(".txt"));
+        if (files == null || files.length == 0) {
+            throw new IOException("No .txt files found in " + args[0]);
+        }
+        Arrays.sort(files);
+        TrickModelWeights weights = null;
+        if (args.length > 1) {
+            try (InputStream in = new FileInputStream(args[1])) {
+                weights = TrickModelWeights.load(in);
+            }
+        }
+        int stride = args.length > 2 ? Integer.parseInt(args[2]) : 1;
+        String[] labels = TrickDataset.load(new File(args[0]), 1).labels;
+
+        int positives = 0;
+        int gateWoke = 0;
+        long positiveSamples = 0;
+        long positiveOpen = 0;
+        long negativeSamples = 0;
+        long negativeOpen = 0;
+        int naiveRecalled = 0;
+        int cascadeRecalled = 0;
+        int lost = 0;
+        long naiveInferences = 0;
+        long naiveNanos = 0;
+        long cascadeInferences = 0;
+        long cascadeNanos = 0;
+
+        TrickModel model = weights != null ? new TrickModel(weights) : null;
+        for (File file : files) {
+            String label = TrickDataset.trickName(file.getName());
+            int trickClass = Arrays.asList(labels).indexOf(label);
+            boolean positive = !NEGATIVE_LABEL.equals(label);
+            TrickDataset.Recording ride = TrickDataset.readRecording(file);
+
+            TrickGate gate = new TrickGate(GATE_WINDOW);
+            long open = 0;
+            for (int i = 0; i < ride.count; i++) {
+                int row = i * TrickDataset.FEATURES;
+                if (gate.push(ride.timestamps[i], ride.rows[row + 2], ride.rows[row + 3])) {
+                    open++;
+                }
+            }
+            if (positive) {
+                positives++;
+                gateWoke += open > 0 ? 1 : 0;
+                positiveSamples += ride.count;
+                positiveOpen += open;
+            } else {
+                negativeSamples += ride.count;
+                negativeOpen += open;
+            }
+            if (model == null) {
+                continue;
+            }
+
+            // Baseline: the model on every stride-th sliding window.
+            int timesteps = weights.timesteps;
+            float[] window = new float[timesteps * TrickDataset.FEATURES];
+            float[] probabilities = new float[weights.classes];
+            boolean naiveHit = false;
+            for (int end = 1; end <= ride.count; end += stride) {
+                int start = Math.max(0, end - timesteps);
+                System.arraycopy(ride.rows, start * TrickDataset.FEATURES, window, 0,
+                        (end - start) * TrickDataset.FEATURES);
+                long t0 = System.nanoTime();
+                int predicted = model.classify(window, end - start, probabilities);
+                naiveNanos += System.nanoTime() - t0;
+                naiveInferences++;
+                naiveHit |= predicted == trickClass;
+            }
+
+            final boolean[] cascadeHit = new boolean[1];
+            GatedTrickClassifier cascade = new GatedTrickClassifier(model,
+                    new TrickGate(GATE_WINDOW), PRE_ROLL,
+                    (predicted, p, startTimestamp, endTimestamp) ->
+                            cascadeHit[0] |= predicted == trickClass);
+            for (int i = 0; i < ride.count; i++) {
+                int row = i * TrickDataset.FEATURES;
+                cascade.push(ride.timestamps[i], ride.rows[row], ride.rows[row + 1],
+                        ride.rows[row + 2], ride.rows[row + 3]);
+            }
+            cascade.flush();
+            cascadeInferences += cascade.getInferenceCount();
+            cascadeNanos += cascade.getInferenceNanos();
+
+            if (positive) {
+                naiveRecalled += naiveHit ? 1 : 0;
+                cascadeRecalled += cascadeHit[0] ? 1 : 0;
+                lost += naiveHit && !cascadeHit[0] ? 1 : 0;
+            }
+        }
+
+        System.out.println(String.format(Locale.US, "%d rides, %d with tricks", files.length,
+                positives));
+        System.out.println(String.format(Locale.US, "gate recall        %5.1f%% (%d/%d)",
+                100.0 * gateWoke / positives, gateWoke, positives));
+        System.out.println(String.format(Locale.US, "gate open, tricks  %5.1f%% of samples",
+                100.0 * positiveOpen / positiveSamples));
+        System.out.println(String.format(Locale.US, "gate open, riding  %5.1f%% of samples",
+                100.0 * negativeOpen / Math.max(1, negativeSamples)));
+        if (model == null) {
+            return;
+        }
+        System.out.println(String.format(Locale.US,
+                "naive    recall %5.1f%%  %8d inferences  %9.1f ms",
+                100.0 * naiveRecalled / positives, naiveInferences, naiveNanos / 1e6));
+        System.out.println(String.format(Locale.US,
+                "cascade  recall %5.1f%%  %8d inferences  %9.1f ms",
+                100.0 * cascadeRecalled / positives, cascadeInferences, cascadeNanos / 1e6));
+        System.out.println(String.format(Locale.US,
+                "recall loss %.1f%% (%d clips), model CPU saved %.1f%%",
+                100.0 * lost / positives, lost, 100.0 * (1.0 - (double) cascadeNanos / naiveNanos)));
+    }
+}
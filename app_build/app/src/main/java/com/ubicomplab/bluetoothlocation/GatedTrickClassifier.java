@@ -0,0 +1,137 @@
+package com.ubicomplab.bluetoothlocation;
+
+/**
+ * Two-stage trick cascade: a TrickGate watches every sample, and the neural model only
+ * runs once per candidate segment the gate opens.
+ *
+ * A segment starts preRollSamples before the first sample the gate opens on and ends when
+ * the gate closes again, or when it reaches the model's window length. Its rows are
+ * classified as one window (padded with its last row when shorter). No allocation after
+ * construction; not thread-safe.
+ *
+ * The segment model is normally a TrickModel; any SegmentModel works, e.g. a DtwRecognizer
+ * before trained weights exist.
+ */
+public class GatedTrickClassifier {
+
+    public interface Listener {
+        void onSegmentClassified(int trickClass, float[] probabilities, long startTimestamp,
+                                 long endTimestamp);
+    }
+
+    /** Classifies one segment as TrickModel.classify() does. */
+    public interface SegmentModel {
+        int classify(float[] window, int rows, float[] probabilities);
+    }
+
+    private final SegmentModel model;
+    private final TrickGate gate;
+    private final int preRollSamples;
+    private final Listener listener;
+    private final int timesteps;
+
+    private final float[] history;
+    private final long[] historyTimestamps;
+    private final float[] window;
+    private final float[] probabilities;
+
+    private long samples;
+    private long segmentStart = -1;
+    private long inferences;
+    private long inferenceNanos;
+    private long gatedSamples;
+
+    public GatedTrickClassifier(TrickModel model, TrickGate gate, int preRollSamples,
+                                Listener listener) {
+        this(model::classify, model.getWeights().timesteps, model.getWeights().classes, gate,
+                preRollSamples, listener);
+    }
+
+    /** @param timesteps the longest segment, in samples */
+    public GatedTrickClassifier(SegmentModel model, int timesteps, int classes, TrickGate gate,
+                                int preRollSamples, Listener listener) {
+        this.model = model;
+        this.gate = gate;
+        this.preRollSamples = preRollSamples;
+        this.listener = listener;
+        this.timesteps = timesteps;
+        history = new float[timesteps * TrickDataset.FEATURES];
+        historyTimestamps = new long[timesteps];
+        window = new float[timesteps * TrickDataset.FEATURES];
+        probabilities = new float[classes];
+    }
+
+    public void push(long timestamp, float pitch, float roll, float yaw, float gForce) {
+        int slot = (int) (samples % timesteps);
+        int row = slot * TrickDataset.FEATURES;
+        history[row] = pitch;
+        history[row + 1] = roll;
+        history[row + 2] = yaw;
+        history[row + 3] = gForce;
+        historyTimestamps[slot] = timestamp;
+        samples++;
+
+        boolean open = gate.push(timestamp, yaw, gForce);
+        if (open) {
+            gatedSamples++;
+            if (segmentStart < 0) {
+                segmentStart = Math.max(samples - 1 - preRollSamples, samples - timesteps);
+                segmentStart = Math.max(segmentStart, 0);
+            }
+            if (samples - segmentStart >= timesteps) {
+                classifySegment();
+            }
+        } else if (segmentStart >= 0) {
+            classifySegment();
+        }
+    }
+
+    /** Classifies a segment that is still open, e.g. when the ride ends. */
+    public void flush() {
+        if (segmentStart >= 0) {
+            classifySegment();
+        }
+    }
+
+    private void classifySegment() {
+        int rows = (int) (samples - segmentStart);
+        for (int i = 0; i < rows; i++) {
+            int slot = (int) ((segmentStart + i) % timesteps);
+            System.arraycopy(history, slot * TrickDataset.FEATURES, window,
+                    i * TrickDataset.FEATURES, TrickDataset.FEATURES);
+        }
+        long startTimestamp = historyTimestamps[(int) (segmentStart % timesteps)];
+        long endTimestamp = historyTimestamps[(int) ((samples - 1) % timesteps)];
+        segmentStart = -1;
+
+        long start = System.nanoTime();
+        int trickClass = model.classify(window, rows, probabilities);
+        inferenceNanos += System.nanoTime() - start;
+        inferences++;
+        if (listener != null) {
+            listener.onSegmentClassified(trickClass, probabilities, startTimestamp, endTimestamp);
+        }
+    }
+
+    /** Whether the last push() left a segment open. */
+    public boolean isSegmentOpen() {
+        return segmentStart >= 0;
+    }
+
+    public long getSampleCount() {
+        return samples;
+    }
+
+    /** Samples the gate was open on. */
+    public long getGatedSampleCount() {
+        return gatedSamples;
+    }
+
+    public long getInferenceCount() {
+        return inferences;
+    }
+
+    public long getInferenceNanos() {
+        return inferenceNanos;
+    }
+}
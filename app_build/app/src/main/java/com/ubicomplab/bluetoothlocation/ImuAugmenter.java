@@ -0,0 +1,287 @@
+package com.ubicomplab.bluetoothlocation;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Java port of augment_imu_data in training.py: per augmented copy, Gaussian sensor noise,
+ * a gForce scale, a time shift padded with the edge row, rotation noise on pitch/roll/yaw
+ * and, 30% of the time, a short dropout bridged by linear interpolation.
+ *
+ * Output is laid out as in training.py: the originals first, then factor augmented copies
+ * of each original in order. Every copy draws from its own generator seeded from the seed
+ * and its output index, so the result is the same for a given seed whatever the pool's
+ * parallelism or scheduling. Work is split over a fork/join pool into preallocated
+ * windows; nothing is allocated per sample.
+ *
+ * Offline, use the common pool. On the phone, pass a small pool, or no pool to run on the
+ * calling thread, with a modest factor, and reuse the output arrays from allocate().
+ *
+ * Runs on a workstation JVM as a benchmark:
+ *   java ... ImuAugmenter tensorflow/BikeTrickData [timesteps] [factor] [iterations]
+ */
+public class ImuAugmenter {
+    public static final int DEFAULT_FACTOR = 8;
+
+    // The constants of augment_imu_data
+    private static final double NOISE_STD = 0.02;
+    private static final double SCALE_MIN = 0.9;
+    private static final double SCALE_MAX = 1.1;
+    private static final int MAX_SHIFT = 10;
+    private static final double ROTATION_STD = 1.0;
+    private static final double DROPOUT_CHANCE = 0.3;
+    private static final int MAX_DROPOUT = 5;
+    private static final int GFORCE = 3;
+
+    // Augmented copies per fork/join leaf
+    private static final int SAMPLES_PER_TASK = 16;
+
+    private final long seed;
+    private final ForkJoinPool pool;
+
+    public ImuAugmenter(long seed) {
+        this(seed, ForkJoinPool.commonPool());
+    }
+
+    /** @param pool the pool to split the work over, or null for the calling thread */
+    public ImuAugmenter(long seed, ForkJoinPool pool) {
+        this.seed = seed;
+        this.pool = pool;
+    }
+
+    /** Output arrays for count originals, each augmented factor times. */
+    public static float[][] allocate(int count, int timesteps, int factor) {
+        return new float[count * (factor + 1)][timesteps * TrickDataset.FEATURES];
+    }
+
+    /**
+     * Writes the first count windows and factor augmented copies of each into out (from
+     * allocate()) and their classes into outClasses.
+     */
+    public void augment(float[][] windows, int[] classes, int count, int timesteps, int factor,
+                        float[][] out, int[] outClasses) {
+        int total = count * (factor + 1);
+        if (out.length < total || outClasses.length < total) {
+            throw new IllegalArgumentException("Output holds " + Math.min(out.length, outClasses.length)
+                    + " windows, " + total + " needed");
+        }
+        int size = timesteps * TrickDataset.FEATURES;
+        for (int i = 0; i < count; i++) {
+            System.arraycopy(windows[i], 0, out[i], 0, size);
+            outClasses[i] = classes[i];
+        }
+        AugmentTask task = new AugmentTask(windows, classes, timesteps, factor, out, outClasses,
+                count, count, total);
+        if (pool != null) {
+            pool.invoke(task);
+        } else {
+            task.augmentRange();
+        }
+    }
+
+    private class AugmentTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final float[][] windows;
+        private final int[] classes;
+        private final int timesteps;
+        private final int factor;
+        private final float[][] out;
+        private final int[] outClasses;
+        private final int originals;
+        private final int from;
+        private final int to;
+
+        AugmentTask(float[][] windows, int[] classes, int timesteps, int factor,
+                    float[][] out, int[] outClasses, int originals, int from, int to) {
+            this.windows = windows;
+            this.classes = classes;
+            this.timesteps = timesteps;
+            this.factor = factor;
+            this.out = out;
+            this.outClasses = outClasses;
+            this.originals = originals;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > SAMPLES_PER_TASK) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new AugmentTask(windows, classes, timesteps, factor, out, outClasses,
+                                originals, from, middle),
+                        new AugmentTask(windows, classes, timesteps, factor, out, outClasses,
+                                originals, middle, to));
+                return;
+            }
+            augmentRange();
+        }
+
+        void augmentRange() {
+            float[] work = new float[timesteps * TrickDataset.FEATURES];
+            Gaussian random = new Gaussian();
+            for (int index = from; index < to; index++) {
+                int original = (index - originals) / factor;
+                random.reset(seed ^ index * 0xD1B54A32D192ED03L);
+                augmentOne(windows[original], timesteps, work, out[index], random);
+                outClasses[index] = classes[original];
+            }
+        }
+    }
+
+    // Random draws in the order augment_imu_data makes them
+    private static void augmentOne(float[] window, int timesteps, float[] work, float[] out,
+                                   Gaussian random) {
+        int features = TrickDataset.FEATURES;
+        int size = timesteps * features;
+
+        // 1. Sensor noise on every value
+        for (int i = 0; i < size; i++) {
+            work[i] = (float) (window[i] + NOISE_STD * random.next());
+        }
+
+        // 2. gForce scale
+        float scale = (float) (SCALE_MIN + (SCALE_MAX - SCALE_MIN) * random.uniform());
+        for (int t = 0; t < timesteps; t++) {
+            work[t * features + GFORCE] *= scale;
+        }
+
+        // 3. Time shift, padded with the first (right shift) or last (left shift) row
+        int maxShift = Math.min(MAX_SHIFT, timesteps - 1);
+        int shift = random.nextInt(-maxShift, maxShift + 1);
+        for (int t = 0; t < timesteps; t++) {
+            int source = Math.max(0, Math.min(timesteps - 1, t - shift));
+            System.arraycopy(work, source * features, out, t * features, features);
+        }
+
+        // 4. Rotation noise on pitch, roll and yaw
+        for (int t = 0; t < timesteps; t++) {
+            int row = t * features;
+            for (int f = 0; f < GFORCE; f++) {
+                out[row + f] = (float) (out[row + f] + ROTATION_STD * random.next());
+            }
+        }
+
+        // 5. Dropout: a few rows replaced by np.linspace from the row before to the row after
+        if (random.uniform() < DROPOUT_CHANCE && timesteps > MAX_DROPOUT) {
+            int start = random.nextInt(0, timesteps - MAX_DROPOUT);
+            int end = Math.min(start + random.nextInt(1, MAX_DROPOUT + 1), timesteps);
+            if (start > 0 && end < timesteps) {
+                int n = end - start;
+                for (int f = 0; f < features; f++) {
+                    float first = out[(start - 1) * features + f];
+                    float last = out[end * features + f];
+                    for (int k = 0; k < n; k++) {
+                        float step = n == 1 ? 0f : (last - first) * k / (n - 1);
+                        out[(start + k) * features + f] = first + step;
+                    }
+                }
+            }
+        }
+    }
+
+    // SplitMix64 (the generator behind SplittableRandom), reseeded in place for each copy,
+    // with normal deviates by the polar method and one spare kept
+    private static final class Gaussian {
+        private long state;
+        private double spare;
+        private boolean hasSpare;
+
+        void reset(long seed) {
+            state = seed;
+            hasSpare = false;
+        }
+
+        private long nextLong() {
+            long z = state += 0x9E3779B97F4A7C15L;
+            z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+            z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+            return z ^ (z >>> 31);
+        }
+
+        double uniform() {
+            return (nextLong() >>> 11) * 0x1.0p-53;
+        }
+
+        // Uniform in [from, to), like np.random.randint
+        int nextInt(int from, int to) {
+            return from + (int) (((nextLong() >>> 32) * (to - from)) >>> 32);
+        }
+
+        double next() {
+            if (hasSpare) {
+                hasSpare = false;
+                return spare;
+            }
+            double u;
+            double v;
+            double s;
+            do {
+                u = 2 * uniform() - 1;
+                v = 2 * uniform() - 1;
+                s = u * u + v * v;
+            } while (s >= 1 || s == 0);
+            double m = Math.sqrt(-2 * Math.log(s) / s);
+            spare = v * m;
+            hasSpare = true;
+            return u * m;
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("usage: ImuAugmenter <data dir> [timesteps] [factor] [iterations]");
+            System.exit(1);
+        }
+        int timesteps = args.length > 1 ? Integer.parseInt(args[1]) : 220;
+        int factor = args.length > 2 ? Integer.parseInt(args[2]) : DEFAULT_FACTOR;
+        int iterations = args.length > 3 ? Integer.parseInt(args[3]) : 20;
+        TrickDataset data = TrickDataset.load(new File(args[0]), timesteps);
+        int count = data.size();
+        float[][] out = allocate(count, timesteps, factor);
+        int[] outClasses = new int[out.length];
+
+        // Same seed, different parallelism: the output must not change
+        ForkJoinPool single = new ForkJoinPool(1);
+        float[][] reference = allocate(count, timesteps, factor);
+        new ImuAugmenter(42, single).augment(data.windows, data.classes, count, timesteps, factor,
+                reference, new int[reference.length]);
+        ImuAugmenter augmenter = new ImuAugmenter(42);
+        augmenter.augment(data.windows, data.classes, count, timesteps, factor, out, outClasses);
+        for (int i = 0; i < out.length; i++) {
+            if (!Arrays.equals(out[i], reference[i])) {
+                throw new IllegalStateException("Output depends on parallelism at window " + i);
+            }
+        }
+
+        // Warm up both pools before timing so the JIT has compiled the loops.
+        ImuAugmenter sequential = new ImuAugmenter(42, single);
+        time(sequential, data, count, timesteps, factor, out, outClasses, iterations);
+        time(augmenter, data, count, timesteps, factor, out, outClasses, iterations);
+        double sequentialSeconds = time(sequential, data, count, timesteps, factor, out, outClasses, iterations);
+        double parallelSeconds = time(augmenter, data, count, timesteps, factor, out, outClasses, iterations);
+        single.shutdown();
+
+        long samples = (long) count * factor * iterations;
+        System.out.println(String.format(Locale.US,
+                "%d clips x %d, %d timesteps: deterministic across pools", count, factor, timesteps));
+        System.out.println(String.format(Locale.US, "  1 thread   %10.0f samples/s", samples / sequentialSeconds));
+        System.out.println(String.format(Locale.US, "  %-2d threads %10.0f samples/s (%.1fx)",
+                ForkJoinPool.commonPool().getParallelism(), samples / parallelSeconds,
+                sequentialSeconds / parallelSeconds));
+    }
+
+    private static double time(ImuAugmenter augmenter, TrickDataset data, int count, int timesteps,
+                               int factor, float[][] out, int[] outClasses, int iterations) {
+        long start = System.nanoTime();
+        for (int k = 0; k < iterations; k++) {
+            augmenter.augment(data.windows, data.classes, count, timesteps, factor, out, outClasses);
+        }
+        return (System.nanoTime() - start) / 1e9;
+    }
+}
@@ -0,0 +1,225 @@
+package com.ubicomplab.bluetoothlocation;
+
+import java.util.Arrays;
+
+/**
+ * Adaptive playout buffer between the bursty BLE link and the fixed-rate control loop.
+ *
+ * Notifications arrive in bursts at each connection interval. push() keeps samples ordered
+ * by origin (the synced peripheral sample time, see PeripheralClock), so late and reordered
+ * packets slot into place. playout() returns the samples linearly interpolated at
+ * now - target delay, giving one smooth value per control tick instead of stair steps.
+ *
+ * The target delay is the JITTER_QUANTILE of the transit times (arrival - origin) of the
+ * last JITTER_WINDOW samples, plus the sample interval (interpolating needs the sample
+ * after the playout time) and one playout period, so it is as short as the link's current
+ * jitter allows. After the first playout it moves towards a new estimate by at
+ * most MAX_SLEW of elapsed time, so a change of delay never makes the output jump.
+ *
+ * Only continuous values belong here; discrete events (jumps, landings) must bypass it.
+ * push() and playout() may be called from different threads; nothing allocates.
+ */
+public class JitterBuffer {
+    public static final int DEFAULT_CAPACITY = 64;
+    static final int JITTER_WINDOW = 128;
+    static final double JITTER_QUANTILE = 0.95;
+    // Fraction of elapsed time by which the playout delay may change
+    static final double MAX_SLEW = 0.02;
+    private static final int REESTIMATE_EVERY = 16;
+    private static final double INTERVAL_ALPHA = 0.05;
+    // Never wait longer than this for a sample, whatever the link does
+    static final long MAX_DELAY_NANOS = 200_000_000L;
+
+    private final int channels;
+    private final int capacity;
+    private final long periodNanos;
+
+    // Samples in origin order, oldest first
+    private final long[] origins;
+    private final float[] values;
+    private int count;
+
+    private final long[] transits = new long[JITTER_WINDOW];
+    private final long[] sorted = new long[JITTER_WINDOW];
+    private int transitCount;
+    private int transitNext;
+    private int pushesSinceEstimate;
+    private long newestOrigin = Long.MIN_VALUE;
+    private double sampleInterval;
+
+    private long targetDelay;
+    private long estimatedDelay;
+    private long lastPlayoutNanos = Long.MIN_VALUE;
+    private long lastPlayedOrigin = Long.MIN_VALUE;
+
+    private long pushed;
+    private long reordered;
+    private long late;
+    private long underruns;
+
+    /** For a consumer running every periodNanos, e.g. MotionMusicMapper.getPeriodNanos(). */
+    public JitterBuffer(int channels, long periodNanos) {
+        this(channels, periodNanos, DEFAULT_CAPACITY);
+    }
+
+    public JitterBuffer(int channels, long periodNanos, int capacity) {
+        if (channels <= 0 || capacity < 2 || periodNanos <= 0) {
+            throw new IllegalArgumentException("Invalid jitter buffer shape: " + channels
+                    + " channels, capacity " + capacity + ", period " + periodNanos);
+        }
+        this.channels = channels;
+        this.capacity = capacity;
+        this.periodNanos = periodNanos;
+        origins = new long[capacity];
+        values = new float[capacity * channels];
+        targetDelay = periodNanos;
+        estimatedDelay = periodNanos;
+    }
+
+    public int getChannels() {
+        return channels;
+    }
+
+    /**
+     * Adds a sample taken at originNanos that arrived at arrivalNanos (both System.nanoTime()).
+     * Samples older than what was already played out are counted as late and dropped.
+     */
+    public synchronized void push(long originNanos, long arrivalNanos, float[] sample) {
+        pushed++;
+        if (newestOrigin != Long.MIN_VALUE && originNanos > newestOrigin) {
+            long gap = Math.min(originNanos - newestOrigin, MAX_DELAY_NANOS);
+            sampleInterval += (sampleInterval == 0 ? 1 : INTERVAL_ALPHA) * (gap - sampleInterval);
+        }
+        newestOrigin = Math.max(newestOrigin, originNanos);
+        recordTransit(arrivalNanos - originNanos);
+        if (originNanos <= lastPlayedOrigin) {
+            late++;
+            return;
+        }
+        if (count == capacity) {
+            // Full: the consumer is gone or far behind; the oldest sample goes
+            removeOldest(1);
+        }
+        int at = count;
+        while (at > 0 && origins[at - 1] > originNanos) {
+            at--;
+        }
+        if (at < count) {
+            reordered++;
+            System.arraycopy(origins, at, origins, at + 1, count - at);
+            System.arraycopy(values, at * channels, values, (at + 1) * channels,
+                    (count - at) * channels);
+        }
+        origins[at] = originNanos;
+        System.arraycopy(sample, 0, values, at * channels, channels);
+        count++;
+    }
+
+    /**
+     * Writes the samples interpolated at now - target delay into out and returns true, or
+     * false while the buffer is empty. Past the newest sample the newest values are held
+     * and an underrun is counted.
+     */
+    public synchronized boolean playout(long now, float[] out) {
+        if (count == 0) {
+            return false;
+        }
+        if (lastPlayoutNanos == Long.MIN_VALUE) {
+            targetDelay = estimatedDelay;
+        } else {
+            long step = (long) (Math.max(0, now - lastPlayoutNanos) * MAX_SLEW);
+            targetDelay += Math.max(-step, Math.min(step, estimatedDelay - targetDelay));
+        }
+        lastPlayoutNanos = now;
+        long at = now - targetDelay;
+
+        // Keep exactly one sample at or before the playout time
+        int firstAfter = 0;
+        while (firstAfter < count && origins[firstAfter] <= at) {
+            firstAfter++;
+        }
+        if (firstAfter > 1) {
+            removeOldest(firstAfter - 1);
+            firstAfter = 1;
+        }
+        if (firstAfter == 0) {
+            // Playout time is before every sample: hold the oldest until time catches up
+            System.arraycopy(values, 0, out, 0, channels);
+        } else if (firstAfter == count) {
+            underruns++;
+            System.arraycopy(values, 0, out, 0, channels);
+        } else {
+            float t = (float) (at - origins[0]) / (origins[1] - origins[0]);
+            for (int c = 0; c < channels; c++) {
+                float from = values[c];
+                out[c] = from + t * (values[channels + c] - from);
+            }
+        }
+        lastPlayedOrigin = at;
+        return true;
+    }
+
+    /** Origin time of the values returned by the last playout(). */
+    public synchronized long getLastPlayoutOrigin() {
+        return lastPlayoutNanos == Long.MIN_VALUE ? 0 : lastPlayoutNanos - targetDelay;
+    }
+
+    public synchronized long getTargetDelayNanos() {
+        return targetDelay;
+    }
+
+    public synchronized int size() {
+        return count;
+    }
+
+    public synchronized long getPushCount() {
+        return pushed;
+    }
+
+    /** Samples that arrived after a sample with a later origin. */
+    public synchronized long getReorderedCount() {
+        return reordered;
+    }
+
+    /** Samples that arrived after their time was already played out. */
+    public synchronized long getLateCount() {
+        return late;
+    }
+
+    /** Playouts that ran past the newest sample. */
+    public synchronized long getUnderrunCount() {
+        return underruns;
+    }
+
+    public synchronized void clear() {
+        count = 0;
+        transitCount = 0;
+        transitNext = 0;
+        newestOrigin = Long.MIN_VALUE;
+        sampleInterval = 0;
+        lastPlayoutNanos = Long.MIN_VALUE;
+        lastPlayedOrigin = Long.MIN_VALUE;
+        targetDelay = periodNanos;
+        estimatedDelay = periodNanos;
+    }
+
+    private void recordTransit(long transit) {
+        transits[transitNext] = transit;
+        transitNext = (transitNext + 1) % JITTER_WINDOW;
+        transitCount = Math.min(transitCount + 1, JITTER_WINDOW);
+        if (++pushesSinceEstimate >= REESTIMATE_EVERY || transitCount < REESTIMATE_EVERY) {
+            pushesSinceEstimate = 0;
+            System.arraycopy(transits, 0, sorted, 0, transitCount);
+            Arrays.sort(sorted, 0, transitCount);
+            long quantile = sorted[Math.min(transitCount - 1, (int) (transitCount * JITTER_QUANTILE))];
+            estimatedDelay = Math.min(MAX_DELAY_NANOS,
+                    Math.max(0, quantile) + (long) sampleInterval + periodNanos);
+        }
+    }
+
+    private void removeOldest(int n) {
+        System.arraycopy(origins, n, origins, 0, count - n);
+        System.arraycopy(values, n * channels, values, 0, (count - n) * channels);
+        count -= n;
+    }
+}
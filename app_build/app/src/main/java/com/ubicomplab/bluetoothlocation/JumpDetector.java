@@ -0,0 +1,146 @@
+package com.ubicomplab.bluetoothlocation;
+
+/**
+ * Phone-side port of the firmware's jump/landing/drop detection (processingTask in
+ * Bike_Sensor_w_Kalman_Filter.ino), run on the raw gForce stream.
+ *
+ * Differences from the firmware:
+ *  - thresholds are set from the app instead of the potentiometers, clamped to the same
+ *    JUMP/LAND/DROP_THRESH_MIN..MAX ranges;
+ *  - takeoff and drop re-arm with hysteresis, so a gForce hovering around a threshold
+ *    does not fire repeatedly, and a landing spike is not reported as a drop as well;
+ *  - events carry the timestamps of the samples that caused them instead of arriving as
+ *    a one-byte notification on the next BLE cycle.
+ *
+ * push() does not allocate. Thresholds may be changed from any thread; push() must be
+ * called from a single thread.
+ */
+public class JumpDetector {
+    // Firmware tuning ranges and constants, in g and milliseconds.
+    public static final float JUMP_THRESH_MIN = 0.1f;
+    public static final float JUMP_THRESH_MAX = 1.5f;
+    public static final float LAND_THRESH_MIN = 1.0f;
+    public static final float LAND_THRESH_MAX = 4.0f;
+    public static final float DROP_THRESH_MIN = 1.5f;
+    public static final float DROP_THRESH_MAX = 5.0f;
+    public static final long JUMP_DURATION_MIN = 100;
+    public static final long JUMP_TIMEOUT = 5000;
+
+    public static final int STATE_GROUNDED = 0;
+    public static final int STATE_AIRBORNE = 1;
+
+    public interface Listener {
+        void onTakeoff(long timestamp);
+
+        void onJump(long takeoffTimestamp, long landingTimestamp, float landingG);
+
+        void onDrop(long timestamp, float impactG);
+    }
+
+    private final Listener listener;
+
+    private volatile float jumpThreshold = 0.5f;
+    private volatile float landingThreshold = 2.0f;
+    private volatile float dropThreshold = 2.5f;
+    private volatile float hysteresis = 0.1f;
+    private volatile long minAirtime = JUMP_DURATION_MIN;
+
+    private int state = STATE_GROUNDED;
+    private boolean takeoffArmed = true;
+    private boolean dropArmed = true;
+    private long takeoffTimestamp;
+
+    public JumpDetector(Listener listener) {
+        this.listener = listener;
+    }
+
+    public void setJumpThreshold(float g) {
+        jumpThreshold = clamp(g, JUMP_THRESH_MIN, JUMP_THRESH_MAX);
+    }
+
+    public void setLandingThreshold(float g) {
+        landingThreshold = clamp(g, LAND_THRESH_MIN, LAND_THRESH_MAX);
+    }
+
+    public void setDropThreshold(float g) {
+        dropThreshold = clamp(g, DROP_THRESH_MIN, DROP_THRESH_MAX);
+    }
+
+    /** Margin a signal has to move back past a threshold before it can fire again. */
+    public void setHysteresis(float g) {
+        hysteresis = Math.max(0f, g);
+    }
+
+    public void setMinAirtime(long millis) {
+        minAirtime = Math.max(0, millis);
+    }
+
+    public float getJumpThreshold() {
+        return jumpThreshold;
+    }
+
+    public float getLandingThreshold() {
+        return landingThreshold;
+    }
+
+    public float getDropThreshold() {
+        return dropThreshold;
+    }
+
+    public int getState() {
+        return state;
+    }
+
+    public void reset() {
+        state = STATE_GROUNDED;
+        takeoffArmed = true;
+        dropArmed = true;
+    }
+
+    public void push(long timestamp, float gForce) {
+        float jump = jumpThreshold;
+        float landing = landingThreshold;
+        float drop = dropThreshold;
+        float margin = hysteresis;
+
+        if (state == STATE_GROUNDED) {
+            if (!takeoffArmed && gForce >= jump + margin) {
+                takeoffArmed = true;
+            }
+            if (takeoffArmed && gForce < jump) {
+                state = STATE_AIRBORNE;
+                takeoffArmed = false;
+                takeoffTimestamp = timestamp;
+                listener.onTakeoff(timestamp);
+                return;
+            }
+        } else {
+            long airtime = timestamp - takeoffTimestamp;
+            if (gForce > landing) {
+                state = STATE_GROUNDED;
+                // The landing impact must settle before it can count as a drop.
+                dropArmed = false;
+                if (airtime > minAirtime) {
+                    listener.onJump(takeoffTimestamp, timestamp, gForce);
+                }
+                return;
+            }
+            if (airtime > JUMP_TIMEOUT) {
+                state = STATE_GROUNDED;
+            }
+            return;
+        }
+
+        if (!dropArmed && gForce < drop - margin) {
+            dropArmed = true;
+        }
+        if (dropArmed && gForce > drop) {
+            dropArmed = false;
+            listener.onDrop(timestamp, gForce);
+        }
+    }
+
+    private static float clamp(float value, float min, float max) {
+        return Math.max(min, Math.min(max, value));
+    }
+}
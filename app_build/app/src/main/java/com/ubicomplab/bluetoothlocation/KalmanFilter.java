@@ -0,0 +1,207 @@
+package com.ubicomplab.bluetoothlocation;
+
+/**
+ * Phone-side copy of the firmware's KalmanFilter (Bike_Sensor_w_Kalman_Filter.ino), with
+ * state [pitch, roll, pitch_rate, roll_rate, speed, speed_rate], so raw IMU and hall data
+ * can be re-filtered with tunable Q/R.
+ *
+ * F, Q, H and R only couple each value with its own rate, so P stays block-diagonal: three
+ * symmetric 2x2 blocks (pitch/pitch_rate, roll/roll_rate, speed/speed_rate), stored as
+ * [p00, p01, p11] each. The 6x6 and 3x3 loops of the firmware reduce to a few scalar
+ * operations per block, and predict()/update() do not allocate.
+ *
+ * Unlike the firmware, predict() propagates the covariance as F P F^T + Q; the firmware
+ * computes F P + Q, which leaves P non-symmetric and underestimates the angle variance.
+ * update() differs too. The firmware forms S as H P + R, without the H^T, so its speed
+ * term S[2][2] is R_speed + P[4][2], where it should be R_speed + P[4][4]. P[4][2] is
+ * the speed/pitch-rate covariance, which stays zero. It also divides K by S[j][j]
+ * rather than multiplying by S^-1, and uses that S again in P -= K S K^T. For pitch and
+ * roll this is the same thing, since S is diagonal. For speed the firmware's gain is
+ * P / R_speed, which trusts the hall speed more than it should. Here every block uses its
+ * own variance plus R, so the speed does not match the firmware's output sample for
+ * sample.
+ * Not thread-safe.
+ */
+public class KalmanFilter {
+    // Firmware defaults
+    public static final float DEFAULT_Q_ANGLE = 0.001f;
+    public static final float DEFAULT_Q_RATE = 0.003f;
+    public static final float DEFAULT_Q_SPEED = 0.01f;
+    public static final float DEFAULT_R_ANGLE = 0.03f;
+    public static final float DEFAULT_R_SPEED = 0.1f;
+
+    private static final int PITCH = 0;
+    private static final int ROLL = 3;
+    private static final int SPEED = 6;
+
+    private float qAngle;
+    private float qRate;
+    private float qSpeed;
+    private float rAngle;
+    private float rSpeed;
+
+    private float pitch;
+    private float roll;
+    private float pitchRate;
+    private float rollRate;
+    private float speed;
+    private float speedRate;
+
+    // Covariance blocks, [p00, p01, p11] for pitch, roll and speed
+    private final float[] p = new float[9];
+
+    public KalmanFilter() {
+        this(DEFAULT_Q_ANGLE, DEFAULT_Q_RATE, DEFAULT_Q_SPEED, DEFAULT_R_ANGLE, DEFAULT_R_SPEED);
+    }
+
+    public KalmanFilter(float qAngle, float qRate, float qSpeed, float rAngle, float rSpeed) {
+        setProcessNoise(qAngle, qRate, qSpeed);
+        setMeasurementNoise(rAngle, rSpeed);
+        reset();
+    }
+
+    public void setProcessNoise(float qAngle, float qRate, float qSpeed) {
+        this.qAngle = qAngle;
+        this.qRate = qRate;
+        this.qSpeed = qSpeed;
+    }
+
+    public void setMeasurementNoise(float rAngle, float rSpeed) {
+        this.rAngle = rAngle;
+        this.rSpeed = rSpeed;
+    }
+
+    /** Zero state with unit variance, as the firmware starts. */
+    public void reset() {
+        pitch = roll = pitchRate = rollRate = speed = speedRate = 0f;
+        for (int block = 0; block < 9; block += 3) {
+            p[block] = 1f;
+            p[block + 1] = 0f;
+            p[block + 2] = 1f;
+        }
+    }
+
+    /**
+     * Predict step with gyro rates (rad/s), acceleration (m/s^2) and time step dt (s). As in
+     * the firmware, the rates are replaced by the control inputs.
+     */
+    public void predict(float gyroPitchRate, float gyroRollRate, float acceleration, float dt) {
+        pitch += dt * pitchRate;
+        roll += dt * rollRate;
+        speed += dt * speedRate;
+        pitchRate = gyroPitchRate;
+        rollRate = gyroRollRate;
+        speedRate = acceleration;
+
+        predictBlock(PITCH, dt, qAngle, qRate);
+        predictBlock(ROLL, dt, qAngle, qRate);
+        predictBlock(SPEED, dt, qSpeed, qSpeed);
+    }
+
+    private void predictBlock(int block, float dt, float qValue, float qRate) {
+        float p00 = p[block];
+        float p01 = p[block + 1];
+        float p11 = p[block + 2];
+        p[block] = p00 + dt * (2f * p01 + dt * p11) + qValue;
+        p[block + 1] = p01 + dt * p11;
+        p[block + 2] = p11 + qRate;
+    }
+
+    /** Update step with measured angles (rad) and speed (m/s). */
+    public void update(float measuredPitch, float measuredRoll, float measuredSpeed) {
+        float[] p = this.p;
+
+        float y = measuredPitch - pitch;
+        float s = p[PITCH] + rAngle;
+        float k0 = p[PITCH] / s;
+        float k1 = p[PITCH + 1] / s;
+        pitch += k0 * y;
+        pitchRate += k1 * y;
+        updateBlock(PITCH, k0, k1, s);
+
+        y = measuredRoll - roll;
+        s = p[ROLL] + rAngle;
+        k0 = p[ROLL] / s;
+        k1 = p[ROLL + 1] / s;
+        roll += k0 * y;
+        rollRate += k1 * y;
+        updateBlock(ROLL, k0, k1, s);
+
+        y = measuredSpeed - speed;
+        s = p[SPEED] + rSpeed;
+        k0 = p[SPEED] / s;
+        k1 = p[SPEED + 1] / s;
+        speed += k0 * y;
+        speedRate += k1 * y;
+        updateBlock(SPEED, k0, k1, s);
+    }
+
+    // P -= K S K^T for one block
+    private void updateBlock(int block, float k0, float k1, float s) {
+        p[block] -= k0 * k0 * s;
+        p[block + 1] -= k0 * k1 * s;
+        p[block + 2] -= k1 * k1 * s;
+    }
+
+    /**
+     * One predict/update cycle from raw sensor values, converted the way processingTask does:
+     * accelerometer in g, gyro in deg/s, hall speed in km/h, dt in seconds.
+     */
+    public void step(float ax, float ay, float az, float gxDegS, float gyDegS, float speedKmh,
+                     float dt) {
+        float magnitude = (float) Math.sqrt(ax * ax + ay * ay + az * az);
+        predict((float) Math.toRadians(gxDegS), (float) Math.toRadians(gyDegS),
+                magnitude - 1.0f, dt);
+        float accelPitch = (float) Math.atan2(-ax, Math.sqrt(ay * ay + az * az));
+        float accelRoll = (float) Math.atan2(ay, az);
+        update(accelPitch, accelRoll, speedKmh / 3.6f);
+    }
+
+    public float getPitchRad() {
+        return pitch;
+    }
+
+    public float getRollRad() {
+        return roll;
+    }
+
+    public float getPitchRateRadS() {
+        return pitchRate;
+    }
+
+    public float getRollRateRadS() {
+        return rollRate;
+    }
+
+    public float getSpeedMS() {
+        return speed;
+    }
+
+    public float getSpeedRateMS2() {
+        return speedRate;
+    }
+
+    public float getPitchDeg() {
+        return (float) Math.toDegrees(pitch);
+    }
+
+    public float getRollDeg() {
+        return (float) Math.toDegrees(roll);
+    }
+
+    public float getSpeedKMH() {
+        return speed * 3.6f;
+    }
+
+    public float getPitchVariance() {
+        return p[PITCH];
+    }
+
+    public float getRollVariance() {
+        return p[ROLL];
+    }
+
+    public float getSpeedVariance() {
+        return p[SPEED];
+    }
+}
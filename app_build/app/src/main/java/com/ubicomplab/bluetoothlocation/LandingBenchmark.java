@@ -0,0 +1,184 @@
+package com.ubicomplab.bluetoothlocation;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Replays recorded rides through JumpDetector and LandingCue and measures how well the
+ * landings are predicted.
+ *
+ *   java ... LandingBenchmark tensorflow/BikeTrickData [max uncertainty ms] [reactive ms]
+ *
+ * Every airborne sample's prediction is scored against the landing the detector reports,
+ * grouped by how far ahead of the landing it was made, as histograms of predicted minus
+ * actual landing time (positive = late). The predictor learns as it goes, across the rides
+ * in file order, as it would across a session. The cue's outcome per landing is then
+ * compared with always playing the stinger on detection, which is late by the reactive
+ * latency (link plus output, see LatencyTracker).
+ */
+public class LandingBenchmark {
+    private static final long[] HORIZON_BOUNDS_MILLIS = {100, 200, 400};
+    private static final String[] HORIZON_NAMES = {"<100ms", "100-200", "200-400", ">=400ms"};
+    private static final int ERROR_BIN_MILLIS = 50;
+    private static final int ERROR_BINS = 20; // -500..+500 ms, plus one open bin each side
+    private static final long DEFAULT_REACTIVE_MILLIS = 100;
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("usage: LandingBenchmark <data dir> [max uncertainty ms] [reactive ms]");
+            System.exit(1);
+        }
+        File[] files = new File(args[0]).listFiles((dir, name) -> name.endsWith(".txt"));
+        if (files == null || files.length == 0) {
+            throw new IOException("No .txt files found in " + args[0]);
+        }
+        Arrays.sort(files);
+        long maxUncertainty = args.length > 1 ? Long.parseLong(args[1])
+                : LandingCue.DEFAULT_MAX_UNCERTAINTY_MILLIS;
+        long reactiveMillis = args.length > 2 ? Long.parseLong(args[2]) : DEFAULT_REACTIVE_MILLIS;
+
+        int horizons = HORIZON_BOUNDS_MILLIS.length + 1;
+        long[][] histograms = new long[horizons][ERROR_BINS + 2];
+        long[][] absErrors = new long[horizons][];
+        int[] absCounts = new int[horizons];
+        for (int h = 0; h < horizons; h++) {
+            absErrors[h] = new long[1024];
+        }
+
+        // Predictions of the current flight, scored when it lands
+        long[] flightTimes = new long[4096];
+        long[] flightPredictions = new long[4096];
+        int[] flightCount = new int[1];
+        long[] landings = new long[1];
+
+        LandingPredictor predictor = new LandingPredictor();
+        JumpDetector.Listener scorer = new JumpDetector.Listener() {
+            @Override
+            public void onTakeoff(long timestamp) {
+                flightCount[0] = 0;
+            }
+
+            @Override
+            public void onJump(long takeoffTimestamp, long landingTimestamp, float landingG) {
+                landings[0]++;
+                for (int i = 0; i < flightCount[0]; i++) {
+                    int h = horizonOf(landingTimestamp - flightTimes[i]);
+                    long error = flightPredictions[i] - landingTimestamp;
+                    int bin = (int) Math.floorDiv(error, ERROR_BIN_MILLIS) + ERROR_BINS / 2 + 1;
+                    histograms[h][Math.max(0, Math.min(ERROR_BINS + 1, bin))]++;
+                    if (absCounts[h] == absErrors[h].length) {
+                        absErrors[h] = Arrays.copyOf(absErrors[h], absCounts[h] * 2);
+                    }
+                    absErrors[h][absCounts[h]++] = Math.abs(error);
+                }
+                flightCount[0] = 0;
+            }
+
+            @Override
+            public void onDrop(long timestamp, float impactG) {
+            }
+        };
+        LandingCue cue = new LandingCue(predictor, null, 0, scorer);
+        cue.setMaxUncertaintyMillis(maxUncertainty);
+        JumpDetector detector = new JumpDetector(cue);
+        predictor.setLandingThreshold(detector.getLandingThreshold());
+
+        long samples = 0;
+        for (File file : files) {
+            TrickDataset.Recording ride = TrickDataset.readRecording(file);
+            detector.reset();
+            for (int i = 0; i < ride.count; i++) {
+                int row = i * TrickDataset.FEATURES;
+                long timestamp = ride.timestamps[i];
+                detector.push(timestamp, ride.rows[row + 3]);
+                cue.push(timestamp, ride.rows[row], ride.rows[row + 1], ride.rows[row + 3]);
+                if (predictor.isAirborne() && flightCount[0] < flightTimes.length) {
+                    flightTimes[flightCount[0]] = timestamp;
+                    flightPredictions[flightCount[0]++] = predictor.getPrediction();
+                }
+                samples++;
+            }
+            // A flight cut off by the end of the clip is not scored
+            if (predictor.isAirborne()) {
+                predictor.cancel();
+                flightCount[0] = 0;
+            }
+        }
+
+        System.out.println(String.format(Locale.US, "%d rides, %d samples, %d landings",
+                files.length, samples, landings[0]));
+        System.out.println("prediction error (predicted - actual landing) by time to landing:");
+        StringBuilder header = new StringBuilder(String.format(Locale.US, "%14s", "error ms"));
+        for (String name : HORIZON_NAMES) {
+            header.append(String.format(Locale.US, " %8s", name));
+        }
+        System.out.println(header);
+        for (int bin = 0; bin < ERROR_BINS + 2; bin++) {
+            StringBuilder line = new StringBuilder(String.format(Locale.US, "%14s", binLabel(bin)));
+            for (int h = 0; h < horizons; h++) {
+                line.append(String.format(Locale.US, " %8d", histograms[h][bin]));
+            }
+            System.out.println(line);
+        }
+        for (int h = 0; h < horizons; h++) {
+            long[] sorted = Arrays.copyOf(absErrors[h], absCounts[h]);
+            Arrays.sort(sorted);
+            System.out.println(String.format(Locale.US, "%8s  |error| p50 %4d ms  p90 %4d ms  (%d predictions)",
+                    HORIZON_NAMES[h], quantile(sorted, 0.5), quantile(sorted, 0.9), sorted.length));
+        }
+        System.out.println(String.format(Locale.US, "cue errors now: %s",
+                cueErrors(predictor)));
+
+        long hits = cue.getHitCount();
+        long reactive = cue.getReactiveCount();
+        System.out.println(String.format(Locale.US,
+                "cue (uncertainty <= %d ms): %d predicted, mean |error| %.0f ms; %d cancelled; "
+                        + "%d played on detection",
+                maxUncertainty, hits, cue.getMeanHitErrorMillis(), cue.getCancelCount(), reactive));
+        double withCue = (hits * cue.getMeanHitErrorMillis() + reactive * reactiveMillis)
+                / Math.max(1, hits + reactive);
+        System.out.println(String.format(Locale.US,
+                "stinger offset from impact: %.0f ms with the cue, %d ms on detection only",
+                withCue, reactiveMillis));
+    }
+
+    private static int horizonOf(long millis) {
+        int h = 0;
+        while (h < HORIZON_BOUNDS_MILLIS.length && millis >= HORIZON_BOUNDS_MILLIS[h]) {
+            h++;
+        }
+        return h;
+    }
+
+    private static String binLabel(int bin) {
+        int half = ERROR_BINS / 2;
+        if (bin == 0) {
+            return "< " + (-half * ERROR_BIN_MILLIS);
+        }
+        if (bin == ERROR_BINS + 1) {
+            return ">= " + (half * ERROR_BIN_MILLIS);
+        }
+        int from = (bin - 1 - half) * ERROR_BIN_MILLIS;
+        return "[" + from + ", " + (from + ERROR_BIN_MILLIS) + ")";
+    }
+
+    private static long quantile(long[] sorted, double q) {
+        return sorted.length == 0 ? 0 : sorted[Math.min(sorted.length - 1, (int) (sorted.length * q))];
+    }
+
+    private static String cueErrors(LandingPredictor predictor) {
+        String[] names = {"airtime", "freefall", "attitude", "g-force"};
+        StringBuilder out = new StringBuilder();
+        for (int c = 0; c < LandingPredictor.CUE_COUNT; c++) {
+            out.append(String.format(Locale.US, "%s%s", c > 0 ? "; " : "", names[c]));
+            for (long bound : HORIZON_BOUNDS_MILLIS) {
+                out.append(String.format(Locale.US, " %.0f", predictor.getCueErrorMillis(c, bound - 1)));
+            }
+            out.append(String.format(Locale.US, " %.0f",
+                    predictor.getCueErrorMillis(c, Long.MAX_VALUE)));
+        }
+        return out.append(" ms RMS by horizon").toString();
+    }
+}
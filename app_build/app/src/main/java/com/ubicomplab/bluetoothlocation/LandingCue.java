@@ -0,0 +1,193 @@
+package com.ubicomplab.bluetoothlocation;
+
+/**
+ * Plays the landing stinger on the impact instead of a link delay plus an output buffer
+ * after it. Sits between a JumpDetector and its listener: while airborne, every sample
+ * updates a LandingPredictor, and once its uncertainty is within bounds the stinger is
+ * scheduled on an EventInstancePool to start the output latency ahead of the predicted
+ * landing. It is moved while the prediction moves and the start is still ahead.
+ *
+ * A wrong prediction is cancelled: if no landing is detected within the hit window after
+ * the predicted one, the stinger is stopped (faded out if it already started) and not
+ * scheduled again in that flight, so a bad flight costs at most one blip; a landing
+ * outside the window, or one that was never predicted, plays the stinger at once, as
+ * without prediction.
+ *
+ * Off by default. With DEFAULT_MAX_UNCERTAINTY_MILLIS (80 ms) nothing is ever scheduled
+ * on the recorded rides, whose median prediction error is 130-215 ms, so every landing
+ * plays reactively as it did before the cue. To turn it on for a rider, replay their rides
+ * with LandingBenchmark at a few bounds, pick the largest whose cancels stay acceptable,
+ * and pass it to setMaxUncertaintyMillis(); getMeanHitErrorMillis() then tracks how it
+ * does live.
+ *
+ * Timestamps must be milliseconds on the System.nanoTime() clock, e.g. the samples' origin
+ * nanos (see PeripheralClock) / 1_000_000, since the schedule converts them directly. Without
+ * a pool only the statistics are kept, as the benchmark does. Same thread as the detector.
+ */
+public class LandingCue implements JumpDetector.Listener {
+    public static final long DEFAULT_MAX_UNCERTAINTY_MILLIS = 80;
+    public static final long DEFAULT_HIT_WINDOW_MILLIS = 100;
+    // Smaller moves of the prediction are not worth a cancel and a new schedule
+    private static final long RESCHEDULE_MILLIS = 10;
+
+    private final LandingPredictor predictor;
+    private final EventInstancePool pool;
+    private final int eventId;
+    private final JumpDetector.Listener next;
+
+    private volatile long leadNanos;
+    private volatile long maxUncertaintyMillis = DEFAULT_MAX_UNCERTAINTY_MILLIS;
+    private volatile long hitWindowMillis = DEFAULT_HIT_WINDOW_MILLIS;
+
+    // The stinger currently scheduled, if any
+    private boolean armed;
+    private int tag = -1;
+    private long armedLanding;
+    private boolean mispredicted;
+
+    private long hits;
+    private long cancels;
+    private long reactive;
+    private long hitErrorSumMillis;
+    private long lastErrorMillis;
+
+    /**
+     * eventId is the stinger registered on the pool; pool may be null. next receives every
+     * detector event unchanged and may be null.
+     */
+    public LandingCue(LandingPredictor predictor, EventInstancePool pool, int eventId,
+                      JumpDetector.Listener next) {
+        this.predictor = predictor;
+        this.pool = pool;
+        this.eventId = eventId;
+        this.next = next;
+    }
+
+    /** How long before the impact the stinger must start: the output latency. */
+    public void setLeadNanos(long nanos) {
+        leadNanos = Math.max(0, nanos);
+    }
+
+    /** Predictions less certain than this do not schedule the stinger. */
+    public void setMaxUncertaintyMillis(long millis) {
+        maxUncertaintyMillis = Math.max(0, millis);
+    }
+
+    /** How far a landing may be from its prediction and still count as predicted. */
+    public void setHitWindowMillis(long millis) {
+        hitWindowMillis = Math.max(0, millis);
+    }
+
+    /** Feed every sample that also goes to the detector, after detector.push(). */
+    public void push(long timestamp, float pitch, float roll, float gForce) {
+        predictor.push(timestamp, pitch, roll, gForce);
+        if (armed && (!predictor.isAirborne() || timestamp > armedLanding + hitWindowMillis)) {
+            // The landing did not come: the detector timed out or the prediction was wrong
+            disarm();
+            cancels++;
+            mispredicted = true;
+        }
+        if (!predictor.isAirborne() || mispredicted) {
+            return;
+        }
+        long predicted = predictor.getPrediction();
+        float uncertainty = predictor.getUncertaintyMillis();
+        if (uncertainty > maxUncertaintyMillis
+                || predicted - predictor.getTakeoffTimestamp() <= JumpDetector.JUMP_DURATION_MIN) {
+            return;
+        }
+        if (!armed) {
+            arm(predicted);
+        } else if (Math.abs(predicted - armedLanding) >= RESCHEDULE_MILLIS
+                && timestamp * 1_000_000L < startNanos(armedLanding)) {
+            disarm();
+            arm(predicted);
+        }
+    }
+
+    @Override
+    public void onTakeoff(long timestamp) {
+        if (armed) {
+            disarm();
+            cancels++;
+        }
+        mispredicted = false;
+        predictor.onTakeoff(timestamp);
+        if (next != null) {
+            next.onTakeoff(timestamp);
+        }
+    }
+
+    @Override
+    public void onJump(long takeoffTimestamp, long landingTimestamp, float landingG) {
+        predictor.onLanding(takeoffTimestamp, landingTimestamp);
+        long error = armedLanding - landingTimestamp;
+        if (armed && Math.abs(error) <= hitWindowMillis) {
+            armed = false;
+            hits++;
+            hitErrorSumMillis += Math.abs(error);
+            lastErrorMillis = error;
+        } else {
+            if (armed) {
+                disarm();
+                cancels++;
+            }
+            reactive++;
+            if (pool != null) {
+                pool.trigger(eventId);
+            }
+        }
+        if (next != null) {
+            next.onJump(takeoffTimestamp, landingTimestamp, landingG);
+        }
+    }
+
+    @Override
+    public void onDrop(long timestamp, float impactG) {
+        if (next != null) {
+            next.onDrop(timestamp, impactG);
+        }
+    }
+
+    /** Landings whose stinger was scheduled within the hit window. */
+    public long getHitCount() {
+        return hits;
+    }
+
+    /** Scheduled stingers dropped or stopped because the prediction was wrong. */
+    public long getCancelCount() {
+        return cancels;
+    }
+
+    /** Landings whose stinger was played on detection, unpredicted or mispredicted. */
+    public long getReactiveCount() {
+        return reactive;
+    }
+
+    public float getMeanHitErrorMillis() {
+        return hits == 0 ? 0f : (float) hitErrorSumMillis / hits;
+    }
+
+    /** Predicted minus actual landing of the last hit: positive when the stinger was late. */
+    public long getLastErrorMillis() {
+        return lastErrorMillis;
+    }
+
+    private long startNanos(long landing) {
+        return landing * 1_000_000L - leadNanos;
+    }
+
+    private void arm(long landing) {
+        armed = true;
+        armedLanding = landing;
+        tag = pool != null ? pool.schedule(eventId, startNanos(landing), Float.NaN, Float.NaN) : -1;
+    }
+
+    private void disarm() {
+        armed = false;
+        if (pool != null && tag >= 0) {
+            pool.cancel(tag);
+        }
+        tag = -1;
+    }
+}
@@ -0,0 +1,380 @@
+package com.ubicomplab.bluetoothlocation;
+
+import java.util.Arrays;
+
+/**
+ * Short-horizon estimate of when an airborne bike will land, so the landing stinger can be
+ * scheduled ahead of the impact instead of after the BLE link and audio buffers have
+ * delivered it (see LandingCue).
+ *
+ * Four cues each predict the landing time, on the caller's timestamp clock:
+ *  - airtime: the median of the past airtimes that are longer than the current one, from a
+ *    decaying histogram of the jumps seen so far (seeded with a broad prior);
+ *  - freefall: past the apex gForce drops below FREEFALL_G (in the recorded rides it goes
+ *    negative for the last 60-370 ms of a flight); the same kind of histogram of how long
+ *    that descent lasted gives the landing from the time it started;
+ *  - attitude: pitch and roll return to their on-ground values for the landing, so once the
+ *    deviation from the ground attitude shrinks, its rate says when it reaches zero;
+ *  - g-force: the trend of gForce says when it crosses the landing threshold.
+ * The estimate is their average weighted by the inverse of each cue's mean squared error at
+ * the horizon it predicts (a cue can be good just before the impact and useless half a
+ * second out). The errors are re-measured on every landing, so a cue that does not work
+ * for this rider (or this sensor rate) fades out on its own. getUncertaintyMillis() is the
+ * standard deviation of the weighted estimate.
+ *
+ * Feed every sample through push(), with onTakeoff() and onLanding() from the JumpDetector
+ * that sees the same samples. Single-threaded; nothing allocates.
+ */
+public class LandingPredictor {
+    public static final int CUE_AIRTIME = 0;
+    public static final int CUE_FREEFALL = 1;
+    public static final int CUE_ATTITUDE = 2;
+    public static final int CUE_G_FORCE = 3;
+    public static final int CUE_COUNT = 4;
+
+    public static final float FREEFALL_G = 0f;
+
+    static final int DURATION_BIN_MILLIS = 25;
+    // Weight left to a duration histogram each time a jump is added
+    private static final float DURATION_DECAY = 0.9f;
+
+    private static final float GROUND_ALPHA = 0.05f;
+    private static final float RATE_ALPHA = 0.5f;
+    private static final long MAX_RATE_GAP_MILLIS = 250;
+    // Slower changes than these are noise, not a trend
+    private static final float MIN_ATTITUDE_RATE = 20f; // degrees per second
+    private static final float MIN_G_RATE = 1f;         // g per second
+
+    // Cue errors are kept per predicted horizon: up to each bound, then beyond the last
+    static final long[] HORIZON_BOUNDS_MILLIS = {100, 200, 400};
+    static final int HORIZONS = HORIZON_BOUNDS_MILLIS.length + 1;
+    // Starting RMS errors of the cues, and how fast landings update them
+    private static final float[] INITIAL_ERROR_MILLIS = {250f, 150f, 150f, 150f};
+    private static final float ERROR_ALPHA = 0.2f;
+    // Errors are clipped to this before squaring, so one bogus multi-second flight does not
+    // drown a cue's weight
+    private static final long MAX_SCORED_ERROR_MILLIS = 300;
+    // Predictions of a flight kept for scoring the cues when it lands
+    static final int HISTORY = 64;
+
+    /** Decaying histogram of durations, for the median of those longer than some time. */
+    private static class Durations {
+        private final float[] weights =
+                new float[(int) (JumpDetector.JUMP_TIMEOUT / DURATION_BIN_MILLIS)];
+        private final long priorMin;
+        private final long priorMax;
+
+        Durations(long priorMin, long priorMax) {
+            this.priorMin = priorMin;
+            this.priorMax = priorMax;
+        }
+
+        /** Four pseudo-observations spread log-uniformly over the prior range. */
+        void reset() {
+            Arrays.fill(weights, 0f);
+            int points = 32;
+            double logMin = Math.log(priorMin);
+            double logMax = Math.log(priorMax);
+            for (int i = 0; i < points; i++) {
+                double duration = Math.exp(logMin + (logMax - logMin) * (i + 0.5) / points);
+                weights[binOf((long) duration)] += 4f / points;
+            }
+        }
+
+        void add(long duration) {
+            for (int i = 0; i < weights.length; i++) {
+                weights[i] *= DURATION_DECAY;
+            }
+            weights[binOf(duration)] += 1f;
+        }
+
+        /** Median of the durations longer than elapsed; just past elapsed if there are none. */
+        long medianAbove(long elapsed) {
+            int first = binOf(elapsed);
+            float total = 0f;
+            for (int i = first; i < weights.length; i++) {
+                total += weights[i];
+            }
+            float cumulative = 0f;
+            for (int i = first; total > 0f && i < weights.length; i++) {
+                cumulative += weights[i];
+                if (cumulative >= total / 2f) {
+                    return Math.max(elapsed, (long) ((i + 0.5f) * DURATION_BIN_MILLIS));
+                }
+            }
+            return elapsed + DURATION_BIN_MILLIS;
+        }
+
+        private int binOf(long duration) {
+            return (int) Math.max(0, Math.min(weights.length - 1, duration / DURATION_BIN_MILLIS));
+        }
+    }
+
+    private final Durations airtimes = new Durations(150, 2000);
+    private final Durations descents = new Durations(50, 600);
+    // [cue][horizon]
+    private final float[] meanSquaredError = new float[CUE_COUNT * HORIZONS];
+
+    private volatile float landingThreshold = 2.0f;
+
+    private boolean airborne;
+    private long takeoffTimestamp;
+    private long freefallTimestamp;
+    private long lastTimestamp;
+
+    // Attitude while on the ground, and its deviation in the air
+    private float groundPitch;
+    private float groundRoll;
+    private boolean groundPrimed;
+    private float lastPitch;
+    private float lastRoll;
+    private float deviation;
+    private float deviationRate;
+    private long deviationTimestamp = Long.MIN_VALUE;
+    private float gForce;
+    private float gRate;
+    private long gTimestamp = Long.MIN_VALUE;
+
+    private final long[] cuePredictions = new long[CUE_COUNT];
+    private final boolean[] cueValid = new boolean[CUE_COUNT];
+    private long prediction = Long.MIN_VALUE;
+    private float uncertaintyMillis = Float.NaN;
+
+    private final long[] historyTimestamps = new long[HISTORY];
+    private final long[] historyPredictions = new long[HISTORY * CUE_COUNT];
+    private int historyCount;
+
+    private long landings;
+
+    public LandingPredictor() {
+        reset();
+    }
+
+    /** The JumpDetector's landing threshold, for the g-force cue. */
+    public void setLandingThreshold(float g) {
+        landingThreshold = g;
+    }
+
+    /** Forgets the learned durations and cue errors. */
+    public void reset() {
+        airtimes.reset();
+        descents.reset();
+        for (int c = 0; c < CUE_COUNT; c++) {
+            Arrays.fill(meanSquaredError, c * HORIZONS, (c + 1) * HORIZONS,
+                    INITIAL_ERROR_MILLIS[c] * INITIAL_ERROR_MILLIS[c]);
+        }
+        airborne = false;
+        groundPrimed = false;
+        clearPrediction();
+        landings = 0;
+    }
+
+    public void onTakeoff(long timestamp) {
+        airborne = true;
+        takeoffTimestamp = timestamp;
+        freefallTimestamp = Long.MIN_VALUE;
+        lastTimestamp = timestamp;
+        deviation = 0f;
+        deviationRate = 0f;
+        deviationTimestamp = Long.MIN_VALUE;
+        gRate = 0f;
+        gTimestamp = Long.MIN_VALUE;
+        historyCount = 0;
+        clearPrediction();
+        predict();
+    }
+
+    /** Ends the flight, learning its durations and scoring the cues' predictions of it. */
+    public void onLanding(long takeoffTimestamp, long landingTimestamp) {
+        if (!airborne) {
+            return;
+        }
+        airborne = false;
+        clearPrediction();
+        long airtime = landingTimestamp - takeoffTimestamp;
+        if (airtime <= 0 || airtime >= JumpDetector.JUMP_TIMEOUT) {
+            return;
+        }
+        airtimes.add(airtime);
+        if (freefallTimestamp != Long.MIN_VALUE) {
+            descents.add(landingTimestamp - freefallTimestamp);
+        }
+        for (int c = 0; c < CUE_COUNT; c++) {
+            for (int horizon = 0; horizon < HORIZONS; horizon++) {
+                double sum = 0;
+                int n = 0;
+                for (int h = 0; h < historyCount; h++) {
+                    long predicted = historyPredictions[h * CUE_COUNT + c];
+                    if (predicted != Long.MIN_VALUE
+                            && horizonOf(predicted - historyTimestamps[h]) == horizon) {
+                        double error = Math.min(MAX_SCORED_ERROR_MILLIS,
+                                Math.abs(predicted - landingTimestamp));
+                        sum += error * error;
+                        n++;
+                    }
+                }
+                if (n > 0) {
+                    int i = c * HORIZONS + horizon;
+                    meanSquaredError[i] += ERROR_ALPHA * (float) (sum / n - meanSquaredError[i]);
+                }
+            }
+        }
+        landings++;
+    }
+
+    /** Ends the flight without learning from it, e.g. after the detector timed out. */
+    public void cancel() {
+        airborne = false;
+        clearPrediction();
+    }
+
+    public void push(long timestamp, float pitch, float roll, float g) {
+        if (!airborne) {
+            if (!groundPrimed) {
+                groundPitch = pitch;
+                groundRoll = roll;
+                groundPrimed = true;
+            } else {
+                groundPitch += GROUND_ALPHA * (pitch - groundPitch);
+                groundRoll += GROUND_ALPHA * (roll - groundRoll);
+            }
+            lastPitch = pitch;
+            lastRoll = roll;
+            gForce = g;
+            return;
+        }
+        if (timestamp - takeoffTimestamp > JumpDetector.JUMP_TIMEOUT) {
+            cancel();
+            return;
+        }
+        lastTimestamp = Math.max(lastTimestamp, timestamp);
+        if (freefallTimestamp == Long.MIN_VALUE && g < FREEFALL_G) {
+            freefallTimestamp = timestamp;
+        }
+        // Fields update at their own pace, so rates are taken between changes only
+        if (pitch != lastPitch || roll != lastRoll) {
+            float newDeviation = (float) Math.hypot(pitch - groundPitch, roll - groundRoll);
+            long dt = deviationTimestamp == Long.MIN_VALUE ? 0 : timestamp - deviationTimestamp;
+            if (dt > 0 && dt <= MAX_RATE_GAP_MILLIS) {
+                float rate = (newDeviation - deviation) * 1000f / dt;
+                deviationRate += RATE_ALPHA * (rate - deviationRate);
+            } else {
+                deviationRate = 0f;
+            }
+            deviation = newDeviation;
+            deviationTimestamp = timestamp;
+            lastPitch = pitch;
+            lastRoll = roll;
+        }
+        if (g != gForce) {
+            long dt = gTimestamp == Long.MIN_VALUE ? 0 : timestamp - gTimestamp;
+            if (dt > 0 && dt <= MAX_RATE_GAP_MILLIS) {
+                float rate = (g - gForce) * 1000f / dt;
+                gRate += RATE_ALPHA * (rate - gRate);
+            } else {
+                gRate = 0f;
+            }
+            gForce = g;
+            gTimestamp = timestamp;
+        }
+        predict();
+    }
+
+    public boolean isAirborne() {
+        return airborne;
+    }
+
+    public long getTakeoffTimestamp() {
+        return takeoffTimestamp;
+    }
+
+    /** Predicted landing timestamp, or Long.MIN_VALUE when not airborne. */
+    public long getPrediction() {
+        return prediction;
+    }
+
+    /** Standard deviation of getPrediction() from the cues' measured errors. */
+    public float getUncertaintyMillis() {
+        return uncertaintyMillis;
+    }
+
+    /** Prediction of one cue, or Long.MIN_VALUE if it has none at the moment. */
+    public long getCuePrediction(int cue) {
+        return cueValid[cue] ? cuePredictions[cue] : Long.MIN_VALUE;
+    }
+
+    /** Measured RMS error of a cue's predictions that far ahead of their landing time. */
+    public float getCueErrorMillis(int cue, long horizonMillis) {
+        return (float) Math.sqrt(meanSquaredError[cue * HORIZONS + horizonOf(horizonMillis)]);
+    }
+
+    public long getLandingCount() {
+        return landings;
+    }
+
+    private void predict() {
+        long now = lastTimestamp;
+
+        cuePredictions[CUE_AIRTIME] = takeoffTimestamp
+                + airtimes.medianAbove(now - takeoffTimestamp);
+        cueValid[CUE_AIRTIME] = true;
+
+        cueValid[CUE_FREEFALL] = freefallTimestamp != Long.MIN_VALUE;
+        if (cueValid[CUE_FREEFALL]) {
+            cuePredictions[CUE_FREEFALL] = freefallTimestamp
+                    + descents.medianAbove(now - freefallTimestamp);
+        }
+
+        cueValid[CUE_ATTITUDE] = deviationTimestamp != Long.MIN_VALUE
+                && deviationRate < -MIN_ATTITUDE_RATE;
+        if (cueValid[CUE_ATTITUDE]) {
+            cuePredictions[CUE_ATTITUDE] = deviationTimestamp
+                    + (long) (deviation * 1000f / -deviationRate);
+        }
+
+        cueValid[CUE_G_FORCE] = gTimestamp != Long.MIN_VALUE && gRate > MIN_G_RATE
+                && gForce < landingThreshold;
+        if (cueValid[CUE_G_FORCE]) {
+            cuePredictions[CUE_G_FORCE] = gTimestamp
+                    + (long) ((landingThreshold - gForce) * 1000f / gRate);
+        }
+
+        double weightSum = 0;
+        double weighted = 0;
+        long latest = takeoffTimestamp + JumpDetector.JUMP_TIMEOUT;
+        for (int c = 0; c < CUE_COUNT; c++) {
+            if (!cueValid[c]) {
+                continue;
+            }
+            cuePredictions[c] = Math.max(now, Math.min(latest, cuePredictions[c]));
+            int horizon = horizonOf(cuePredictions[c] - now);
+            double weight = 1.0 / Math.max(1f, meanSquaredError[c * HORIZONS + horizon]);
+            weightSum += weight;
+            weighted += weight * (cuePredictions[c] - now);
+        }
+        prediction = now + Math.round(weighted / weightSum);
+        uncertaintyMillis = (float) Math.sqrt(1.0 / weightSum);
+
+        if (historyCount < HISTORY) {
+            historyTimestamps[historyCount] = now;
+            int base = historyCount++ * CUE_COUNT;
+            for (int c = 0; c < CUE_COUNT; c++) {
+                historyPredictions[base + c] = cueValid[c] ? cuePredictions[c] : Long.MIN_VALUE;
+            }
+        }
+    }
+
+    private void clearPrediction() {
+        prediction = Long.MIN_VALUE;
+        uncertaintyMillis = Float.NaN;
+        Arrays.fill(cueValid, false);
+    }
+
+    private static int horizonOf(long millis) {
+        int horizon = 0;
+        while (horizon < HORIZON_BOUNDS_MILLIS.length && millis >= HORIZON_BOUNDS_MILLIS[horizon]) {
+            horizon++;
+        }
+        return horizon;
+    }
+}
@@ -0,0 +1,93 @@
+package com.ubicomplab.bluetoothlocation;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free latency histogram with the power-of-two microsecond bins of SchedulerStats,
+ * safe to record into from any thread without allocating.
+ */
+public class LatencyHistogram {
+    // count, sum, max, bins: the layout of struct LatencyHistogram in musicbike_audio.cpp
+    static final int LENGTH = 3 + SchedulerStats.HISTOGRAM_BINS;
+
+    private final AtomicLongArray bins = new AtomicLongArray(SchedulerStats.HISTOGRAM_BINS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sumNanos = new AtomicLong();
+    private final AtomicLong maxNanos = new AtomicLong();
+
+    public void record(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        long us = nanos / 1000;
+        int bin = 0;
+        while (us > 0 && bin < SchedulerStats.HISTOGRAM_BINS - 1) {
+            us >>= 1;
+            bin++;
+        }
+        bins.incrementAndGet(bin);
+        count.incrementAndGet();
+        sumNanos.addAndGet(nanos);
+        long max = maxNanos.get();
+        while (nanos > max && !maxNanos.compareAndSet(max, nanos)) {
+            max = maxNanos.get();
+        }
+    }
+
+    /** Replaces the contents with a native histogram at the given offset of raw. */
+    void set(long[] raw, int offset) {
+        count.set(raw[offset]);
+        sumNanos.set(raw[offset + 1]);
+        maxNanos.set(raw[offset + 2]);
+        for (int bin = 0; bin < SchedulerStats.HISTOGRAM_BINS; bin++) {
+            bins.set(bin, raw[offset + 3 + bin]);
+        }
+    }
+
+    public void reset() {
+        for (int bin = 0; bin < SchedulerStats.HISTOGRAM_BINS; bin++) {
+            bins.set(bin, 0);
+        }
+        count.set(0);
+        sumNanos.set(0);
+        maxNanos.set(0);
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public double getMeanNanos() {
+        long n = count.get();
+        return n == 0 ? 0 : (double) sumNanos.get() / n;
+    }
+
+    public long getMaxNanos() {
+        return maxNanos.get();
+    }
+
+    public long[] getBins() {
+        long[] copy = new long[SchedulerStats.HISTOGRAM_BINS];
+        for (int bin = 0; bin < copy.length; bin++) {
+            copy[bin] = bins.get(bin);
+        }
+        return copy;
+    }
+
+    public long percentileMicros(double fraction) {
+        return SchedulerStats.percentileMicros(getBins(), fraction);
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "n=%d mean %.1f ms p50 <%.1f ms p99 <%.1f ms max %.1f ms",
+                getCount(), getMeanNanos() / 1e6, micros(percentileMicros(0.5)),
+                micros(percentileMicros(0.99)), getMaxNanos() / 1e6);
+    }
+
+    private static double micros(long us) {
+        return us == Long.MAX_VALUE ? Double.POSITIVE_INFINITY : us / 1000.0;
+    }
+}
@@ -0,0 +1,128 @@
+package com.ubicomplab.bluetoothlocation;
+
+import java.util.Locale;
+
+/**
+ * Motion-to-sound latency of one ride session, hop by hop. Every probe uses the
+ * System.nanoTime() clock; peripheral timestamps are brought onto it by the session's
+ * PeripheralClock.
+ *
+ * Stages, in pipeline order:
+ *  - link: peripheral sample to BLE arrival, above the fastest transit seen (see
+ *    PeripheralClock),
+ *  - decode: arrival to a decoded packet (BleService),
+ *  - fusion: the phone-side filters run on a decoded sample (RidePipeline's speed filter,
+ *    jump detector and landing cue),
+ *  - mapping: input reaching MotionMusicMapper to its ControlBlock publish,
+ *  - update: publish to the end of the FMOD update that applied it (native),
+ *  - output: the mixer's buffering until the DSP output (native),
+ *  - total: sample origin to DSP output, per control tick that carried an origin (native).
+ * The native stages are copied in from AudioEngine by refresh(), once RidePipeline has
+ * attached the engine; later sessions inherit it.
+ *
+ * One session is current at a time; startSession() replaces it, e.g. on each connect.
+ */
+public class LatencyTracker {
+    public static final int STAGE_LINK = 0;
+    public static final int STAGE_DECODE = 1;
+    public static final int STAGE_FUSION = 2;
+    public static final int STAGE_MAPPING = 3;
+    public static final int STAGE_UPDATE = 4;
+    public static final int STAGE_OUTPUT = 5;
+    public static final int STAGE_TOTAL = 6;
+    public static final int STAGE_COUNT = 7;
+
+    private static final String[] STAGE_NAMES = {
+            "link", "decode", "fusion", "mapping", "update", "output", "total"
+    };
+    // Native histograms in struct LatencyStats order
+    private static final int[] NATIVE_STAGES = {STAGE_UPDATE, STAGE_OUTPUT, STAGE_TOTAL};
+
+    private static volatile LatencyTracker session = new LatencyTracker();
+
+    private final PeripheralClock clock = new PeripheralClock();
+    private final LatencyHistogram[] stages = new LatencyHistogram[STAGE_COUNT];
+    private final long startNanos = System.nanoTime();
+    private volatile AudioEngine engine;
+
+    LatencyTracker() {
+        for (int i = 0; i < STAGE_COUNT; i++) {
+            stages[i] = new LatencyHistogram();
+        }
+    }
+
+    public static LatencyTracker getSession() {
+        return session;
+    }
+
+    /** Begins a new session with fresh histograms and clock model. */
+    public static LatencyTracker startSession() {
+        LatencyTracker next = new LatencyTracker();
+        AudioEngine engine = session.engine;
+        if (engine != null) {
+            next.attach(engine);
+        }
+        session = next;
+        return next;
+    }
+
+    /** Source of the native stages; their counters restart with the session. */
+    public void attach(AudioEngine engine) {
+        this.engine = engine;
+        engine.resetLatencyStats();
+    }
+
+    public PeripheralClock getClock() {
+        return clock;
+    }
+
+    /**
+     * Link probe for one BLE packet. Returns the packet's origin, the System.nanoTime() at
+     * which the peripheral sampled it, for the later stages.
+     */
+    public long onPacket(long peripheralMillis, long arrivalNanos) {
+        clock.observe(peripheralMillis, arrivalNanos);
+        long origin = clock.toLocalNanos(peripheralMillis);
+        stages[STAGE_LINK].record(arrivalNanos - origin);
+        return origin;
+    }
+
+    public void record(int stage, long nanos) {
+        stages[stage].record(nanos);
+    }
+
+    public LatencyHistogram getStage(int stage) {
+        return stages[stage];
+    }
+
+    public static String getStageName(int stage) {
+        return STAGE_NAMES[stage];
+    }
+
+    /** Copies the native stages from the attached engine. */
+    public void refresh() {
+        AudioEngine current = engine;
+        if (current == null) {
+            return;
+        }
+        long[] raw = new long[NATIVE_STAGES.length * LatencyHistogram.LENGTH];
+        current.getLatencyStats(raw);
+        for (int i = 0; i < NATIVE_STAGES.length; i++) {
+            stages[NATIVE_STAGES[i]].set(raw, i * LatencyHistogram.LENGTH);
+        }
+    }
+
+    /** One line per stage, for the debug panel and logs. */
+    public String summary() {
+        refresh();
+        StringBuilder text = new StringBuilder();
+        text.append("Session ").append((System.nanoTime() - startNanos) / 1_000_000_000L)
+                .append(" s, clock drift ")
+                .append(String.format(Locale.US, "%.1f", clock.getDriftPpm()))
+                .append(" ppm");
+        for (int i = 0; i < STAGE_COUNT; i++) {
+            text.append('\n').append(STAGE_NAMES[i]).append(": ").append(stages[i]);
+        }
+        return text.toString();
+    }
+}
@@ -24,9 +24,12 @@ import android.content.pm.PackageManager;
 import android.graphics.Color;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
 import android.text.Editable;
 import android.text.TextWatcher;
 import android.util.Log;
+import android.view.Choreographer;
 import android.view.View;
 import android.widget.Button;
 import android.widget.EditText;
@@ -46,6 +49,7 @@ import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.CancellationException;
 import java.util.Locale;
 
 public class MainActivity extends AppCompatActivity {
@@ -65,17 +69,27 @@ public class MainActivity extends AppCompatActivity {
     private String formattedDateTime;
     private TextView textView;
     private BroadcastReceiver updateReceiver;
+    private BroadcastReceiver clipSavedReceiver;
     private TextView locationIndicator;
+    private TextView latencyDebugTextView;
+    private final Handler latencyDebugHandler = new Handler(Looper.getMainLooper());
+    private static final long LATENCY_DEBUG_REFRESH_MS = 1000;
+    // Refreshes the latency debug panel while it is shown.
+    private final Runnable latencyDebugRefresh = new Runnable() {
+        @Override
+        public void run() {
+            latencyDebugTextView.setText(LatencyTracker.getSession().summary()
+                    + "\n" + audioStartup.summary());
+            latencyDebugHandler.postDelayed(this, LATENCY_DEBUG_REFRESH_MS);
+        }
+    };
     DateTimeFormatter formatter;
 
     private static final int MULTIPLE_PERMISSIONS_REQUEST_CODE = 123;
     private static final int BLE_PERMISSION_REQUEST_CODE = 1;
 
-    static {
-        System.loadLibrary("fmod");
-        System.loadLibrary("fmodstudio");
-    }
-
+    // FMOD comes up on its own thread; nothing on the main thread waits for it.
+    private AudioStartup audioStartup;
 
     // Disconnection dialog which is used to confirm whether user intends to disconnect.
     private void showDisconnectDialog() {
@@ -92,6 +106,28 @@ public class MainActivity extends AppCompatActivity {
                 .show();
     }
 
+    // Asks which trick a captured clip was; the answer goes to BleService, which moves it
+    // into the training data and learns from it. Dismissing it leaves the clip unconfirmed.
+    private void showConfirmClipDialog(String clip, String predicted, float confidence) {
+        if (clip == null || isFinishing()) {
+            return;
+        }
+        new AlertDialog.Builder(this)
+                .setTitle(String.format(Locale.US, "Trick captured: %s (%.0f%%)?",
+                        predicted, 100 * confidence))
+                .setItems(RidePipeline.LABELS, new DialogInterface.OnClickListener() {
+                    public void onClick(DialogInterface dialog, int which) {
+                        Intent confirm = new Intent("com.example.ACTION_CONFIRM_CLIP");
+                        confirm.setPackage(getPackageName());
+                        confirm.putExtra("clip", clip);
+                        confirm.putExtra("label", RidePipeline.LABELS[which]);
+                        sendBroadcast(confirm);
+                    }
+                })
+                .setNegativeButton("Skip", null)
+                .show();
+    }
+
     private void disconnectDevice() {
         // Stop the BLE service
         Intent serviceIntent = new Intent(this, BleService.class);
@@ -108,6 +144,7 @@ public class MainActivity extends AppCompatActivity {
         public long peripheralTimestamp;
         public long androidTimestamp;
         public int[] payload;
+        public long originNanos; // System.nanoTime() when the peripheral sampled it, see LatencyTracker
 
         public SensorReadingPacket(int sensorIndex, int packetIndex, int readIndex, long peripheralTimestamp, long androidTimestamp, int[] payload) {
             this.sensorIndex = sensorIndex;
@@ -220,9 +257,16 @@ public class MainActivity extends AppCompatActivity {
     @RequiresApi(api = Build.VERSION_CODES.TIRAMISU)
     @Override
     protected void onCreate(Bundle savedInstanceState) {
-        org.fmod.FMOD.init(this);
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_main);
+        audioStartup = AudioStartup.get(this);
+        audioStartup.start().whenComplete((engine, error) -> {
+            if (error != null && !(error instanceof CancellationException)) {
+                Log.e("AudioStartup", "Audio unavailable: " + error);
+            }
+        });
+        Choreographer.getInstance().postFrameCallback(
+                frameTimeNanos -> audioStartup.markFirstFrame());
         TextView lastPacketTextView = findViewById(R.id.lastPacketTextView);
         this_context = this;
         checkAndRequestPermissions();
@@ -293,6 +337,17 @@ public class MainActivity extends AppCompatActivity {
         connectionStatusText.setText(R.string.not_connected);
         deviceTypeButton = findViewById(R.id.deviceTypeButton);
         deviceTypeButton.setText(R.string.device_esp32);
+        latencyDebugTextView = findViewById(R.id.latencyDebugTextView);
+        connectionStatusText.setOnLongClickListener(v -> {
+            if (latencyDebugTextView.getVisibility() == View.VISIBLE) {
+                latencyDebugTextView.setVisibility(View.GONE);
+                latencyDebugHandler.removeCallbacks(latencyDebugRefresh);
+            } else {
+                latencyDebugTextView.setVisibility(View.VISIBLE);
+                latencyDebugRefresh.run();
+            }
+            return true;
+        });
         bleConnected = false;
         bleScanButton.setBackgroundColor(Color.GREEN);
         // Set the click listener
@@ -390,6 +445,18 @@ public class MainActivity extends AppCompatActivity {
         updateUIFilter.addAction("com.example.ACTION_RECONNECTING");
         registerReceiver(updateReceiver, updateUIFilter, RECEIVER_EXPORTED);
 
+        // Not exported: the clip path names a file that confirming it moves
+        clipSavedReceiver = new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                showConfirmClipDialog(intent.getStringExtra("clip"),
+                        intent.getStringExtra("predicted"),
+                        intent.getFloatExtra("confidence", 0f));
+            }
+        };
+        registerReceiver(clipSavedReceiver, new IntentFilter("com.example.ACTION_CLIP_SAVED"),
+                RECEIVER_NOT_EXPORTED);
+
     }
 
     private ScanCallback mScanCallback = new ScanCallback() {
@@ -480,9 +547,14 @@ public class MainActivity extends AppCompatActivity {
     protected void onDestroy() {
         super.onDestroy();
         unregisterReceiver(updateReceiver);
+        unregisterReceiver(clipSavedReceiver);
+        latencyDebugHandler.removeCallbacks(latencyDebugRefresh);
         // Stop the BLE service
         Intent serviceIntent = new Intent(this, BleService.class);
         stopService(serviceIntent);
-        org.fmod.FMOD.close();
+        // A rotation recreates the activity; the engine carries over to the new one
+        if (!isChangingConfigurations()) {
+            audioStartup.shutdown();
+        }
     }
 }
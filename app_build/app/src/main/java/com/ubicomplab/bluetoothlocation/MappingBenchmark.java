@@ -0,0 +1,88 @@
+package com.ubicomplab.bluetoothlocation;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Replays recorded rides through JumpDetector and MotionMusicMapper into a
+ * RecordingParameterSink, at the pace they were recorded (divided by speedup), with the
+ * mapper on its own control thread as on the phone.
+ *
+ *   java ... MappingBenchmark tensorflow/BikeTrickData [rate Hz] [clips] [speedup]
+ *
+ * Reports sample-to-parameter latency against the 20 ms target, deadline overruns, writes
+ * per tick, and the CPU cost of a tick measured by driving tick() directly.
+ */
+public class MappingBenchmark {
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("usage: MappingBenchmark <data dir> [rate Hz] [clips] [speedup]");
+            System.exit(1);
+        }
+        File[] files = new File(args[0]).listFiles((dir, name) -> name.endsWith(".txt"));
+        if (files == null || files.length == 0) {
+            throw new IOException("No .txt files found in " + args[0]);
+        }
+        Arrays.sort(files);
+        int rateHz = args.length > 1 ? Integer.parseInt(args[1]) : MotionMusicMapper.DEFAULT_RATE_HZ;
+        int clips = Math.min(files.length, args.length > 2 ? Integer.parseInt(args[2]) : 3);
+        double speedup = args.length > 3 ? Double.parseDouble(args[3]) : 1.0;
+
+        RecordingParameterSink sink = new RecordingParameterSink(1 << 20);
+        MotionMusicMapper mapper = new MotionMusicMapper(sink, rateHz);
+        mapper.addDefaultMappings();
+        JumpDetector detector = new JumpDetector(mapper);
+        mapper.start();
+
+        long samples = 0;
+        long replayStart = System.nanoTime();
+        for (int c = 0; c < clips; c++) {
+            TrickDataset.Recording ride = TrickDataset.readRecording(files[c]);
+            detector.reset();
+            long clipStart = System.nanoTime();
+            for (int i = 0; i < ride.count; i++) {
+                long due = clipStart
+                        + (long) ((ride.timestamps[i] - ride.timestamps[0]) * 1e6 / speedup);
+                long now;
+                while ((now = System.nanoTime()) < due) {
+                    LockSupport.parkNanos(due - now);
+                }
+                int row = i * TrickDataset.FEATURES;
+                mapper.onSample(ride.speeds[i], ride.rows[row], ride.rows[row + 1],
+                        ride.rows[row + 3]);
+                detector.push(ride.timestamps[i], ride.rows[row + 3]);
+                samples++;
+            }
+        }
+        double seconds = (System.nanoTime() - replayStart) / 1e9;
+        mapper.stop();
+
+        System.out.println(String.format(Locale.US, "%d clips, %d samples in %.1f s, %d Hz control",
+                clips, samples, seconds, rateHz));
+        System.out.println(String.format(Locale.US,
+                "latency   mean %.2f ms  max %.2f ms  over %d ms: %d of %d ticks",
+                mapper.getMeanLatencyNanos() / 1e6, mapper.getMaxLatencyNanos() / 1e6,
+                MotionMusicMapper.LATENCY_TARGET_NANOS / 1_000_000, mapper.getLatencyOverTargetCount(),
+                mapper.getLatencyCount()));
+        System.out.println(String.format(Locale.US, "ticks     %d, overruns %d, %.2f writes/tick",
+                mapper.getTickCount(), mapper.getOverrunCount(),
+                (double) mapper.getWriteCount() / Math.max(1, mapper.getTickCount())));
+
+        // Tick cost without the thread, on a fresh mapper
+        MotionMusicMapper direct = new MotionMusicMapper(new RecordingParameterSink(0), rateHz);
+        direct.addDefaultMappings();
+        direct.prepare();
+        int iterations = 1_000_000;
+        long t = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            direct.onSample(i % 25, (i % 90) - 45f, 0f, 1f);
+            direct.tick(t + i * direct.getPeriodNanos());
+        }
+        double nanosPerTick = (double) (System.nanoTime() - t) / iterations;
+        System.out.println(String.format(Locale.US, "tick cost %.0f ns", nanosPerTick));
+    }
+}
@@ -0,0 +1,518 @@
+package com.ubicomplab.bluetoothlocation;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Turns the fused ride state into FMOD Studio parameter values.
+ *
+ * The ingest side (BLE callbacks, JumpDetector, GatedTrickClassifier) calls onSample() and
+ * the event methods, which only copy a few fields under a short lock. A control thread
+ * ticks at a fixed rate against absolute deadlines, runs every ParameterMapping on a
+ * consistent snapshot and writes the changed values to the ParameterSink.
+ *
+ * Latency is measured from the first input that arrived after the previous tick to the
+ * commit of the tick that consumed it; at the default 100 Hz it stays under one period plus
+ * the tick itself, well inside the 20 ms budget. tick() can also be driven directly, e.g.
+ * by a benchmark. Nothing allocates after start().
+ *
+ * With a BeatClock set, quantized mappings change on the beat instead: the tick nearest the
+ * next beat (or bar) writes the curve output for the input extrapolated to that beat from
+ * its recent rate of change, at most MAX_PREDICTION_MILLIS ahead of the sample. Changes then
+ * sit on the grid without a low-pass filter's lag.
+ *
+ * With a JitterBuffer set, speed, pitch, roll and g-force samples are played out of it at
+ * the control rate, interpolated and in origin order, instead of being used as they
+ * arrive. Discrete events (takeoff, landing, drop, tricks) bypass the buffer and reach the
+ * next tick without its delay. Beat predictions then start from the played-out value at
+ * its origin time and use the rates of the played-out stream, not of the raw arrivals.
+ */
+public class MotionMusicMapper implements JumpDetector.Listener, GatedTrickClassifier.Listener {
+    public static final int DEFAULT_RATE_HZ = 100;
+    public static final long LATENCY_TARGET_NANOS = 20_000_000L;
+    public static final long DEFAULT_EVENT_HOLD_MILLIS = 500;
+    public static final long MAX_PREDICTION_MILLIS = 150;
+
+    // Smoothing of the sample-to-sample rates used for prediction
+    private static final float RATE_ALPHA = 0.3f;
+    private static final long MAX_RATE_GAP_NANOS = 200_000_000L;
+
+    private static final String TAG = "MotionMusicMapper";
+
+    private final ParameterSink sink;
+    private final long periodNanos;
+    private final List<ParameterMapping> mappings = new ArrayList<>();
+
+    // Per-mapping state, built by prepare()
+    private int[] sources;
+    private ParameterCurve[] curves;
+    private int[] handles;
+    private float[] alphas;
+    private float[] deadBands;
+    private float[] smoothed;
+    private float[] written;
+    private boolean[] primed;
+    private int[] quantize;
+    private long[] writtenBoundary;
+
+    // Ride state, guarded by inputLock
+    private final Object inputLock = new Object();
+    private float speed;
+    private float pitch;
+    private float roll;
+    private float gForce;
+    private long sampleNanos = Long.MIN_VALUE;
+    private float speedRate;
+    private float pitchRate;
+    private float rollRate;
+    private long takeoffNanos = Long.MIN_VALUE;
+    private long landingNanos = Long.MIN_VALUE;
+    private long dropNanos = Long.MIN_VALUE;
+    private long trickNanos = Long.MIN_VALUE;
+    private int trickClass = -1;
+    private int eventCode = ParameterMapping.EVENT_NONE;
+    private long eventNanos = Long.MIN_VALUE;
+    private long pendingSinceNanos = Long.MIN_VALUE;
+    private long pendingOriginNanos;
+
+    // Control thread snapshot; rates are per second, zero for event sources
+    private final float[] inputs = new float[ParameterMapping.SOURCE_COUNT];
+    private final float[] rates = new float[ParameterMapping.SOURCE_COUNT];
+    private long inputNanos;
+    private BeatClock beatClock;
+    private volatile LatencyTracker latencyTracker;
+    private JitterBuffer jitterBuffer;
+    // Channel order of jitterBuffer: speed, pitch, roll, g-force
+    static final int JITTER_CHANNELS = 4;
+    private final float[] arrived = new float[JITTER_CHANNELS];
+    private final float[] played = new float[JITTER_CHANNELS];
+    // Previous playout and the rates of speed, pitch and roll across playouts
+    private final float[] previousPlayed = new float[JITTER_CHANNELS];
+    private final float[] playedRates = new float[JITTER_CHANNELS];
+    private long playedOriginNanos = Long.MIN_VALUE;
+
+    private volatile long eventHoldNanos = DEFAULT_EVENT_HOLD_MILLIS * 1_000_000L;
+    private volatile int trickEventClass = -1;
+
+    private volatile boolean running;
+    private Thread controlThread;
+
+    // Statistics, written by the control thread
+    private volatile long ticks;
+    private volatile long overruns;
+    private volatile long writes;
+    private volatile long latencyCount;
+    private volatile long latencySumNanos;
+    private volatile long latencyMaxNanos;
+    private volatile long latencyOverTarget;
+
+    public MotionMusicMapper(ParameterSink sink) {
+        this(sink, DEFAULT_RATE_HZ);
+    }
+
+    public MotionMusicMapper(ParameterSink sink, int rateHz) {
+        if (rateHz <= 0) {
+            throw new IllegalArgumentException("Control rate must be positive: " + rateHz);
+        }
+        this.sink = sink;
+        this.periodNanos = 1_000_000_000L / rateHz;
+    }
+
+    /** Mappings are fixed once start() or prepare() has run. */
+    public void addMapping(ParameterMapping mapping) {
+        if (sources != null) {
+            throw new IllegalStateException("Mappings cannot be added after prepare()");
+        }
+        mappings.add(mapping);
+    }
+
+    /**
+     * The parameters of the Music Bike FMOD project: "Wheel Speed" (0-25 km/h), "Pitch"
+     * (-45..45 degrees) and "Event".
+     */
+    public void addDefaultMappings() {
+        ParameterMapping speed = new ParameterMapping("Wheel Speed",
+                ParameterMapping.SOURCE_SPEED, ParameterCurve.linear(0f, 25f, 0f, 25f));
+        speed.setSmoothingMillis(100f);
+        speed.setDeadBand(0.1f);
+        addMapping(speed);
+
+        ParameterMapping pitch = new ParameterMapping("Pitch",
+                ParameterMapping.SOURCE_PITCH, ParameterCurve.linear(-45f, 45f, -45f, 45f));
+        pitch.setSmoothingMillis(50f);
+        pitch.setDeadBand(0.5f);
+        addMapping(pitch);
+
+        addMapping(new ParameterMapping("Event", ParameterMapping.SOURCE_EVENT,
+                ParameterCurve.linear(ParameterMapping.EVENT_NONE, ParameterMapping.EVENT_180,
+                        ParameterMapping.EVENT_NONE, ParameterMapping.EVENT_180)));
+    }
+
+    /** How long SOURCE_EVENT reports an event before falling back to EVENT_NONE. */
+    public void setEventHoldMillis(long millis) {
+        eventHoldNanos = Math.max(0, millis) * 1_000_000L;
+    }
+
+    /** Trick class reported as EVENT_180 on SOURCE_EVENT; -1 for none. */
+    public void setTrickEventClass(int trickClass) {
+        trickEventClass = trickClass;
+    }
+
+    /** Receives the mapping stage latencies; may be replaced while running, per session. */
+    public void setLatencyTracker(LatencyTracker latencyTracker) {
+        this.latencyTracker = latencyTracker;
+    }
+
+    /** Playout buffer for the continuous inputs, with JITTER_CHANNELS channels; set before start(). */
+    public void setJitterBuffer(JitterBuffer jitterBuffer) {
+        if (jitterBuffer != null && jitterBuffer.getChannels() != JITTER_CHANNELS) {
+            throw new IllegalArgumentException("Jitter buffer must have " + JITTER_CHANNELS
+                    + " channels");
+        }
+        this.jitterBuffer = jitterBuffer;
+    }
+
+    /** Grid for quantized mappings; set before start(). */
+    public void setBeatClock(BeatClock beatClock) {
+        this.beatClock = beatClock;
+    }
+
+    /**
+     * Resolves the parameter handles and sets up the per-mapping state. Mappings whose
+     * parameter the sink does not know are skipped.
+     */
+    public void prepare() {
+        if (sources != null) {
+            return;
+        }
+        int n = mappings.size();
+        sources = new int[n];
+        curves = new ParameterCurve[n];
+        handles = new int[n];
+        alphas = new float[n];
+        deadBands = new float[n];
+        smoothed = new float[n];
+        written = new float[n];
+        primed = new boolean[n];
+        quantize = new int[n];
+        writtenBoundary = new long[n];
+        float periodMillis = periodNanos / 1e6f;
+        for (int i = 0; i < n; i++) {
+            ParameterMapping mapping = mappings.get(i);
+            sources[i] = mapping.source;
+            curves[i] = mapping.curve;
+            handles[i] = sink.resolve(mapping.parameterName);
+            float tau = mapping.getSmoothingMillis();
+            alphas[i] = tau > 0 ? (float) (1.0 - Math.exp(-periodMillis / tau)) : 1f;
+            deadBands[i] = mapping.getDeadBand();
+            quantize[i] = mapping.getQuantize();
+        }
+    }
+
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+        prepare();
+        running = true;
+        controlThread = new Thread(this::runControlLoop, TAG);
+        controlThread.setPriority(Thread.MAX_PRIORITY);
+        controlThread.start();
+    }
+
+    public synchronized void stop() {
+        running = false;
+        if (controlThread != null) {
+            LockSupport.unpark(controlThread);
+            try {
+                controlThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            controlThread = null;
+        }
+    }
+
+    private void runControlLoop() {
+        long deadline = System.nanoTime();
+        while (running) {
+            tick(System.nanoTime());
+            deadline += periodNanos;
+            long now = System.nanoTime();
+            if (now > deadline) {
+                // Missed a deadline; skip ahead instead of bursting to catch up
+                overruns++;
+                deadline = now;
+                continue;
+            }
+            while (running && (now = System.nanoTime()) < deadline) {
+                LockSupport.parkNanos(deadline - now);
+            }
+        }
+    }
+
+    public void onSample(float speedKmh, float pitchDegrees, float rollDegrees, float g) {
+        onSample(speedKmh, pitchDegrees, rollDegrees, g, 0);
+    }
+
+    /**
+     * A sample with its origin, the System.nanoTime() at which the peripheral took it
+     * (LatencyTracker.onPacket()), passed on to the sink for end-to-end latency; 0 if unknown.
+     */
+    public void onSample(float speedKmh, float pitchDegrees, float rollDegrees, float g,
+                         long originNanos) {
+        long now = System.nanoTime();
+        synchronized (inputLock) {
+            if (originNanos != 0 && (pendingOriginNanos == 0 || originNanos < pendingOriginNanos)) {
+                pendingOriginNanos = originNanos;
+            }
+            long gap = now - sampleNanos;
+            if (sampleNanos != Long.MIN_VALUE && gap > 0 && gap <= MAX_RATE_GAP_NANOS) {
+                float seconds = gap / 1e9f;
+                speedRate += RATE_ALPHA * ((speedKmh - speed) / seconds - speedRate);
+                pitchRate += RATE_ALPHA * ((pitchDegrees - pitch) / seconds - pitchRate);
+                rollRate += RATE_ALPHA * ((rollDegrees - roll) / seconds - rollRate);
+            } else {
+                speedRate = 0f;
+                pitchRate = 0f;
+                rollRate = 0f;
+            }
+            sampleNanos = now;
+            speed = speedKmh;
+            pitch = pitchDegrees;
+            roll = rollDegrees;
+            gForce = g;
+            if (jitterBuffer != null) {
+                arrived[0] = speedKmh;
+                arrived[1] = pitchDegrees;
+                arrived[2] = rollDegrees;
+                arrived[3] = g;
+                jitterBuffer.push(originNanos != 0 ? originNanos : now, now, arrived);
+            }
+            markPending(now);
+        }
+    }
+
+    @Override
+    public void onTakeoff(long timestamp) {
+        long now = System.nanoTime();
+        synchronized (inputLock) {
+            takeoffNanos = now;
+            markPending(now);
+        }
+    }
+
+    @Override
+    public void onJump(long takeoffTimestamp, long landingTimestamp, float landingG) {
+        long now = System.nanoTime();
+        synchronized (inputLock) {
+            landingNanos = now;
+            setEvent(ParameterMapping.EVENT_JUMP, now);
+            markPending(now);
+        }
+    }
+
+    @Override
+    public void onDrop(long timestamp, float impactG) {
+        long now = System.nanoTime();
+        synchronized (inputLock) {
+            dropNanos = now;
+            setEvent(ParameterMapping.EVENT_DROP, now);
+            markPending(now);
+        }
+    }
+
+    @Override
+    public void onSegmentClassified(int trickClass, float[] probabilities, long startTimestamp,
+                                    long endTimestamp) {
+        long now = System.nanoTime();
+        synchronized (inputLock) {
+            this.trickClass = trickClass;
+            trickNanos = now;
+            if (trickClass == trickEventClass) {
+                setEvent(ParameterMapping.EVENT_180, now);
+            }
+            markPending(now);
+        }
+    }
+
+    private void setEvent(int code, long now) {
+        eventCode = code;
+        eventNanos = now;
+    }
+
+    private void markPending(long now) {
+        if (pendingSinceNanos == Long.MIN_VALUE) {
+            pendingSinceNanos = now;
+        }
+    }
+
+    /** Runs one control tick at time now (System.nanoTime()). */
+    public void tick(long now) {
+        long pendingSince;
+        long pendingOrigin;
+        synchronized (inputLock) {
+            inputs[ParameterMapping.SOURCE_SPEED] = speed;
+            inputs[ParameterMapping.SOURCE_PITCH] = pitch;
+            inputs[ParameterMapping.SOURCE_ROLL] = roll;
+            inputs[ParameterMapping.SOURCE_GFORCE] = gForce;
+            rates[ParameterMapping.SOURCE_SPEED] = speedRate;
+            rates[ParameterMapping.SOURCE_PITCH] = pitchRate;
+            rates[ParameterMapping.SOURCE_ROLL] = rollRate;
+            inputNanos = sampleNanos;
+            inputs[ParameterMapping.SOURCE_SINCE_TAKEOFF] = millisSince(takeoffNanos, now);
+            inputs[ParameterMapping.SOURCE_SINCE_LANDING] = millisSince(landingNanos, now);
+            inputs[ParameterMapping.SOURCE_SINCE_DROP] = millisSince(dropNanos, now);
+            inputs[ParameterMapping.SOURCE_SINCE_TRICK] = millisSince(trickNanos, now);
+            inputs[ParameterMapping.SOURCE_TRICK_CLASS] = trickClass;
+            inputs[ParameterMapping.SOURCE_EVENT] = eventNanos != Long.MIN_VALUE
+                    && now - eventNanos <= eventHoldNanos ? eventCode : ParameterMapping.EVENT_NONE;
+            pendingSince = pendingSinceNanos;
+            pendingSinceNanos = Long.MIN_VALUE;
+            pendingOrigin = pendingOriginNanos;
+            pendingOriginNanos = 0;
+        }
+        if (jitterBuffer != null && jitterBuffer.playout(now, played)) {
+            inputs[ParameterMapping.SOURCE_SPEED] = played[0];
+            inputs[ParameterMapping.SOURCE_PITCH] = played[1];
+            inputs[ParameterMapping.SOURCE_ROLL] = played[2];
+            inputs[ParameterMapping.SOURCE_GFORCE] = played[3];
+            long playedOrigin = jitterBuffer.getLastPlayoutOrigin();
+            updatePlayedRates(playedOrigin);
+            rates[ParameterMapping.SOURCE_SPEED] = playedRates[0];
+            rates[ParameterMapping.SOURCE_PITCH] = playedRates[1];
+            rates[ParameterMapping.SOURCE_ROLL] = playedRates[2];
+            inputNanos = playedOrigin;
+            if (pendingOrigin != 0) {
+                pendingOrigin = playedOrigin;
+            }
+        }
+
+        // The beat and bar nearest to this tick, if the grid is known
+        BeatClock clock = beatClock;
+        boolean onGrid = clock != null && clock.update() && clock.isLocked(now);
+        long nextBeat = onGrid ? clock.nextBeatNanos(now - periodNanos / 2) : 0;
+        long nextBar = onGrid ? clock.nextBarNanos(now - periodNanos / 2) : 0;
+
+        int changed = 0;
+        for (int i = 0; i < sources.length; i++) {
+            float value;
+            if (onGrid && quantize[i] != ParameterMapping.QUANTIZE_NONE) {
+                long boundary = quantize[i] == ParameterMapping.QUANTIZE_BAR ? nextBar : nextBeat;
+                if (boundary - now > periodNanos / 2 || boundary == writtenBoundary[i]) {
+                    continue;
+                }
+                writtenBoundary[i] = boundary;
+                value = curves[i].map(predictInput(sources[i], boundary));
+            } else {
+                float target = curves[i].map(inputs[sources[i]]);
+                value = primed[i] ? smoothed[i] + alphas[i] * (target - smoothed[i]) : target;
+            }
+            smoothed[i] = value;
+            if (handles[i] < 0) {
+                continue;
+            }
+            if (!primed[i] || Math.abs(value - written[i]) > deadBands[i]) {
+                sink.setParameter(handles[i], value);
+                written[i] = value;
+                changed++;
+            }
+            primed[i] = true;
+        }
+        sink.setOrigin(pendingOrigin);
+        sink.commit();
+
+        ticks++;
+        writes += changed;
+        if (pendingSince != Long.MIN_VALUE) {
+            long latency = System.nanoTime() - pendingSince;
+            latencyCount++;
+            latencySumNanos += latency;
+            if (latency > latencyMaxNanos) {
+                latencyMaxNanos = latency;
+            }
+            if (latency > LATENCY_TARGET_NANOS) {
+                latencyOverTarget++;
+            }
+            LatencyTracker tracker = latencyTracker;
+            if (tracker != null) {
+                tracker.record(LatencyTracker.STAGE_MAPPING, latency);
+            }
+        }
+    }
+
+    // Rates of the played-out values per second of origin time, smoothed as onSample()
+    // smooths the raw ones; a repeated origin (held output) keeps them.
+    private void updatePlayedRates(long origin) {
+        long gap = origin - playedOriginNanos;
+        if (gap == 0) {
+            return;
+        }
+        if (playedOriginNanos != Long.MIN_VALUE && gap > 0 && gap <= MAX_RATE_GAP_NANOS) {
+            float seconds = gap / 1e9f;
+            for (int c = 0; c < 3; c++) {
+                playedRates[c] += RATE_ALPHA * ((played[c] - previousPlayed[c]) / seconds
+                        - playedRates[c]);
+            }
+        } else {
+            playedRates[0] = 0f;
+            playedRates[1] = 0f;
+            playedRates[2] = 0f;
+        }
+        System.arraycopy(played, 0, previousPlayed, 0, JITTER_CHANNELS);
+        playedOriginNanos = origin;
+    }
+
+    // The input extrapolated to the given time from its rate, at most MAX_PREDICTION_MILLIS
+    // past the sample it comes from.
+    private float predictInput(int source, long at) {
+        float input = inputs[source];
+        if (rates[source] == 0f || inputNanos == Long.MIN_VALUE) {
+            return input;
+        }
+        long ahead = Math.min(at - inputNanos, MAX_PREDICTION_MILLIS * 1_000_000L);
+        return ahead > 0 ? input + rates[source] * (ahead / 1e9f) : input;
+    }
+
+    private static float millisSince(long eventNanos, long now) {
+        if (eventNanos == Long.MIN_VALUE) {
+            return Float.POSITIVE_INFINITY;
+        }
+        return Math.max(0, now - eventNanos) / 1e6f;
+    }
+
+    public long getPeriodNanos() {
+        return periodNanos;
+    }
+
+    public long getTickCount() {
+        return ticks;
+    }
+
+    /** Ticks that finished after the next deadline had already passed. */
+    public long getOverrunCount() {
+        return overruns;
+    }
+
+    public long getWriteCount() {
+        return writes;
+    }
+
+    public long getLatencyCount() {
+        return latencyCount;
+    }
+
+    public double getMeanLatencyNanos() {
+        return latencyCount == 0 ? 0 : (double) latencySumNanos / latencyCount;
+    }
+
+    public long getMaxLatencyNanos() {
+        return latencyMaxNanos;
+    }
+
+    /** Ticks whose input-to-commit latency exceeded LATENCY_TARGET_NANOS. */
+    public long getLatencyOverTargetCount() {
+        return latencyOverTarget;
+    }
+}
@@ -0,0 +1,52 @@
+package com.ubicomplab.bluetoothlocation;
+
+/**
+ * Piecewise-linear transfer curve from a ride value to an FMOD parameter value. Inputs
+ * outside the first and last breakpoint are clamped, so an unbounded input like
+ * "milliseconds since the last landing" settles on the last output.
+ */
+public class ParameterCurve {
+    private final float[] inputs;
+    private final float[] outputs;
+
+    public ParameterCurve(float[] inputs, float[] outputs) {
+        if (inputs.length < 2 || inputs.length != outputs.length) {
+            throw new IllegalArgumentException("A curve needs at least two breakpoints, got "
+                    + inputs.length + " inputs and " + outputs.length + " outputs");
+        }
+        for (int i = 1; i < inputs.length; i++) {
+            if (!(inputs[i] > inputs[i - 1])) {
+                throw new IllegalArgumentException("Curve inputs must be strictly increasing");
+            }
+        }
+        this.inputs = inputs.clone();
+        this.outputs = outputs.clone();
+    }
+
+    public static ParameterCurve linear(float inMin, float inMax, float outMin, float outMax) {
+        return new ParameterCurve(new float[]{inMin, inMax}, new float[]{outMin, outMax});
+    }
+
+    /** Holds outMin below threshold and outMax from it on, e.g. for trick classes. */
+    public static ParameterCurve step(float threshold, float outMin, float outMax) {
+        return new ParameterCurve(new float[]{Math.nextDown(threshold), threshold},
+                new float[]{outMin, outMax});
+    }
+
+    public float map(float x) {
+        if (!(x > inputs[0])) {
+            // Also catches NaN
+            return outputs[0];
+        }
+        int last = inputs.length - 1;
+        if (x >= inputs[last]) {
+            return outputs[last];
+        }
+        int i = 1;
+        while (x > inputs[i]) {
+            i++;
+        }
+        float t = (x - inputs[i - 1]) / (inputs[i] - inputs[i - 1]);
+        return outputs[i - 1] + t * (outputs[i] - outputs[i - 1]);
+    }
+}
@@ -0,0 +1,85 @@
+package com.ubicomplab.bluetoothlocation;
+
+/**
+ * One ride value driving one FMOD Studio parameter: the source, the curve applied to it,
+ * one-pole smoothing towards the curve output, and a dead band below which changes are
+ * not written to the sink.
+ *
+ * Event sources (SOURCE_SINCE_*) are the milliseconds since the last such event, or
+ * infinity before the first one, so a curve like {0 -> 1, 500 -> 0} turns a landing into a
+ * half-second pulse. SOURCE_EVENT follows the "Event" parameter of the Music Bike FMOD
+ * project: the code of the latest event while it is held, EVENT_NONE otherwise.
+ *
+ * A quantized mapping is written only on the next beat or bar of a BeatClock, with the
+ * input predicted for that moment and no smoothing; while no beat clock is locked it
+ * behaves like an unquantized one.
+ */
+public class ParameterMapping {
+    public static final int SOURCE_SPEED = 0;        // km/h
+    public static final int SOURCE_PITCH = 1;        // degrees
+    public static final int SOURCE_ROLL = 2;         // degrees
+    public static final int SOURCE_GFORCE = 3;       // g
+    public static final int SOURCE_SINCE_TAKEOFF = 4;
+    public static final int SOURCE_SINCE_LANDING = 5;
+    public static final int SOURCE_SINCE_DROP = 6;
+    public static final int SOURCE_SINCE_TRICK = 7;
+    public static final int SOURCE_TRICK_CLASS = 8;  // -1 before the first trick
+    public static final int SOURCE_EVENT = 9;        // EVENT_* code, held for a while
+    static final int SOURCE_COUNT = 10;
+
+    // Values of the FMOD project's "Event" parameter
+    public static final int EVENT_NONE = 0;
+    public static final int EVENT_JUMP = 1;
+    public static final int EVENT_DROP = 2;
+    public static final int EVENT_180 = 3;
+
+    public static final int QUANTIZE_NONE = 0;
+    public static final int QUANTIZE_BEAT = 1;
+    public static final int QUANTIZE_BAR = 2;
+
+    public final String parameterName;
+    public final int source;
+    public final ParameterCurve curve;
+    private float smoothingMillis;
+    private float deadBand;
+    private int quantize = QUANTIZE_NONE;
+
+    public ParameterMapping(String parameterName, int source, ParameterCurve curve) {
+        if (source < 0 || source >= SOURCE_COUNT) {
+            throw new IllegalArgumentException("Unknown mapping source " + source);
+        }
+        this.parameterName = parameterName;
+        this.source = source;
+        this.curve = curve;
+    }
+
+    /** Time constant of the smoothing filter; 0 follows the curve output immediately. */
+    public void setSmoothingMillis(float smoothingMillis) {
+        this.smoothingMillis = Math.max(0f, smoothingMillis);
+    }
+
+    /** Smallest change from the last written value that is written again. */
+    public void setDeadBand(float deadBand) {
+        this.deadBand = Math.max(0f, deadBand);
+    }
+
+    /** QUANTIZE_NONE, QUANTIZE_BEAT or QUANTIZE_BAR. */
+    public void setQuantize(int quantize) {
+        if (quantize < QUANTIZE_NONE || quantize > QUANTIZE_BAR) {
+            throw new IllegalArgumentException("Unknown quantization " + quantize);
+        }
+        this.quantize = quantize;
+    }
+
+    public float getSmoothingMillis() {
+        return smoothingMillis;
+    }
+
+    public float getDeadBand() {
+        return deadBand;
+    }
+
+    public int getQuantize() {
+        return quantize;
+    }
+}
@@ -0,0 +1,25 @@
+package com.ubicomplab.bluetoothlocation;
+
+/**
+ * Destination of the mapped parameter values: FMOD Studio on the phone (AudioEngine), or
+ * RecordingParameterSink when benchmarking on a workstation.
+ *
+ * Parameters are resolved to handles once, before the control thread starts; the control
+ * thread then only calls setParameter() and commit().
+ */
+public interface ParameterSink {
+    /** Returns a handle for the named parameter, or -1 if the sink does not know it. */
+    int resolve(String parameterName);
+
+    void setParameter(int handle, float value);
+
+    /**
+     * Time (System.nanoTime() clock) the oldest sample behind the current tick was taken,
+     * for latency probes. Sinks that do not measure latency ignore it.
+     */
+    default void setOrigin(long originNanos) {
+    }
+
+    /** Ends one control tick; the values set since the last commit belong together. */
+    void commit();
+}
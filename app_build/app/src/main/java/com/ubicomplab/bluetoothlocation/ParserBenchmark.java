@@ -0,0 +1,278 @@
+package com.ubicomplab.bluetoothlocation;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Throughput and allocation of TrickDataParser against the BufferedReader + split(",")
+ * reader TrickDataset used before, which is kept here as the baseline.
+ *
+ * Runs on a workstation JVM:
+ *   java ... ParserBenchmark tensorflow/BikeTrickData [synthetic MB] [iterations]
+ *
+ * First the dataset files, parsed repeatedly and checked to give identical columns; then
+ * one synthetic file of the given size (default 2048 MB, 0 to skip), the dataset's lines
+ * repeated with shifted timestamps, parsed once each way. Allocation is per row on the
+ * benchmark thread, where the JVM reports it.
+ */
+public class ParserBenchmark {
+    private static final int DEFAULT_SYNTHETIC_MB = 2048;
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("usage: ParserBenchmark <data dir> [synthetic MB] [iterations]");
+            System.exit(1);
+        }
+        File[] files = new File(args[0]).listFiles((dir, name) -> name.endsWith(".txt"));
+        if (files == null || files.length == 0) {
+            throw new IOException("No .txt files found in " + args[0]);
+        }
+        Arrays.sort(files);
+        int syntheticMegabytes = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_SYNTHETIC_MB;
+        int iterations = args.length > 2 ? Integer.parseInt(args[2]) : 20;
+
+        long bytes = 0;
+        long rows = 0;
+        for (File file : files) {
+            TrickDataParser.Columns parsed = TrickDataParser.read(file);
+            TrickDataParser.Columns baseline = readWithSplit(file);
+            if (!sameColumns(parsed, baseline)) {
+                throw new IllegalStateException("Parsers disagree on " + file.getName());
+            }
+            bytes += file.length();
+            rows += parsed.count;
+        }
+        System.out.println(String.format(Locale.US, "%d files, %d rows, %d bytes: columns identical",
+                files.length, rows, bytes));
+
+        // Warm up both paths before timing so the JIT has compiled the inner loops.
+        timeDataset(files, iterations, false);
+        timeDataset(files, iterations, true);
+        report("split", bytes * iterations, rows * iterations, timeDataset(files, iterations, false));
+        report("parser", bytes * iterations, rows * iterations, timeDataset(files, iterations, true));
+
+        if (syntheticMegabytes > 0) {
+            File synthetic = File.createTempFile("biketrick", ".txt");
+            try {
+                long syntheticRows = writeSynthetic(files, synthetic, (long) syntheticMegabytes << 20);
+                System.out.println(String.format(Locale.US, "synthetic file: %d rows, %d bytes",
+                        syntheticRows, synthetic.length()));
+                long[] checksum = new long[2];
+                report("split", synthetic.length(), syntheticRows,
+                        timeLarge(synthetic, false, checksum, 0));
+                report("parser", synthetic.length(), syntheticRows,
+                        timeLarge(synthetic, true, checksum, 1));
+                if (checksum[0] != checksum[1]) {
+                    throw new IllegalStateException("Parsers disagree on the synthetic file");
+                }
+            } finally {
+                if (!synthetic.delete()) {
+                    System.err.println("Could not delete " + synthetic);
+                }
+            }
+        }
+    }
+
+    // {seconds, allocated bytes or -1}
+    private static double[] timeDataset(File[] files, int iterations, boolean mapped)
+            throws IOException {
+        long allocatedBefore = allocatedBytes();
+        long start = System.nanoTime();
+        long sink = 0;
+        for (int k = 0; k < iterations; k++) {
+            for (File file : files) {
+                sink += (mapped ? TrickDataParser.read(file) : readWithSplit(file)).count;
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        long allocatedAfter = allocatedBytes();
+        if (sink == 42) {
+            System.out.print("");
+        }
+        return new double[]{elapsed / 1e9,
+                allocatedBefore < 0 ? -1 : allocatedAfter - allocatedBefore};
+    }
+
+    private static double[] timeLarge(File file, boolean mapped, long[] checksums, int slot)
+            throws IOException {
+        long[] checksum = new long[1];
+        long allocatedBefore = allocatedBytes();
+        long start = System.nanoTime();
+        if (mapped) {
+            new TrickDataParser().read(file, columns -> {
+                for (int i = 0; i < columns.count; i++) {
+                    checksum[0] += columns.timestamps[i] + Float.floatToRawIntBits(columns.yaw[i]);
+                }
+            });
+        } else {
+            try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+                TrickDataParser.Columns columns = new TrickDataParser.Columns();
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    columns.clear();
+                    if (splitLine(line, columns)) {
+                        checksum[0] += columns.timestamps[0] + Float.floatToRawIntBits(columns.yaw[0]);
+                    }
+                }
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        long allocatedAfter = allocatedBytes();
+        checksums[slot] = checksum[0];
+        return new double[]{elapsed / 1e9,
+                allocatedBefore < 0 ? -1 : allocatedAfter - allocatedBefore};
+    }
+
+    private static void report(String name, long bytes, long rows, double[] result) {
+        double seconds = result[0];
+        String allocation = result[1] < 0 ? "n/a"
+                : String.format(Locale.US, "%.1f B/row", result[1] / Math.max(1, rows));
+        System.out.println(String.format(Locale.US,
+                "  %-7s %8.1f MB/s  %6.2f M rows/s  allocated %s",
+                name, bytes / seconds / (1 << 20), rows / seconds / 1e6, allocation));
+    }
+
+    // The dataset's lines, timestamps shifted by each pass's span, until the file has size bytes
+    private static long writeSynthetic(File[] files, File out, long size) throws IOException {
+        List<String[]> lines = new ArrayList<>();
+        double first = Double.MAX_VALUE;
+        double last = -Double.MAX_VALUE;
+        for (File file : files) {
+            for (String line : Files.readAllLines(file.toPath(), StandardCharsets.ISO_8859_1)) {
+                int comma = line.indexOf(',');
+                if (comma <= 0) {
+                    continue;
+                }
+                try {
+                    double timestamp = Double.parseDouble(line.substring(0, comma));
+                    first = Math.min(first, timestamp);
+                    last = Math.max(last, timestamp);
+                } catch (NumberFormatException e) {
+                    continue;
+                }
+                lines.add(new String[]{line.substring(0, comma), line.substring(comma)});
+            }
+        }
+        long centisecondsPerPass = Math.round((last - first) * 100) + 100;
+        long[] centiseconds = new long[lines.size()];
+        byte[][] rests = new byte[lines.size()][];
+        for (int i = 0; i < centiseconds.length; i++) {
+            centiseconds[i] = Math.round(Double.parseDouble(lines.get(i)[0]) * 100);
+            rests[i] = (lines.get(i)[1] + "\n").getBytes(StandardCharsets.ISO_8859_1);
+        }
+        long written = 0;
+        long rows = 0;
+        StringBuilder timestamp = new StringBuilder();
+        try (OutputStream stream = new BufferedOutputStream(Files.newOutputStream(out.toPath()), 1 << 20)) {
+            for (long pass = 0; written < size; pass++) {
+                for (int i = 0; i < centiseconds.length; i++) {
+                    long time = centiseconds[i] + pass * centisecondsPerPass;
+                    timestamp.setLength(0);
+                    timestamp.append(time / 100).append('.').append((char) ('0' + time % 100 / 10))
+                            .append((char) ('0' + time % 10));
+                    byte[] head = timestamp.toString().getBytes(StandardCharsets.ISO_8859_1);
+                    stream.write(head);
+                    stream.write(rests[i]);
+                    written += head.length + rests[i].length;
+                    rows++;
+                }
+            }
+        }
+        return rows;
+    }
+
+    // TrickDataset's reader before TrickDataParser, with the direction column added
+    private static TrickDataParser.Columns readWithSplit(File file) throws IOException {
+        TrickDataParser.Columns columns = new TrickDataParser.Columns();
+        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                splitLine(line, columns);
+            }
+        }
+        return columns;
+    }
+
+    private static boolean splitLine(String line, TrickDataParser.Columns columns) {
+        String[] values = line.trim().split(",");
+        if (values.length < 5) {
+            return false;
+        }
+        try {
+            long timestamp = Math.round(Double.parseDouble(values[0]) * 1000.0);
+            float pitch = Float.parseFloat(values[1]);
+            float roll = Float.parseFloat(values[2]);
+            float yaw = Float.parseFloat(values[3]);
+            float gForce = Float.parseFloat(values[4]);
+            float speed = 0f;
+            if (values.length >= 7) {
+                try {
+                    speed = Float.parseFloat(values[6]);
+                } catch (NumberFormatException e) {
+                    speed = 0f;
+                }
+            }
+            byte direction = values.length < 6 ? TrickDataParser.DIRECTION_NONE
+                    : "Fwd".equals(values[5]) ? TrickDataParser.DIRECTION_FORWARD
+                    : "Rev".equals(values[5]) ? TrickDataParser.DIRECTION_REVERSE
+                    : TrickDataParser.DIRECTION_NONE;
+            int row = columns.count;
+            columns.ensureCapacity(row + 1);
+            columns.timestamps[row] = timestamp;
+            columns.pitch[row] = pitch;
+            columns.roll[row] = roll;
+            columns.yaw[row] = yaw;
+            columns.gForce[row] = gForce;
+            columns.direction[row] = direction;
+            columns.speed[row] = speed;
+            columns.count = row + 1;
+            return true;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    private static boolean sameColumns(TrickDataParser.Columns a, TrickDataParser.Columns b) {
+        if (a.count != b.count) {
+            return false;
+        }
+        for (int i = 0; i < a.count; i++) {
+            if (a.timestamps[i] != b.timestamps[i] || a.direction[i] != b.direction[i]
+                    || !sameBits(a.pitch[i], b.pitch[i]) || !sameBits(a.roll[i], b.roll[i])
+                    || !sameBits(a.yaw[i], b.yaw[i]) || !sameBits(a.gForce[i], b.gForce[i])
+                    || !sameBits(a.speed[i], b.speed[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean sameBits(float a, float b) {
+        return Float.floatToRawIntBits(a) == Float.floatToRawIntBits(b);
+    }
+
+    // Bytes allocated by this thread so far, or -1 where the JVM does not report it. Through
+    // reflection, since java.lang.management is not part of Android.
+    private static long allocatedBytes() {
+        try {
+            Object threads = Class.forName("java.lang.management.ManagementFactory")
+                    .getMethod("getThreadMXBean").invoke(null);
+            Method allocated = Class.forName("com.sun.management.ThreadMXBean")
+                    .getMethod("getThreadAllocatedBytes", long.class);
+            return (Long) allocated.invoke(threads, Thread.currentThread().getId());
+        } catch (ReflectiveOperationException | ClassCastException | IllegalArgumentException e) {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package com.ubicomplab.bluetoothlocation;
+
+/**
+ * Maps the peripheral's 32-bit millis() packet timestamps onto this phone's
+ * System.nanoTime(), so latency can be measured from the moment a sample was taken.
+ *
+ * Each packet gives offset = arrival - peripheral time, which is the clock offset plus
+ * that packet's transit delay. The smallest offset in each BLOCK_NANOS block is the packet
+ * that got through fastest; a least-squares line through the last BLOCKS of these minima
+ * gives the offset and the crystal drift between the two clocks. Latencies measured
+ * against this model are relative to the fastest transit seen: the fixed part of the link
+ * delay, shared by every packet, cannot be observed from one-way timestamps.
+ */
+public class PeripheralClock {
+    static final long BLOCK_NANOS = 2_000_000_000L;
+    static final int BLOCKS = 16;
+    private static final long WRAP = 1L << 32;
+
+    // Least-squares points: peripheral time and minimum offset of each finished block
+    private final double[] blockPeripheral = new double[BLOCKS];
+    private final double[] blockOffset = new double[BLOCKS];
+    private int blockCount;
+    private int blockNext;
+
+    private long lastRawMillis = -1;
+    private long unwrappedMillis;
+    private long blockStartNanos;
+    private long blockMinOffset = Long.MAX_VALUE;
+    private long blockMinPeripheralNanos;
+
+    // offset(peripheralNanos) = intercept + slope * peripheralNanos
+    private double intercept;
+    private double slope;
+    private boolean synced;
+
+    /** Feeds one packet: its peripheral timestamp and its System.nanoTime() arrival. */
+    public synchronized void observe(long peripheralMillis, long arrivalNanos) {
+        long peripheralNanos = unwrap(peripheralMillis, true) * 1_000_000L;
+        long offset = arrivalNanos - peripheralNanos;
+        if (!synced) {
+            blockStartNanos = arrivalNanos;
+        }
+        if (offset < blockMinOffset) {
+            blockMinOffset = offset;
+            blockMinPeripheralNanos = peripheralNanos;
+        }
+        if (arrivalNanos - blockStartNanos >= BLOCK_NANOS) {
+            blockPeripheral[blockNext] = blockMinPeripheralNanos;
+            blockOffset[blockNext] = blockMinOffset;
+            blockNext = (blockNext + 1) % BLOCKS;
+            blockCount = Math.min(blockCount + 1, BLOCKS);
+            blockStartNanos = arrivalNanos;
+            blockMinOffset = Long.MAX_VALUE;
+            fit();
+        } else if (blockCount == 0) {
+            // No finished block yet: the running minimum is the best estimate
+            intercept = blockMinOffset;
+            slope = 0;
+        } else if (offset < predictOffset(peripheralNanos)) {
+            // A faster packet than the fit allows: move the line down to it
+            intercept += offset - predictOffset(peripheralNanos);
+        }
+        synced = true;
+    }
+
+    public synchronized boolean isSynced() {
+        return synced;
+    }
+
+    /**
+     * The System.nanoTime() at which the peripheral took a timestamp, for timestamps close
+     * to the ones observed (within half the 32-bit wrap); 0 before the first packet.
+     */
+    public synchronized long toLocalNanos(long peripheralMillis) {
+        if (!synced) {
+            return 0;
+        }
+        long peripheralNanos = unwrap(peripheralMillis, false) * 1_000_000L;
+        return peripheralNanos + (long) predictOffset(peripheralNanos);
+    }
+
+    /** How much faster the peripheral clock runs than the phone's, in parts per million. */
+    public synchronized double getDriftPpm() {
+        // A fast peripheral clock makes the offset shrink as peripheral time goes on
+        return -slope * 1e6;
+    }
+
+    private double predictOffset(long peripheralNanos) {
+        return intercept + slope * peripheralNanos;
+    }
+
+    private void fit() {
+        double meanX = 0;
+        double meanY = 0;
+        for (int i = 0; i < blockCount; i++) {
+            meanX += blockPeripheral[i];
+            meanY += blockOffset[i];
+        }
+        meanX /= blockCount;
+        meanY /= blockCount;
+        double sxx = 0;
+        double sxy = 0;
+        for (int i = 0; i < blockCount; i++) {
+            double dx = blockPeripheral[i] - meanX;
+            sxx += dx * dx;
+            sxy += dx * (blockOffset[i] - meanY);
+        }
+        slope = sxx > 0 ? sxy / sxx : 0;
+        intercept = meanY - slope * meanX;
+        // The line must stay under every minimum, or it would report negative transit times
+        double lowest = 0;
+        for (int i = 0; i < blockCount; i++) {
+            lowest = Math.min(lowest, blockOffset[i] - predictOffset((long) blockPeripheral[i]));
+        }
+        intercept += lowest;
+    }
+
+    // millis() wraps every 49.7 days; keep a continuous count, and let slightly older
+    // (reordered) timestamps map just behind the latest one.
+    private long unwrap(long rawMillis, boolean advance) {
+        rawMillis &= WRAP - 1;
+        if (lastRawMillis < 0) {
+            if (advance) {
+                lastRawMillis = rawMillis;
+                unwrappedMillis = rawMillis;
+            }
+            return rawMillis;
+        }
+        long delta = (rawMillis - lastRawMillis) & (WRAP - 1);
+        if (delta >= WRAP / 2) {
+            delta -= WRAP;
+        }
+        long unwrapped = unwrappedMillis + delta;
+        if (advance && delta > 0) {
+            lastRawMillis = rawMillis;
+            unwrappedMillis = unwrapped;
+        }
+        return unwrapped;
+    }
+}
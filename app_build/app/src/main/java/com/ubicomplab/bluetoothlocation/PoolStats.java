@@ -0,0 +1,48 @@
+package com.ubicomplab.bluetoothlocation;
+
+import java.util.Locale;
+
+/**
+ * Snapshot of the one-shot instance pools' counters, from AudioEngine.getPoolStats(). Field
+ * order matches struct PoolStats in musicbike_audio.cpp; the histograms have the bins
+ * described in SchedulerStats.
+ *  - misses: triggers that found no idle instance and restarted the longest-playing one,
+ *  - latency: from EventInstancePool.trigger() to the instance's start() call,
+ *  - scheduled: one-shots queued by schedule() for a later start,
+ *  - cancels: scheduled one-shots dropped or faded out by cancel(),
+ *  - startError: distance of a scheduled start() call from its requested time.
+ */
+public class PoolStats {
+    static final int LENGTH = 6 + 2 * SchedulerStats.HISTOGRAM_BINS;
+
+    public final long triggers;
+    public final long misses;
+    public final long maxLatencyNanos;
+    public final long[] latency = new long[SchedulerStats.HISTOGRAM_BINS];
+    public final long scheduled;
+    public final long cancels;
+    public final long maxStartErrorNanos;
+    public final long[] startError = new long[SchedulerStats.HISTOGRAM_BINS];
+
+    PoolStats(long[] raw) {
+        int bins = SchedulerStats.HISTOGRAM_BINS;
+        triggers = raw[0];
+        misses = raw[1];
+        maxLatencyNanos = raw[2];
+        System.arraycopy(raw, 3, latency, 0, bins);
+        scheduled = raw[3 + bins];
+        cancels = raw[4 + bins];
+        maxStartErrorNanos = raw[5 + bins];
+        System.arraycopy(raw, 6 + bins, startError, 0, bins);
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US,
+                "%d triggers, %d pool misses; trigger to start p99 <%d us max %d us; "
+                        + "%d scheduled, %d cancelled, start error p99 <%d us max %d us",
+                triggers, misses, SchedulerStats.percentileMicros(latency, 0.99),
+                maxLatencyNanos / 1000, scheduled, cancels,
+                SchedulerStats.percentileMicros(startError, 0.99), maxStartErrorNanos / 1000);
+    }
+}
@@ -0,0 +1,254 @@
+package com.ubicomplab.bluetoothlocation;
+
+import java.util.Arrays;
+
+/**
+ * Int8 implementation of the trick detector with the same interface as TrickModel.
+ *
+ * Weights are quantized symmetrically per output channel. Activations are quantized
+ * symmetrically per tensor at run time, except for the raw sensor input, whose channels
+ * have very different ranges (yaw in degrees next to gForce in g); their fixed ranges are
+ * folded into the first-layer weights instead. Dot products accumulate in int32 over
+ * contiguous byte rows and are rescaled to float only for bias, batch norm and the LSTM
+ * gate nonlinearities. Not thread-safe.
+ */
+public class QuantizedTrickModel {
+    // Max absolute pitch, roll, yaw, gForce used when no calibration data is given.
+    public static final float[] DEFAULT_INPUT_RANGES = {180f, 180f, 360f, 4f};
+
+    private static final float H_SCALE = 1f / 127f; // LSTM output is bounded by tanh
+
+    private final TrickModelWeights weights;
+    private final int timesteps;
+    private final int pooled1;
+    private final int pooled2;
+    private final float[] inputScales;
+
+    private final QuantizedLayer conv3;
+    private final QuantizedLayer conv7;
+    private final QuantizedLayer conv5;
+    private final QuantizedLayer lstmKernel;
+    private final QuantizedLayer lstmRecurrent;
+    private final QuantizedLayer dense1;
+    private final QuantizedLayer dense2;
+
+    private final byte[] input;
+    private final float[] conv1;
+    private final float[] pool1;
+    private final byte[] pool1Quantized;
+    private final float[] conv2;
+    private final float[] pool2;
+    private final byte[] xQuantized;
+    private final byte[] hQuantized;
+    private final float[] h;
+    private final float[] c;
+    private final float[] gates;
+    private final float[] hidden;
+    private final byte[] hiddenQuantized;
+
+    /** A weight matrix with one int8 row and one scale per output unit. */
+    static class QuantizedLayer {
+        final byte[] weights;
+        final float[] scales;
+        final int span;
+
+        QuantizedLayer(float[] weights, int outputs) {
+            span = weights.length / outputs;
+            this.weights = new byte[weights.length];
+            scales = new float[outputs];
+            for (int o = 0; o < outputs; o++) {
+                int row = o * span;
+                float max = 0f;
+                for (int i = 0; i < span; i++) {
+                    max = Math.max(max, Math.abs(weights[row + i]));
+                }
+                float scale = max > 0f ? max / 127f : 1f;
+                scales[o] = scale;
+                for (int i = 0; i < span; i++) {
+                    this.weights[row + i] = quantize(weights[row + i], 1f / scale);
+                }
+            }
+        }
+
+        int dot(int output, byte[] x, int xOff) {
+            int acc = 0;
+            int row = output * span;
+            for (int i = 0; i < span; i++) {
+                acc += weights[row + i] * x[xOff + i];
+            }
+            return acc;
+        }
+    }
+
+    public QuantizedTrickModel(TrickModelWeights weights) {
+        this(weights, DEFAULT_INPUT_RANGES);
+    }
+
+    /**
+     * @param inputRanges max absolute value of each input feature, e.g. from calibrate()
+     */
+    public QuantizedTrickModel(TrickModelWeights weights, float[] inputRanges) {
+        this.weights = weights;
+        timesteps = weights.timesteps;
+        pooled1 = timesteps / 2;
+        pooled2 = pooled1 / 2;
+        int features = weights.features;
+        inputScales = new float[features];
+        for (int f = 0; f < features; f++) {
+            inputScales[f] = inputRanges[f] / 127f;
+        }
+
+        conv3 = new QuantizedLayer(scaleInputs(weights.conv3Kernel, features, inputScales),
+                weights.branchFilters);
+        conv7 = new QuantizedLayer(scaleInputs(weights.conv7Kernel, features, inputScales),
+                weights.branchFilters);
+        conv5 = new QuantizedLayer(weights.conv5Kernel, weights.filters);
+        lstmKernel = new QuantizedLayer(weights.lstmKernel, 4 * weights.units);
+        lstmRecurrent = new QuantizedLayer(weights.lstmRecurrent, 4 * weights.units);
+        dense1 = new QuantizedLayer(weights.dense1Weights, weights.hidden);
+        dense2 = new QuantizedLayer(weights.dense2Weights, weights.classes);
+
+        input = new byte[(timesteps + 2 * TrickModel.HALO_7) * features];
+        conv1 = new float[timesteps * weights.channels];
+        pool1 = new float[pooled1 * weights.channels];
+        pool1Quantized = new byte[(pooled1 + 2 * TrickModel.HALO_5) * weights.channels];
+        conv2 = new float[pooled1 * weights.filters];
+        pool2 = new float[pooled2 * weights.filters];
+        xQuantized = new byte[weights.filters];
+        hQuantized = new byte[weights.units];
+        h = new float[weights.units];
+        c = new float[weights.units];
+        gates = new float[4 * weights.units];
+        hidden = new float[weights.hidden];
+        hiddenQuantized = new byte[weights.hidden];
+    }
+
+    /** Max absolute value of each feature over a set of row-major windows. */
+    public static float[] calibrate(float[][] windows, int features) {
+        float[] ranges = new float[features];
+        for (float[] window : windows) {
+            for (int i = 0; i < window.length; i++) {
+                int f = i % features;
+                ranges[f] = Math.max(ranges[f], Math.abs(window[i]));
+            }
+        }
+        for (int f = 0; f < features; f++) {
+            if (ranges[f] == 0f) {
+                ranges[f] = 1f;
+            }
+        }
+        return ranges;
+    }
+
+    public TrickModelWeights getWeights() {
+        return weights;
+    }
+
+    /** Bytes held by the quantized weight matrices. */
+    public int getWeightBytes() {
+        return conv3.weights.length + conv7.weights.length + conv5.weights.length
+                + lstmKernel.weights.length + lstmRecurrent.weights.length
+                + dense1.weights.length + dense2.weights.length;
+    }
+
+    /** Same contract as TrickModel.classify(). */
+    public int classify(float[] window, int rows, float[] probabilities) {
+        TrickModelWeights w = weights;
+        int features = w.features;
+        int channels = w.channels;
+        int filters = w.filters;
+        int branch = w.branchFilters;
+
+        int last = Math.min(rows, timesteps) - 1;
+        for (int t = 0; t < timesteps; t++) {
+            int source = (t <= last ? t : last) * features;
+            int target = (t + TrickModel.HALO_7) * features;
+            for (int f = 0; f < features; f++) {
+                input[target + f] = last < 0 ? 0 : quantize(window[source + f], 1f / inputScales[f]);
+            }
+        }
+
+        for (int t = 0; t < timesteps; t++) {
+            int in = t * features;
+            int out = t * channels;
+            conv(conv3, w.conv3Bias, branch, input, in + 2 * features, 1f, conv1, out);
+            conv(conv7, w.conv7Bias, branch, input, in, 1f, conv1, out + branch);
+            TrickModel.normalize(w.norm1Scale, w.norm1Shift, conv1, out, channels);
+        }
+
+        TrickModel.maxPool(conv1, pooled1, channels, pool1, 0);
+        float pool1Scale = quantizeRange(pool1, 0, pool1.length, pool1Quantized,
+                TrickModel.HALO_5 * channels);
+        for (int t = 0; t < pooled1; t++) {
+            int out = t * filters;
+            conv(conv5, w.conv5Bias, filters, pool1Quantized, t * channels, pool1Scale, conv2, out);
+            TrickModel.normalize(w.norm2Scale, w.norm2Shift, conv2, out, filters);
+        }
+        TrickModel.maxPool(conv2, pooled2, filters, pool2, 0);
+
+        Arrays.fill(h, 0f);
+        Arrays.fill(c, 0f);
+        Arrays.fill(hQuantized, (byte) 0);
+        int units = w.units;
+        for (int t = 0; t < pooled2; t++) {
+            float xScale = quantizeRange(pool2, t * filters, filters, xQuantized, 0);
+            for (int g = 0; g < 4 * units; g++) {
+                gates[g] = w.lstmBias[g]
+                        + lstmKernel.dot(g, xQuantized, 0) * lstmKernel.scales[g] * xScale
+                        + lstmRecurrent.dot(g, hQuantized, 0) * lstmRecurrent.scales[g] * H_SCALE;
+            }
+            TrickModel.lstmCell(gates, h, c, units);
+            for (int u = 0; u < units; u++) {
+                hQuantized[u] = quantize(h[u], 1f / H_SCALE);
+            }
+        }
+
+        for (int o = 0; o < w.hidden; o++) {
+            float acc = w.dense1Bias[o] + dense1.dot(o, hQuantized, 0) * dense1.scales[o] * H_SCALE;
+            hidden[o] = acc > 0f ? acc : 0f;
+        }
+        float hiddenScale = quantizeRange(hidden, 0, w.hidden, hiddenQuantized, 0);
+        for (int o = 0; o < w.classes; o++) {
+            probabilities[o] = w.dense2Bias[o]
+                    + dense2.dot(o, hiddenQuantized, 0) * dense2.scales[o] * hiddenScale;
+        }
+        return TrickModel.softmax(probabilities, w.classes);
+    }
+
+    private static void conv(QuantizedLayer layer, float[] bias, int filters, byte[] in, int inOff,
+                             float inScale, float[] out, int outOff) {
+        for (int f = 0; f < filters; f++) {
+            float acc = bias[f] + layer.dot(f, in, inOff) * layer.scales[f] * inScale;
+            out[outOff + f] = acc > 0f ? acc : 0f;
+        }
+    }
+
+    // Folds per-input-channel scales into a [unit][..][channel] weight layout.
+    private static float[] scaleInputs(float[] kernel, int channels, float[] scales) {
+        float[] result = new float[kernel.length];
+        for (int i = 0; i < kernel.length; i++) {
+            result[i] = kernel[i] * scales[i % channels];
+        }
+        return result;
+    }
+
+    // Quantizes count values per tensor into out at outOff and returns the scale used.
+    private static float quantizeRange(float[] values, int offset, int count, byte[] out,
+                                       int outOff) {
+        float max = 0f;
+        for (int i = 0; i < count; i++) {
+            max = Math.max(max, Math.abs(values[offset + i]));
+        }
+        float scale = max > 0f ? max / 127f : 1f;
+        float inverse = 1f / scale;
+        for (int i = 0; i < count; i++) {
+            out[outOff + i] = quantize(values[offset + i], inverse);
+        }
+        return scale;
+    }
+
+    static byte quantize(float value, float inverseScale) {
+        int q = Math.round(value * inverseScale);
+        return (byte) (q > 127 ? 127 : (q < -127 ? -127 : q));
+    }
+}
@@ -0,0 +1,96 @@
+package com.ubicomplab.bluetoothlocation;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Stand-in for FMOD that accepts any parameter name and records the writes into
+ * preallocated arrays, so the mapping engine can be run and measured off the phone. Writes
+ * beyond the capacity are counted but not stored.
+ */
+public class RecordingParameterSink implements ParameterSink {
+    private final List<String> names = new ArrayList<>();
+    private final long[] times;
+    private final int[] handles;
+    private final float[] values;
+    private final float[] current = new float[64];
+    private int count;
+    private long writes;
+    private long commits;
+
+    public RecordingParameterSink(int capacity) {
+        times = new long[capacity];
+        handles = new int[capacity];
+        values = new float[capacity];
+    }
+
+    @Override
+    public int resolve(String parameterName) {
+        int handle = names.indexOf(parameterName);
+        if (handle >= 0) {
+            return handle;
+        }
+        if (names.size() == current.length) {
+            return -1;
+        }
+        names.add(parameterName);
+        return names.size() - 1;
+    }
+
+    @Override
+    public void setParameter(int handle, float value) {
+        current[handle] = value;
+        if (count < times.length) {
+            times[count] = System.nanoTime();
+            handles[count] = handle;
+            values[count] = value;
+            count++;
+        }
+        writes++;
+    }
+
+    @Override
+    public void commit() {
+        commits++;
+    }
+
+    public String getName(int handle) {
+        return names.get(handle);
+    }
+
+    /** Last value written to the parameter. */
+    public float getValue(int handle) {
+        return current[handle];
+    }
+
+    /** Number of stored writes; getTime/getHandle/getWrittenValue index into them. */
+    public int size() {
+        return count;
+    }
+
+    public long getTime(int i) {
+        return times[i];
+    }
+
+    public int getHandle(int i) {
+        return handles[i];
+    }
+
+    public float getWrittenValue(int i) {
+        return values[i];
+    }
+
+    public long getWriteCount() {
+        return writes;
+    }
+
+    public long getCommitCount() {
+        return commits;
+    }
+
+    public void clear() {
+        count = 0;
+        writes = 0;
+        commits = 0;
+    }
+}
@@ -0,0 +1,509 @@
+package com.ubicomplab.bluetoothlocation;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * The phone side of a ride: takes the MusicBike firmware's motion samples from BleService
+ * and drives the music and the trick recognizers with them.
+ *
+ * onSample() runs on the BLE callback thread and does only the work that has to be on
+ * time. The hall speed, which steps once per wheel revolution, is smoothed by a
+ * KalmanFilter; pitch and roll arrive already fused by the firmware's filter and pass
+ * through. Then the JumpDetector runs, with a LandingCue between it and the
+ * MotionMusicMapper, and the sample goes to the mapper, whose JitterBuffer and control
+ * thread take it from there.
+ *
+ * Trick recognition runs on its own thread. A TrickGate, also opened by the firmware's
+ * jump and drop events (onFirmwareEvent()), marks candidate segments, which a
+ * GatedTrickClassifier classifies with the weights training.py exports
+ * (assets/trick_detector_weights.bin); while a segment is open a StreamingTrickModel on
+ * the same weights may call the trick early, and the segment's own result is then only
+ * reported if it differs. Without the weights the segments go to a DtwRecognizer built
+ * from the confirmed clips in the training data directory. Negative classes (no model, no
+ * templates) are never reported.
+ *
+ * Every sample also goes to a ClipCapture, which cuts candidate trick clips around its own
+ * TrickGate and the firmware's events and saves them, named by the model's guess, under
+ * CAPTURE_DIRECTORY for the rider to confirm into TRICK_DATA_DIRECTORY. confirmClip() moves
+ * one there and learns from it: with the weights, a TrickHeadTrainer fine-tunes the head on
+ * the confirmed clips and swaps it into every model when it does better on the newest ones
+ * (kept in HEAD_FILE across restarts); without them, it becomes a DTW template.
+ *
+ * Nothing reaches the music until the AudioStartup future completes: the mapper, its
+ * BeatClock and the landing stinger's EventInstancePool are created on the engine then.
+ * Samples before that still run through the detector and the recognizers.
+ */
+public class RidePipeline implements JumpDetector.Listener, GatedTrickClassifier.Listener {
+    private static final String TAG = "RidePipeline";
+
+    /** Class names in model output order: sorted, as load_real_data numbers them. */
+    public static final String[] LABELS = {"180t10n", "HOPt10n", "NoJpOr180t10n"};
+    /** The class played as EVENT_180. */
+    public static final String TRICK_EVENT_LABEL = "180t10n";
+    public static final String WEIGHTS_ASSET = "trick_detector_weights.bin";
+    /** Under getExternalFilesDir(), where confirmed clips are kept as label_<n>.txt. */
+    public static final String TRICK_DATA_DIRECTORY = "BikeTrickData";
+    /** Under getExternalFilesDir(), where ClipCapture saves unconfirmed clips. */
+    public static final String CAPTURE_DIRECTORY = "TrickCaptures";
+    /** Under getFilesDir(), the head TrickHeadTrainer last swapped in. */
+    public static final String HEAD_FILE = "trick_head.bin";
+    /** One-shot for LandingCue; the bundled banks do not have it, so the cue only scores. */
+    public static final String LANDING_EVENT = "event:/Landing";
+
+    // As GateBenchmark tuned them
+    private static final int GATE_WINDOW = 20;
+    private static final int PRE_ROLL = 40;
+    // Longest segment for the DTW recognizer, the training window
+    private static final int DTW_TIMESTEPS = 220;
+    // Longest captured clip, a few training windows
+    private static final int CAPTURE_ROWS = 3 * DTW_TIMESTEPS;
+    // Head fine-tuning: cached embeddings, copies per clip, newest clips judged on, and
+    // the budget of one round after a confirmed clip
+    private static final int TRAIN_CAPACITY = 1024;
+    private static final int AUGMENT_COPIES = 4;
+    private static final int HOLDOUT_CLIPS = 3;
+    private static final long TRAIN_SEED = 1;
+    private static final int TRAIN_EPOCHS = 30;
+    private static final long TRAIN_WALL_MILLIS = 10_000;
+    private static final long TRAIN_CPU_MILLIS = 3_000;
+    // Streaming calls below this probability wait for the whole segment
+    private static final float EARLY_CONFIDENCE = 0.9f;
+    private static final int LANDING_INSTANCES = 2;
+    // Gaps after which the speed filter starts over rather than predicting across them
+    private static final long MAX_FILTER_GAP_NANOS = 1_000_000_000L;
+
+    private final Context context;
+    private final ExecutorService recognition = Executors.newSingleThreadExecutor(r ->
+            new Thread(r, TAG));
+
+    // BLE callback thread
+    private final KalmanFilter speedFilter = new KalmanFilter();
+    private final JumpDetector detector = new JumpDetector(this);
+    private final LandingPredictor landingPredictor = new LandingPredictor();
+    private long lastSampleNanos;
+
+    // Published once the engine is up
+    private volatile MotionMusicMapper mapper;
+    // Published by the recognition thread, pushed on the BLE callback thread
+    private volatile ClipCapture capture;
+    private volatile ClipCapture.Listener clipListener;
+    private volatile LandingCue landingCue;
+    private volatile LatencyTracker latency = LatencyTracker.getSession();
+    private volatile boolean closed;
+
+    // Recognition thread
+    private final TrickGate gate = new TrickGate(GATE_WINDOW);
+    private GatedTrickClassifier classifier;
+    private TrickHeadTrainer trainer;
+    private StreamingTrickModel streaming;
+    private float[] streamingProbabilities;
+    private DtwRecognizer.Match match;
+    private DtwRecognizer dtw;
+    private boolean streamingSegment;
+    private long streamingStart;
+    private int earlyClass = -1;
+
+    public RidePipeline(Context context) {
+        this.context = context.getApplicationContext();
+        recognition.execute(this::loadRecognizers);
+    }
+
+    /** Attaches the music once the engine is ready, e.g. AudioStartup.get(context).start(). */
+    public void start(CompletableFuture<AudioEngine> ready) {
+        ready.whenComplete((engine, error) -> {
+            if (engine != null) {
+                attach(engine);
+            } else {
+                Log.w(TAG, "Riding without music: " + error);
+            }
+        });
+    }
+
+    private synchronized void attach(AudioEngine engine) {
+        if (closed || mapper != null) {
+            return;
+        }
+        // Also the source of the native stages of the sessions started after this one
+        latency.attach(engine);
+        MotionMusicMapper mapper = new MotionMusicMapper(engine);
+        mapper.addDefaultMappings();
+        mapper.setLatencyTracker(latency);
+        mapper.setTrickEventClass(Arrays.asList(LABELS).indexOf(TRICK_EVENT_LABEL));
+        mapper.setJitterBuffer(new JitterBuffer(MotionMusicMapper.JITTER_CHANNELS,
+                mapper.getPeriodNanos()));
+        mapper.setBeatClock(new BeatClock(engine));
+        mapper.start();
+
+        EventInstancePool pool = new EventInstancePool(engine);
+        int landingEvent = pool.register(LANDING_EVENT, LANDING_INSTANCES);
+        if (landingEvent < 0) {
+            Log.i(TAG, "No " + LANDING_EVENT + " in the banks; landing cues are scored only");
+        }
+        LandingCue cue = new LandingCue(landingPredictor, landingEvent >= 0 ? pool : null,
+                landingEvent, mapper);
+        // Scores only until a rider's bound is set, see LandingCue
+        AudioConfig output = engine.getOutputConfig();
+        if (output != null) {
+            cue.setLeadNanos(output.getBufferLatencyMicros() * 1000L);
+        }
+        this.mapper = mapper;
+        landingCue = cue;
+    }
+
+    /** Latency probes go to this session from now on, e.g. LatencyTracker.startSession(). */
+    public synchronized void setLatencySession(LatencyTracker session) {
+        latency = session;
+        if (mapper != null) {
+            mapper.setLatencyTracker(session);
+        }
+    }
+
+    /**
+     * One sample of the firmware's notify cycle, completed by its gForce.
+     *
+     * @param arrivalNanos System.nanoTime() at the notification
+     * @param originNanos  when the peripheral took it, as LatencyTracker.onPacket() gives it,
+     *                     or 0 if unknown
+     * @param direction    a TrickDataParser.DIRECTION_*
+     */
+    public void onSample(long arrivalNanos, long originNanos, float speedKmh, float pitch,
+                         float roll, float yaw, float gForce, byte direction) {
+        if (closed) {
+            return;
+        }
+        long fusionStart = System.nanoTime();
+        long gap = arrivalNanos - lastSampleNanos;
+        if (lastSampleNanos == 0 || gap <= 0 || gap > MAX_FILTER_GAP_NANOS) {
+            speedFilter.reset();
+            gap = 0;
+        }
+        lastSampleNanos = arrivalNanos;
+        // Constant speed between samples; the angles are the firmware's, in radians
+        speedFilter.predict(0f, 0f, 0f, gap / 1e9f);
+        speedFilter.update((float) Math.toRadians(pitch), (float) Math.toRadians(roll),
+                speedKmh / 3.6f);
+        float speed = Math.max(0f, speedFilter.getSpeedKMH());
+
+        // Milliseconds on the nanoTime clock, as LandingCue schedules on it. The origin time,
+        // so a landing is predicted when it happens rather than when the link delivers it,
+        // and the rates are not taken over the gaps of a notification burst.
+        long timestamp = (originNanos != 0 ? originNanos : arrivalNanos) / 1_000_000L;
+        detector.push(timestamp, gForce);
+        LandingCue cue = landingCue;
+        if (cue != null) {
+            cue.push(timestamp, pitch, roll, gForce);
+        }
+        latency.record(LatencyTracker.STAGE_FUSION, System.nanoTime() - fusionStart);
+        MotionMusicMapper mapper = this.mapper;
+        if (mapper != null) {
+            mapper.onSample(speed, pitch, roll, gForce, originNanos);
+        }
+        ClipCapture capture = this.capture;
+        if (capture != null) {
+            capture.push(timestamp, pitch, roll, yaw, gForce, direction, speedKmh);
+        }
+        try {
+            recognition.execute(() -> recognize(timestamp, pitch, roll, yaw, gForce));
+        } catch (RejectedExecutionException e) {
+            // Closed while this notification was being handled
+        }
+    }
+
+    /** The landing cue once the engine is up, e.g. to setMaxUncertaintyMillis(); or null. */
+    public LandingCue getLandingCue() {
+        return landingCue;
+    }
+
+    /**
+     * Moves a clip ClipCapture saved into the training data as label, one of LABELS, and
+     * learns from it. Files outside CAPTURE_DIRECTORY are refused, whatever the path says.
+     * Any thread; the work runs on the recognition thread.
+     */
+    public void confirmClip(File clip, String label) {
+        try {
+            recognition.execute(() -> learnClip(clip, label));
+        } catch (RejectedExecutionException e) {
+            Log.w(TAG, "Closed, not confirming " + clip);
+        }
+    }
+
+    /** Told about every clip ClipCapture saves, on its writer thread. */
+    public void setClipListener(ClipCapture.Listener listener) {
+        clipListener = listener;
+    }
+
+    /**
+     * A code from the firmware's event characteristic; jumps and drops (TrickGate's
+     * FIRMWARE_EVENT_*) open the trick gate and the capture's on the next sample. Any thread.
+     */
+    public void onFirmwareEvent(int code) {
+        gate.onFirmwareEvent(code);
+        ClipCapture capture = this.capture;
+        if (capture != null) {
+            capture.onFirmwareEvent(code);
+        }
+    }
+
+    /** Stops the music mapping, and classifies and saves a segment or clip still open. */
+    public void close() {
+        MotionMusicMapper mapper;
+        synchronized (this) {
+            closed = true;
+            mapper = this.mapper;
+            this.mapper = null;
+            landingCue = null;
+        }
+        if (mapper != null) {
+            mapper.stop();
+        }
+        // Queued behind the samples, each of which onSample() pushed to the capture first
+        recognition.execute(() -> {
+            if (classifier != null) {
+                classifier.flush();
+            }
+            if (capture != null) {
+                capture.close();
+            }
+            if (trainer != null) {
+                trainer.close();
+            }
+        });
+        recognition.shutdown();
+    }
+
+    // Detector events, on the BLE callback thread; the cue passes them on to the mapper
+    @Override
+    public void onTakeoff(long timestamp) {
+        LandingCue cue = landingCue;
+        if (cue != null) {
+            cue.onTakeoff(timestamp);
+        }
+    }
+
+    @Override
+    public void onJump(long takeoffTimestamp, long landingTimestamp, float landingG) {
+        LandingCue cue = landingCue;
+        if (cue != null) {
+            cue.onJump(takeoffTimestamp, landingTimestamp, landingG);
+        }
+    }
+
+    @Override
+    public void onDrop(long timestamp, float impactG) {
+        LandingCue cue = landingCue;
+        if (cue != null) {
+            cue.onDrop(timestamp, impactG);
+        }
+    }
+
+    // Recognition thread from here on
+
+    private void loadRecognizers() {
+        TrickModelWeights weights = null;
+        try (InputStream in = context.getAssets().open(WEIGHTS_ASSET)) {
+            weights = TrickModelWeights.load(in);
+        } catch (IOException e) {
+            Log.i(TAG, "No " + WEIGHTS_ASSET + ", recognizing tricks from the recorded clips");
+        }
+        boolean usable = weights != null && weights.classes == LABELS.length;
+        TrickModel captureModel = usable ? new TrickModel(weights) : null;
+        startCapture(captureModel);
+        if (usable) {
+            TrickModel model = new TrickModel(weights);
+            classifier = new GatedTrickClassifier(model, gate, PRE_ROLL, this);
+            streaming = new StreamingTrickModel(weights);
+            streamingProbabilities = new float[weights.classes];
+            startTrainer(weights, model, captureModel);
+            return;
+        }
+        dtw = new DtwRecognizer(LABELS);
+        match = new DtwRecognizer.Match();
+        File[] clips = confirmedClips();
+        if (clips != null) {
+            for (File clip : clips) {
+                addTemplate(clip);
+            }
+        }
+        Log.i(TAG, dtw.getTemplateCount() + " trick templates from " + TRICK_DATA_DIRECTORY);
+        classifier = new GatedTrickClassifier(this::recognizeSegment, DTW_TIMESTEPS,
+                LABELS.length, gate, PRE_ROLL, this);
+    }
+
+    private void startCapture(TrickModel model) {
+        File directory = context.getExternalFilesDir(CAPTURE_DIRECTORY);
+        if (directory == null) {
+            Log.w(TAG, "No external storage, not capturing clips");
+            return;
+        }
+        capture = new ClipCapture(directory, new TrickGate(GATE_WINDOW), model, LABELS,
+                CAPTURE_ROWS, (clip, predicted, confidence, startTimestamp, endTimestamp) -> {
+                    ClipCapture.Listener listener = clipListener;
+                    if (listener != null) {
+                        listener.onClipSaved(clip, predicted, confidence, startTimestamp,
+                                endTimestamp);
+                    }
+                });
+    }
+
+    private void startTrainer(TrickModelWeights weights, TrickModel model,
+                              TrickModel captureModel) {
+        StreamingTrickModel streaming = this.streaming;
+        File headFile = new File(context.getFilesDir(), HEAD_FILE);
+        // On the trainer's thread; each model swaps with a single store
+        trainer = new TrickHeadTrainer(weights, TRAIN_CAPACITY, AUGMENT_COPIES, HOLDOUT_CLIPS,
+                TRAIN_SEED, (head, result) -> {
+                    model.setWeights(head);
+                    streaming.setWeights(head);
+                    captureModel.setWeights(head);
+                    if (result != null) {
+                        try {
+                            trainer.saveHead(headFile);
+                        } catch (IOException e) {
+                            Log.w(TAG, "Could not keep the fine-tuned head", e);
+                        }
+                    }
+                });
+        try {
+            trainer.restoreHead(headFile);
+        } catch (IOException e) {
+            Log.w(TAG, "Ignoring " + headFile, e);
+        }
+        // Oldest first, so the newest clips are the ones held out
+        File[] clips = confirmedClips();
+        if (clips != null) {
+            Arrays.sort(clips, (a, b) -> Long.compare(a.lastModified(), b.lastModified()));
+            for (File clip : clips) {
+                addExample(clip);
+            }
+        }
+    }
+
+    private File[] confirmedClips() {
+        File directory = context.getExternalFilesDir(TRICK_DATA_DIRECTORY);
+        return directory != null
+                ? directory.listFiles((dir, name) -> name.endsWith(".txt")) : null;
+    }
+
+    private void learnClip(File clip, String label) {
+        File directory = context.getExternalFilesDir(TRICK_DATA_DIRECTORY);
+        if (directory == null || Arrays.asList(LABELS).indexOf(label) < 0) {
+            Log.w(TAG, "Cannot confirm " + clip + " as " + label);
+            return;
+        }
+        File confirmed;
+        try {
+            if (!isCapturedClip(clip)) {
+                Log.w(TAG, "Not a captured clip, not confirming " + clip);
+                return;
+            }
+            confirmed = ClipCapture.confirm(clip, label, directory);
+        } catch (IOException e) {
+            Log.w(TAG, "Could not confirm " + clip, e);
+            return;
+        }
+        if (trainer != null) {
+            addExample(confirmed);
+            trainer.train(TRAIN_EPOCHS, TRAIN_WALL_MILLIS, TRAIN_CPU_MILLIS);
+        } else if (dtw != null) {
+            addTemplate(confirmed);
+        }
+    }
+
+    // Only clips ClipCapture saved may be moved; any other path is refused
+    private boolean isCapturedClip(File clip) throws IOException {
+        File captures = context.getExternalFilesDir(CAPTURE_DIRECTORY);
+        File parent = clip.getCanonicalFile().getParentFile();
+        return captures != null && parent != null
+                && parent.equals(captures.getCanonicalFile());
+    }
+
+    private void addExample(File clip) {
+        int trickClass = Arrays.asList(LABELS).indexOf(TrickDataset.trickName(clip.getName()));
+        if (trickClass < 0) {
+            return;
+        }
+        try {
+            float[] rows = TrickDataset.readRows(clip);
+            if (rows.length > 0) {
+                trainer.addExample(rows, rows.length / TrickDataset.FEATURES, trickClass);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Skipping unreadable clip " + clip, e);
+        }
+    }
+
+    private void addTemplate(File clip) {
+        int trickClass = Arrays.asList(LABELS).indexOf(TrickDataset.trickName(clip.getName()));
+        if (trickClass < 0) {
+            return;
+        }
+        try {
+            float[] rows = TrickDataset.readRows(clip);
+            if (rows.length > 0) {
+                dtw.addTemplate(rows, rows.length / TrickDataset.FEATURES, trickClass);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Skipping unreadable clip " + clip, e);
+        }
+    }
+
+    // The DTW recognizer as a segment model, with all the probability on the nearest class
+    private int recognizeSegment(float[] window, int rows, float[] probabilities) {
+        int trickClass = dtw.recognize(window, rows, match);
+        Arrays.fill(probabilities, 0f);
+        if (trickClass >= 0) {
+            probabilities[trickClass] = 1f;
+        }
+        return trickClass;
+    }
+
+    private void recognize(long timestamp, float pitch, float roll, float yaw, float gForce) {
+        if (classifier == null) {
+            return;
+        }
+        classifier.push(timestamp, pitch, roll, yaw, gForce);
+        if (streaming == null || !classifier.isSegmentOpen()) {
+            return;
+        }
+        if (!streamingSegment) {
+            streaming.reset();
+            streamingSegment = true;
+            streamingStart = timestamp;
+        }
+        if (streaming.push(pitch, roll, yaw, gForce) && earlyClass < 0) {
+            int best = streaming.probabilities(streamingProbabilities);
+            if (best >= 0 && streamingProbabilities[best] >= EARLY_CONFIDENCE) {
+                earlyClass = best;
+                report(best, streamingProbabilities, streamingStart, timestamp);
+            }
+        }
+    }
+
+    @Override
+    public void onSegmentClassified(int trickClass, float[] probabilities, long startTimestamp,
+                                    long endTimestamp) {
+        if (trickClass != earlyClass) {
+            report(trickClass, probabilities, startTimestamp, endTimestamp);
+        }
+        streamingSegment = false;
+        earlyClass = -1;
+    }
+
+    private void report(int trickClass, float[] probabilities, long startTimestamp,
+                        long endTimestamp) {
+        MotionMusicMapper mapper = this.mapper;
+        if (trickClass >= 0 && mapper != null) {
+            mapper.onSegmentClassified(trickClass, probabilities, startTimestamp, endTimestamp);
+        }
+    }
+}
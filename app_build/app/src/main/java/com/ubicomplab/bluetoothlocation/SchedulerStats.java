@@ -0,0 +1,77 @@
+package com.ubicomplab.bluetoothlocation;
+
+import java.util.Locale;
+
+/**
+ * Snapshot of the native FMOD update scheduler's counters, from
+ * AudioEngine.getSchedulerStats(). Field order matches struct SchedulerStats in
+ * musicbike_audio.cpp.
+ *
+ * Histograms have power-of-two microsecond bins: bin 0 is under 1 us, bin i covers
+ * [2^(i-1), 2^i) us, and the last bin holds everything longer.
+ *  - jitter: how late the thread woke for a deadline,
+ *  - duration: applying the control block plus Studio::System::update(),
+ *  - response: from Java publishing control data to the end of the update applying it.
+ */
+public class SchedulerStats {
+    public static final int HISTOGRAM_BINS = 20;
+    static final int LENGTH = 6 + 3 * HISTOGRAM_BINS;
+
+    public final long updates;
+    public final long earlyUpdates;
+    public final long overruns;
+    public final long maxJitterNanos;
+    public final long maxDurationNanos;
+    public final long maxResponseNanos;
+    public final long[] jitter = new long[HISTOGRAM_BINS];
+    public final long[] duration = new long[HISTOGRAM_BINS];
+    public final long[] response = new long[HISTOGRAM_BINS];
+
+    SchedulerStats(long[] raw) {
+        updates = raw[0];
+        earlyUpdates = raw[1];
+        overruns = raw[2];
+        maxJitterNanos = raw[3];
+        maxDurationNanos = raw[4];
+        maxResponseNanos = raw[5];
+        System.arraycopy(raw, 6, jitter, 0, HISTOGRAM_BINS);
+        System.arraycopy(raw, 6 + HISTOGRAM_BINS, duration, 0, HISTOGRAM_BINS);
+        System.arraycopy(raw, 6 + 2 * HISTOGRAM_BINS, response, 0, HISTOGRAM_BINS);
+    }
+
+    /** Exclusive upper edge of a bin in microseconds; Long.MAX_VALUE for the last one. */
+    public static long binUpperMicros(int bin) {
+        return bin >= HISTOGRAM_BINS - 1 ? Long.MAX_VALUE : 1L << bin;
+    }
+
+    /** Upper bin edge below which at least the given fraction of the samples fall. */
+    public static long percentileMicros(long[] histogram, double fraction) {
+        long total = 0;
+        for (long count : histogram) {
+            total += count;
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long needed = (long) Math.ceil(total * fraction);
+        long seen = 0;
+        for (int bin = 0; bin < histogram.length; bin++) {
+            seen += histogram[bin];
+            if (seen >= needed) {
+                return binUpperMicros(bin);
+            }
+        }
+        return Long.MAX_VALUE;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US,
+                "%d updates (%d early), %d overruns; jitter p99 <%d us max %d us; "
+                        + "update p99 <%d us max %d us; response p99 <%d us max %d us",
+                updates, earlyUpdates, overruns,
+                percentileMicros(jitter, 0.99), maxJitterNanos / 1000,
+                percentileMicros(duration, 0.99), maxDurationNanos / 1000,
+                percentileMicros(response, 0.99), maxResponseNanos / 1000);
+    }
+}
@@ -0,0 +1,445 @@
+package com.ubicomplab.bluetoothlocation;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Sparse index sidecar of a session log (the _rear.csv / _side.csv files BleService writes),
+ * so a reader can jump to a moment of an hour-long ride without parsing everything before it.
+ *
+ * The sidecar is the log's name plus SUFFIX. After a 16-byte header (MAGIC, VERSION, and
+ * the two intervals) it holds one 24-byte big-endian entry, {byte offset, sequence, peripheral
+ * millis}, for the first record and then for every record that is EVERY_RECORDS after the
+ * previous entry or EVERY_MILLIS of peripheral time after it, whichever comes first. The
+ * sequence is the record's line number in the log. Entries are appended as the log grows,
+ * so the index is usable while the session is still recording.
+ *
+ * Lookups binary-search the entries for the last one at or before the requested time or
+ * sequence, seek there, and decode only the lines of the requested range: O(log n) to find
+ * it instead of O(file).
+ *
+ * Times are session millis (SessionClock): the packet timestamp column, continued across
+ * peripheral reboots. A jump back of more than RESET_MILLIS is a restarted millis() and is
+ * rebased to carry on from the latest time, so the ride after a reboot is indexed after the
+ * ride before it; smaller jumps back (reordered packets) hold at the latest time. Entries
+ * and the lines handed to a LineHandler are on that clock, so time-range reads work across
+ * a reboot.
+ */
+public class SessionIndex {
+    public static final String SUFFIX = ".idx";
+    public static final int EVERY_RECORDS = 256;
+    public static final long EVERY_MILLIS = 1000;
+    /** Larger jumps back in peripheral time are a peripheral reboot, not reordering. */
+    public static final long RESET_MILLIS = 2000;
+
+    static final int MAGIC = 0x4D424958; // "MBIX"
+    static final int VERSION = 1;
+    static final int HEADER_BYTES = 16;
+    static final int ENTRY_BYTES = 24;
+    // Column of the peripheral timestamp, see MainActivity.SensorReadingPacket.getAsCSVRow()
+    static final int TIMESTAMP_COLUMN = 3;
+
+    /** Receives decoded lines with their session time; return false to stop reading. */
+    public interface LineHandler {
+        boolean onLine(long sequence, long timestampMillis, String line);
+    }
+
+    /**
+     * Peripheral millis onto one monotonic session clock, as the class describes. A rebase
+     * is always more than RESET_MILLIS, so a clock seeded with an entry's time and fed the
+     * lines from that entry on rebuilds the rebase the writer applied there.
+     */
+    static final class SessionClock {
+        private long offset;
+        private long latest;
+        private boolean started;
+
+        SessionClock() {
+        }
+
+        SessionClock(long sessionMillis) {
+            latest = sessionMillis;
+            started = true;
+        }
+
+        /** The session time of the next sample; Long.MIN_VALUE (no time) holds the latest. */
+        long toSession(long peripheralMillis) {
+            if (peripheralMillis == Long.MIN_VALUE) {
+                return started ? latest : 0;
+            }
+            long time = peripheralMillis + offset;
+            if (!started) {
+                started = true;
+                latest = time;
+            } else if (time < latest - RESET_MILLIS) {
+                offset += latest - time;
+            } else if (time > latest) {
+                latest = time;
+            }
+            return latest;
+        }
+    }
+
+    private final File log;
+    private final int everyRecords;
+    private final long everyMillis;
+    private long[] offsets;
+    private long[] sequences;
+    private long[] timestamps;
+    private int count;
+
+    private SessionIndex(File log, int everyRecords, long everyMillis, int capacity) {
+        this.log = log;
+        this.everyRecords = everyRecords;
+        this.everyMillis = everyMillis;
+        offsets = new long[Math.max(16, capacity)];
+        sequences = new long[offsets.length];
+        timestamps = new long[offsets.length];
+    }
+
+    public static File sidecarOf(File log) {
+        return new File(log.getPath() + SUFFIX);
+    }
+
+    /**
+     * Loads the log's sidecar. A missing, unreadable or stale one (the log no longer reaches
+     * its last entry) is rebuilt with one pass over the log and written back.
+     */
+    public static SessionIndex open(File log) throws IOException {
+        SessionIndex index = read(log);
+        if (index == null) {
+            index = rebuild(log, EVERY_RECORDS, EVERY_MILLIS);
+        }
+        return index;
+    }
+
+    /** Indexes an existing log from scratch and replaces its sidecar. */
+    public static SessionIndex rebuild(File log, int everyRecords, long everyMillis)
+            throws IOException {
+        File sidecar = sidecarOf(log);
+        if (sidecar.exists() && !sidecar.delete()) {
+            throw new IOException("Cannot replace " + sidecar);
+        }
+        try (Writer writer = new Writer(log, everyRecords, everyMillis)) {
+            return writer.index;
+        }
+    }
+
+    /** Number of entries. */
+    public int size() {
+        return count;
+    }
+
+    public long getOffset(int entry) {
+        return offsets[entry];
+    }
+
+    public long getSequence(int entry) {
+        return sequences[entry];
+    }
+
+    public long getTimestamp(int entry) {
+        return timestamps[entry];
+    }
+
+    /** The last entry at or before timestampMillis, or 0 if it is before the first record. */
+    public int floorByTimestamp(long timestampMillis) {
+        return floor(timestamps, timestampMillis);
+    }
+
+    /** The last entry at or before the record with this sequence number. */
+    public int floorBySequence(long sequence) {
+        return floor(sequences, sequence);
+    }
+
+    /**
+     * Decodes the lines with session time in [fromMillis, toMillis], in log order, seeking
+     * past everything before the entry that precedes fromMillis.
+     */
+    public void readTimeRange(long fromMillis, long toMillis, LineHandler handler)
+            throws IOException {
+        if (count == 0) {
+            return;
+        }
+        // Strictly before: records just ahead of an entry may share its millisecond
+        int entry = floorByTimestamp(fromMillis - 1);
+        try (BufferedReader reader = openAt(offsets[entry])) {
+            long sequence = sequences[entry];
+            SessionClock clock = new SessionClock(timestamps[entry]);
+            String line;
+            while ((line = reader.readLine()) != null) {
+                long timestamp = parseTimestamp(line);
+                if (timestamp != Long.MIN_VALUE) {
+                    long sessionTime = clock.toSession(timestamp);
+                    if (sessionTime > toMillis) {
+                        return;
+                    }
+                    if (sessionTime >= fromMillis
+                            && !handler.onLine(sequence, sessionTime, line)) {
+                        return;
+                    }
+                }
+                sequence++;
+            }
+        }
+    }
+
+    /**
+     * Decodes up to n lines starting at the record with sequence number first; lines
+     * without a timestamp are handed Long.MIN_VALUE.
+     */
+    public void readRecords(long first, long n, LineHandler handler) throws IOException {
+        if (count == 0 || n <= 0) {
+            return;
+        }
+        int entry = floorBySequence(first);
+        try (BufferedReader reader = openAt(offsets[entry])) {
+            long sequence = sequences[entry];
+            SessionClock clock = new SessionClock(timestamps[entry]);
+            String line;
+            while ((line = reader.readLine()) != null && sequence < first + n) {
+                long timestamp = parseTimestamp(line);
+                if (timestamp != Long.MIN_VALUE) {
+                    timestamp = clock.toSession(timestamp);
+                }
+                if (sequence >= first && !handler.onLine(sequence, timestamp, line)) {
+                    return;
+                }
+                sequence++;
+            }
+        }
+    }
+
+    private BufferedReader openAt(long offset) throws IOException {
+        FileInputStream in = new FileInputStream(log);
+        try {
+            in.getChannel().position(offset);
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+        return new BufferedReader(new InputStreamReader(in, StandardCharsets.US_ASCII));
+    }
+
+    private void add(long offset, long sequence, long timestamp) {
+        if (count == offsets.length) {
+            offsets = Arrays.copyOf(offsets, count * 2);
+            sequences = Arrays.copyOf(sequences, count * 2);
+            timestamps = Arrays.copyOf(timestamps, count * 2);
+        }
+        offsets[count] = offset;
+        sequences[count] = sequence;
+        timestamps[count] = timestamp;
+        count++;
+    }
+
+    private int floor(long[] keys, long key) {
+        int low = 0;
+        int high = count - 1;
+        int found = 0;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (keys[mid] <= key) {
+                found = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return found;
+    }
+
+    // The sidecar as written, or null if it is missing or cannot be trusted
+    private static SessionIndex read(File log) throws IOException {
+        File sidecar = sidecarOf(log);
+        long length = sidecar.length();
+        if (length < HEADER_BYTES) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(sidecar)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                return null;
+            }
+            int everyRecords = in.readInt();
+            long everyMillis = in.readInt();
+            // A torn last entry (crash while writing) is ignored
+            int entries = (int) ((length - HEADER_BYTES) / ENTRY_BYTES);
+            SessionIndex index = new SessionIndex(log, everyRecords, everyMillis, entries);
+            for (int i = 0; i < entries; i++) {
+                index.add(in.readLong(), in.readLong(), in.readLong());
+            }
+            if (index.count > 0 && index.offsets[index.count - 1] > log.length()) {
+                return null;
+            }
+            return index;
+        } catch (EOFException e) {
+            return null;
+        }
+    }
+
+    // Peripheral timestamp of a log line, or Long.MIN_VALUE if it has none
+    static long parseTimestamp(String line) {
+        int start = 0;
+        for (int column = 0; column < TIMESTAMP_COLUMN; column++) {
+            start = line.indexOf(',', start) + 1;
+            if (start == 0) {
+                return Long.MIN_VALUE;
+            }
+        }
+        int end = line.indexOf(',', start);
+        if (end < 0) {
+            end = line.length();
+        }
+        long value = 0;
+        if (start == end) {
+            return Long.MIN_VALUE;
+        }
+        for (int i = start; i < end; i++) {
+            char c = line.charAt(i);
+            if (c < '0' || c > '9') {
+                return Long.MIN_VALUE;
+            }
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+
+    /**
+     * Appends entries to a log's sidecar as records are written, on the log's writer thread.
+     * Opening it on a log that already has records (a writer thread restarted after a
+     * reconnect) picks up after the last entry of the existing sidecar, scanning only the
+     * lines after it; a log without a usable sidecar is indexed in full first.
+     */
+    public static class Writer implements Closeable {
+        private final SessionIndex index;
+        private final DataOutputStream out;
+        private long offset;
+        private long sequence;
+        private SessionClock clock = new SessionClock();
+        // Bytes of an unterminated last line found in the log, which the next line extends
+        private int carryBytes;
+
+        public Writer(File log) throws IOException {
+            this(log, EVERY_RECORDS, EVERY_MILLIS);
+        }
+
+        public Writer(File log, int everyRecords, long everyMillis) throws IOException {
+            if (everyRecords <= 0 || everyMillis <= 0 || everyMillis > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("Invalid index intervals: " + everyRecords
+                        + " records, " + everyMillis + " ms");
+            }
+            SessionIndex existing = read(log);
+            boolean fresh = existing == null
+                    || existing.everyRecords != everyRecords || existing.everyMillis != everyMillis;
+            File sidecar = sidecarOf(log);
+            if (fresh) {
+                existing = new SessionIndex(log, everyRecords, everyMillis, 0);
+            } else {
+                // Drop a torn last entry so appends stay aligned
+                long aligned = HEADER_BYTES + (long) existing.count * ENTRY_BYTES;
+                if (sidecar.length() != aligned) {
+                    try (FileOutputStream truncate = new FileOutputStream(sidecar, true)) {
+                        truncate.getChannel().truncate(aligned);
+                    }
+                }
+            }
+            index = existing;
+            out = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(sidecar, !fresh), 4096));
+            if (fresh) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(everyRecords);
+                out.writeInt((int) everyMillis);
+            }
+            if (index.count > 0) {
+                int last = index.count - 1;
+                offset = index.offsets[last];
+                sequence = index.sequences[last];
+                clock = new SessionClock(index.timestamps[last]);
+            }
+            catchUp(log);
+            out.flush();
+        }
+
+        /** The index as written so far; it grows with every entry. Same thread only. */
+        public SessionIndex getIndex() {
+            return index;
+        }
+
+        /**
+         * Records the next line of the log, before or after it is written: its peripheral
+         * timestamp (Long.MIN_VALUE if it has none) and its length in bytes including the
+         * line separator.
+         */
+        public void append(long timestampMillis, int lineBytes) throws IOException {
+            long sessionTime = clock.toSession(timestampMillis);
+            int last = index.count - 1;
+            if (last < 0 || sequence - index.sequences[last] >= index.everyRecords
+                    || sessionTime - index.timestamps[last] >= index.everyMillis) {
+                index.add(offset, sequence, sessionTime);
+                out.writeLong(offset);
+                out.writeLong(sequence);
+                out.writeLong(sessionTime);
+                // About once a second: cheap, and a crash loses at most the last entry
+                out.flush();
+            }
+            offset += carryBytes + lineBytes;
+            carryBytes = 0;
+            sequence++;
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+
+        // Indexes the lines already in the log past the last entry
+        private void catchUp(File log) throws IOException {
+            long end = log.length();
+            if (offset >= end) {
+                return;
+            }
+            try (InputStream in = new BufferedInputStream(new FileInputStream(log), 1 << 16)) {
+                long skipped = 0;
+                while (skipped < offset) {
+                    long n = in.skip(offset - skipped);
+                    if (n <= 0) {
+                        throw new EOFException("Log shorter than its index: " + log);
+                    }
+                    skipped += n;
+                }
+                StringBuilder line = new StringBuilder();
+                int lineBytes = 0;
+                int c;
+                while ((c = in.read()) >= 0) {
+                    lineBytes++;
+                    if (c == '\n') {
+                        append(parseTimestamp(line.toString()), lineBytes);
+                        line.setLength(0);
+                        lineBytes = 0;
+                    } else if (c != '\r') {
+                        line.append((char) c);
+                    }
+                }
+                // An unterminated last line was torn by a crash; the next line written
+                // continues it, so it becomes part of that record
+                carryBytes = lineBytes;
+            }
+        }
+    }
+}
@@ -0,0 +1,387 @@
+package com.ubicomplab.bluetoothlocation;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Downsampled min/max/mean pyramid of a session log, so a ride chart reads the few hundred
+ * buckets that fit the screen instead of every sample, whatever the ride length.
+ *
+ * Level l has buckets of LEVEL_MILLIS[l] of session time (10 ms up to 10 s) and lives in
+ * its own file next to the log, the log's name plus ".pyr" and the level. After a 16-byte
+ * header (MAGIC, VERSION, bucket width, channels) each non-empty bucket is one fixed-size
+ * big-endian record: start millis, sample count, then min, max and mean of every channel as
+ * floats. Records are in time order, so a time range is found by binary search; buckets
+ * without samples are simply absent.
+ *
+ * The Writer builds every level incrementally as packets are written, each payload value
+ * being one channel. Bucket times are SessionIndex session millis: a peripheral reboot is
+ * rebased to carry on from the latest time and reordered packets hold at it, so the buckets
+ * line up with the index's time-range reads and stay in time order across a reboot.
+ */
+public class SessionPyramid implements Closeable {
+    public static final long[] LEVEL_MILLIS = {10, 100, 1_000, 10_000};
+    public static final int LEVELS = LEVEL_MILLIS.length;
+    public static final String SUFFIX = ".pyr";
+
+    static final int MAGIC = 0x4D425059; // "MBPY"
+    static final int VERSION = 1;
+    static final int HEADER_BYTES = 16;
+    // Buffered records reach the file at least this often
+    private static final int FLUSH_LEVEL = 2;
+
+    /** Buckets of one level over a time range; values are [bucket * channels + channel]. */
+    public static class Series {
+        public final int level;
+        public final long bucketMillis;
+        public final int channels;
+        public final int size;
+        public final long[] starts;
+        public final int[] counts;
+        public final float[] min;
+        public final float[] max;
+        public final float[] mean;
+
+        Series(int level, int channels, int size) {
+            this.level = level;
+            this.bucketMillis = LEVEL_MILLIS[level];
+            this.channels = channels;
+            this.size = size;
+            starts = new long[size];
+            counts = new int[size];
+            min = new float[size * channels];
+            max = new float[size * channels];
+            mean = new float[size * channels];
+        }
+    }
+
+    private final RandomAccessFile[] files = new RandomAccessFile[LEVELS];
+    private final long[] records = new long[LEVELS];
+    private final int channels;
+    private final int recordBytes;
+
+    private SessionPyramid(File log) throws IOException {
+        int found = -1;
+        try {
+            for (int level = 0; level < LEVELS; level++) {
+                File file = levelFile(log, level);
+                int levelChannels = readHeader(file, level);
+                if (levelChannels < 0 || (found >= 0 && levelChannels != found)) {
+                    throw new IOException("Missing or inconsistent pyramid level: " + file);
+                }
+                found = levelChannels;
+                files[level] = new RandomAccessFile(file, "r");
+            }
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+        channels = found;
+        recordBytes = recordBytes(channels);
+        for (int level = 0; level < LEVELS; level++) {
+            records[level] = (files[level].length() - HEADER_BYTES) / recordBytes;
+        }
+    }
+
+    /** Opens the pyramid of a log for reading; throws if it was never built. */
+    public static SessionPyramid open(File log) throws IOException {
+        return new SessionPyramid(log);
+    }
+
+    public static File levelFile(File log, int level) {
+        return new File(log.getPath() + SUFFIX + level);
+    }
+
+    public int getChannels() {
+        return channels;
+    }
+
+    /** Buckets written so far at a level; the files may grow while recording. */
+    public long getBucketCount(int level) {
+        return records[level];
+    }
+
+    /**
+     * The buckets over [fromMillis, toMillis] at the finest level that needs at most
+     * maxBuckets of them, e.g. the chart's width in pixels. Falls back to the coarsest level.
+     */
+    public Series query(long fromMillis, long toMillis, int maxBuckets) throws IOException {
+        long span = Math.max(0, toMillis - fromMillis);
+        int level = 0;
+        while (level < LEVELS - 1 && span / LEVEL_MILLIS[level] + 1 > maxBuckets) {
+            level++;
+        }
+        return read(level, fromMillis, toMillis);
+    }
+
+    /** The buckets of a level that overlap [fromMillis, toMillis]. */
+    public synchronized Series read(int level, long fromMillis, long toMillis) throws IOException {
+        refresh(level);
+        // First bucket that ends after fromMillis
+        long first = lowerBound(level, fromMillis - LEVEL_MILLIS[level] + 1);
+        long last = lowerBound(level, toMillis + 1);
+        int size = (int) Math.max(0, last - first);
+        Series series = new Series(level, channels, size);
+        if (size == 0) {
+            return series;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(size * recordBytes);
+        readFully(files[level].getChannel(), buffer, HEADER_BYTES + first * recordBytes);
+        buffer.flip();
+        for (int b = 0; b < size; b++) {
+            series.starts[b] = buffer.getLong();
+            series.counts[b] = buffer.getInt();
+            for (int c = 0; c < channels; c++) {
+                int at = b * channels + c;
+                series.min[at] = buffer.getFloat();
+                series.max[at] = buffer.getFloat();
+                series.mean[at] = buffer.getFloat();
+            }
+        }
+        return series;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        for (int level = 0; level < LEVELS; level++) {
+            if (files[level] != null) {
+                files[level].close();
+                files[level] = null;
+            }
+        }
+    }
+
+    // Picks up records appended since the last read
+    private void refresh(int level) throws IOException {
+        records[level] = (files[level].length() - HEADER_BYTES) / recordBytes;
+    }
+
+    // Index of the first record starting at or after startMillis
+    private long lowerBound(int level, long startMillis) throws IOException {
+        FileChannel channel = files[level].getChannel();
+        ByteBuffer start = ByteBuffer.allocate(8);
+        long low = 0;
+        long high = records[level];
+        while (low < high) {
+            long mid = (low + high) >>> 1;
+            start.clear();
+            readFully(channel, start, HEADER_BYTES + mid * recordBytes);
+            if (start.getLong(0) < startMillis) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position)
+            throws IOException {
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, position);
+            if (n < 0) {
+                throw new EOFException("Pyramid level shorter than its record count");
+            }
+            position += n;
+        }
+    }
+
+    static int recordBytes(int channels) {
+        return 12 + 12 * channels;
+    }
+
+    // Channels of a level file, or -1 if it is missing or not this level
+    private static int readHeader(File file, int level) throws IOException {
+        if (file.length() < HEADER_BYTES) {
+            return -1;
+        }
+        try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION
+                    || in.readInt() != LEVEL_MILLIS[level]) {
+                return -1;
+            }
+            int channels = in.readInt();
+            return channels > 0 ? channels : -1;
+        }
+    }
+
+    /**
+     * Builds the pyramid of a log as its records are written, on the log's writer thread.
+     * Nothing is created until the first sample, which fixes the channel count; later samples
+     * with fewer values leave the missing channels out of those buckets' statistics. A
+     * writer opened on a log whose pyramid already exists (a writer thread restarted after a
+     * reconnect) reopens the last bucket of each level, so buckets are never duplicated.
+     */
+    public static class Writer implements Closeable {
+        private final File log;
+        private int channels = -1;
+        private final DataOutputStream[] outs = new DataOutputStream[LEVELS];
+
+        // The open bucket of each level
+        private final long[] bucketStarts = new long[LEVELS];
+        private final int[] bucketCounts = new int[LEVELS];
+        private int[] channelCounts;
+        private float[] mins;
+        private float[] maxs;
+        private double[] sums;
+        private SessionIndex.SessionClock clock = new SessionIndex.SessionClock();
+        // Latest bucket start found when resuming, the clock's starting point
+        private long resumedTimestamp = Long.MIN_VALUE;
+
+        public Writer(File log) {
+            this.log = log;
+        }
+
+        /** Adds one sample at a peripheral time (the timestamp column); values[c] is channel c. */
+        public void add(long timestampMillis, int[] values) throws IOException {
+            if (channels < 0) {
+                open(values.length);
+            }
+            long time = clock.toSession(timestampMillis);
+            int n = Math.min(channels, values.length);
+            for (int level = 0; level < LEVELS; level++) {
+                long width = LEVEL_MILLIS[level];
+                long start = time - Math.floorMod(time, width);
+                if (bucketCounts[level] > 0 && start != bucketStarts[level]) {
+                    flushBucket(level);
+                }
+                bucketStarts[level] = start;
+                bucketCounts[level]++;
+                int base = level * channels;
+                for (int c = 0; c < n; c++) {
+                    float value = values[c];
+                    int at = base + c;
+                    if (channelCounts[at] == 0) {
+                        mins[at] = value;
+                        maxs[at] = value;
+                    } else {
+                        mins[at] = Math.min(mins[at], value);
+                        maxs[at] = Math.max(maxs[at], value);
+                    }
+                    sums[at] += value;
+                    channelCounts[at]++;
+                }
+            }
+        }
+
+        /** Writes the open buckets and closes the level files. */
+        @Override
+        public void close() throws IOException {
+            if (channels < 0) {
+                return;
+            }
+            IOException failure = null;
+            for (int level = 0; level < LEVELS; level++) {
+                try {
+                    if (bucketCounts[level] > 0) {
+                        flushBucket(level);
+                    }
+                    outs[level].close();
+                } catch (IOException e) {
+                    failure = failure == null ? e : failure;
+                }
+            }
+            channels = -1;
+            if (failure != null) {
+                throw failure;
+            }
+        }
+
+        private void open(int sampleChannels) throws IOException {
+            if (sampleChannels <= 0) {
+                throw new IllegalArgumentException("A pyramid needs at least one channel");
+            }
+            int existing = -1;
+            for (int level = 0; level < LEVELS; level++) {
+                int levelChannels = readHeader(levelFile(log, level), level);
+                if (levelChannels < 0 || (level > 0 && levelChannels != existing)) {
+                    existing = -1;
+                    break;
+                }
+                existing = levelChannels;
+            }
+            boolean resume = existing > 0;
+            channels = resume ? existing : sampleChannels;
+            channelCounts = new int[LEVELS * channels];
+            mins = new float[LEVELS * channels];
+            maxs = new float[LEVELS * channels];
+            sums = new double[LEVELS * channels];
+            for (int level = 0; level < LEVELS; level++) {
+                File file = levelFile(log, level);
+                if (resume) {
+                    reopenLastBucket(file, level);
+                }
+                outs[level] = new DataOutputStream(new BufferedOutputStream(
+                        new FileOutputStream(file, resume), 8192));
+                if (!resume) {
+                    outs[level].writeInt(MAGIC);
+                    outs[level].writeInt(VERSION);
+                    outs[level].writeInt((int) LEVEL_MILLIS[level]);
+                    outs[level].writeInt(channels);
+                }
+            }
+            if (resumedTimestamp != Long.MIN_VALUE) {
+                clock = new SessionIndex.SessionClock(resumedTimestamp);
+            }
+        }
+
+        // Loads the last record of a level as its open bucket and cuts it (and any torn
+        // record after it) from the file
+        private void reopenLastBucket(File file, int level) throws IOException {
+            int bytes = recordBytes(channels);
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                long count = (raf.length() - HEADER_BYTES) / bytes;
+                if (count == 0) {
+                    raf.setLength(HEADER_BYTES);
+                    return;
+                }
+                long position = HEADER_BYTES + (count - 1) * bytes;
+                raf.seek(position);
+                bucketStarts[level] = raf.readLong();
+                bucketCounts[level] = raf.readInt();
+                for (int c = 0; c < channels; c++) {
+                    int at = level * channels + c;
+                    mins[at] = raf.readFloat();
+                    maxs[at] = raf.readFloat();
+                    float mean = raf.readFloat();
+                    channelCounts[at] = bucketCounts[level];
+                    sums[at] = (double) mean * bucketCounts[level];
+                }
+                raf.setLength(position);
+                resumedTimestamp = Math.max(resumedTimestamp, bucketStarts[level]);
+            }
+        }
+
+        private void flushBucket(int level) throws IOException {
+            DataOutputStream out = outs[level];
+            out.writeLong(bucketStarts[level]);
+            out.writeInt(bucketCounts[level]);
+            int base = level * channels;
+            for (int c = 0; c < channels; c++) {
+                int at = base + c;
+                int n = channelCounts[at];
+                out.writeFloat(n == 0 ? Float.NaN : mins[at]);
+                out.writeFloat(n == 0 ? Float.NaN : maxs[at]);
+                out.writeFloat(n == 0 ? Float.NaN : (float) (sums[at] / n));
+            }
+            bucketCounts[level] = 0;
+            Arrays.fill(channelCounts, base, base + channels, 0);
+            Arrays.fill(sums, base, base + channels, 0);
+            if (level >= FLUSH_LEVEL) {
+                // About once a second: a crash loses at most the last second of buckets
+                for (int l = 0; l < LEVELS; l++) {
+                    outs[l].flush();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,167 @@
+package com.ubicomplab.bluetoothlocation;
+
+import java.util.Arrays;
+
+/**
+ * Streaming execution of the trick detector for per-sample sliding-window classification.
+ *
+ * Instead of re-running the whole window for every new sample, each layer keeps a short
+ * ring of the activations its receptive field needs and computes only the newest output
+ * column:
+ *
+ *   input ring (7 rows) -> branch convs -> pool -> ring (5 columns) -> conv -> pool -> LSTM
+ *
+ * One sample costs the branch convolutions, every second sample adds one column of the
+ * second convolution, and every fourth sample one LSTM step, which is roughly 1/timesteps
+ * of a full TrickModel.classify().
+ *
+ * The convolutions are exact, delayed by their right-hand receptive field (3 input rows,
+ * then 2 pooled columns). The LSTM runs stateful, so it sees the whole history since the
+ * last reset() rather than exactly one window; call reset() at the start of a candidate
+ * segment to keep it close to the windowed model. Not thread-safe.
+ */
+public class StreamingTrickModel {
+    private static final int INPUT_ROWS = 2 * TrickModel.HALO_7 + 1;
+    private static final int POOLED_ROWS = 2 * TrickModel.HALO_5 + 1;
+
+    private volatile TrickModelWeights weights;
+
+    // Rings are stored twice over so the newest N rows are always contiguous.
+    private final float[] inputRing;
+    private final float[] pooledRing;
+    private int inputHead;
+    private int pooledHead;
+
+    private final float[] column;
+    private final float[] previousColumn;
+    private final float[] conv2Column;
+    private final float[] previousConv2Column;
+    private final float[] lstmInput;
+    private final float[] h;
+    private final float[] c;
+    private final float[] gates;
+    private final float[] dense;
+
+    private long samples;
+    private long lstmSteps;
+
+    public StreamingTrickModel(TrickModelWeights weights) {
+        this.weights = weights;
+        inputRing = new float[2 * INPUT_ROWS * weights.features];
+        pooledRing = new float[2 * POOLED_ROWS * weights.channels];
+        column = new float[weights.channels];
+        previousColumn = new float[weights.channels];
+        conv2Column = new float[weights.filters];
+        previousConv2Column = new float[weights.filters];
+        lstmInput = new float[weights.filters];
+        h = new float[weights.units];
+        c = new float[weights.units];
+        gates = new float[4 * weights.units];
+        dense = new float[weights.hidden];
+    }
+
+    /** Replaces the weights, as TrickModel.setWeights(); takes effect from the next sample. */
+    public void setWeights(TrickModelWeights weights) {
+        if (!weights.sameShape(this.weights)) {
+            throw new IllegalArgumentException("Weights have a different shape");
+        }
+        this.weights = weights;
+    }
+
+    /** Clears all layer state, as if the stream started at the next sample. */
+    public void reset() {
+        Arrays.fill(inputRing, 0f);
+        Arrays.fill(pooledRing, 0f);
+        Arrays.fill(h, 0f);
+        Arrays.fill(c, 0f);
+        inputHead = 0;
+        pooledHead = 0;
+        samples = 0;
+        lstmSteps = 0;
+    }
+
+    /**
+     * Feeds one sample through the network.
+     *
+     * @return true if the LSTM state advanced, i.e. probabilities() has new information
+     */
+    public boolean push(float pitch, float roll, float yaw, float gForce) {
+        TrickModelWeights w = weights;
+        int features = w.features;
+        int channels = w.channels;
+
+        int row = inputHead * features;
+        int mirror = (inputHead + INPUT_ROWS) * features;
+        inputRing[row] = inputRing[mirror] = pitch;
+        inputRing[row + 1] = inputRing[mirror + 1] = roll;
+        inputRing[row + 2] = inputRing[mirror + 2] = yaw;
+        inputRing[row + 3] = inputRing[mirror + 3] = gForce;
+        inputHead = (inputHead + 1) % INPUT_ROWS;
+        samples++;
+
+        // The branch output for row p needs rows p-3..p+3, so it lags the input by 3.
+        long position = samples - 1 - TrickModel.HALO_7;
+        if (position < 0) {
+            return false;
+        }
+        TrickModel.branchColumn(w, inputRing, inputHead * features, column, 0);
+        if ((position & 1) == 0) {
+            System.arraycopy(column, 0, previousColumn, 0, channels);
+            return false;
+        }
+
+        int pooled = pooledHead * channels;
+        int pooledMirror = (pooledHead + POOLED_ROWS) * channels;
+        for (int i = 0; i < channels; i++) {
+            float max = Math.max(previousColumn[i], column[i]);
+            pooledRing[pooled + i] = max;
+            pooledRing[pooledMirror + i] = max;
+        }
+        pooledHead = (pooledHead + 1) % POOLED_ROWS;
+
+        // Likewise the second convolution lags the pooled columns by 2.
+        long pooledPosition = (position >> 1) - TrickModel.HALO_5;
+        if (pooledPosition < 0) {
+            return false;
+        }
+        TrickModel.conv(w.conv5Kernel, w.conv5Bias, w.filters, POOLED_ROWS * channels,
+                pooledRing, pooledHead * channels, conv2Column, 0);
+        TrickModel.normalize(w.norm2Scale, w.norm2Shift, conv2Column, 0, w.filters);
+        if ((pooledPosition & 1) == 0) {
+            System.arraycopy(conv2Column, 0, previousConv2Column, 0, w.filters);
+            return false;
+        }
+
+        for (int i = 0; i < w.filters; i++) {
+            lstmInput[i] = Math.max(previousConv2Column[i], conv2Column[i]);
+        }
+        TrickModel.lstmStep(w, lstmInput, 0, h, c, gates);
+        lstmSteps++;
+        return true;
+    }
+
+    /**
+     * Runs the dense head on the current LSTM state.
+     *
+     * @return the index of the most likely class, or -1 before the first LSTM step
+     */
+    public int probabilities(float[] probabilities) {
+        if (lstmSteps == 0) {
+            return -1;
+        }
+        return TrickModel.head(weights, h, dense, probabilities);
+    }
+
+    public long getSampleCount() {
+        return samples;
+    }
+
+    public long getLstmStepCount() {
+        return lstmSteps;
+    }
+
+    /** How many samples after the last row it covers each LSTM step is taken. */
+    public int getLatencySamples() {
+        return TrickModel.HALO_7 + 2 * TrickModel.HALO_5;
+    }
+}
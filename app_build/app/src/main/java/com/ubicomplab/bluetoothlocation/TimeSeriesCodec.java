@@ -0,0 +1,493 @@
+package com.ubicomplab.bluetoothlocation;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Streaming compression for sensor logs: rows of a millisecond timestamp and a fixed set of
+ * float channels, Gorilla style.
+ *
+ * Rows are gathered into blocks of up to blockRows and each block is encoded on its own,
+ * column by column:
+ *  - timestamps as delta-of-delta, so a steady sample rate costs one bit per row,
+ *  - each channel as runs of repeated values, a value and an Elias-gamma run length, so a
+ *    channel that holds still costs one bit per run however long it lasts,
+ *  - run values either as fixed-point deltas (channels with a scale: value * scale is
+ *    rounded to a long, exact for finite values with that many decimals, e.g. 100 for the
+ *    two decimals of BikeTrickData) or, for a scale of 0, as Gorilla XORs of the float bits:
+ *    a '0' for an unchanged value, '10' and the meaningful bits when they fit the previous
+ *    window, else '11', 5 bits of leading zeros, 5 bits of length - 1 and the bits, all
+ *    counted within the float's 32 bits.
+ *
+ * The stream starts with a header (MAGIC, VERSION, channel count and scales). Every block
+ * then has a 24-byte header, {payload bytes, rows, first and last timestamp}, so a reader
+ * can skip blocks outside a time range without decoding them; no state carries over from
+ * one block to the next.
+ */
+public class TimeSeriesCodec {
+    public static final int DEFAULT_BLOCK_ROWS = 1024;
+
+    static final int MAGIC = 0x4D425453; // "MBTS"
+    // 2: XOR windows counted in 32 bits, not 64
+    static final int VERSION = 2;
+    static final int BLOCK_HEADER_BYTES = 24;
+
+    // Bucket widths of the zigzag codes: 0 is a single '0' bit, then '10' + 7 bits, ...
+    private static final int[] TIMESTAMP_WIDTHS = {7, 9, 12, 64};
+    private static final int[] VALUE_WIDTHS = {6, 12, 20, 64};
+
+    /** One decoded block; values are row-major [row * channels + channel]. */
+    public static class Block {
+        public int count;
+        public long[] timestamps = new long[0];
+        public float[] values = new float[0];
+
+        public long getFirstTimestamp() {
+            return timestamps[0];
+        }
+
+        public long getLastTimestamp() {
+            return timestamps[count - 1];
+        }
+    }
+
+    /** Writes rows to a stream, one encoded block every blockRows rows. */
+    public static class Encoder implements Flushable, Closeable {
+        private final DataOutputStream out;
+        private final int channels;
+        private final float[] scales;
+        private final int blockRows;
+        private final long[] timestamps;
+        private final float[] values;
+        private int count;
+        private final BitWriter bits = new BitWriter();
+        private long rawBytes;
+        private long encodedBytes;
+        private final long[] channelBits;
+
+        /** scales[c] is channel c's fixed-point scale, or 0 to XOR its float bits. */
+        public Encoder(OutputStream out, float[] scales) throws IOException {
+            this(out, scales, DEFAULT_BLOCK_ROWS);
+        }
+
+        public Encoder(OutputStream out, float[] scales, int blockRows) throws IOException {
+            if (scales.length == 0 || blockRows <= 0) {
+                throw new IllegalArgumentException("Invalid codec shape: " + scales.length
+                        + " channels, " + blockRows + " rows per block");
+            }
+            this.out = new DataOutputStream(out);
+            this.channels = scales.length;
+            this.scales = scales.clone();
+            this.blockRows = blockRows;
+            timestamps = new long[blockRows];
+            values = new float[blockRows * channels];
+            channelBits = new long[channels];
+            this.out.writeInt(MAGIC);
+            this.out.writeInt(VERSION);
+            this.out.writeInt(channels);
+            for (float scale : scales) {
+                this.out.writeFloat(scale);
+            }
+            encodedBytes = 12 + 4L * channels;
+        }
+
+        public void append(long timestampMillis, float[] row) throws IOException {
+            timestamps[count] = timestampMillis;
+            System.arraycopy(row, 0, values, count * channels, channels);
+            if (++count == blockRows) {
+                writeBlock();
+            }
+        }
+
+        /** Bytes the rows would take uncompressed, a long and a float per channel each. */
+        public long getRawBytes() {
+            return rawBytes;
+        }
+
+        /** Bytes written so far, headers included. */
+        public long getEncodedBytes() {
+            return encodedBytes;
+        }
+
+        /** Payload bits channel c has taken so far, its runs and their values. */
+        public long getChannelBits(int channel) {
+            return channelBits[channel];
+        }
+
+        /** Writes the rows gathered so far as a (short) block. */
+        @Override
+        public void flush() throws IOException {
+            if (count > 0) {
+                writeBlock();
+            }
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+            out.close();
+        }
+
+        private void writeBlock() throws IOException {
+            bits.reset();
+            encodeTimestamps(bits, timestamps, count);
+            for (int c = 0; c < channels; c++) {
+                long before = bits.bitCount();
+                encodeChannel(bits, values, count, channels, c, scales[c]);
+                channelBits[c] += bits.bitCount() - before;
+            }
+            int payload = bits.finish();
+            out.writeInt(payload);
+            out.writeInt(count);
+            out.writeLong(timestamps[0]);
+            out.writeLong(timestamps[count - 1]);
+            out.write(bits.buffer, 0, payload);
+            rawBytes += (long) count * (8 + 4 * channels);
+            encodedBytes += BLOCK_HEADER_BYTES + payload;
+            count = 0;
+        }
+    }
+
+    /** Reads the blocks of a stream written by an Encoder, in order. */
+    public static class Decoder implements Closeable {
+        private final DataInputStream in;
+        private final int channels;
+        private final float[] scales;
+        private byte[] payload = new byte[0];
+        private final BitReader bits = new BitReader();
+
+        public Decoder(InputStream in) throws IOException {
+            this.in = new DataInputStream(in);
+            if (this.in.readInt() != MAGIC || this.in.readInt() != VERSION) {
+                throw new IOException("Not a time series stream");
+            }
+            channels = this.in.readInt();
+            if (channels <= 0) {
+                throw new IOException("Invalid channel count " + channels);
+            }
+            scales = new float[channels];
+            for (int c = 0; c < channels; c++) {
+                scales[c] = this.in.readFloat();
+            }
+        }
+
+        public int getChannels() {
+            return channels;
+        }
+
+        /** Decodes the next block into block, reusing its arrays; false at the end. */
+        public boolean next(Block block) throws IOException {
+            return next(block, Long.MIN_VALUE, Long.MAX_VALUE);
+        }
+
+        /**
+         * Decodes the next block that has rows in [fromMillis, toMillis] into block, skipping
+         * the blocks before it undecoded; false at the end. Blocks are in time order, so
+         * once one starts after toMillis the caller can stop.
+         */
+        public boolean next(Block block, long fromMillis, long toMillis) throws IOException {
+            while (true) {
+                int size;
+                try {
+                    size = in.readInt();
+                } catch (EOFException e) {
+                    return false;
+                }
+                int count = in.readInt();
+                long first = in.readLong();
+                long last = in.readLong();
+                if (size < 0 || count <= 0) {
+                    throw new IOException("Corrupt block header");
+                }
+                if (last < fromMillis || first > toMillis) {
+                    skipFully(size);
+                    continue;
+                }
+                if (payload.length < size) {
+                    payload = new byte[size];
+                }
+                in.readFully(payload, 0, size);
+                decodeBlock(payload, size, count, first, block);
+                return true;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+
+        private void decodeBlock(byte[] data, int size, int count, long first, Block block)
+                throws IOException {
+            if (block.timestamps.length < count) {
+                block.timestamps = new long[count];
+            }
+            if (block.values.length < count * channels) {
+                block.values = new float[count * channels];
+            }
+            block.count = count;
+            bits.reset(data, size);
+            decodeTimestamps(bits, first, block.timestamps, count);
+            for (int c = 0; c < channels; c++) {
+                decodeChannel(bits, block.values, count, channels, c, scales[c]);
+            }
+        }
+
+        private void skipFully(int n) throws IOException {
+            while (n > 0) {
+                int skipped = in.skipBytes(n);
+                if (skipped <= 0) {
+                    throw new EOFException("Truncated block");
+                }
+                n -= skipped;
+            }
+        }
+    }
+
+    private static void encodeTimestamps(BitWriter bits, long[] timestamps, int count) {
+        long previousDelta = 0;
+        for (int i = 1; i < count; i++) {
+            long delta = timestamps[i] - timestamps[i - 1];
+            writeZigzag(bits, delta - previousDelta, TIMESTAMP_WIDTHS);
+            previousDelta = delta;
+        }
+    }
+
+    private static void decodeTimestamps(BitReader bits, long first, long[] timestamps, int count)
+            throws IOException {
+        timestamps[0] = first;
+        long delta = 0;
+        for (int i = 1; i < count; i++) {
+            delta += readZigzag(bits, TIMESTAMP_WIDTHS);
+            timestamps[i] = timestamps[i - 1] + delta;
+        }
+    }
+
+    private static void encodeChannel(BitWriter bits, float[] values, int count, int stride,
+                                      int channel, float scale) {
+        long previous = 0;
+        // Gorilla's window of meaningful bits, reused while a new XOR fits in it
+        int leading = -1;
+        int trailing = 0;
+        int row = 0;
+        while (row < count) {
+            long word = toWord(values[row * stride + channel], scale);
+            int run = 1;
+            while (row + run < count
+                    && toWord(values[(row + run) * stride + channel], scale) == word) {
+                run++;
+            }
+            if (scale != 0f) {
+                writeZigzag(bits, word - previous, VALUE_WIDTHS);
+            } else {
+                int xor = (int) (word ^ previous);
+                if (xor == 0) {
+                    bits.write(0, 1);
+                } else {
+                    bits.write(1, 1);
+                    int lead = Integer.numberOfLeadingZeros(xor);
+                    int trail = Integer.numberOfTrailingZeros(xor);
+                    if (leading >= 0 && lead >= leading && trail >= trailing) {
+                        bits.write(0, 1);
+                        bits.write(xor >>> trailing, 32 - leading - trailing);
+                    } else {
+                        leading = lead;
+                        trailing = trail;
+                        int meaningful = 32 - lead - trail;
+                        bits.write(1, 1);
+                        bits.write(lead, 5);
+                        bits.write(meaningful - 1, 5);
+                        bits.write(xor >>> trail, meaningful);
+                    }
+                }
+            }
+            writeGamma(bits, run);
+            previous = word;
+            row += run;
+        }
+    }
+
+    private static void decodeChannel(BitReader bits, float[] values, int count, int stride,
+                                      int channel, float scale) throws IOException {
+        long previous = 0;
+        int leading = 0;
+        int trailing = 0;
+        int row = 0;
+        while (row < count) {
+            long word;
+            if (scale != 0f) {
+                word = previous + readZigzag(bits, VALUE_WIDTHS);
+            } else if (bits.read(1) == 0) {
+                word = previous;
+            } else {
+                if (bits.read(1) != 0) {
+                    leading = (int) bits.read(5);
+                    int meaningful = (int) bits.read(5) + 1;
+                    trailing = 32 - leading - meaningful;
+                }
+                word = previous ^ (bits.read(32 - leading - trailing) << trailing);
+            }
+            int run = (int) readGamma(bits);
+            if (run > count - row) {
+                throw new IOException("Run past the end of the block");
+            }
+            float value = fromWord(word, scale);
+            for (int i = 0; i < run; i++) {
+                values[(row + i) * stride + channel] = value;
+            }
+            previous = word;
+            row += run;
+        }
+    }
+
+    private static long toWord(float value, float scale) {
+        return scale != 0f ? Math.round((double) value * scale)
+                : Float.floatToRawIntBits(value) & 0xFFFFFFFFL;
+    }
+
+    private static float fromWord(long word, float scale) {
+        return scale != 0f ? (float) (word / (double) scale) : Float.intBitsToFloat((int) word);
+    }
+
+    private static void writeZigzag(BitWriter bits, long value, int[] widths) {
+        long zigzag = (value << 1) ^ (value >> 63);
+        if (zigzag == 0) {
+            bits.write(0, 1);
+            return;
+        }
+        for (int i = 0; i < widths.length; i++) {
+            int width = widths[i];
+            boolean lastBucket = i == widths.length - 1;
+            if (lastBucket || zigzag >>> width == 0) {
+                // i + 1 ones, then a terminating zero unless this is the last bucket
+                bits.write(lastBucket ? (1L << (i + 1)) - 1 : ((1L << (i + 1)) - 1) << 1,
+                        lastBucket ? i + 1 : i + 2);
+                bits.write(zigzag, width);
+                return;
+            }
+        }
+    }
+
+    private static long readZigzag(BitReader bits, int[] widths) throws IOException {
+        int bucket = 0;
+        while (bucket < widths.length && bits.read(1) == 1) {
+            bucket++;
+        }
+        if (bucket == 0) {
+            return 0;
+        }
+        long zigzag = bits.read(widths[bucket - 1]);
+        return (zigzag >>> 1) ^ -(zigzag & 1);
+    }
+
+    // Elias gamma, n >= 1: floor(log2 n) zeros, then n in binary
+    private static void writeGamma(BitWriter bits, long n) {
+        int width = 64 - Long.numberOfLeadingZeros(n);
+        bits.write(0, width - 1);
+        bits.write(n, width);
+    }
+
+    private static long readGamma(BitReader bits) throws IOException {
+        int zeros = 0;
+        while (bits.read(1) == 0) {
+            if (++zeros > 32) {
+                throw new IOException("Corrupt run length");
+            }
+        }
+        return zeros == 0 ? 1 : (1L << zeros) | bits.read(zeros);
+    }
+
+    static class BitWriter {
+        byte[] buffer = new byte[4096];
+        private int bytes;
+        private long pending;
+        private int pendingBits;
+
+        void reset() {
+            bytes = 0;
+            pending = 0;
+            pendingBits = 0;
+        }
+
+        /** Writes the low width bits of value, most significant first; width up to 64. */
+        void write(long value, int width) {
+            if (width > 32) {
+                write(value >>> 32, width - 32);
+                width = 32;
+            }
+            if (width == 0) {
+                return;
+            }
+            pending = (pending << width) | (value & ((1L << width) - 1));
+            pendingBits += width;
+            while (pendingBits >= 8) {
+                pendingBits -= 8;
+                put((byte) (pending >>> pendingBits));
+            }
+        }
+
+        /** Bits written since the last reset. */
+        long bitCount() {
+            return bytes * 8L + pendingBits;
+        }
+
+        /** Pads the last byte with zeros and returns the length in bytes. */
+        int finish() {
+            if (pendingBits > 0) {
+                put((byte) (pending << (8 - pendingBits)));
+                pendingBits = 0;
+            }
+            return bytes;
+        }
+
+        private void put(byte b) {
+            if (bytes == buffer.length) {
+                buffer = Arrays.copyOf(buffer, bytes * 2);
+            }
+            buffer[bytes++] = b;
+        }
+    }
+
+    static class BitReader {
+        private byte[] data;
+        private int size;
+        private int position;
+        private long pending;
+        private int pendingBits;
+
+        void reset(byte[] data, int size) {
+            this.data = data;
+            this.size = size;
+            position = 0;
+            pending = 0;
+            pendingBits = 0;
+        }
+
+        long read(int width) throws IOException {
+            if (width > 32) {
+                long high = read(width - 32);
+                return (high << 32) | read(32);
+            }
+            if (width == 0) {
+                return 0;
+            }
+            while (pendingBits < width) {
+                if (position == size) {
+                    throw new EOFException("Block payload ended early");
+                }
+                pending = (pending << 8) | (data[position++] & 0xFF);
+                pendingBits += 8;
+            }
+            pendingBits -= width;
+            return (pending >>> pendingBits) & ((1L << width) - 1);
+        }
+    }
+}
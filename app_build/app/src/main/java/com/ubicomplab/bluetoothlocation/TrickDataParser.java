@@ -0,0 +1,349 @@
+package com.ubicomplab.bluetoothlocation;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Parser for the BikeTrickData text format, "timestamp,pitch,roll,yaw,gForce,direction,speed"
+ * with the timestamp in epoch seconds, that scans the bytes of a ByteBuffer (usually the
+ * memory-mapped file) straight into primitive column arrays: no String per line or field.
+ * The buffer is copied in bulk through one reused scratch array, which the JIT scans far
+ * faster than a get() per byte.
+ *
+ * It accepts and rejects lines exactly as TrickDataset always has (split(",") then
+ * parseDouble/parseFloat): lines are trimmed, need at least five fields, and a malformed
+ * number in the first five drops the line; a missing or malformed speed reads as 0. Plain
+ * decimals are converted exactly, as parseFloat would; anything else (exponents, NaN, very
+ * long digit strings) falls back to parseFloat on that one field.
+ *
+ * Files larger than a mapping are read in windows ending at a line break; read() with a
+ * ChunkHandler hands over each window's rows and reuses the same arrays, so a multi-GB
+ * file is parsed in constant memory.
+ */
+public class TrickDataParser {
+    public static final byte DIRECTION_NONE = 0;
+    public static final byte DIRECTION_FORWARD = 1;
+    public static final byte DIRECTION_REVERSE = -1;
+
+    static final int DEFAULT_WINDOW_BYTES = 64 << 20;
+    static final int SCRATCH_BYTES = 256 << 10;
+
+    private static final float[] FLOAT_POW10 = {
+            1e0f, 1e1f, 1e2f, 1e3f, 1e4f, 1e5f, 1e6f, 1e7f, 1e8f, 1e9f, 1e10f};
+    private static final double[] DOUBLE_POW10 = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22};
+    // Integers below these convert to float / double exactly
+    private static final long FLOAT_EXACT = 1L << 24;
+    private static final long DOUBLE_EXACT = 1L << 53;
+    private static final int MAX_DIGITS = 18;
+
+    /** Parsed rows, one array per column; only the first count entries are valid. */
+    public static class Columns {
+        public int count;
+        public long[] timestamps = new long[1024]; // milliseconds
+        public float[] pitch = new float[1024];
+        public float[] roll = new float[1024];
+        public float[] yaw = new float[1024];
+        public float[] gForce = new float[1024];
+        public byte[] direction = new byte[1024];
+        public float[] speed = new float[1024]; // km/h, 0 where missing
+
+        public void clear() {
+            count = 0;
+        }
+
+        void ensureCapacity(int rows) {
+            if (rows <= timestamps.length) {
+                return;
+            }
+            int capacity = Math.max(rows, timestamps.length * 2);
+            timestamps = Arrays.copyOf(timestamps, capacity);
+            pitch = Arrays.copyOf(pitch, capacity);
+            roll = Arrays.copyOf(roll, capacity);
+            yaw = Arrays.copyOf(yaw, capacity);
+            gForce = Arrays.copyOf(gForce, capacity);
+            direction = Arrays.copyOf(direction, capacity);
+            speed = Arrays.copyOf(speed, capacity);
+        }
+    }
+
+    /** Receives the rows of each window; the columns are reused for the next one. */
+    public interface ChunkHandler {
+        void onChunk(Columns columns) throws IOException;
+    }
+
+    private byte[] scratch = new byte[0];
+    // Set by the number parsers when a field is malformed
+    private boolean malformed;
+
+    /** Parses a whole file into one set of columns. */
+    public static Columns read(File file) throws IOException {
+        Columns columns = new Columns();
+        new TrickDataParser().read(file, DEFAULT_WINDOW_BYTES, null, columns);
+        return columns;
+    }
+
+    /** Parses a file of any size window by window, handing each window's rows to handler. */
+    public void read(File file, ChunkHandler handler) throws IOException {
+        read(file, DEFAULT_WINDOW_BYTES, handler, new Columns());
+    }
+
+    void read(File file, int windowBytes, ChunkHandler handler, Columns columns)
+            throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+             FileChannel channel = raf.getChannel()) {
+            long size = channel.size();
+            long position = 0;
+            while (position < size) {
+                long length = Math.min(windowBytes, size - position);
+                MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+                int end = (int) length;
+                if (position + length < size) {
+                    // Stop after the last complete line; the rest starts the next window
+                    while (end > 0 && window.get(end - 1) != '\n') {
+                        end--;
+                    }
+                    if (end == 0) {
+                        throw new IOException("Line longer than " + windowBytes + " bytes in " + file);
+                    }
+                }
+                if (handler != null) {
+                    columns.clear();
+                }
+                parse(window, 0, end, columns);
+                if (handler != null) {
+                    handler.onChunk(columns);
+                }
+                position += end;
+            }
+        }
+    }
+
+    /** Appends the rows in buffer[from, to) to columns; returns the number of rows added. */
+    public int parse(ByteBuffer buffer, int from, int to, Columns columns) {
+        int before = columns.count;
+        int wanted = Math.min(SCRATCH_BYTES, to - from);
+        if (scratch.length < wanted) {
+            scratch = new byte[wanted];
+        }
+        ByteBuffer view = buffer.duplicate();
+        int position = from;
+        while (position < to) {
+            // Bulk copies into the scratch array are much cheaper than a get() per byte
+            int n = Math.min(scratch.length, to - position);
+            view.position(position);
+            view.get(scratch, 0, n);
+            int end = n;
+            if (position + n < to) {
+                while (end > 0 && scratch[end - 1] != '\n') {
+                    end--;
+                }
+                if (end == 0) {
+                    scratch = new byte[scratch.length * 2]; // a line longer than the scratch
+                    continue;
+                }
+            }
+            parseLines(end, columns);
+            position += end;
+        }
+        return columns.count - before;
+    }
+
+    private void parseLines(int to, Columns columns) {
+        int lineStart = 0;
+        while (lineStart < to) {
+            int lineEnd = lineStart;
+            while (lineEnd < to && scratch[lineEnd] != '\n') {
+                lineEnd++;
+            }
+            parseLine(lineStart, lineEnd, columns);
+            lineStart = lineEnd + 1;
+        }
+    }
+
+    private void parseLine(int start, int end, Columns columns) {
+        // String.trim(): everything up to and including ' ' is whitespace
+        while (start < end && (scratch[start] & 0xFF) <= ' ') {
+            start++;
+        }
+        while (end > start && (scratch[end - 1] & 0xFF) <= ' ') {
+            end--;
+        }
+        if (start == end) {
+            return;
+        }
+        // Each field is scanned once; the parsers leave the index of its ',' (or end) in next
+        malformed = false;
+        long timestamp = parseMillis(start, end);
+        float pitch = next < end ? parseFloat(next + 1, end) : 0f;
+        float roll = next < end ? parseFloat(next + 1, end) : 0f;
+        float yaw = next < end ? parseFloat(next + 1, end) : 0f;
+        if (next >= end) {
+            return; // fewer than five fields
+        }
+        float gForce = parseFloat(next + 1, end);
+        if (malformed) {
+            return;
+        }
+        byte direction = DIRECTION_NONE;
+        float speed = 0f;
+        if (next < end) {
+            direction = parseDirection(next + 1, end);
+            if (next < end) {
+                speed = parseFloat(next + 1, end);
+                if (malformed) {
+                    speed = 0f;
+                }
+            }
+        }
+
+        int row = columns.count;
+        columns.ensureCapacity(row + 1);
+        columns.timestamps[row] = timestamp;
+        columns.pitch[row] = pitch;
+        columns.roll[row] = roll;
+        columns.yaw[row] = yaw;
+        columns.gForce[row] = gForce;
+        columns.direction[row] = direction;
+        columns.speed[row] = speed;
+        columns.count = row + 1;
+    }
+
+    private int fieldEnd(int start, int end) {
+        int i = start;
+        while (i < end && scratch[i] != ',') {
+            i++;
+        }
+        return i;
+    }
+
+    private byte parseDirection(int start, int end) {
+        next = fieldEnd(start, end);
+        if (next - start == 3) {
+            byte a = scratch[start];
+            byte b = scratch[start + 1];
+            byte c = scratch[start + 2];
+            if (a == 'F' && b == 'w' && c == 'd') {
+                return DIRECTION_FORWARD;
+            }
+            if (a == 'R' && b == 'e' && c == 'v') {
+                return DIRECTION_REVERSE;
+            }
+        }
+        return DIRECTION_NONE;
+    }
+
+    // End of the field just parsed: its ',' or the end of the line
+    private int next;
+    // Scanned digits of a plain decimal: mantissa, digits after the point, sign
+    private long mantissa;
+    private int fractionDigits;
+    private boolean negative;
+
+    // Scans the field at start up to its ',' or end; false when it is not a plain decimal
+    // the fast paths cover. Sets next either way.
+    private boolean scanDecimal(int start, int end) {
+        int i = start;
+        while (i < end && (scratch[i] & 0xFF) <= ' ') {
+            i++;
+        }
+        negative = false;
+        if (i < end && (scratch[i] == '-' || scratch[i] == '+')) {
+            negative = scratch[i] == '-';
+            i++;
+        }
+        mantissa = 0;
+        fractionDigits = -1;
+        int digits = 0;
+        for (; i < end; i++) {
+            byte b = scratch[i];
+            if (b >= '0' && b <= '9') {
+                mantissa = mantissa * 10 + (b - '0');
+                digits++;
+                if (fractionDigits >= 0) {
+                    fractionDigits++;
+                }
+            } else if (b == '.' && fractionDigits < 0) {
+                fractionDigits = 0;
+            } else {
+                break;
+            }
+        }
+        while (i < end && scratch[i] != ',' && (scratch[i] & 0xFF) <= ' ') {
+            i++;
+        }
+        if (i < end && scratch[i] != ',') {
+            next = fieldEnd(i, end);
+            return false;
+        }
+        next = i;
+        if (fractionDigits < 0) {
+            fractionDigits = 0;
+        }
+        return digits > 0 && digits <= MAX_DIGITS;
+    }
+
+    private float parseFloat(int start, int end) {
+        if (scanDecimal(start, end)) {
+            float value;
+            if (mantissa < FLOAT_EXACT && fractionDigits < FLOAT_POW10.length) {
+                // Both operands exact, so the quotient is the correctly rounded float
+                value = mantissa / FLOAT_POW10[fractionDigits];
+                return negative ? -value : value;
+            }
+            if (mantissa < DOUBLE_EXACT && fractionDigits < DOUBLE_POW10.length) {
+                double exact = mantissa / DOUBLE_POW10[fractionDigits];
+                // Rounding twice can differ from parseFloat only if the double rounds to
+                // a value exactly halfway between two floats
+                if (!isFloatHalfway(exact)) {
+                    value = (float) exact;
+                    return negative ? -value : value;
+                }
+            }
+        }
+        try {
+            return Float.parseFloat(slowField(start, next));
+        } catch (NumberFormatException e) {
+            malformed = true;
+            return 0f;
+        }
+    }
+
+    private long parseMillis(int start, int end) {
+        if (scanDecimal(start, end) && fractionDigits <= 3
+                && mantissa < Long.MAX_VALUE / 1000) {
+            long millis = mantissa;
+            for (int i = fractionDigits; i < 3; i++) {
+                millis *= 10;
+            }
+            return negative ? -millis : millis;
+        }
+        try {
+            return Math.round(Double.parseDouble(slowField(start, next)) * 1000.0);
+        } catch (NumberFormatException e) {
+            malformed = true;
+            return 0;
+        }
+    }
+
+    private static boolean isFloatHalfway(double value) {
+        float rounded = (float) value;
+        double error = Math.abs(value - rounded);
+        return error != 0 && error == Math.ulp(rounded) / 2;
+    }
+
+    private String slowField(int start, int end) {
+        byte[] bytes = new byte[end - start];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = scratch[start + i];
+        }
+        return new String(bytes, StandardCharsets.ISO_8859_1);
+    }
+}
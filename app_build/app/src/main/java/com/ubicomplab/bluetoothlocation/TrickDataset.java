@@ -0,0 +1,121 @@
+package com.ubicomplab.bluetoothlocation;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeSet;
+
+/**
+ * Labelled trick clips in the BikeTrickData format, prepared the same way as
+ * load_real_data in training.py: one window per file, labelled by the filename prefix,
+ * padded with the last row or truncated to a fixed number of timesteps.
+ *
+ * Rows are "timestamp,pitch,roll,yaw,gForce,direction,speed"; only pitch, roll, yaw and
+ * gForce are model features.
+ */
+public class TrickDataset {
+    public static final int FEATURES = 4;
+
+    public final int timesteps;
+    public final String[] labels;   // sorted, index = class
+    public final String[] files;
+    public final float[][] windows; // [file][timesteps * FEATURES]
+    public final int[] classes;
+
+    private TrickDataset(int timesteps, String[] labels, String[] files, float[][] windows,
+                         int[] classes) {
+        this.timesteps = timesteps;
+        this.labels = labels;
+        this.files = files;
+        this.windows = windows;
+        this.classes = classes;
+    }
+
+    public int size() {
+        return windows.length;
+    }
+
+    public static TrickDataset load(File directory, int timesteps) throws IOException {
+        File[] found = directory.listFiles((dir, name) -> name.endsWith(".txt"));
+        if (found == null || found.length == 0) {
+            throw new IOException("No .txt files found in " + directory);
+        }
+        Arrays.sort(found);
+
+        TreeSet<String> names = new TreeSet<>();
+        for (File file : found) {
+            names.add(trickName(file.getName()));
+        }
+        List<String> labels = new ArrayList<>(names);
+
+        String[] files = new String[found.length];
+        float[][] windows = new float[found.length][];
+        int[] classes = new int[found.length];
+        for (int i = 0; i < found.length; i++) {
+            files[i] = found[i].getName();
+            float[] rows = readRows(found[i]);
+            windows[i] = toWindow(rows, rows.length / FEATURES, timesteps);
+            classes[i] = labels.indexOf(trickName(files[i]));
+        }
+        return new TrickDataset(timesteps, labels.toArray(new String[0]), files, windows, classes);
+    }
+
+    /** "HOPt10n_3.txt" and "HOPt10n.txt" are both labelled "HOPt10n". */
+    public static String trickName(String filename) {
+        if (filename.contains("_")) {
+            return filename.substring(0, filename.indexOf('_'));
+        }
+        return filename.replace(".txt", "");
+    }
+
+    /** A clip with its timestamps, as replayed by the benchmarks. */
+    public static class Recording {
+        public final long[] timestamps; // milliseconds
+        public final float[] rows;      // [row][FEATURES]
+        public final float[] speeds;    // km/h, 0 where the column is missing
+        public final int count;
+
+        Recording(long[] timestamps, float[] rows, float[] speeds, int count) {
+            this.timestamps = timestamps;
+            this.rows = rows;
+            this.speeds = speeds;
+            this.count = count;
+        }
+    }
+
+    /** Reads the feature columns of a clip as row-major [row][FEATURES]; skips bad lines. */
+    public static float[] readRows(File file) throws IOException {
+        Recording recording = readRecording(file);
+        return Arrays.copyOf(recording.rows, recording.count * FEATURES);
+    }
+
+    /** Parses a clip with TrickDataParser, which skips bad lines as training.py does. */
+    public static Recording readRecording(File file) throws IOException {
+        TrickDataParser.Columns columns = TrickDataParser.read(file);
+        int count = columns.count;
+        float[] rows = new float[count * FEATURES];
+        for (int i = 0; i < count; i++) {
+            int row = i * FEATURES;
+            rows[row] = columns.pitch[i];
+            rows[row + 1] = columns.roll[i];
+            rows[row + 2] = columns.yaw[i];
+            rows[row + 3] = columns.gForce[i];
+        }
+        return new Recording(columns.timestamps, rows, columns.speed, count);
+    }
+
+    /** Pads with the last row (zeros if empty) or truncates to timesteps rows. */
+    public static float[] toWindow(float[] rows, int rowCount, int timesteps) {
+        float[] window = new float[timesteps * FEATURES];
+        if (rowCount == 0) {
+            return window;
+        }
+        for (int t = 0; t < timesteps; t++) {
+            int source = Math.min(t, rowCount - 1) * FEATURES;
+            System.arraycopy(rows, source, window, t * FEATURES, FEATURES);
+        }
+        return window;
+    }
+}
@@ -0,0 +1,159 @@
+package com.ubicomplab.bluetoothlocation;
+
+/**
+ * Stage-0 gate of the trick cascade: cheap rolling checks that decide whether the current
+ * stretch of ride could contain a trick and is worth running the neural model on.
+ *
+ * Every check is O(1) per sample over a fixed-size ring:
+ *  - gForce variance over the ring (running sum and sum of squares),
+ *  - freefall, gForce below a threshold for a minimum number of samples,
+ *  - yaw rate, wrapped yaw change across the ring divided by its time span,
+ *  - firmware event codes (jump/drop) from the event characteristic.
+ *
+ * A trigger keeps the gate open for holdMillis, so a candidate segment spans from the
+ * first trigger to holdMillis after the last one. Not thread-safe, except that
+ * onFirmwareEvent() may be called from another thread.
+ */
+public class TrickGate {
+    // Event codes notified by the firmware's bleTask.
+    public static final int FIRMWARE_EVENT_JUMP = 1;
+    public static final int FIRMWARE_EVENT_DROP = 2;
+
+    // Reasons reported by getLastTrigger(), as bit flags.
+    public static final int TRIGGER_VARIANCE = 1;
+    public static final int TRIGGER_FREEFALL = 1 << 1;
+    public static final int TRIGGER_YAW_RATE = 1 << 2;
+    public static final int TRIGGER_FIRMWARE = 1 << 3;
+
+    private final int window;
+    private final float[] gForces;
+    private final float[] yaws;
+    private final long[] timestamps;
+    private int head;
+    private int filled;
+    private double sum;
+    private double sumSquares;
+
+    // Defaults keep every trick clip in BikeTrickData while idling on plain riding.
+    private float varianceThreshold = 0.4f;
+    private float freefallThreshold = 0.0f;
+    private int freefallSamples = 3;
+    private float yawRateThreshold = 300f; // deg/s
+    private long holdMillis = 1000;
+
+    private int freefallRun;
+    private volatile int pendingFirmwareEvent;
+    private long openUntil = Long.MIN_VALUE;
+    private int lastTrigger;
+
+    public TrickGate(int window) {
+        this.window = window;
+        gForces = new float[window];
+        yaws = new float[window];
+        timestamps = new long[window];
+    }
+
+    public void setVarianceThreshold(float threshold) {
+        varianceThreshold = threshold;
+    }
+
+    public void setFreefall(float threshold, int samples) {
+        freefallThreshold = threshold;
+        freefallSamples = samples;
+    }
+
+    public void setYawRateThreshold(float degreesPerSecond) {
+        yawRateThreshold = degreesPerSecond;
+    }
+
+    public void setHoldMillis(long holdMillis) {
+        this.holdMillis = holdMillis;
+    }
+
+    public long getHoldMillis() {
+        return holdMillis;
+    }
+
+    /** Firmware jump/drop notifications open the gate on the next sample. */
+    public void onFirmwareEvent(int code) {
+        if (code == FIRMWARE_EVENT_JUMP || code == FIRMWARE_EVENT_DROP) {
+            pendingFirmwareEvent = code;
+        }
+    }
+
+    public void reset() {
+        head = 0;
+        filled = 0;
+        sum = 0;
+        sumSquares = 0;
+        freefallRun = 0;
+        pendingFirmwareEvent = 0;
+        openUntil = Long.MIN_VALUE;
+        lastTrigger = 0;
+    }
+
+    /**
+     * Adds one sample and reports whether the gate is open at it.
+     */
+    public boolean push(long timestamp, float yaw, float gForce) {
+        if (filled == window) {
+            float evicted = gForces[head];
+            sum -= evicted;
+            sumSquares -= evicted * evicted;
+        } else {
+            filled++;
+        }
+        gForces[head] = gForce;
+        yaws[head] = yaw;
+        timestamps[head] = timestamp;
+        head = (head + 1) % window;
+        sum += gForce;
+        sumSquares += gForce * gForce;
+
+        int trigger = 0;
+        if (filled == window) {
+            double mean = sum / window;
+            double variance = sumSquares / window - mean * mean;
+            if (variance > varianceThreshold) {
+                trigger |= TRIGGER_VARIANCE;
+            }
+            long span = timestamp - timestamps[head];
+            if (span > 0) {
+                float change = Math.abs(wrapDegrees(yaw - yaws[head]));
+                if (change * 1000f / span > yawRateThreshold) {
+                    trigger |= TRIGGER_YAW_RATE;
+                }
+            }
+        }
+
+        freefallRun = gForce < freefallThreshold ? freefallRun + 1 : 0;
+        if (freefallRun >= freefallSamples) {
+            trigger |= TRIGGER_FREEFALL;
+        }
+        if (pendingFirmwareEvent != 0) {
+            pendingFirmwareEvent = 0;
+            trigger |= TRIGGER_FIRMWARE;
+        }
+
+        if (trigger != 0) {
+            lastTrigger = trigger;
+            openUntil = timestamp + holdMillis;
+        }
+        return timestamp <= openUntil;
+    }
+
+    /** Trigger flags of the most recent trigger. */
+    public int getLastTrigger() {
+        return lastTrigger;
+    }
+
+    static float wrapDegrees(float degrees) {
+        degrees %= 360f;
+        if (degrees > 180f) {
+            degrees -= 360f;
+        } else if (degrees < -180f) {
+            degrees += 360f;
+        }
+        return degrees;
+    }
+}
@@ -0,0 +1,498 @@
+package com.ubicomplab.bluetoothlocation;
+
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * On-device fine-tuning of the trick model's dense head to one rider.
+ *
+ * The convolutions and the LSTM stay frozen, so each labelled clip is reduced once to its
+ * LSTM output (units floats, the embedding) and cached, along with augmentCopies
+ * ImuAugmenter copies of it. Training then only runs the head, Dense(relu) -> Dropout(0.5)
+ * -> Dense(softmax) as in training.py, with Adam on minibatches of cached embeddings and a
+ * small pull back towards the shipped head so a handful of clips cannot drag it far.
+ *
+ * The newest holdout clips are kept out of training: their originals, not the augmented
+ * copies, are what decides a swap, so the head is judged on takes it has not fitted. When a
+ * newer clip arrives the oldest held-out one graduates into the cache with its copies.
+ *
+ * Everything runs on one background-priority thread, and the cache, parameters, gradients
+ * and optimizer state are allocated up front. train() stops at its wall-clock or thread
+ * CPU budget; the new head is published only if it has a lower loss on the held-out clips
+ * than the current one, as a new TrickModelWeights sharing the frozen tensors, which the
+ * listener passes to TrickModel.setWeights() (or StreamingTrickModel's). The swap is a
+ * single reference store, so a classification in flight finishes on the old head.
+ */
+public class TrickHeadTrainer {
+    private static final String TAG = "TrickHeadTrainer";
+    public static final int HEAD_MAGIC = 0x4D425448; // "MBTH"
+    public static final int HEAD_VERSION = 1;
+
+    // Adam as training.py compiles it, at half its learning rate for fine-tuning
+    private static final float LEARNING_RATE = 0.001f;
+    private static final float BETA1 = 0.9f;
+    private static final float BETA2 = 0.999f;
+    private static final float EPSILON = 1e-7f;
+    private static final float DROPOUT = 0.5f;
+    private static final int BATCH = 32;
+    // L2 pull of every head parameter towards its shipped value
+    private static final float ANCHOR = 1e-3f;
+
+    /** Called on the training thread; result is null for a head from restoreHead(). */
+    public interface Listener {
+        void onHeadUpdated(TrickModelWeights weights, Result result);
+    }
+
+    /**
+     * What one train() call did; losses and accuracies are over the held-out clips, mean
+     * cross-entropy.
+     */
+    public static class Result {
+        public final int examples;
+        public final int heldOut;
+        public final int epochs;
+        public final int steps;
+        public final float lossBefore;
+        public final float lossAfter;
+        public final float accuracyBefore;
+        public final float accuracyAfter;
+        public final long wallMillis;
+        public final long cpuMillis;
+        public final boolean swapped;
+
+        Result(int examples, int heldOut, int epochs, int steps, float lossBefore,
+               float lossAfter, float accuracyBefore, float accuracyAfter, long wallMillis,
+               long cpuMillis, boolean swapped) {
+            this.examples = examples;
+            this.heldOut = heldOut;
+            this.epochs = epochs;
+            this.steps = steps;
+            this.lossBefore = lossBefore;
+            this.lossAfter = lossAfter;
+            this.accuracyBefore = accuracyBefore;
+            this.accuracyAfter = accuracyAfter;
+            this.wallMillis = wallMillis;
+            this.cpuMillis = cpuMillis;
+            this.swapped = swapped;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US,
+                    "%d examples, %d epochs / %d steps in %d ms (%d ms CPU): held-out (%d)"
+                            + " loss %.3f -> %.3f, accuracy %.1f%% -> %.1f%%, %s",
+                    examples, epochs, steps, wallMillis, cpuMillis, heldOut, lossBefore,
+                    lossAfter, 100 * accuracyBefore, 100 * accuracyAfter,
+                    swapped ? "swapped in" : "kept");
+        }
+    }
+
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(r ->
+            new Thread(() -> {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                r.run();
+            }, TAG));
+
+    private final TrickModelWeights base;
+    private final Listener listener;
+    private final int units;
+    private final int hidden;
+    private final int classes;
+    private final int timesteps;
+    private final int augmentCopies;
+    private final int holdout;
+    private volatile TrickModelWeights current;
+    private volatile boolean closed;
+
+    // Touched only on the executor thread from here on
+    private final TrickModel extractor;
+    private final Random random;
+    private final float[][] clipWindows;
+    private final int[] clipLabel = new int[1];
+    private final int[] clipClasses;
+
+    private final float[] embeddings;
+    private final int[] labels;
+    private int size;
+    private int next;
+    private final int[] order;
+
+    // Held-out clips, each slot the original's embedding and then its copies'
+    private final float[] heldEmbeddings;
+    private final int[] heldLabels;
+    private int heldSize;
+    private int heldNext;
+
+    private final float[] w1;
+    private final float[] b1;
+    private final float[] w2;
+    private final float[] b2;
+    private final float[] gw1;
+    private final float[] gb1;
+    private final float[] gw2;
+    private final float[] gb2;
+    private final float[][] m;
+    private final float[][] v;
+    private int adamSteps;
+
+    private final float[] input;
+    private final float[] activations;
+    private final float[] mask;
+    private final float[] outputs;
+
+    /**
+     * @param base          the shipped weights; their head is where training starts and what
+     *                      it is pulled back towards
+     * @param capacity      cached embeddings; the oldest are overwritten when it is full
+     * @param augmentCopies ImuAugmenter copies cached alongside each added clip
+     * @param holdout       newest clips kept out of training to judge the head on
+     */
+    public TrickHeadTrainer(TrickModelWeights base, int capacity, int augmentCopies, int holdout,
+                            long seed, Listener listener) {
+        if (holdout < 1) {
+            throw new IllegalArgumentException("A swap needs at least one held-out clip");
+        }
+        this.base = base;
+        this.listener = listener;
+        this.augmentCopies = augmentCopies;
+        this.holdout = holdout;
+        current = base;
+        units = base.units;
+        hidden = base.hidden;
+        classes = base.classes;
+        timesteps = base.timesteps;
+
+        extractor = new TrickModel(base);
+        random = new Random(seed);
+        clipWindows = ImuAugmenter.allocate(1, timesteps, augmentCopies);
+        clipClasses = new int[clipWindows.length];
+
+        embeddings = new float[capacity * units];
+        labels = new int[capacity];
+        order = new int[capacity];
+        heldEmbeddings = new float[holdout * clipWindows.length * units];
+        heldLabels = new int[holdout];
+
+        w1 = new float[base.dense1Weights.length];
+        b1 = new float[base.dense1Bias.length];
+        w2 = new float[base.dense2Weights.length];
+        b2 = new float[base.dense2Bias.length];
+        gw1 = new float[w1.length];
+        gb1 = new float[b1.length];
+        gw2 = new float[w2.length];
+        gb2 = new float[b2.length];
+        m = new float[][]{new float[w1.length], new float[b1.length],
+                new float[w2.length], new float[b2.length]};
+        v = new float[][]{new float[w1.length], new float[b1.length],
+                new float[w2.length], new float[b2.length]};
+
+        input = new float[units];
+        activations = new float[hidden];
+        mask = new float[hidden];
+        outputs = new float[classes];
+    }
+
+    /** The weights with the newest published head (the base weights until one is). */
+    public TrickModelWeights getWeights() {
+        return current;
+    }
+
+    /**
+     * Queues a labelled clip (row-major pitch, roll, yaw, gForce, padded or truncated to the
+     * model's timesteps) to be embedded and cached with its augmented copies.
+     */
+    public CompletableFuture<Void> addExample(float[] window, int rows, int label) {
+        if (label < 0 || label >= classes) {
+            throw new IllegalArgumentException("No class " + label);
+        }
+        float[] copy = TrickDataset.toWindow(window, rows, timesteps);
+        return CompletableFuture.runAsync(() -> cacheClip(copy, label), executor);
+    }
+
+    /** Cached training embeddings, including augmented copies; held-out clips are not. */
+    public CompletableFuture<Integer> getExampleCount() {
+        return CompletableFuture.supplyAsync(() -> size, executor);
+    }
+
+    /**
+     * Fine-tunes the head on the cache until maxEpochs passes, or until either budget runs
+     * out, and publishes it if it improved.
+     */
+    public CompletableFuture<Result> train(int maxEpochs, long wallBudgetMillis,
+                                           long cpuBudgetMillis) {
+        return CompletableFuture.supplyAsync(
+                () -> trainHead(maxEpochs, wallBudgetMillis, cpuBudgetMillis), executor);
+    }
+
+    /** Stops any training at its next step; queued work is dropped. */
+    public void close() {
+        closed = true;
+        executor.shutdownNow();
+    }
+
+    private void cacheClip(float[] window, int label) {
+        int slotSize = clipWindows.length * units;
+        if (heldSize == holdout) {
+            // The oldest held-out clip graduates, copies and all
+            for (int k = 0; k < clipWindows.length; k++) {
+                System.arraycopy(heldEmbeddings, heldNext * slotSize + k * units,
+                        embeddings, next * units, units);
+                labels[next] = heldLabels[heldNext];
+                next = (next + 1) % labels.length;
+                size = Math.min(size + 1, labels.length);
+            }
+        } else {
+            heldSize++;
+        }
+        float[][] windows = augmentClip(window, label);
+        for (int k = 0; k < windows.length; k++) {
+            extractor.embed(windows[k], timesteps, input);
+            System.arraycopy(input, 0, heldEmbeddings, heldNext * slotSize + k * units, units);
+        }
+        heldLabels[heldNext] = label;
+        heldNext = (heldNext + 1) % holdout;
+    }
+
+    /**
+     * The clip and its augmented copies, the original first as augment() lays them out, in
+     * arrays reused by the next call. ImuAugmenter seeds each copy from its seed and the
+     * copy's index, which is the same for every clip, so each clip gets a seed of its own;
+     * otherwise every clip's copies would share their noise, scale, shift and dropout.
+     */
+    float[][] augmentClip(float[] window, int label) {
+        clipLabel[0] = label;
+        new ImuAugmenter(random.nextLong(), null).augment(new float[][]{window}, clipLabel, 1,
+                timesteps, augmentCopies, clipWindows, clipClasses);
+        return clipWindows;
+    }
+
+    private Result trainHead(int maxEpochs, long wallBudgetMillis, long cpuBudgetMillis) {
+        long wallStart = SystemClock.uptimeMillis();
+        long cpuStart = SystemClock.currentThreadTimeMillis();
+        TrickModelWeights from = current;
+        System.arraycopy(from.dense1Weights, 0, w1, 0, w1.length);
+        System.arraycopy(from.dense1Bias, 0, b1, 0, b1.length);
+        System.arraycopy(from.dense2Weights, 0, w2, 0, w2.length);
+        System.arraycopy(from.dense2Bias, 0, b2, 0, b2.length);
+        for (int i = 0; i < m.length; i++) {
+            Arrays.fill(m[i], 0f);
+            Arrays.fill(v[i], 0f);
+        }
+        adamSteps = 0;
+
+        float[] before = evaluate(from.dense1Weights, from.dense1Bias,
+                from.dense2Weights, from.dense2Bias);
+        int epochs = 0;
+        int steps = 0;
+        boolean withinBudget = size > 0;
+        while (withinBudget && epochs < maxEpochs) {
+            for (int i = 0; i < size; i++) {
+                order[i] = i;
+            }
+            for (int i = size - 1; i > 0; i--) {
+                int j = random.nextInt(i + 1);
+                int swap = order[i];
+                order[i] = order[j];
+                order[j] = swap;
+            }
+            for (int start = 0; start < size; start += BATCH) {
+                if (closed || SystemClock.uptimeMillis() - wallStart >= wallBudgetMillis
+                        || SystemClock.currentThreadTimeMillis() - cpuStart >= cpuBudgetMillis) {
+                    withinBudget = false;
+                    break;
+                }
+                step(start, Math.min(start + BATCH, size));
+                steps++;
+            }
+            if (withinBudget) {
+                epochs++;
+            }
+        }
+
+        float[] after = evaluate(w1, b1, w2, b2);
+        boolean swapped = steps > 0 && after[0] < before[0] && !closed;
+        long wallMillis = SystemClock.uptimeMillis() - wallStart;
+        long cpuMillis = SystemClock.currentThreadTimeMillis() - cpuStart;
+        Result result = new Result(size, heldSize, epochs, steps, before[0], after[0],
+                before[1], after[1], wallMillis, cpuMillis, swapped);
+        Log.i(TAG, result.toString());
+        if (swapped) {
+            TrickModelWeights updated = from.withHead(w1.clone(), b1.clone(), w2.clone(), b2.clone());
+            current = updated;
+            if (listener != null) {
+                listener.onHeadUpdated(updated, result);
+            }
+        }
+        return result;
+    }
+
+    // One Adam step on the cached examples order[from, to), with dropout on the hidden layer.
+    private void step(int from, int to) {
+        Arrays.fill(gw1, 0f);
+        Arrays.fill(gb1, 0f);
+        Arrays.fill(gw2, 0f);
+        Arrays.fill(gb2, 0f);
+        float keep = 1f - DROPOUT;
+        for (int n = from; n < to; n++) {
+            int example = order[n];
+            System.arraycopy(embeddings, example * units, input, 0, units);
+            TrickModel.denseLayer(w1, b1, units, hidden, input, activations, true);
+            for (int j = 0; j < hidden; j++) {
+                mask[j] = random.nextFloat() < DROPOUT ? 0f : 1f / keep;
+                activations[j] *= mask[j];
+            }
+            TrickModel.denseLayer(w2, b2, hidden, classes, activations, outputs, false);
+            TrickModel.softmax(outputs, classes);
+
+            // Softmax cross-entropy: the output gradient is p - onehot(label)
+            outputs[labels[example]] -= 1f;
+            for (int o = 0, k = 0; o < classes; o++, k += hidden) {
+                gb2[o] += outputs[o];
+                for (int j = 0; j < hidden; j++) {
+                    gw2[k + j] += outputs[o] * activations[j];
+                }
+            }
+            for (int j = 0, k = 0; j < hidden; j++, k += units) {
+                if (activations[j] <= 0f) {
+                    continue; // ReLU off or dropped
+                }
+                float gradient = 0f;
+                for (int o = 0; o < classes; o++) {
+                    gradient += w2[o * hidden + j] * outputs[o];
+                }
+                gradient *= mask[j];
+                gb1[j] += gradient;
+                for (int i = 0; i < units; i++) {
+                    gw1[k + i] += gradient * input[i];
+                }
+            }
+        }
+
+        adamSteps++;
+        float scale = 1f / (to - from);
+        float correction1 = 1f - (float) Math.pow(BETA1, adamSteps);
+        float correction2 = 1f - (float) Math.pow(BETA2, adamSteps);
+        adam(w1, gw1, m[0], v[0], base.dense1Weights, scale, correction1, correction2);
+        adam(b1, gb1, m[1], v[1], base.dense1Bias, scale, correction1, correction2);
+        adam(w2, gw2, m[2], v[2], base.dense2Weights, scale, correction1, correction2);
+        adam(b2, gb2, m[3], v[3], base.dense2Bias, scale, correction1, correction2);
+    }
+
+    private static void adam(float[] parameters, float[] gradients, float[] m, float[] v,
+                             float[] anchor, float scale, float correction1, float correction2) {
+        for (int i = 0; i < parameters.length; i++) {
+            float g = gradients[i] * scale + ANCHOR * (parameters[i] - anchor[i]);
+            m[i] = BETA1 * m[i] + (1f - BETA1) * g;
+            v[i] = BETA2 * v[i] + (1f - BETA2) * g * g;
+            float mHat = m[i] / correction1;
+            float vHat = v[i] / correction2;
+            parameters[i] -= LEARNING_RATE * mHat / ((float) Math.sqrt(vHat) + EPSILON);
+        }
+    }
+
+    // {mean cross-entropy, accuracy} of a head over the held-out originals, without dropout
+    private float[] evaluate(float[] w1, float[] b1, float[] w2, float[] b2) {
+        int slotSize = clipWindows.length * units;
+        double loss = 0;
+        int correct = 0;
+        for (int n = 0; n < heldSize; n++) {
+            System.arraycopy(heldEmbeddings, n * slotSize, input, 0, units);
+            TrickModel.denseLayer(w1, b1, units, hidden, input, activations, true);
+            TrickModel.denseLayer(w2, b2, hidden, classes, activations, outputs, false);
+            int best = TrickModel.softmax(outputs, classes);
+            loss -= Math.log(Math.max(outputs[heldLabels[n]], 1e-7f));
+            correct += best == heldLabels[n] ? 1 : 0;
+        }
+        return heldSize == 0 ? new float[]{0f, 0f}
+                : new float[]{(float) (loss / heldSize), (float) correct / heldSize};
+    }
+
+    /**
+     * Writes the current head next to the app's data, so a restart keeps it. The file is
+     * replaced atomically.
+     */
+    public void saveHead(File file) throws IOException {
+        TrickModelWeights w = current;
+        ByteBuffer buffer = ByteBuffer.allocate(20 + 4 * (w.dense1Weights.length
+                + w.dense1Bias.length + w.dense2Weights.length + w.dense2Bias.length))
+                .order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(HEAD_MAGIC).putInt(HEAD_VERSION).putInt(w.units).putInt(w.hidden)
+                .putInt(w.classes);
+        for (float[] tensor : new float[][]{w.dense1Weights, w.dense1Bias,
+                w.dense2Weights, w.dense2Bias}) {
+            for (float value : tensor) {
+                buffer.putFloat(value);
+            }
+        }
+        File temporary = new File(file.getPath() + ".tmp");
+        try (OutputStream out = new FileOutputStream(temporary)) {
+            out.write(buffer.array());
+        }
+        if (!temporary.renameTo(file)) {
+            throw new IOException("Cannot replace " + file);
+        }
+    }
+
+    /**
+     * Publishes a head written by saveHead() for the same model, as if it had just been
+     * trained; call it before the first train(). The file is read on the calling thread and
+     * getWeights() returns the head at once, but the listener is told on the training
+     * thread, like every other update. Returns false if there is no such file.
+     */
+    public boolean restoreHead(File file) throws IOException {
+        if (!file.exists()) {
+            return false;
+        }
+        byte[] bytes;
+        try (InputStream in = new FileInputStream(file)) {
+            bytes = new byte[(int) file.length()];
+            int read = 0;
+            while (read < bytes.length) {
+                int n = in.read(bytes, read, bytes.length - read);
+                if (n < 0) {
+                    throw new IOException("Head file is truncated");
+                }
+                read += n;
+            }
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+        if (buffer.remaining() < 20 || buffer.getInt() != HEAD_MAGIC
+                || buffer.getInt() != HEAD_VERSION) {
+            throw new IOException("Not a trick model head file");
+        }
+        if (buffer.getInt() != units || buffer.getInt() != hidden || buffer.getInt() != classes) {
+            throw new IOException("Head file is for a different model");
+        }
+        float[][] head = {new float[w1.length], new float[b1.length],
+                new float[w2.length], new float[b2.length]};
+        for (float[] tensor : head) {
+            if (buffer.remaining() < 4 * tensor.length) {
+                throw new IOException("Head file is truncated");
+            }
+            buffer.asFloatBuffer().get(tensor);
+            buffer.position(buffer.position() + 4 * tensor.length);
+        }
+        TrickModelWeights restored = base.withHead(head[0], head[1], head[2], head[3]);
+        current = restored;
+        if (listener != null) {
+            executor.execute(() -> listener.onHeadUpdated(restored, null));
+        }
+        return true;
+    }
+}
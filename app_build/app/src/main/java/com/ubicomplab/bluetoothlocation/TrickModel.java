@@ -0,0 +1,231 @@
+package com.ubicomplab.bluetoothlocation;
+
+import java.util.Arrays;
+
+/**
+ * Float implementation of the CNN+LSTM trick detector from training.py, evaluated over a
+ * whole window at once. All buffers are allocated up front, so classify() does not
+ * allocate; an instance is not thread-safe.
+ *
+ * Windows are row-major [row][feature] arrays of pitch, roll, yaw, gForce. Windows shorter
+ * than the model's timesteps are padded with their last row and longer ones are truncated,
+ * the same way load_real_data prepares the training set.
+ *
+ * setWeights() swaps in weights of the same shape, e.g. a head fine-tuned by
+ * TrickHeadTrainer; each classify() reads the weights once, so it sees either the old or
+ * the new set, never a mix.
+ */
+public class TrickModel {
+    // Half widths of the "same" padded convolutions.
+    static final int HALO_7 = 3;
+    static final int HALO_5 = 2;
+
+    private volatile TrickModelWeights weights;
+    private final int timesteps;
+    private final int pooled1;
+    private final int pooled2;
+
+    private final float[] input;
+    private final float[] conv1;
+    private final float[] pool1;
+    private final float[] conv2;
+    private final float[] pool2;
+    private final float[] h;
+    private final float[] c;
+    private final float[] gates;
+    private final float[] dense;
+
+    public TrickModel(TrickModelWeights weights) {
+        this.weights = weights;
+        timesteps = weights.timesteps;
+        pooled1 = timesteps / 2;
+        pooled2 = pooled1 / 2;
+        input = new float[(timesteps + 2 * HALO_7) * weights.features];
+        conv1 = new float[timesteps * weights.channels];
+        pool1 = new float[(pooled1 + 2 * HALO_5) * weights.channels];
+        conv2 = new float[pooled1 * weights.filters];
+        pool2 = new float[pooled2 * weights.filters];
+        h = new float[weights.units];
+        c = new float[weights.units];
+        gates = new float[4 * weights.units];
+        dense = new float[weights.hidden];
+    }
+
+    public TrickModelWeights getWeights() {
+        return weights;
+    }
+
+    /** Replaces the weights; safe to call from another thread than classify(). */
+    public void setWeights(TrickModelWeights weights) {
+        if (!weights.sameShape(this.weights)) {
+            throw new IllegalArgumentException("Weights have a different shape");
+        }
+        this.weights = weights;
+    }
+
+    /**
+     * Classifies one window and writes the softmax output into probabilities.
+     *
+     * @return the index of the most likely class
+     */
+    public int classify(float[] window, int rows, float[] probabilities) {
+        TrickModelWeights w = weights;
+        extract(w, window, rows);
+        return head(w, h, dense, probabilities);
+    }
+
+    /** Writes the LSTM output for one window, the input of the dense head, into embedding. */
+    public void embed(float[] window, int rows, float[] embedding) {
+        TrickModelWeights w = weights;
+        extract(w, window, rows);
+        System.arraycopy(h, 0, embedding, 0, w.units);
+    }
+
+    // Runs the convolutions and the LSTM, leaving the final state in h.
+    private void extract(TrickModelWeights w, float[] window, int rows) {
+        int features = w.features;
+        int channels = w.channels;
+        int filters = w.filters;
+
+        // Zero halos give the "same" padding of the first convolutions.
+        int last = Math.min(rows, timesteps) - 1;
+        for (int t = 0; t < timesteps; t++) {
+            int source = (t <= last ? t : last) * features;
+            int target = (t + HALO_7) * features;
+            for (int f = 0; f < features; f++) {
+                input[target + f] = last < 0 ? 0f : window[source + f];
+            }
+        }
+
+        for (int t = 0; t < timesteps; t++) {
+            branchColumn(w, input, t * features, conv1, t * channels);
+        }
+
+        maxPool(conv1, pooled1, channels, pool1, HALO_5 * channels);
+        for (int t = 0; t < pooled1; t++) {
+            int out = t * filters;
+            conv(w.conv5Kernel, w.conv5Bias, filters, 5 * channels, pool1, t * channels, conv2, out);
+            normalize(w.norm2Scale, w.norm2Shift, conv2, out, filters);
+        }
+        maxPool(conv2, pooled2, filters, pool2, 0);
+
+        Arrays.fill(h, 0f);
+        Arrays.fill(c, 0f);
+        for (int t = 0; t < pooled2; t++) {
+            lstmStep(w, pool2, t * filters, h, c, gates);
+        }
+    }
+
+    // Both branch convolutions for one row, given its 7-row neighbourhood starting at
+    // inOff, followed by the first batch norm.
+    static void branchColumn(TrickModelWeights w, float[] in, int inOff, float[] out, int outOff) {
+        int features = w.features;
+        int branch = w.branchFilters;
+        conv(w.conv3Kernel, w.conv3Bias, branch, 3 * features, in, inOff + 2 * features, out, outOff);
+        conv(w.conv7Kernel, w.conv7Bias, branch, 7 * features, in, inOff, out, outOff + branch);
+        normalize(w.norm1Scale, w.norm1Shift, out, outOff, w.channels);
+    }
+
+    // One output column of a ReLU convolution whose receptive field is the span of
+    // contiguous inputs starting at inOff.
+    static void conv(float[] kernel, float[] bias, int filters, int span,
+                     float[] in, int inOff, float[] out, int outOff) {
+        for (int f = 0, k = 0; f < filters; f++, k += span) {
+            float acc = bias[f];
+            for (int i = 0; i < span; i++) {
+                acc += kernel[k + i] * in[inOff + i];
+            }
+            out[outOff + f] = acc > 0f ? acc : 0f;
+        }
+    }
+
+    static void normalize(float[] scale, float[] shift, float[] values, int offset, int count) {
+        for (int i = 0; i < count; i++) {
+            values[offset + i] = values[offset + i] * scale[i] + shift[i];
+        }
+    }
+
+    static void maxPool(float[] in, int rows, int width, float[] out, int outOff) {
+        for (int r = 0; r < rows; r++) {
+            int a = 2 * r * width;
+            int b = a + width;
+            int o = outOff + r * width;
+            for (int i = 0; i < width; i++) {
+                out[o + i] = Math.max(in[a + i], in[b + i]);
+            }
+        }
+    }
+
+    // Advances the LSTM state by one input row.
+    static void lstmStep(TrickModelWeights w, float[] x, int xOff, float[] h, float[] c,
+                         float[] gates) {
+        int units = w.units;
+        int inputs = w.filters;
+        for (int g = 0; g < 4 * units; g++) {
+            float acc = w.lstmBias[g];
+            int k = g * inputs;
+            for (int i = 0; i < inputs; i++) {
+                acc += w.lstmKernel[k + i] * x[xOff + i];
+            }
+            int r = g * units;
+            for (int i = 0; i < units; i++) {
+                acc += w.lstmRecurrent[r + i] * h[i];
+            }
+            gates[g] = acc;
+        }
+        lstmCell(gates, h, c, units);
+    }
+
+    // Applies the gate nonlinearities to pre-activations stacked i, f, c, o.
+    static void lstmCell(float[] gates, float[] h, float[] c, int units) {
+        for (int u = 0; u < units; u++) {
+            float i = sigmoid(gates[u]);
+            float f = sigmoid(gates[units + u]);
+            float g = (float) Math.tanh(gates[2 * units + u]);
+            float o = sigmoid(gates[3 * units + u]);
+            c[u] = f * c[u] + i * g;
+            h[u] = o * (float) Math.tanh(c[u]);
+        }
+    }
+
+    // Dense(relu) followed by Dense(softmax) on the LSTM output.
+    static int head(TrickModelWeights w, float[] features, float[] hidden, float[] probabilities) {
+        denseLayer(w.dense1Weights, w.dense1Bias, w.units, w.hidden, features, hidden, true);
+        denseLayer(w.dense2Weights, w.dense2Bias, w.hidden, w.classes, hidden, probabilities, false);
+        return softmax(probabilities, w.classes);
+    }
+
+    static void denseLayer(float[] weights, float[] bias, int inputs, int outputs,
+                           float[] in, float[] out, boolean relu) {
+        for (int o = 0, k = 0; o < outputs; o++, k += inputs) {
+            float acc = bias[o];
+            for (int i = 0; i < inputs; i++) {
+                acc += weights[k + i] * in[i];
+            }
+            out[o] = relu && acc < 0f ? 0f : acc;
+        }
+    }
+
+    static int softmax(float[] values, int count) {
+        int best = 0;
+        for (int i = 1; i < count; i++) {
+            if (values[i] > values[best]) {
+                best = i;
+            }
+        }
+        float max = values[best];
+        float sum = 0f;
+        for (int i = 0; i < count; i++) {
+            values[i] = (float) Math.exp(values[i] - max);
+            sum += values[i];
+        }
+        for (int i = 0; i < count; i++) {
+            values[i] /= sum;
+        }
+        return best;
+    }
+
+    static float sigmoid(float x) {
+        return 1f / (1f + (float) Math.exp(-x));
+    }
+}
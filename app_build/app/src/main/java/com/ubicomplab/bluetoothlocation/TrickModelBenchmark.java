@@ -0,0 +1,100 @@
+package com.ubicomplab.bluetoothlocation;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Locale;
+
+/**
+ * Side-by-side accuracy and latency of the float and int8 trick model paths.
+ *
+ * Runs on a workstation JVM:
+ *   java ... TrickModelBenchmark trick_detector_weights.bin tensorflow/BikeTrickData [iterations]
+ */
+public class TrickModelBenchmark {
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("usage: TrickModelBenchmark <weights.bin> <data dir> [iterations]");
+            System.exit(1);
+        }
+        TrickModelWeights weights;
+        try (InputStream in = new FileInputStream(args[0])) {
+            weights = TrickModelWeights.load(in);
+        }
+        TrickDataset data = TrickDataset.load(new File(args[1]), weights.timesteps);
+        int iterations = args.length > 2 ? Integer.parseInt(args[2]) : 20;
+
+        TrickModel floatModel = new TrickModel(weights);
+        float[] ranges = QuantizedTrickModel.calibrate(data.windows, TrickDataset.FEATURES);
+        QuantizedTrickModel int8Model = new QuantizedTrickModel(weights, ranges);
+
+        float[] floatProbabilities = new float[weights.classes];
+        float[] int8Probabilities = new float[weights.classes];
+        int floatCorrect = 0;
+        int int8Correct = 0;
+        int agree = 0;
+        float maxProbabilityError = 0f;
+        for (int i = 0; i < data.size(); i++) {
+            int a = floatModel.classify(data.windows[i], data.timesteps, floatProbabilities);
+            int b = int8Model.classify(data.windows[i], data.timesteps, int8Probabilities);
+            floatCorrect += a == data.classes[i] ? 1 : 0;
+            int8Correct += b == data.classes[i] ? 1 : 0;
+            agree += a == b ? 1 : 0;
+            for (int k = 0; k < weights.classes; k++) {
+                maxProbabilityError = Math.max(maxProbabilityError,
+                        Math.abs(floatProbabilities[k] - int8Probabilities[k]));
+            }
+        }
+
+        // Warm up both paths before timing so the JIT has compiled the inner loops.
+        timeFloat(floatModel, data, floatProbabilities, iterations);
+        timeInt8(int8Model, data, int8Probabilities, iterations);
+        double floatMicros = timeFloat(floatModel, data, floatProbabilities, iterations);
+        double int8Micros = timeInt8(int8Model, data, int8Probabilities, iterations);
+
+        int n = data.size();
+        System.out.println(String.format(Locale.US, "%d clips, %d timesteps, classes %s",
+                n, data.timesteps, String.join("/", data.labels)));
+        System.out.println(String.format(Locale.US, "input ranges  %.2f %.2f %.2f %.2f",
+                ranges[0], ranges[1], ranges[2], ranges[3]));
+        System.out.println(String.format(Locale.US, "%-6s %9s %12s %12s",
+                "path", "accuracy", "us/window", "weight KiB"));
+        System.out.println(String.format(Locale.US, "%-6s %8.1f%% %12.1f %12.1f", "float",
+                100.0 * floatCorrect / n, floatMicros, 4 * floatWeightCount(weights) / 1024.0));
+        System.out.println(String.format(Locale.US, "%-6s %8.1f%% %12.1f %12.1f", "int8",
+                100.0 * int8Correct / n, int8Micros, int8Model.getWeightBytes() / 1024.0));
+        System.out.println(String.format(Locale.US,
+                "agreement %.1f%%, max probability difference %.4f, speedup %.2fx",
+                100.0 * agree / n, maxProbabilityError, floatMicros / int8Micros));
+    }
+
+    private static double timeFloat(TrickModel model, TrickDataset data, float[] out,
+                                    int iterations) {
+        long start = System.nanoTime();
+        for (int it = 0; it < iterations; it++) {
+            for (float[] window : data.windows) {
+                model.classify(window, data.timesteps, out);
+            }
+        }
+        return (System.nanoTime() - start) / 1000.0 / iterations / data.size();
+    }
+
+    private static double timeInt8(QuantizedTrickModel model, TrickDataset data, float[] out,
+                                   int iterations) {
+        long start = System.nanoTime();
+        for (int it = 0; it < iterations; it++) {
+            for (float[] window : data.windows) {
+                model.classify(window, data.timesteps, out);
+            }
+        }
+        return (System.nanoTime() - start) / 1000.0 / iterations / data.size();
+    }
+
+    private static int floatWeightCount(TrickModelWeights w) {
+        return w.conv3Kernel.length + w.conv7Kernel.length + w.conv5Kernel.length
+                + w.lstmKernel.length + w.lstmRecurrent.length
+                + w.dense1Weights.length + w.dense2Weights.length;
+    }
+}
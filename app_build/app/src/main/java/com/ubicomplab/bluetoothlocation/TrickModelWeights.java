@@ -0,0 +1,230 @@
+package com.ubicomplab.bluetoothlocation;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Weights of the CNN+LSTM trick detector, read from the file written by
+ * export_java_weights in training.py.
+ *
+ * Kernels are re-laid out at load time so that every output unit owns one contiguous
+ * row of weights: conv kernels become [filter][kernel][channel] and dense/LSTM kernels
+ * become [unit][input]. That keeps the inner loops of the inference paths to plain
+ * dot products over adjacent memory.
+ */
+public class TrickModelWeights {
+    public static final int MAGIC = 0x4D425457; // "MBTW"
+    public static final int VERSION = 1;
+    private static final int TENSOR_COUNT = 16;
+
+    public final int timesteps;
+    public final int features;
+    public final int classes;
+
+    // Branch convolutions, concatenated as [kernel 3 | kernel 7].
+    public final int branchFilters;
+    public final float[] conv3Kernel;
+    public final float[] conv3Bias;
+    public final float[] conv7Kernel;
+    public final float[] conv7Bias;
+    public final float[] norm1Scale;
+    public final float[] norm1Shift;
+
+    // Second convolution over the pooled branch features.
+    public final int channels;
+    public final int filters;
+    public final float[] conv5Kernel;
+    public final float[] conv5Bias;
+    public final float[] norm2Scale;
+    public final float[] norm2Shift;
+
+    // LSTM gates are stacked i, f, c, o as in Keras.
+    public final int units;
+    public final float[] lstmKernel;
+    public final float[] lstmRecurrent;
+    public final float[] lstmBias;
+
+    public final int hidden;
+    public final float[] dense1Weights;
+    public final float[] dense1Bias;
+    public final float[] dense2Weights;
+    public final float[] dense2Bias;
+
+    public static TrickModelWeights load(InputStream in) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] chunk = new byte[8192];
+        int read;
+        while ((read = in.read(chunk)) != -1) {
+            bytes.write(chunk, 0, read);
+        }
+        return new TrickModelWeights(ByteBuffer.wrap(bytes.toByteArray()));
+    }
+
+    public TrickModelWeights(ByteBuffer buffer) throws IOException {
+        buffer = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        if (buffer.remaining() < 24 || buffer.getInt() != MAGIC) {
+            throw new IOException("Not a trick model weights file");
+        }
+        int version = buffer.getInt();
+        if (version != VERSION) {
+            throw new IOException("Unsupported weights version " + version);
+        }
+        timesteps = buffer.getInt();
+        features = buffer.getInt();
+        classes = buffer.getInt();
+        int tensorCount = buffer.getInt();
+        if (tensorCount != TENSOR_COUNT) {
+            throw new IOException("Expected " + TENSOR_COUNT + " tensors, found " + tensorCount);
+        }
+
+        int[] shape = new int[3];
+        float[] k3 = readTensor(buffer, shape, 3);
+        branchFilters = shape[2];
+        checkShape(shape, 3, features, branchFilters);
+        conv3Kernel = convLayout(k3, 3, features, branchFilters);
+        conv3Bias = readTensor(buffer, shape, 1);
+        float[] k7 = readTensor(buffer, shape, 3);
+        checkShape(shape, 7, features, branchFilters);
+        conv7Kernel = convLayout(k7, 7, features, branchFilters);
+        conv7Bias = readTensor(buffer, shape, 1);
+        channels = 2 * branchFilters;
+        norm1Scale = readTensor(buffer, shape, 1);
+        norm1Shift = readTensor(buffer, shape, 1);
+
+        float[] k5 = readTensor(buffer, shape, 3);
+        filters = shape[2];
+        checkShape(shape, 5, channels, filters);
+        conv5Kernel = convLayout(k5, 5, channels, filters);
+        conv5Bias = readTensor(buffer, shape, 1);
+        norm2Scale = readTensor(buffer, shape, 1);
+        norm2Shift = readTensor(buffer, shape, 1);
+
+        float[] kernel = readTensor(buffer, shape, 2);
+        units = shape[1] / 4;
+        checkShape(shape, filters, 4 * units);
+        lstmKernel = transpose(kernel, filters, 4 * units);
+        float[] recurrent = readTensor(buffer, shape, 2);
+        checkShape(shape, units, 4 * units);
+        lstmRecurrent = transpose(recurrent, units, 4 * units);
+        lstmBias = readTensor(buffer, shape, 1);
+
+        float[] w1 = readTensor(buffer, shape, 2);
+        hidden = shape[1];
+        checkShape(shape, units, hidden);
+        dense1Weights = transpose(w1, units, hidden);
+        dense1Bias = readTensor(buffer, shape, 1);
+        float[] w2 = readTensor(buffer, shape, 2);
+        checkShape(shape, hidden, classes);
+        dense2Weights = transpose(w2, hidden, classes);
+        dense2Bias = readTensor(buffer, shape, 1);
+    }
+
+    // Shares every tensor of base except the dense head.
+    private TrickModelWeights(TrickModelWeights base, float[] dense1Weights, float[] dense1Bias,
+                              float[] dense2Weights, float[] dense2Bias) {
+        timesteps = base.timesteps;
+        features = base.features;
+        classes = base.classes;
+        branchFilters = base.branchFilters;
+        conv3Kernel = base.conv3Kernel;
+        conv3Bias = base.conv3Bias;
+        conv7Kernel = base.conv7Kernel;
+        conv7Bias = base.conv7Bias;
+        norm1Scale = base.norm1Scale;
+        norm1Shift = base.norm1Shift;
+        channels = base.channels;
+        filters = base.filters;
+        conv5Kernel = base.conv5Kernel;
+        conv5Bias = base.conv5Bias;
+        norm2Scale = base.norm2Scale;
+        norm2Shift = base.norm2Shift;
+        units = base.units;
+        lstmKernel = base.lstmKernel;
+        lstmRecurrent = base.lstmRecurrent;
+        lstmBias = base.lstmBias;
+        hidden = base.hidden;
+        this.dense1Weights = dense1Weights;
+        this.dense1Bias = dense1Bias;
+        this.dense2Weights = dense2Weights;
+        this.dense2Bias = dense2Bias;
+    }
+
+    /**
+     * The same feature extractor with a different dense head, in this class's [unit][input]
+     * layout. The arrays are used as they are, not copied.
+     */
+    public TrickModelWeights withHead(float[] dense1Weights, float[] dense1Bias,
+                                      float[] dense2Weights, float[] dense2Bias) {
+        if (dense1Weights.length != this.dense1Weights.length
+                || dense1Bias.length != this.dense1Bias.length
+                || dense2Weights.length != this.dense2Weights.length
+                || dense2Bias.length != this.dense2Bias.length) {
+            throw new IllegalArgumentException("Dense head does not match " + units + " -> "
+                    + hidden + " -> " + classes);
+        }
+        return new TrickModelWeights(this, dense1Weights, dense1Bias, dense2Weights, dense2Bias);
+    }
+
+    /** True if other has the same layer sizes, so the inference buffers fit either. */
+    public boolean sameShape(TrickModelWeights other) {
+        return timesteps == other.timesteps && features == other.features
+                && classes == other.classes && branchFilters == other.branchFilters
+                && filters == other.filters && units == other.units && hidden == other.hidden;
+    }
+
+    private static float[] readTensor(ByteBuffer buffer, int[] shape, int expectedRank)
+            throws IOException {
+        int rank = buffer.getInt();
+        if (rank != expectedRank) {
+            throw new IOException("Expected rank " + expectedRank + " tensor, found rank " + rank);
+        }
+        int size = 1;
+        for (int i = 0; i < rank; i++) {
+            shape[i] = buffer.getInt();
+            size *= shape[i];
+        }
+        if (buffer.remaining() < size * 4) {
+            throw new IOException("Weights file is truncated");
+        }
+        float[] values = new float[size];
+        buffer.asFloatBuffer().get(values);
+        buffer.position(buffer.position() + size * 4);
+        return values;
+    }
+
+    private static void checkShape(int[] shape, int... expected) throws IOException {
+        for (int i = 0; i < expected.length; i++) {
+            if (shape[i] != expected[i]) {
+                throw new IOException("Unexpected tensor dimension " + shape[i] + " at axis " + i
+                        + ", expected " + expected[i]);
+            }
+        }
+    }
+
+    // Keras [kernel][channel][filter] -> [filter][kernel][channel]
+    private static float[] convLayout(float[] kernel, int size, int in, int out) {
+        float[] result = new float[kernel.length];
+        for (int k = 0; k < size; k++) {
+            for (int c = 0; c < in; c++) {
+                for (int f = 0; f < out; f++) {
+                    result[f * size * in + k * in + c] = kernel[(k * in + c) * out + f];
+                }
+            }
+        }
+        return result;
+    }
+
+    // [rows][cols] -> [cols][rows]
+    static float[] transpose(float[] matrix, int rows, int cols) {
+        float[] result = new float[matrix.length];
+        for (int r = 0; r < rows; r++) {
+            for (int c = 0; c < cols; c++) {
+                result[c * rows + r] = matrix[r * cols + c];
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,95 @@
+package com.ubicomplab.bluetoothlocation;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The seqlock of ControlBlock, read through readSnapshot() as the native loop reads it.
+ */
+public class ControlBlockTest {
+    private static final int CAPACITY = 16;
+
+    @Test
+    public void unsetValuesReadAsNaN() {
+        ControlBlock block = new ControlBlock(CAPACITY);
+        float[] values = new float[CAPACITY];
+        assertEquals(0, block.readSnapshot(values, 1));
+        for (float value : values) {
+            assertTrue(Float.isNaN(value));
+        }
+    }
+
+    @Test
+    public void publishedTickIsVisibleWithAnEvenSequence() {
+        ControlBlock block = new ControlBlock(CAPACITY);
+        block.set(3, 1.5f);
+        block.set(7, -2f);
+        assertTrue(block.publish());
+        assertFalse(block.publish());
+
+        float[] values = new float[CAPACITY];
+        int sequence = block.readSnapshot(values, 1);
+        assertEquals(2, sequence);
+        assertEquals(1.5f, values[3], 0f);
+        assertEquals(-2f, values[7], 0f);
+        assertTrue(Float.isNaN(values[0]));
+    }
+
+    @Test
+    public void tickInProgressIsNotRead() {
+        ControlBlock block = new ControlBlock(CAPACITY);
+        block.set(0, 1f);
+        float[] values = new float[CAPACITY];
+        assertEquals(-1, block.readSnapshot(values, 3));
+        assertTrue(Float.isNaN(values[0]));
+        block.publish();
+        assertEquals(2, block.readSnapshot(values, 1));
+        assertEquals(1f, values[0], 0f);
+    }
+
+    // Every tick writes its own number into every slot, so a torn read shows as a mix
+    @Test(timeout = 60_000)
+    public void concurrentReaderNeverSeesATornTick() throws Exception {
+        ControlBlock block = new ControlBlock(CAPACITY);
+        int ticks = 200_000;
+        AtomicBoolean done = new AtomicBoolean();
+        Thread writer = new Thread(() -> {
+            for (int tick = 1; tick <= ticks; tick++) {
+                for (int i = 0; i < CAPACITY; i++) {
+                    block.set(i, tick);
+                }
+                block.publish();
+            }
+            done.set(true);
+        });
+
+        float[] values = new float[CAPACITY];
+        int snapshots = 0;
+        int lastSequence = 0;
+        writer.start();
+        while (!done.get() || snapshots == 0) {
+            int sequence = block.readSnapshot(values, 8);
+            if (sequence < 0) {
+                continue;
+            }
+            assertEquals(0, sequence & 1);
+            assertTrue(sequence >= lastSequence);
+            // Tick n ends with sequence 2n; before the first, every slot is NaN
+            float expected = sequence > 0 ? sequence / 2f : Float.NaN;
+            for (int i = 0; i < CAPACITY; i++) {
+                assertEquals("torn snapshot at sequence " + sequence, expected, values[i], 0f);
+            }
+            lastSequence = sequence;
+            snapshots++;
+        }
+        writer.join();
+
+        assertEquals(2 * ticks, block.readSnapshot(values, 1));
+        assertEquals(ticks, values[CAPACITY - 1], 0f);
+    }
+}
@@ -0,0 +1,175 @@
+package com.ubicomplab.bluetoothlocation;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * DtwRecognizer's pruned search against the plain one, on synthetic tricks: each class is
+ * a shape per channel, and its clips are that shape time-warped, scaled and noisy.
+ */
+public class DtwRecognizerTest {
+    private static final String[] LABELS = {"HOP", "180", "360", "Manual"};
+    private static final int LENGTH = 64;
+    private static final int TEMPLATES_PER_CLASS = 40;
+
+    @Test
+    public void prunedSearchFindsThePlainNearestNeighbour() {
+        Random random = new Random(3);
+        DtwRecognizer recognizer = library(random);
+        DtwRecognizer.Match pruned = new DtwRecognizer.Match();
+        DtwRecognizer.Match plain = new DtwRecognizer.Match();
+        long dismissed = 0;
+        int correct = 0;
+        for (int i = 0; i < 40; i++) {
+            int trickClass = i % LABELS.length;
+            int rows = 80 + random.nextInt(80);
+            float[] clip = clip(random, trickClass, rows);
+            int a = recognizer.recognize(clip, rows, pruned, true);
+            int b = recognizer.recognize(clip, rows, plain, false);
+            assertEquals(b, a);
+            assertEquals(plain.distance, pruned.distance, plain.distance * 1e-5f);
+            assertEquals(plain.templates, plain.fullDtw);
+            assertEquals(pruned.templates, pruned.prunedByKim + pruned.prunedByKeogh
+                    + pruned.prunedByReverseKeogh + pruned.abandoned + pruned.fullDtw);
+            dismissed += pruned.templates - pruned.fullDtw;
+            correct += a == trickClass ? 1 : 0;
+        }
+        // The shapes are far apart, so the bounds dismiss most templates
+        assertTrue(dismissed > 40L * recognizer.getTemplateCount() / 2);
+        assertTrue(correct >= 36);
+    }
+
+    @Test
+    public void lowerBoundsNeverExceedTheDistance() {
+        Random random = new Random(5);
+        int size = LENGTH * TrickDataset.FEATURES;
+        int window = Math.round(DtwRecognizer.DEFAULT_BAND * LENGTH);
+        float[] a = new float[size];
+        float[] b = new float[size];
+        float[] upper = new float[size];
+        float[] lower = new float[size];
+        float[] contributions = new float[LENGTH];
+        float[] remaining = new float[LENGTH + 1];
+        float[] previous = new float[LENGTH];
+        float[] current = new float[LENGTH];
+        for (int i = 0; i < 200; i++) {
+            int rows = 40 + random.nextInt(100);
+            DtwRecognizer.prepare(clip(random, random.nextInt(LABELS.length), rows), rows,
+                    LENGTH, a, 0);
+            DtwRecognizer.prepare(clip(random, random.nextInt(LABELS.length), rows), rows,
+                    LENGTH, b, 0);
+            DtwRecognizer.envelope(b, 0, LENGTH, window, upper, lower);
+            Arrays.fill(remaining, 0f);
+            float distance = DtwRecognizer.dtw(a, 0, b, 0, LENGTH, window,
+                    Float.POSITIVE_INFINITY, remaining, previous, current);
+            float slack = distance * 1e-5f;
+            assertTrue(DtwRecognizer.lbKim(a, b, 0, LENGTH) <= distance + slack);
+            assertTrue(DtwRecognizer.lbKeogh(a, 0, upper, lower, 0, LENGTH,
+                    Float.POSITIVE_INFINITY, contributions) <= distance + slack);
+        }
+    }
+
+    @Test
+    public void emptyLibraryRecognizesNothing() {
+        DtwRecognizer recognizer = new DtwRecognizer(LABELS);
+        DtwRecognizer.Match match = new DtwRecognizer.Match();
+        float[] clip = clip(new Random(1), 0, 100);
+        assertEquals(-1, recognizer.recognize(clip, 100, match));
+        assertEquals(Float.POSITIVE_INFINITY, match.distance, 0f);
+        assertEquals(0, match.templates);
+    }
+
+    @Test
+    public void templateMatchesItself() {
+        Random random = new Random(9);
+        DtwRecognizer recognizer = library(random);
+        float[] clip = clip(random, 2, 120);
+        recognizer.addTemplate(clip, 120, 2);
+        DtwRecognizer.Match match = new DtwRecognizer.Match();
+        assertEquals(2, recognizer.recognize(clip, 120, match));
+        assertEquals(0f, match.distance, 0f);
+    }
+
+    @Test
+    public void yawIsUnwrappedAcrossZero() {
+        float[] turn = new float[100 * TrickDataset.FEATURES];
+        float[] wrapped = new float[turn.length];
+        for (int r = 0; r < 100; r++) {
+            float yaw = 300f + r;
+            turn[r * TrickDataset.FEATURES + 2] = yaw;
+            wrapped[r * TrickDataset.FEATURES + 2] = yaw % 360f;
+        }
+        float[] expected = new float[LENGTH * TrickDataset.FEATURES];
+        float[] actual = new float[expected.length];
+        DtwRecognizer.prepare(turn, 100, LENGTH, expected, 0);
+        DtwRecognizer.prepare(wrapped, 100, LENGTH, actual, 0);
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i], actual[i], 1e-4f);
+        }
+    }
+
+    private static DtwRecognizer library(Random random) {
+        DtwRecognizer recognizer = new DtwRecognizer(LABELS, LENGTH, DtwRecognizer.DEFAULT_BAND,
+                ForkJoinPool.commonPool());
+        for (int c = 0; c < LABELS.length; c++) {
+            for (int i = 0; i < TEMPLATES_PER_CLASS; i++) {
+                int rows = 80 + random.nextInt(80);
+                recognizer.addTemplate(clip(random, c, rows), rows, c);
+            }
+        }
+        assertEquals(LABELS.length * TEMPLATES_PER_CLASS, recognizer.getTemplateCount());
+        return recognizer;
+    }
+
+    // Pitch, roll, yaw, gForce rows of one class's shape
+    private static float[] clip(Random random, int trickClass, int rows) {
+        float[] clip = new float[rows * TrickDataset.FEATURES];
+        double warp = 0.8 + random.nextDouble() * 0.4;
+        double gain = 0.8 + random.nextDouble() * 0.4;
+        for (int r = 0; r < rows; r++) {
+            double t = Math.min(1.0, Math.pow((double) r / (rows - 1), warp));
+            double pitch;
+            double roll;
+            double yaw;
+            double gForce;
+            switch (trickClass) {
+                case 0:
+                    pitch = 20 * Math.sin(Math.PI * t);
+                    roll = 2 * t;
+                    yaw = 10 * t;
+                    gForce = t > 0.3 && t < 0.7 ? 0.2 : 1.5;
+                    break;
+                case 1:
+                    pitch = 5 * Math.sin(2 * Math.PI * t);
+                    roll = 15 * Math.sin(Math.PI * t);
+                    yaw = 180 * t;
+                    gForce = 1 + 0.5 * Math.cos(2 * Math.PI * t);
+                    break;
+                case 2:
+                    pitch = -10 * t;
+                    roll = 25 * Math.sin(2 * Math.PI * t);
+                    yaw = 360 * t * t;
+                    gForce = 1 - 0.5 * Math.sin(Math.PI * t);
+                    break;
+                default:
+                    pitch = 30 * (1 - Math.abs(2 * t - 1));
+                    roll = -5 * t;
+                    yaw = 20 * Math.sin(4 * Math.PI * t);
+                    gForce = 1 + 0.3 * t;
+                    break;
+            }
+            int at = r * TrickDataset.FEATURES;
+            clip[at] = (float) (gain * pitch + random.nextGaussian());
+            clip[at + 1] = (float) (gain * roll + random.nextGaussian());
+            clip[at + 2] = (float) ((yaw + 90 + random.nextGaussian()) % 360);
+            clip[at + 3] = (float) (gForce + random.nextGaussian() * 0.05);
+        }
+        return clip;
+    }
+}
@@ -0,0 +1,139 @@
+package com.ubicomplab.bluetoothlocation;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * JitterBuffer with a 5 ms consumer; times are written in milliseconds and every sample
+ * arrives TRANSIT after its origin unless a test says otherwise.
+ */
+public class JitterBufferTest {
+    private static final long MS = 1_000_000L;
+    private static final long PERIOD = 5 * MS;
+    private static final long TRANSIT = 5 * MS;
+
+    @Test
+    public void emptyBufferPlaysNothing() {
+        JitterBuffer buffer = new JitterBuffer(1, PERIOD);
+        assertFalse(buffer.playout(100 * MS, new float[1]));
+        assertEquals(0, buffer.getUnderrunCount());
+    }
+
+    @Test
+    public void reorderedSamplesPlayInOriginOrder() {
+        JitterBuffer buffer = new JitterBuffer(1, PERIOD);
+        push(buffer, 10, 1f);
+        push(buffer, 30, 3f);
+        push(buffer, 20, 5f);
+        assertEquals(1, buffer.getReorderedCount());
+        assertEquals(3, buffer.size());
+
+        float[] out = new float[1];
+        assertTrue(buffer.playout(50 * MS, out));
+        // Transit, a 20 ms sample interval and the period
+        assertEquals(30 * MS, buffer.getTargetDelayNanos());
+        assertEquals(20 * MS, buffer.getLastPlayoutOrigin());
+        assertEquals(5f, out[0], 0f);
+        assertTrue(buffer.playout(55 * MS, out));
+        assertEquals(4f, out[0], 1e-6f);
+        assertTrue(buffer.playout(60 * MS, out));
+        assertEquals(3f, out[0], 0f);
+    }
+
+    @Test
+    public void lateSampleIsCountedAndDropped() {
+        JitterBuffer buffer = new JitterBuffer(1, PERIOD);
+        push(buffer, 0, 0f);
+        push(buffer, 10, 10f);
+        push(buffer, 20, 20f);
+        float[] out = new float[1];
+        assertTrue(buffer.playout(buffer.getTargetDelayNanos() + 15 * MS, out));
+        long played = buffer.getLastPlayoutOrigin();
+        int size = buffer.size();
+
+        buffer.push(played - 3 * MS, played + 40 * MS, new float[]{-100f});
+        buffer.push(played, played + 40 * MS, new float[]{-100f});
+        assertEquals(2, buffer.getLateCount());
+        assertEquals(size, buffer.size());
+        assertEquals(5, buffer.getPushCount());
+        assertTrue(buffer.playout(played + buffer.getTargetDelayNanos(), out));
+        assertTrue(out[0] >= 0f);
+    }
+
+    @Test
+    public void valuesAreInterpolatedBetweenSamples() {
+        JitterBuffer buffer = new JitterBuffer(2, PERIOD);
+        buffer.push(0, TRANSIT, new float[]{0f, 100f});
+        buffer.push(10 * MS, 10 * MS + TRANSIT, new float[]{10f, -100f});
+        float[] out = new float[2];
+        assertTrue(buffer.playout(20 * MS + 2_500_000L, out));
+        assertEquals(20 * MS, buffer.getTargetDelayNanos());
+        assertEquals(2.5f, out[0], 1e-5f);
+        assertEquals(50f, out[1], 1e-4f);
+        assertEquals(0, buffer.getUnderrunCount());
+    }
+
+    @Test
+    public void targetDelaySlewsTowardsTheEstimate() {
+        JitterBuffer buffer = new JitterBuffer(1, PERIOD);
+        float[] out = new float[1];
+        long origin = 0;
+        for (int i = 0; i < 40; i++, origin += 10 * MS) {
+            buffer.push(origin, origin + TRANSIT, new float[]{1f});
+        }
+        long now = origin;
+        assertTrue(buffer.playout(now, out));
+        long settled = buffer.getTargetDelayNanos();
+
+        // The link slows down by 60 ms; the delay follows, but only MAX_SLEW at a time
+        for (int i = 0; i < JitterBuffer.JITTER_WINDOW; i++, origin += 10 * MS) {
+            buffer.push(origin, origin + TRANSIT + 60 * MS, new float[]{1f});
+        }
+        long previous = settled;
+        for (int tick = 0; tick < 200; tick++) {
+            now += PERIOD;
+            buffer.playout(now, out);
+            long delay = buffer.getTargetDelayNanos();
+            assertTrue("step " + (delay - previous),
+                    Math.abs(delay - previous) <= (long) (PERIOD * JitterBuffer.MAX_SLEW));
+            assertTrue(delay >= previous);
+            previous = delay;
+        }
+        assertTrue(previous > settled);
+        assertTrue(previous < settled + 60 * MS);
+    }
+
+    @Test
+    public void underrunHoldsTheNewestValues() {
+        JitterBuffer buffer = new JitterBuffer(2, PERIOD);
+        buffer.push(0, TRANSIT, new float[]{1f, -1f});
+        buffer.push(10 * MS, 10 * MS + TRANSIT, new float[]{2f, -2f});
+        float[] out = new float[2];
+        assertTrue(buffer.playout(500 * MS, out));
+        assertEquals(1, buffer.getUnderrunCount());
+        assertEquals(2f, out[0], 0f);
+        assertEquals(-2f, out[1], 0f);
+        assertEquals(1, buffer.size());
+        assertTrue(buffer.playout(505 * MS, out));
+        assertEquals(2, buffer.getUnderrunCount());
+        assertEquals(2f, out[0], 0f);
+    }
+
+    @Test
+    public void playoutBeforeTheFirstSampleHoldsIt() {
+        JitterBuffer buffer = new JitterBuffer(1, PERIOD);
+        push(buffer, 100, 7f);
+        push(buffer, 110, 8f);
+        float[] out = new float[1];
+        assertTrue(buffer.playout(100 * MS, out));
+        assertEquals(7f, out[0], 0f);
+        assertEquals(0, buffer.getUnderrunCount());
+    }
+
+    private static void push(JitterBuffer buffer, long originMillis, float value) {
+        buffer.push(originMillis * MS, originMillis * MS + TRANSIT, new float[]{value});
+    }
+}
@@ -0,0 +1,118 @@
+package com.ubicomplab.bluetoothlocation;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * JumpDetector on gForce traces shaped like the firmware's: about 1 g while riding, near
+ * 0 g in the air, a spike on landing, sampled every 10 ms.
+ */
+public class JumpDetectorTest {
+    private static final long PERIOD = 10;
+
+    private final List<String> events = new ArrayList<>();
+    private JumpDetector detector;
+    private long timestamp;
+
+    @Before
+    public void setUp() {
+        detector = new JumpDetector(new JumpDetector.Listener() {
+            @Override
+            public void onTakeoff(long timestamp) {
+                events.add("takeoff " + timestamp);
+            }
+
+            @Override
+            public void onJump(long takeoffTimestamp, long landingTimestamp, float landingG) {
+                events.add("jump " + takeoffTimestamp + " " + landingTimestamp + " " + landingG);
+            }
+
+            @Override
+            public void onDrop(long timestamp, float impactG) {
+                events.add("drop " + timestamp + " " + impactG);
+            }
+        });
+    }
+
+    @Test
+    public void jumpIsReportedOnLanding() {
+        feed(1f, 50);
+        feed(0.2f, 40);
+        feed(3f, 1);
+        feed(1f, 50);
+        assertEquals(2, events.size());
+        assertEquals("takeoff 500", events.get(0));
+        assertEquals("jump 500 900 3.0", events.get(1));
+        assertEquals(JumpDetector.STATE_GROUNDED, detector.getState());
+    }
+
+    @Test
+    public void hopShorterThanMinAirtimeIsNotAJump() {
+        feed(1f, 10);
+        feed(0.2f, 5);
+        feed(3f, 1);
+        feed(1f, 10);
+        assertEquals(1, events.size());
+        assertEquals("takeoff 100", events.get(0));
+    }
+
+    @Test
+    public void landingSpikeIsNotAlsoADrop() {
+        feed(1f, 10);
+        feed(0.2f, 30);
+        feed(4f, 3);
+        feed(1f, 10);
+        assertEquals(2, events.size());
+        assertEquals("jump 100 400 4.0", events.get(1));
+    }
+
+    @Test
+    public void dropFiresOncePerImpact() {
+        feed(1f, 10);
+        // Hovering around the threshold, inside the hysteresis band
+        for (int i = 0; i < 10; i++) {
+            feed(2.6f, 1);
+            feed(2.45f, 1);
+        }
+        feed(1f, 10);
+        feed(3f, 1);
+        assertEquals(2, events.size());
+        assertEquals("drop 100 2.6", events.get(0));
+        assertEquals("drop 400 3.0", events.get(1));
+    }
+
+    @Test
+    public void takeoffNeedsTheSignalToRecoverFirst() {
+        feed(1f, 10);
+        feed(0.2f, 600);
+        // Timed out in the air, still below the threshold: no second takeoff
+        assertEquals(JumpDetector.STATE_GROUNDED, detector.getState());
+        assertEquals(1, events.size());
+        feed(1f, 10);
+        feed(0.2f, 1);
+        assertEquals(2, events.size());
+        assertEquals(JumpDetector.STATE_AIRBORNE, detector.getState());
+    }
+
+    @Test
+    public void thresholdsAreClampedToTheFirmwareRanges() {
+        detector.setJumpThreshold(10f);
+        detector.setLandingThreshold(0f);
+        detector.setDropThreshold(-1f);
+        assertEquals(JumpDetector.JUMP_THRESH_MAX, detector.getJumpThreshold(), 0f);
+        assertEquals(JumpDetector.LAND_THRESH_MIN, detector.getLandingThreshold(), 0f);
+        assertEquals(JumpDetector.DROP_THRESH_MIN, detector.getDropThreshold(), 0f);
+    }
+
+    private void feed(float gForce, int samples) {
+        for (int i = 0; i < samples; i++) {
+            detector.push(timestamp, gForce);
+            timestamp += PERIOD;
+        }
+    }
+}
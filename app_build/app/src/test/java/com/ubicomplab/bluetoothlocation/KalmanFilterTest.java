@@ -0,0 +1,87 @@
+package com.ubicomplab.bluetoothlocation;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * KalmanFilter on the raw values processingTask sees: a bike held at a fixed tilt, then
+ * rolling at a steady speed, sampled every 10 ms.
+ */
+public class KalmanFilterTest {
+    private static final float DT = 0.01f;
+
+    @Test
+    public void settlesOnTheAccelerometerTilt() {
+        KalmanFilter filter = new KalmanFilter();
+        // 10 degrees nose up, 5 degrees right, no rotation
+        float pitch = (float) Math.toRadians(10);
+        float roll = (float) Math.toRadians(5);
+        float ax = (float) -Math.sin(pitch);
+        float ay = (float) (Math.cos(pitch) * Math.sin(roll));
+        float az = (float) (Math.cos(pitch) * Math.cos(roll));
+        for (int i = 0; i < 500; i++) {
+            filter.step(ax, ay, az, 0f, 0f, 0f, DT);
+        }
+        assertEquals(10f, filter.getPitchDeg(), 0.05f);
+        assertEquals(5f, filter.getRollDeg(), 0.05f);
+        assertEquals(0f, filter.getSpeedKMH(), 1e-4f);
+    }
+
+    @Test
+    public void tracksASteadySpeed() {
+        KalmanFilter filter = new KalmanFilter();
+        for (int i = 0; i < 1000; i++) {
+            filter.step(0f, 0f, 1f, 0f, 0f, 18f, DT);
+        }
+        assertEquals(18f, filter.getSpeedKMH(), 0.05f);
+        assertEquals(5f, filter.getSpeedMS(), 0.02f);
+    }
+
+    @Test
+    public void varianceShrinksToASteadyState() {
+        KalmanFilter filter = new KalmanFilter();
+        float previous = filter.getPitchVariance();
+        for (int i = 0; i < 200; i++) {
+            filter.step(0f, 0f, 1f, 0f, 0f, 0f, DT);
+        }
+        float settled = filter.getPitchVariance();
+        assertTrue(settled < previous);
+        for (int i = 0; i < 200; i++) {
+            filter.step(0f, 0f, 1f, 0f, 0f, 0f, DT);
+        }
+        assertEquals(settled, filter.getPitchVariance(), settled * 1e-3f);
+        assertEquals(filter.getPitchVariance(), filter.getRollVariance(), 0f);
+        assertTrue(filter.getSpeedVariance() > 0f);
+    }
+
+    @Test
+    public void gyroRateReplacesTheRateState() {
+        KalmanFilter filter = new KalmanFilter();
+        filter.predict(0.5f, -0.25f, 2f, DT);
+        assertEquals(0.5f, filter.getPitchRateRadS(), 0f);
+        assertEquals(-0.25f, filter.getRollRateRadS(), 0f);
+        assertEquals(2f, filter.getSpeedRateMS2(), 0f);
+        // Integrated on the next predict, with the rate of the previous one
+        filter.predict(0f, 0f, 0f, DT);
+        assertEquals(0.5f * DT, filter.getPitchRad(), 1e-7f);
+        assertEquals(-0.25f * DT, filter.getRollRad(), 1e-7f);
+        assertEquals(2f * DT, filter.getSpeedMS(), 1e-7f);
+    }
+
+    @Test
+    public void resetRestoresTheFirmwareStart() {
+        KalmanFilter filter = new KalmanFilter();
+        for (int i = 0; i < 50; i++) {
+            filter.step(0.3f, 0.2f, 0.9f, 40f, -20f, 25f, DT);
+        }
+        filter.reset();
+        assertEquals(0f, filter.getPitchRad(), 0f);
+        assertEquals(0f, filter.getRollRad(), 0f);
+        assertEquals(0f, filter.getSpeedMS(), 0f);
+        assertEquals(1f, filter.getPitchVariance(), 0f);
+        assertEquals(1f, filter.getRollVariance(), 0f);
+        assertEquals(1f, filter.getSpeedVariance(), 0f);
+    }
+}
@@ -0,0 +1,64 @@
+package com.ubicomplab.bluetoothlocation;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * QuantizedTrickModel against TrickModel on the same weights: int8 rounding moves the
+ * probabilities a little but should rarely change the call.
+ */
+public class QuantizedTrickModelTest {
+    private static final int WINDOWS = 200;
+
+    @Test
+    public void agreesWithTheFloatModel() {
+        TrickModelWeights weights = TestWeights.random(11, false);
+        float[][] windows = TestWeights.windows(12, WINDOWS);
+        TrickModel floatModel = new TrickModel(weights);
+        QuantizedTrickModel int8Model = new QuantizedTrickModel(weights,
+                QuantizedTrickModel.calibrate(windows, TestWeights.FEATURES));
+
+        float[] expected = new float[TestWeights.CLASSES];
+        float[] actual = new float[TestWeights.CLASSES];
+        int agree = 0;
+        double totalError = 0;
+        float maxError = 0f;
+        for (float[] window : windows) {
+            int a = floatModel.classify(window, TestWeights.TIMESTEPS, expected);
+            int b = int8Model.classify(window, TestWeights.TIMESTEPS, actual);
+            agree += a == b ? 1 : 0;
+            for (int i = 0; i < expected.length; i++) {
+                float error = Math.abs(expected[i] - actual[i]);
+                totalError += error;
+                maxError = Math.max(maxError, error);
+            }
+        }
+        double meanError = totalError / (WINDOWS * TestWeights.CLASSES);
+        assertTrue("mean probability difference " + meanError, meanError < 0.005);
+        assertTrue("max probability difference " + maxError, maxError < 0.1f);
+        assertTrue("agreement " + agree + "/" + WINDOWS, agree >= WINDOWS * 9 / 10);
+    }
+
+    @Test
+    public void calibrateTakesTheLargestMagnitudePerFeature() {
+        float[][] windows = {
+                {1f, -2f, 3f, 0.5f, -4f, 1f, 0f, -1.5f},
+                {0.5f, 6f, -9f, 1f}
+        };
+        assertArrayEquals(new float[]{4f, 6f, 9f, 1.5f},
+                QuantizedTrickModel.calibrate(windows, TestWeights.FEATURES), 0f);
+    }
+
+    @Test
+    public void quantizedWeightsAreAQuarterOfTheFloats() {
+        TrickModelWeights weights = TestWeights.random(13, false);
+        int floats = weights.conv3Kernel.length + weights.conv7Kernel.length
+                + weights.conv5Kernel.length + weights.lstmKernel.length
+                + weights.lstmRecurrent.length + weights.dense1Weights.length
+                + weights.dense2Weights.length;
+        assertEquals(floats, new QuantizedTrickModel(weights).getWeightBytes());
+    }
+}
@@ -0,0 +1,228 @@
+package com.ubicomplab.bluetoothlocation;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * SessionIndex on logs in the getAsCSVRow() format, written the way BleService writes them:
+ * the line to the log, then its timestamp and length to the index Writer.
+ */
+public class SessionIndexTest {
+    private static final long PERIOD = 10;
+
+    private File directory;
+    private File log;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("session").toFile();
+        log = new File(directory, "ride_rear.csv");
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void timeRangeReadSeeksToItsFirstLine() throws IOException {
+        record(0, 5000, 100_000);
+        SessionIndex index = SessionIndex.open(log);
+        assertTrue(index.size() > 1);
+
+        List<Long> sequences = new ArrayList<>();
+        List<Long> times = new ArrayList<>();
+        index.readTimeRange(120_000, 120_990, (sequence, timestampMillis, line) -> {
+            sequences.add(sequence);
+            times.add(timestampMillis);
+            assertEquals(timestampMillis, SessionIndex.parseTimestamp(line));
+            return true;
+        });
+        assertEquals(100, sequences.size());
+        assertEquals(2000L, (long) sequences.get(0));
+        assertEquals(120_000L, (long) times.get(0));
+        assertEquals(120_990L, (long) times.get(99));
+    }
+
+    @Test
+    public void recordReadStartsAtTheSequence() throws IOException {
+        record(0, 3000, 0);
+        SessionIndex index = SessionIndex.open(log);
+        List<Long> sequences = new ArrayList<>();
+        index.readRecords(1234, 10, (sequence, timestampMillis, line) -> {
+            sequences.add(sequence);
+            assertEquals(sequence * PERIOD, timestampMillis);
+            return true;
+        });
+        assertEquals(10, sequences.size());
+        assertEquals(1234L, (long) sequences.get(0));
+        assertEquals(1243L, (long) sequences.get(9));
+    }
+
+    @Test
+    public void handlerCanStopTheRead() throws IOException {
+        record(0, 1000, 0);
+        int[] lines = new int[1];
+        SessionIndex.open(log).readRecords(0, 1000,
+                (sequence, timestampMillis, line) -> ++lines[0] < 5);
+        assertEquals(5, lines[0]);
+    }
+
+    @Test
+    public void resumedWriterMatchesARebuild() throws IOException {
+        record(0, 2500, 50_000);
+        // A reconnect restarts the writer thread on the same log
+        record(2500, 2000, 75_000);
+        SessionIndex written = SessionIndex.open(log);
+        SessionIndex rebuilt = SessionIndex.rebuild(log, SessionIndex.EVERY_RECORDS,
+                SessionIndex.EVERY_MILLIS);
+        assertEntriesEqual(rebuilt, written);
+    }
+
+    @Test
+    public void peripheralRebootContinuesTheSessionClock() throws IOException {
+        record(0, 1200, 100_000);
+        // millis() restarts near zero
+        record(1200, 1200, 500);
+
+        List<Long> times = new ArrayList<>();
+        SessionIndex index = SessionIndex.open(log);
+        index.readRecords(0, 2400, (sequence, timestampMillis, line) -> {
+            times.add(timestampMillis);
+            return true;
+        });
+        for (int i = 1; i < times.size(); i++) {
+            assertTrue("time went back at " + i, times.get(i) >= times.get(i - 1));
+        }
+        long rebootTime = times.get(1200);
+        assertEquals((long) times.get(1199), rebootTime);
+
+        // The ride after the reboot is found at its session time, before and after a rebuild
+        long from = rebootTime + 1000;
+        List<Long> first = new ArrayList<>();
+        index.readTimeRange(from, from + 990, (sequence, timestampMillis, line) -> {
+            first.add(sequence);
+            return true;
+        });
+        assertEquals(100, first.size());
+        assertEquals(1300L, (long) first.get(0));
+        SessionIndex rebuilt = SessionIndex.rebuild(log, SessionIndex.EVERY_RECORDS,
+                SessionIndex.EVERY_MILLIS);
+        assertEntriesEqual(rebuilt, index);
+    }
+
+    @Test
+    public void reorderedPacketsHoldTheLatestTime() {
+        SessionIndex.SessionClock clock = new SessionIndex.SessionClock();
+        assertEquals(0, clock.toSession(Long.MIN_VALUE));
+        assertEquals(5000, clock.toSession(5000));
+        assertEquals(5000, clock.toSession(4990));
+        assertEquals(5010, clock.toSession(5010));
+        assertEquals(5010, clock.toSession(Long.MIN_VALUE));
+        // Within RESET_MILLIS it is still reordering
+        assertEquals(5010, clock.toSession(5010 - SessionIndex.RESET_MILLIS));
+        // A restart continues from the latest time
+        assertEquals(5010, clock.toSession(5));
+        assertEquals(5015, clock.toSession(10));
+    }
+
+    @Test
+    public void staleOrMissingSidecarIsRebuilt() throws IOException {
+        record(0, 3000, 0);
+        File sidecar = SessionIndex.sidecarOf(log);
+        SessionIndex full = SessionIndex.open(log);
+
+        assertTrue(sidecar.delete());
+        assertEntriesEqual(full, SessionIndex.open(log));
+        assertTrue(sidecar.exists());
+
+        // The log was cut short behind the index's back
+        try (RandomAccessFile raf = new RandomAccessFile(log, "rw")) {
+            raf.setLength(raf.length() / 2);
+        }
+        SessionIndex shorter = SessionIndex.open(log);
+        assertTrue(shorter.size() < full.size());
+        assertTrue(shorter.getOffset(shorter.size() - 1) <= log.length());
+    }
+
+    @Test
+    public void linesWithoutTimestampKeepTheirSequence() throws IOException {
+        try (OutputStream out = new FileOutputStream(log);
+             SessionIndex.Writer writer = new SessionIndex.Writer(log)) {
+            write(out, writer, "header,without,a,time");
+            for (int i = 0; i < 10; i++) {
+                write(out, writer, line(i, 1000 + i * PERIOD));
+            }
+        }
+        assertEquals(Long.MIN_VALUE, SessionIndex.parseTimestamp("header,without,a,time"));
+        List<Long> times = new ArrayList<>();
+        SessionIndex.open(log).readRecords(0, 3, (sequence, timestampMillis, line) -> {
+            times.add(timestampMillis);
+            return true;
+        });
+        assertEquals(Long.MIN_VALUE, (long) times.get(0));
+        assertEquals(1000L, (long) times.get(1));
+        assertEquals(1010L, (long) times.get(2));
+    }
+
+    @Test
+    public void emptyLogHasNoEntries() throws IOException {
+        assertTrue(log.createNewFile());
+        SessionIndex index = SessionIndex.open(log);
+        assertEquals(0, index.size());
+        index.readTimeRange(0, Long.MAX_VALUE, (sequence, timestampMillis, line) -> {
+            throw new AssertionError(line);
+        });
+    }
+
+    // Appends count lines to the log, from sequence first, PERIOD apart from peripheral time
+    private void record(int first, int count, long startMillis) throws IOException {
+        try (OutputStream out = new FileOutputStream(log, true);
+             SessionIndex.Writer writer = new SessionIndex.Writer(log)) {
+            for (int i = 0; i < count; i++) {
+                write(out, writer, line(first + i, startMillis + i * PERIOD));
+            }
+        }
+    }
+
+    private static void write(OutputStream out, SessionIndex.Writer writer, String line)
+            throws IOException {
+        byte[] bytes = (line + "\n").getBytes(StandardCharsets.US_ASCII);
+        out.write(bytes);
+        writer.append(SessionIndex.parseTimestamp(line), bytes.length);
+    }
+
+    private static String line(int sequence, long peripheralMillis) {
+        return "0," + sequence + ",0," + peripheralMillis + ",1700000000000,"
+                + (sequence % 200) + ",-" + (sequence % 17);
+    }
+
+    private static void assertEntriesEqual(SessionIndex expected, SessionIndex actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.getOffset(i), actual.getOffset(i));
+            assertEquals(expected.getSequence(i), actual.getSequence(i));
+            assertEquals(expected.getTimestamp(i), actual.getTimestamp(i));
+        }
+    }
+}
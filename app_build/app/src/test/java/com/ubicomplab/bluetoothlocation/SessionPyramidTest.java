@@ -0,0 +1,166 @@
+package com.ubicomplab.bluetoothlocation;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * SessionPyramid buckets of a 100 Hz stream with values {i, -i} for sample i, so every
+ * bucket's statistics are known in closed form.
+ */
+public class SessionPyramidTest {
+    private static final long PERIOD = 10;
+
+    private File directory;
+    private File log;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("pyramid").toFile();
+        log = new File(directory, "ride_rear.csv");
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void bucketsHoldMinMaxAndMean() throws IOException {
+        record(0, 6000, 0);
+        try (SessionPyramid pyramid = SessionPyramid.open(log)) {
+            assertEquals(2, pyramid.getChannels());
+            assertEquals(6000, pyramid.getBucketCount(0));
+            assertEquals(60, pyramid.getBucketCount(2));
+            assertEquals(6, pyramid.getBucketCount(3));
+
+            SessionPyramid.Series series = pyramid.read(2, 10_000, 12_999);
+            assertEquals(3, series.size);
+            for (int b = 0; b < series.size; b++) {
+                int first = 1000 + 100 * b;
+                assertEquals(first * PERIOD, series.starts[b]);
+                assertEquals(100, series.counts[b]);
+                assertEquals(first, series.min[2 * b], 0f);
+                assertEquals(first + 99, series.max[2 * b], 0f);
+                assertEquals(first + 49.5f, series.mean[2 * b], 1e-3f);
+                assertEquals(-first - 99, series.min[2 * b + 1], 0f);
+                assertEquals(-first, series.max[2 * b + 1], 0f);
+            }
+        }
+    }
+
+    @Test
+    public void readIncludesTheBucketOverlappingTheStart() throws IOException {
+        record(0, 3000, 0);
+        try (SessionPyramid pyramid = SessionPyramid.open(log)) {
+            SessionPyramid.Series series = pyramid.read(3, 15_000, 15_001);
+            assertEquals(1, series.size);
+            assertEquals(10_000, series.starts[0]);
+            assertEquals(0, pyramid.read(1, 40_000, 50_000).size);
+        }
+    }
+
+    @Test
+    public void queryPicksTheFinestLevelThatFits() throws IOException {
+        record(0, 6000, 0);
+        try (SessionPyramid pyramid = SessionPyramid.open(log)) {
+            assertEquals(2, pyramid.query(0, 59_999, 100).level);
+            assertEquals(0, pyramid.query(0, 999, 100).level);
+            assertEquals(3, pyramid.query(0, 59_999, 1).level);
+        }
+    }
+
+    @Test
+    public void resumedWriterReopensItsLastBuckets() throws IOException {
+        record(0, 6000, 0);
+        SessionPyramid.Series expected;
+        try (SessionPyramid pyramid = SessionPyramid.open(log)) {
+            expected = pyramid.read(1, 0, Long.MAX_VALUE / 2);
+        }
+        for (int level = 0; level < SessionPyramid.LEVELS; level++) {
+            assertTrue(SessionPyramid.levelFile(log, level).delete());
+        }
+
+        // Stopped mid-bucket at every level, then restarted on the same log
+        record(0, 3456, 0);
+        record(3456, 6000 - 3456, 3456 * PERIOD);
+        try (SessionPyramid pyramid = SessionPyramid.open(log)) {
+            assertEquals(60, pyramid.getBucketCount(2));
+            SessionPyramid.Series series = pyramid.read(1, 0, Long.MAX_VALUE / 2);
+            assertEquals(expected.size, series.size);
+            for (int b = 0; b < series.size; b++) {
+                assertEquals(expected.starts[b], series.starts[b]);
+                assertEquals(expected.counts[b], series.counts[b]);
+                assertEquals(expected.min[2 * b], series.min[2 * b], 0f);
+                assertEquals(expected.max[2 * b], series.max[2 * b], 0f);
+                assertEquals(expected.mean[2 * b], series.mean[2 * b], 1e-3f);
+            }
+        }
+    }
+
+    @Test
+    public void peripheralRebootKeepsBucketsInOrder() throws IOException {
+        record(0, 1500, 200_000);
+        // millis() restarts near zero, across a writer restart
+        record(1500, 1500, 300);
+        try (SessionPyramid pyramid = SessionPyramid.open(log)) {
+            for (int level = 0; level < SessionPyramid.LEVELS; level++) {
+                SessionPyramid.Series series = pyramid.read(level, 0, Long.MAX_VALUE / 2);
+                int samples = 0;
+                for (int b = 0; b < series.size; b++) {
+                    assertTrue(b == 0 || series.starts[b] > series.starts[b - 1]);
+                    samples += series.counts[b];
+                }
+                assertEquals(3000, samples);
+            }
+            // The ride after the reboot directly follows the ride before it
+            SessionPyramid.Series seconds = pyramid.read(2, 0, Long.MAX_VALUE / 2);
+            assertEquals(200_000, seconds.starts[0]);
+            assertEquals(229_000, seconds.starts[seconds.size - 1]);
+        }
+    }
+
+    @Test
+    public void shortSamplesLeaveMissingChannelsOut() throws IOException {
+        try (SessionPyramid.Writer writer = new SessionPyramid.Writer(log)) {
+            writer.add(0, new int[]{1, 2});
+            writer.add(5, new int[]{3});
+            writer.add(20, new int[]{4});
+        }
+        try (SessionPyramid pyramid = SessionPyramid.open(log)) {
+            SessionPyramid.Series series = pyramid.read(0, 0, 100);
+            assertEquals(2, series.size);
+            assertEquals(2, series.counts[0]);
+            assertEquals(2f, series.mean[0], 0f);
+            assertEquals(2f, series.mean[1], 0f);
+            assertTrue(Float.isNaN(series.mean[3]));
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void openWithoutAPyramidThrows() throws IOException {
+        SessionPyramid.open(log);
+    }
+
+    private void record(int first, int count, long startMillis) throws IOException {
+        try (SessionPyramid.Writer writer = new SessionPyramid.Writer(log)) {
+            for (int i = 0; i < count; i++) {
+                int value = first + i;
+                writer.add(startMillis + i * PERIOD, new int[]{value, -value});
+            }
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package com.ubicomplab.bluetoothlocation;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+/**
+ * StreamingTrickModel against TrickModel on the same weights. The windowed model pads its
+ * convolutions with zeros; the stream sees whatever follows the window. The windows here
+ * end in a few zero rows and the stream is continued with zeros, on weights for which
+ * silence activates nothing, so both see the same padding and must agree.
+ */
+public class StreamingTrickModelTest {
+    private static final float TOLERANCE = 1e-5f;
+    // At least the right-hand halo of the branch convolutions
+    private static final int SILENT_ROWS = 4;
+
+    @Test
+    public void matchesTheWindowedModel() {
+        TrickModelWeights weights = TestWeights.random(1, true);
+        TrickModel windowed = new TrickModel(weights);
+        StreamingTrickModel streaming = new StreamingTrickModel(weights);
+        for (float[] window : silentEnd(TestWeights.windows(2, 20))) {
+            streaming.reset();
+            assertArrayEquals(classify(windowed, window), stream(streaming, window), TOLERANCE);
+        }
+    }
+
+    @Test
+    public void resetForgetsThePreviousSegment() {
+        TrickModelWeights weights = TestWeights.random(3, true);
+        TrickModel windowed = new TrickModel(weights);
+        StreamingTrickModel streaming = new StreamingTrickModel(weights);
+        float[][] windows = silentEnd(TestWeights.windows(4, 2));
+        stream(streaming, windows[0]);
+        streaming.reset();
+        assertEquals(0, streaming.getSampleCount());
+        assertArrayEquals(classify(windowed, windows[1]), stream(streaming, windows[1]),
+                TOLERANCE);
+    }
+
+    @Test
+    public void newHeadTakesEffectOnTheNextCall() {
+        TrickModelWeights weights = TestWeights.random(5, true);
+        TrickModelWeights other = TestWeights.random(6, true);
+        TrickModelWeights retrained = weights.withHead(other.dense1Weights, other.dense1Bias,
+                other.dense2Weights, other.dense2Bias);
+        float[] window = silentEnd(TestWeights.windows(7, 1))[0];
+
+        StreamingTrickModel streaming = new StreamingTrickModel(weights);
+        stream(streaming, window);
+        streaming.setWeights(retrained);
+        float[] probabilities = new float[TestWeights.CLASSES];
+        streaming.probabilities(probabilities);
+        assertArrayEquals(classify(new TrickModel(retrained), window), probabilities, TOLERANCE);
+    }
+
+    @Test
+    public void noProbabilitiesBeforeTheFirstLstmStep() {
+        StreamingTrickModel streaming = new StreamingTrickModel(TestWeights.random(8, false));
+        float[] probabilities = new float[TestWeights.CLASSES];
+        for (int i = 0; i < streaming.getLatencySamples(); i++) {
+            assertFalse(streaming.push(1f, 2f, 3f, 1f));
+        }
+        assertEquals(-1, streaming.probabilities(probabilities));
+    }
+
+    private static float[][] silentEnd(float[][] windows) {
+        for (float[] window : windows) {
+            for (int i = (TestWeights.TIMESTEPS - SILENT_ROWS) * TestWeights.FEATURES;
+                 i < window.length; i++) {
+                window[i] = 0f;
+            }
+        }
+        return windows;
+    }
+
+    private static float[] classify(TrickModel model, float[] window) {
+        float[] probabilities = new float[TestWeights.CLASSES];
+        model.classify(window, TestWeights.TIMESTEPS, probabilities);
+        return probabilities;
+    }
+
+    // The window, then silence until the stream has taken every LSTM step of the window
+    private static float[] stream(StreamingTrickModel model, float[] window) {
+        int steps = TestWeights.TIMESTEPS / 4;
+        for (int row = 0; row < TestWeights.TIMESTEPS; row++) {
+            int at = row * TestWeights.FEATURES;
+            model.push(window[at], window[at + 1], window[at + 2], window[at + 3]);
+        }
+        while (model.getLstmStepCount() < steps) {
+            model.push(0f, 0f, 0f, 0f);
+        }
+        assertEquals(steps, model.getLstmStepCount());
+        float[] probabilities = new float[TestWeights.CLASSES];
+        model.probabilities(probabilities);
+        return probabilities;
+    }
+}
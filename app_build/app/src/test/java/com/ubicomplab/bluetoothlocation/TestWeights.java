@@ -0,0 +1,109 @@
+package com.ubicomplab.bluetoothlocation;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+
+/**
+ * Small random trick models in the export_java_weights format, so the inference paths can
+ * be compared without the real trick_detector_weights.bin.
+ */
+final class TestWeights {
+    static final int TIMESTEPS = 24;
+    static final int FEATURES = TrickDataset.FEATURES;
+    static final int CLASSES = 3;
+    static final int BRANCH_FILTERS = 4;
+    static final int FILTERS = 6;
+    static final int UNITS = 5;
+    static final int HIDDEN = 7;
+
+    private TestWeights() {
+    }
+
+    /**
+     * Random weights; with silentPadding the convolution biases are negative and the batch
+     * norm shifts zero, so all-zero input gives all-zero activations, like the zero padding
+     * of the windowed model.
+     */
+    static TrickModelWeights random(long seed, boolean silentPadding) {
+        Random random = new Random(seed);
+        int channels = 2 * BRANCH_FILTERS;
+        ByteBuffer buffer = ByteBuffer.allocate(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(TrickModelWeights.MAGIC).putInt(TrickModelWeights.VERSION)
+                .putInt(TIMESTEPS).putInt(FEATURES).putInt(CLASSES).putInt(16);
+        tensor(buffer, random, 0.3f, 3, FEATURES, BRANCH_FILTERS);
+        bias(buffer, random, silentPadding, BRANCH_FILTERS);
+        tensor(buffer, random, 0.3f, 7, FEATURES, BRANCH_FILTERS);
+        bias(buffer, random, silentPadding, BRANCH_FILTERS);
+        scale(buffer, random, channels);
+        shift(buffer, random, silentPadding, channels);
+        tensor(buffer, random, 0.3f, 5, channels, FILTERS);
+        bias(buffer, random, silentPadding, FILTERS);
+        scale(buffer, random, FILTERS);
+        shift(buffer, random, silentPadding, FILTERS);
+        tensor(buffer, random, 0.4f, FILTERS, 4 * UNITS);
+        tensor(buffer, random, 0.4f, UNITS, 4 * UNITS);
+        tensor(buffer, random, 0.1f, 4 * UNITS);
+        tensor(buffer, random, 0.5f, UNITS, HIDDEN);
+        tensor(buffer, random, 0.1f, HIDDEN);
+        tensor(buffer, random, 0.5f, HIDDEN, CLASSES);
+        tensor(buffer, random, 0.1f, CLASSES);
+        buffer.flip();
+        try {
+            return new TrickModelWeights(buffer);
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    /** count windows of TIMESTEPS rows with roughly the ranges of the recorded rides. */
+    static float[][] windows(long seed, int count) {
+        Random random = new Random(seed);
+        float[][] windows = new float[count][TIMESTEPS * FEATURES];
+        for (float[] window : windows) {
+            for (int row = 0; row < TIMESTEPS; row++) {
+                int at = row * FEATURES;
+                window[at] = (float) (random.nextGaussian() * 20);
+                window[at + 1] = (float) (random.nextGaussian() * 20);
+                window[at + 2] = random.nextFloat() * 360f;
+                window[at + 3] = 1f + (float) random.nextGaussian() * 0.5f;
+            }
+        }
+        return windows;
+    }
+
+    private static void tensor(ByteBuffer buffer, Random random, float std, int... shape) {
+        buffer.putInt(shape.length);
+        int size = 1;
+        for (int dimension : shape) {
+            buffer.putInt(dimension);
+            size *= dimension;
+        }
+        for (int i = 0; i < size; i++) {
+            buffer.putFloat((float) random.nextGaussian() * std);
+        }
+    }
+
+    private static void bias(ByteBuffer buffer, Random random, boolean negative, int size) {
+        buffer.putInt(1).putInt(size);
+        for (int i = 0; i < size; i++) {
+            float value = (float) random.nextGaussian() * 0.1f;
+            buffer.putFloat(negative ? -Math.abs(value) : value);
+        }
+    }
+
+    private static void scale(ByteBuffer buffer, Random random, int size) {
+        buffer.putInt(1).putInt(size);
+        for (int i = 0; i < size; i++) {
+            buffer.putFloat(0.5f + random.nextFloat());
+        }
+    }
+
+    private static void shift(ByteBuffer buffer, Random random, boolean zero, int size) {
+        buffer.putInt(1).putInt(size);
+        for (int i = 0; i < size; i++) {
+            buffer.putFloat(zero ? 0f : (float) random.nextGaussian() * 0.1f);
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package com.ubicomplab.bluetoothlocation;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * TimeSeriesCodec round trips: fixed-point channels with two decimals, like
+ * BikeTrickData, and XOR channels, which must come back bit for bit.
+ */
+public class TimeSeriesCodecTest {
+    private static final float[] SCALES = {100f, 100f, 0f, 0f};
+    private static final int BLOCK_ROWS = 64;
+
+    @Test
+    public void roundTripsEveryRow() throws IOException {
+        int rows = 10 * BLOCK_ROWS + 17;
+        long[] timestamps = new long[rows];
+        float[][] values = ride(rows, timestamps);
+        byte[] stream = encode(timestamps, values);
+
+        TimeSeriesCodec.Decoder decoder = new TimeSeriesCodec.Decoder(
+                new ByteArrayInputStream(stream));
+        assertEquals(SCALES.length, decoder.getChannels());
+        TimeSeriesCodec.Block block = new TimeSeriesCodec.Block();
+        int row = 0;
+        int blocks = 0;
+        while (decoder.next(block)) {
+            for (int i = 0; i < block.count; i++, row++) {
+                assertEquals(timestamps[row], block.timestamps[i]);
+                for (int c = 0; c < SCALES.length; c++) {
+                    float expected = values[row][c];
+                    float actual = block.values[i * SCALES.length + c];
+                    assertEquals("row " + row + " channel " + c,
+                            Float.floatToRawIntBits(expected), Float.floatToRawIntBits(actual));
+                }
+            }
+            blocks++;
+        }
+        assertEquals(rows, row);
+        // The last block is the short one flush() wrote
+        assertEquals(11, blocks);
+        assertEquals(17, block.count);
+    }
+
+    @Test
+    public void xorKeepsSpecialValuesBitExact() throws IOException {
+        float[] specials = {0f, -0f, Float.NaN, Float.intBitsToFloat(0x7FC00001),
+                Float.POSITIVE_INFINITY, Float.NEGATIVE_INFINITY, Float.MIN_VALUE,
+                Float.MAX_VALUE, -1.5f, 1e-30f, 1e30f, 3.14159f};
+        long[] timestamps = new long[specials.length];
+        float[][] values = new float[specials.length][SCALES.length];
+        for (int i = 0; i < specials.length; i++) {
+            timestamps[i] = 1000 + 10 * i;
+            values[i][2] = specials[i];
+            values[i][3] = specials[specials.length - 1 - i];
+        }
+        TimeSeriesCodec.Block block = new TimeSeriesCodec.Block();
+        TimeSeriesCodec.Decoder decoder = new TimeSeriesCodec.Decoder(
+                new ByteArrayInputStream(encode(timestamps, values)));
+        assertTrue(decoder.next(block));
+        for (int i = 0; i < specials.length; i++) {
+            assertEquals(Float.floatToRawIntBits(values[i][2]),
+                    Float.floatToRawIntBits(block.values[i * SCALES.length + 2]));
+            assertEquals(Float.floatToRawIntBits(values[i][3]),
+                    Float.floatToRawIntBits(block.values[i * SCALES.length + 3]));
+        }
+        assertFalse(decoder.next(block));
+    }
+
+    @Test
+    public void timeRangeSkipsBlocksOutsideIt() throws IOException {
+        int rows = 8 * BLOCK_ROWS;
+        long[] timestamps = new long[rows];
+        float[][] values = ride(rows, timestamps);
+        long from = timestamps[3 * BLOCK_ROWS + 5];
+        long to = timestamps[5 * BLOCK_ROWS - 1];
+
+        TimeSeriesCodec.Decoder decoder = new TimeSeriesCodec.Decoder(
+                new ByteArrayInputStream(encode(timestamps, values)));
+        TimeSeriesCodec.Block block = new TimeSeriesCodec.Block();
+        assertTrue(decoder.next(block, from, to));
+        assertEquals(timestamps[3 * BLOCK_ROWS], block.getFirstTimestamp());
+        assertTrue(decoder.next(block, from, to));
+        assertEquals(to, block.getLastTimestamp());
+        // Later blocks are skipped through to the end of the stream
+        assertFalse(decoder.next(block, from, to));
+    }
+
+    @Test
+    public void stillChannelsCompressWell() throws IOException {
+        int rows = 4 * BLOCK_ROWS;
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        TimeSeriesCodec.Encoder encoder = new TimeSeriesCodec.Encoder(bytes, SCALES, BLOCK_ROWS);
+        float[] row = {1.25f, -3.5f, 0.75f, 9.81f};
+        for (int i = 0; i < rows; i++) {
+            encoder.append(20L * i, row);
+        }
+        encoder.close();
+        // Per block: a bit per steady timestamp and a single run per channel
+        for (int c = 0; c < SCALES.length; c++) {
+            assertTrue(encoder.getChannelBits(c) < 4 * 64);
+        }
+        assertTrue(encoder.getEncodedBytes() * 20 < encoder.getRawBytes());
+        assertEquals(bytes.size(), encoder.getEncodedBytes());
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsOtherStreams() throws IOException {
+        new TimeSeriesCodec.Decoder(new ByteArrayInputStream(new byte[16]));
+    }
+
+    // Around 100 Hz with jitter and a gap; two-decimal angles, noisy floats
+    private static float[][] ride(int rows, long[] timestamps) {
+        Random random = new Random(42);
+        float[][] values = new float[rows][SCALES.length];
+        long timestamp = 1_700_000_000_000L;
+        for (int i = 0; i < rows; i++) {
+            timestamp += i == rows / 2 ? 1500 : 9 + random.nextInt(3);
+            timestamps[i] = timestamp;
+            values[i][0] = Math.round(30 * Math.sin(i / 50.0) * 100) / 100f;
+            values[i][1] = i % 7 == 0 ? Math.round(random.nextGaussian() * 1000) / 100f
+                    : values[Math.max(0, i - 1)][1];
+            values[i][2] = (float) random.nextGaussian();
+            values[i][3] = 1f + i / 1000f;
+        }
+        return values;
+    }
+
+    private static byte[] encode(long[] timestamps, float[][] values) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        TimeSeriesCodec.Encoder encoder = new TimeSeriesCodec.Encoder(bytes, SCALES, BLOCK_ROWS);
+        for (int i = 0; i < timestamps.length; i++) {
+            encoder.append(timestamps[i], values[i]);
+        }
+        encoder.close();
+        return bytes.toByteArray();
+    }
+}
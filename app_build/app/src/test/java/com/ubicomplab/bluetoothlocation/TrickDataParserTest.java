@@ -0,0 +1,202 @@
+package com.ubicomplab.bluetoothlocation;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * TrickDataParser against the split(",") reader TrickDataset used before it, which defines
+ * what it accepts: every column must come out bit for bit the same.
+ */
+public class TrickDataParserTest {
+    private static final String[] LINES = {
+            "1748747225.19,-1.90,1.10,260.00,0.98,Fwd,3.15",
+            "1748746119.05,-6.18,-6.51,285.81,0.91,Rev,7.70",
+            "1748746154.08,0.35,-0.68,113.56,0.97,,3.40",
+            "1748746154.08,0.35,-0.68,113.56,0.97,Sideways,3.40",
+            "  1748746154.1,0.35,-0.68,113.56,0.97,Fwd,3.40  \r",
+            "1748746154,1,2,3,4",
+            "1748746154.123,1,2,3,4,Fwd",
+            "1748746154.123,1,2,3,4,Fwd,",
+            "1748746154.123,1,2,3,4,Fwd,fast",
+            "1748746154.123,+1.5,-0,3e2,4.0E-1,Rev,NaN",
+            "1748746154.123,0.1234567890123,2,3,4,Fwd,1",
+            "1748746154.123,16777217,2,3,4,Fwd,1",
+            "1748746154.123, 1.5 ,2,3,4,Fwd,1",
+            "1748746154.12345,1,2,3,4,Fwd,1",
+            "",
+            "   ",
+            "timestamp,pitch,roll,yaw,gForce,direction,speed",
+            "1748746154.123,1,2,3",
+            "1748746154.123,1,2,x,4,Fwd,1",
+            "1748746154.123,1,2,3,,Fwd,1",
+            "1748746154.123,1,,3,4,Fwd,1",
+    };
+
+    @Test
+    public void matchesTheSplitReaderLineByLine() {
+        for (String line : LINES) {
+            assertSameColumns(line, split(line), parse(line + "\n"));
+        }
+    }
+
+    @Test
+    public void matchesTheSplitReaderOnRandomRides() {
+        Random random = new Random(7);
+        String[] directions = {"Fwd", "Rev", ""};
+        StringBuilder text = new StringBuilder();
+        double time = 1748746154.0;
+        for (int i = 0; i < 20_000; i++) {
+            time += 0.01 + random.nextInt(3) * 0.005;
+            text.append(String.format(Locale.US, "%.2f,%.2f,%.2f,%.2f,%.2f,%s,%.2f\n", time,
+                    random.nextGaussian() * 30, random.nextGaussian() * 30,
+                    random.nextDouble() * 360, 1 + random.nextGaussian() * 0.5,
+                    directions[random.nextInt(3)], random.nextDouble() * 30));
+        }
+        String all = text.toString();
+        TrickDataParser.Columns expected = new TrickDataParser.Columns();
+        for (String line : all.split("\n")) {
+            splitLine(line, expected);
+        }
+        assertEquals(20_000, expected.count);
+        assertSameColumns("random ride", expected, parse(all));
+    }
+
+    @Test
+    public void windowedReadMatchesOneRead() throws IOException {
+        File file = File.createTempFile("ride", ".txt");
+        try {
+            StringBuilder text = new StringBuilder();
+            for (int i = 0; i < 500; i++) {
+                text.append(LINES[i % LINES.length]).append('\n');
+            }
+            // No line break after the last line
+            text.append(LINES[0]);
+            try (OutputStream out = new FileOutputStream(file)) {
+                out.write(text.toString().getBytes(StandardCharsets.US_ASCII));
+            }
+            TrickDataParser.Columns whole = TrickDataParser.read(file);
+            TrickDataParser.Columns windowed = new TrickDataParser.Columns();
+            TrickDataParser.Columns chunk = new TrickDataParser.Columns();
+            new TrickDataParser().read(file, 256, columns -> {
+                for (int i = 0; i < columns.count; i++) {
+                    copyRow(columns, i, windowed);
+                }
+            }, chunk);
+            assertSameColumns("windowed", whole, windowed);
+
+            TrickDataParser.Columns expected = new TrickDataParser.Columns();
+            for (String line : text.toString().split("\n")) {
+                splitLine(line, expected);
+            }
+            assertSameColumns("file", expected, whole);
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void directionTokensAreCaseSensitive() {
+        TrickDataParser.Columns columns = parse("1,1,2,3,4,Fwd,1\n1,1,2,3,4,Rev,1\n"
+                + "1,1,2,3,4,,1\n1,1,2,3,4,fwd,1\n1,1,2,3,4,REV,1\n");
+        assertEquals(5, columns.count);
+        assertEquals(TrickDataParser.DIRECTION_FORWARD, columns.direction[0]);
+        assertEquals(TrickDataParser.DIRECTION_REVERSE, columns.direction[1]);
+        for (int i = 2; i < 5; i++) {
+            assertEquals(TrickDataParser.DIRECTION_NONE, columns.direction[i]);
+        }
+    }
+
+    private static TrickDataParser.Columns parse(String text) {
+        byte[] bytes = text.getBytes(StandardCharsets.US_ASCII);
+        TrickDataParser.Columns columns = new TrickDataParser.Columns();
+        new TrickDataParser().parse(ByteBuffer.wrap(bytes), 0, bytes.length, columns);
+        return columns;
+    }
+
+    private static TrickDataParser.Columns split(String line) {
+        TrickDataParser.Columns columns = new TrickDataParser.Columns();
+        splitLine(line, columns);
+        return columns;
+    }
+
+    // TrickDataset's reader before TrickDataParser, with the direction column added
+    private static void splitLine(String line, TrickDataParser.Columns columns) {
+        String[] values = line.trim().split(",");
+        if (values.length < 5) {
+            return;
+        }
+        try {
+            long timestamp = Math.round(Double.parseDouble(values[0]) * 1000.0);
+            float pitch = Float.parseFloat(values[1]);
+            float roll = Float.parseFloat(values[2]);
+            float yaw = Float.parseFloat(values[3]);
+            float gForce = Float.parseFloat(values[4]);
+            float speed = 0f;
+            if (values.length >= 7) {
+                try {
+                    speed = Float.parseFloat(values[6]);
+                } catch (NumberFormatException e) {
+                    speed = 0f;
+                }
+            }
+            byte direction = values.length < 6 ? TrickDataParser.DIRECTION_NONE
+                    : "Fwd".equals(values[5]) ? TrickDataParser.DIRECTION_FORWARD
+                    : "Rev".equals(values[5]) ? TrickDataParser.DIRECTION_REVERSE
+                    : TrickDataParser.DIRECTION_NONE;
+            int row = columns.count;
+            columns.ensureCapacity(row + 1);
+            columns.timestamps[row] = timestamp;
+            columns.pitch[row] = pitch;
+            columns.roll[row] = roll;
+            columns.yaw[row] = yaw;
+            columns.gForce[row] = gForce;
+            columns.direction[row] = direction;
+            columns.speed[row] = speed;
+            columns.count = row + 1;
+        } catch (NumberFormatException e) {
+            // Dropped, as TrickDataset did
+        }
+    }
+
+    private static void copyRow(TrickDataParser.Columns from, int i, TrickDataParser.Columns to) {
+        int row = to.count;
+        to.ensureCapacity(row + 1);
+        to.timestamps[row] = from.timestamps[i];
+        to.pitch[row] = from.pitch[i];
+        to.roll[row] = from.roll[i];
+        to.yaw[row] = from.yaw[i];
+        to.gForce[row] = from.gForce[i];
+        to.direction[row] = from.direction[i];
+        to.speed[row] = from.speed[i];
+        to.count = row + 1;
+    }
+
+    private static void assertSameColumns(String what, TrickDataParser.Columns expected,
+                                          TrickDataParser.Columns actual) {
+        assertEquals(what, expected.count, actual.count);
+        for (int i = 0; i < expected.count; i++) {
+            String row = what + ", row " + i;
+            assertEquals(row, expected.timestamps[i], actual.timestamps[i]);
+            assertEquals(row, expected.direction[i], actual.direction[i]);
+            assertSameBits(row, expected.pitch[i], actual.pitch[i]);
+            assertSameBits(row, expected.roll[i], actual.roll[i]);
+            assertSameBits(row, expected.yaw[i], actual.yaw[i]);
+            assertSameBits(row, expected.gForce[i], actual.gForce[i]);
+            assertSameBits(row, expected.speed[i], actual.speed[i]);
+        }
+    }
+
+    private static void assertSameBits(String row, float expected, float actual) {
+        assertEquals(row, Float.floatToRawIntBits(expected), Float.floatToRawIntBits(actual));
+    }
+}
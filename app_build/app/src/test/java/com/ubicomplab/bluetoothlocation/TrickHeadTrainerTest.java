@@ -0,0 +1,72 @@
+package com.ubicomplab.bluetoothlocation;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+/**
+ * The augmented copies TrickHeadTrainer caches for each clip. The clip is a ramp, pitch
+ * ten degrees per row, so a copy's time shift can be read back from its middle row.
+ */
+public class TrickHeadTrainerTest {
+    private static final int COPIES = 4;
+    private static final float STEP = 10f;
+
+    @Test
+    public void everyClipGetsItsOwnAugmentation() {
+        TrickHeadTrainer trainer = new TrickHeadTrainer(TestWeights.random(1, false), 64,
+                COPIES, 1, 7, null);
+        float[] clip = ramp();
+        float[][] first = copy(trainer.augmentClip(clip, 0));
+        float[][] second = copy(trainer.augmentClip(clip, 0));
+
+        assertArrayEquals(clip, first[0], 0f);
+        assertArrayEquals(clip, second[0], 0f);
+        int sameShifts = 0;
+        for (int k = 1; k <= COPIES; k++) {
+            assertFalse("copy " + k + " repeated", Arrays.equals(first[k], second[k]));
+            sameShifts += shift(first[k]) == shift(second[k]) ? 1 : 0;
+        }
+        assertFalse("every copy has the same shift", sameShifts == COPIES);
+    }
+
+    @Test
+    public void sameSeedGivesTheSameCopies() {
+        float[] clip = ramp();
+        float[][] a = copy(new TrickHeadTrainer(TestWeights.random(1, false), 64, COPIES, 1, 7,
+                null).augmentClip(clip, 2));
+        float[][] b = copy(new TrickHeadTrainer(TestWeights.random(1, false), 64, COPIES, 1, 7,
+                null).augmentClip(clip, 2));
+        assertEquals(COPIES + 1, a.length);
+        for (int k = 0; k < a.length; k++) {
+            assertArrayEquals(a[k], b[k], 0f);
+        }
+    }
+
+    private static float[] ramp() {
+        float[] clip = new float[TestWeights.TIMESTEPS * TestWeights.FEATURES];
+        for (int t = 0; t < TestWeights.TIMESTEPS; t++) {
+            clip[t * TestWeights.FEATURES] = STEP * t;
+            clip[t * TestWeights.FEATURES + 3] = 1f;
+        }
+        return clip;
+    }
+
+    // Rows the copy moved the ramp by; the rotation noise is well under half a step
+    private static int shift(float[] window) {
+        int middle = TestWeights.TIMESTEPS / 2;
+        return middle - Math.round(window[middle * TestWeights.FEATURES] / STEP);
+    }
+
+    private static float[][] copy(float[][] windows) {
+        float[][] copy = new float[windows.length][];
+        for (int i = 0; i < windows.length; i++) {
+            copy[i] = windows[i].clone();
+        }
+        return copy;
+    }
+}
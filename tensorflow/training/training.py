@@ -2,6 +2,7 @@ import tensorflow as tf
 import numpy as np
 import os
 import glob
+import time
 from sklearn.model_selection import train_test_split
 
 TIMESTEPS = 220  # 2 seconds at 50Hz
@@ -9,6 +10,8 @@ NUM_FEATURES = 4  # pitch, roll, yaw, gForce
 NUM_CLASSES = 3
 BATCH_SIZE = 32
 EPOCHS = 50
+# Output prefix of DatasetBuilder; used instead of the .txt files when its tensors exist
+BUILT_DATASET = 'trick_dataset'
 
 # Custom Dense layer that uses older TensorFlow operations for better TFLite compatibility
 class CompatibleDense(tf.keras.layers.Layer):
@@ -99,6 +102,23 @@ def load_real_data(timesteps=150):
     
     return np.array(X, dtype=np.float32), np.array([label_map[label] for label in y])
 
+def load_built_dataset(prefix, timesteps=150):
+    # Tensors written by DatasetBuilder (Java): [prefix]_x.npy float32 (windows, timesteps, 4),
+    # [prefix]_y.npy int32 class per window, [prefix]_classes.txt class names in index order.
+    # Memory-mapped, so only the windows that are used get read from disk.
+    X = np.load(f"{prefix}_x.npy", mmap_mode='r')
+    y = np.load(f"{prefix}_y.npy", mmap_mode='r')
+    with open(f"{prefix}_classes.txt", 'r') as f:
+        labels = [line.strip() for line in f if line.strip()]
+
+    if X.shape[1:] != (timesteps, NUM_FEATURES):
+        raise ValueError(f"{prefix}_x.npy has windows of {X.shape[1:]}, expected {(timesteps, NUM_FEATURES)}; "
+                         f"rebuild with DatasetBuilder <data dir> {prefix} {timesteps}")
+    if len(labels) != 3:
+        raise ValueError(f"Exactly 3 classes required. Found: {labels}")
+
+    return X, y
+
 def augment_imu_data(X, y, augmentation_factor=8):
     """
     Augment IMU data with realistic transformations for bike trick detection.
@@ -266,16 +286,64 @@ def convert_with_quantization(model, model_name='compatible_model_quant'):
         print(f"✗ Quantized conversion failed: {e}")
         return False
 
+JAVA_WEIGHTS_MAGIC = 0x4D425457  # "MBTW"
+JAVA_WEIGHTS_VERSION = 1
+
+def export_java_weights(model, model_name='trick_detector_weights'):
+    """
+    Export the CNN+LSTM weights as flat little-endian float32 tensors for the
+    Java inference path (TrickModelWeights.java in the app).
+    BatchNormalization layers are folded into per-channel scale/shift pairs.
+    """
+    convs = [l for l in model.layers if isinstance(l, tf.keras.layers.Conv1D)]
+    norms = [l for l in model.layers if isinstance(l, tf.keras.layers.BatchNormalization)]
+    lstm = [l for l in model.layers if isinstance(l, tf.keras.layers.LSTM)][0]
+    denses = [l for l in model.layers if isinstance(l, CompatibleDense)]
+
+    # The two branch convolutions feed Concatenate() as [kernel 3, kernel 7]
+    branches = sorted(convs[:2], key=lambda l: l.kernel_size[0])
+
+    def folded_norm(layer):
+        gamma, beta, mean, var = layer.get_weights()
+        scale = gamma / np.sqrt(var + layer.epsilon)
+        return [scale, beta - mean * scale]
+
+    tensors = []
+    for layer in branches:
+        tensors += layer.get_weights()
+    tensors += folded_norm(norms[0])
+    tensors += convs[2].get_weights()
+    tensors += folded_norm(norms[1])
+    tensors += lstm.get_weights()  # kernel, recurrent_kernel, bias (gates i, f, c, o)
+    for layer in denses:
+        tensors += [layer.w.numpy(), layer.b.numpy()]
+
+    timesteps, features = model.input_shape[1], model.input_shape[2]
+    header = [JAVA_WEIGHTS_MAGIC, JAVA_WEIGHTS_VERSION, timesteps, features, denses[-1].units, len(tensors)]
+    with open(f'{model_name}.bin', 'wb') as f:
+        f.write(np.array(header, dtype='<i4').tobytes())
+        for tensor in tensors:
+            f.write(np.array([tensor.ndim] + list(tensor.shape), dtype='<i4').tobytes())
+            f.write(np.asarray(tensor, dtype='<f4').tobytes())
+    print(f"✓ Java weights saved as {model_name}.bin")
+
 # Main execution
 if __name__ == "__main__":
     # Load and augment data
     print("Loading original data...")
-    X_original, y_original = load_real_data(TIMESTEPS)
+    if os.path.exists(f"{BUILT_DATASET}_x.npy"):
+        X_original, y_original = load_built_dataset(BUILT_DATASET, TIMESTEPS)
+    else:
+        X_original, y_original = load_real_data(TIMESTEPS)
     print(f"Original data: {len(X_original)} samples")
 
     print("Augmenting data...")
+    augment_start = time.perf_counter()
     X_augmented, y_augmented = augment_imu_data(X_original, y_original, augmentation_factor=8)
-    print(f"Augmented data: {len(X_augmented)} samples")
+    augment_seconds = time.perf_counter() - augment_start
+    # Compare with the Java port: java ... ImuAugmenter <data dir> 220 8
+    print(f"Augmented data: {len(X_augmented)} samples "
+          f"({len(X_original) * 8 / augment_seconds:.0f} augmented samples/s)")
 
     X_train, X_test, y_train, y_test = train_test_split(X_augmented, y_augmented, test_size=0.2, stratify=y_augmented)
 
@@ -331,6 +399,9 @@ if __name__ == "__main__":
     # Try quantized conversion
     success2 = convert_with_quantization(model, 'trick_detector_compatible_quant')
 
+    # Raw weights for the app's own Java inference path
+    export_java_weights(model, 'trick_detector_weights')
+
     if success1 or success2:
         print("\n✓ At least one compatible model was created successfully!")
         print("\nFiles created:")